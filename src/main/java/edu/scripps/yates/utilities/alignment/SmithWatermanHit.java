@@ -0,0 +1,51 @@
+package edu.scripps.yates.utilities.alignment;
+
+/**
+ * Local alignment of a query sequence against a target sequence, as reported
+ * by {@link SmithWatermanScorer}. The positions are 0-based, being the starts
+ * inclusive and the ends exclusive, as in {@link String#substring(int, int)}
+ *
+ * @author Salva
+ *
+ */
+public class SmithWatermanHit {
+	private final int score;
+	private final int queryStart;
+	private final int queryEnd;
+	private final int targetStart;
+	private final int targetEnd;
+
+	public SmithWatermanHit(int score, int queryStart, int queryEnd, int targetStart, int targetEnd) {
+		this.score = score;
+		this.queryStart = queryStart;
+		this.queryEnd = queryEnd;
+		this.targetStart = targetStart;
+		this.targetEnd = targetEnd;
+	}
+
+	public int getScore() {
+		return score;
+	}
+
+	public int getQueryStart() {
+		return queryStart;
+	}
+
+	public int getQueryEnd() {
+		return queryEnd;
+	}
+
+	public int getTargetStart() {
+		return targetStart;
+	}
+
+	public int getTargetEnd() {
+		return targetEnd;
+	}
+
+	@Override
+	public String toString() {
+		return "score=" + score + " query=[" + queryStart + "-" + queryEnd + ") target=[" + targetStart + "-"
+				+ targetEnd + ")";
+	}
+}
@@ -0,0 +1,334 @@
+package edu.scripps.yates.utilities.alignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.scripps.yates.utilities.alignment.nwalign.NWAlign;
+
+/**
+ * Smith-Waterman local alignment of query sequences (i.e. peptides) against
+ * target sequences (i.e. proteins) that only reports the scores and the
+ * positions of the hits, without the aligned sequences, so that it only keeps
+ * one row of the dynamic programming and the memory is linear in the length of
+ * the query.<br>
+ * The gaps are affine: a gap of length k costs gapOpen + (k - 1) *
+ * gapExtension, as in {@link NWAlign}, so the penalties are negative numbers.
+ * With gapOpen = gapExtension the gaps are linear, as in
+ * {@link SmithWatermanSimple}.<br>
+ * The scorer keeps its buffers and the scores of the current query against
+ * each amino acid from one call to the next, so it is meant to be reused for
+ * many alignments, as in {@link #getScores(List, String)}. It is not thread
+ * safe.
+ *
+ * @author Salva
+ *
+ */
+public class SmithWatermanScorer {
+	// low enough to add penalties to it without overflowing
+	private static final int MIN_SCORE = Integer.MIN_VALUE / 8;
+	// characters are scored by their ASCII code, being 0 the rest
+	private static final int ALPHABET_SIZE = 128;
+	private final int[][] scores = new int[ALPHABET_SIZE][ALPHABET_SIZE];
+	private final int gapOpen;
+	private final int gapExtension;
+	private String query;
+	// score of each character against each position of the query, calculated
+	// the first time that the character is found in a target
+	private final int[][] profile = new int[ALPHABET_SIZE][];
+	private final int[] profileVersions = new int[ALPHABET_SIZE];
+	private int profileVersion;
+	// scores of the best paths to the cells of the current row, and of the
+	// ones ending in a gap in the query
+	private int[] h = new int[0];
+	private int[] f = new int[0];
+	// start of the paths, as (target position << 32) | query position
+	private long[] hStarts = new long[0];
+	private long[] fStarts = new long[0];
+	// best hit ending at each position of the target
+	private int[] targetScores = new int[0];
+	private int[] targetQueryEnds = new int[0];
+	private long[] targetStarts = new long[0];
+
+	/**
+	 * Scorer with the same score for all the matches and for all the
+	 * mismatches
+	 *
+	 * @param match
+	 * @param mismatch
+	 * @param gapOpen
+	 * @param gapExtension
+	 */
+	public SmithWatermanScorer(int match, int mismatch, int gapOpen, int gapExtension) {
+		this.gapOpen = gapOpen;
+		this.gapExtension = gapExtension;
+		for (int i = 0; i < ALPHABET_SIZE; i++) {
+			Arrays.fill(scores[i], mismatch);
+			scores[i][i] = match;
+		}
+	}
+
+	/**
+	 * Scorer with the BLOSUM62 matrix, so the sequences have to be in upper case
+	 *
+	 * @param gapOpen
+	 * @param gapExtension
+	 */
+	public SmithWatermanScorer(int gapOpen, int gapExtension) {
+		this.gapOpen = gapOpen;
+		this.gapExtension = gapExtension;
+		for (int i = 0; i < ALPHABET_SIZE; i++) {
+			for (int j = 0; j < ALPHABET_SIZE; j++) {
+				scores[i][j] = NWAlign.getBlosum62Score((char) i, (char) j);
+			}
+		}
+	}
+
+	private static int getCode(char c) {
+		return c < ALPHABET_SIZE ? c : 0;
+	}
+
+	private void setQuery(String query) {
+		if (query.equals(this.query)) {
+			return;
+		}
+		this.query = query;
+		profileVersion++;
+		final int length = query.length() + 1;
+		if (h.length < length) {
+			h = new int[length];
+			f = new int[length];
+			hStarts = new long[length];
+			fStarts = new long[length];
+		}
+	}
+
+	private int[] getProfile(char c) {
+		final int code = getCode(c);
+		int[] ret = profile[code];
+		if (profileVersions[code] != profileVersion) {
+			if (ret == null || ret.length < h.length) {
+				ret = new int[h.length];
+				profile[code] = ret;
+			}
+			final int[] codeScores = scores[code];
+			for (int i = 0; i < query.length(); i++) {
+				ret[i + 1] = codeScores[getCode(query.charAt(i))];
+			}
+			profileVersions[code] = profileVersion;
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param query
+	 * @param target
+	 * @return the score of the best local alignment of the query against the
+	 *         target, or 0 if there is not any
+	 */
+	public int getScore(String query, String target) {
+		setQuery(query);
+		final int length = query.length();
+		final int[] h = this.h;
+		final int[] f = this.f;
+		Arrays.fill(h, 0, length + 1, 0);
+		Arrays.fill(f, 0, length + 1, MIN_SCORE);
+		int ret = 0;
+		for (int j = 0; j < target.length(); j++) {
+			final int[] row = getProfile(target.charAt(j));
+			int diagonal = 0;
+			int left = 0;
+			int e = MIN_SCORE;
+			for (int i = 1; i <= length; i++) {
+				final int up = h[i];
+				f[i] = Math.max(up + gapOpen, f[i] + gapExtension);
+				e = Math.max(left + gapOpen, e + gapExtension);
+				final int score = Math.max(Math.max(diagonal + row[i], 0), Math.max(e, f[i]));
+				diagonal = up;
+				h[i] = score;
+				left = score;
+				if (score > ret) {
+					ret = score;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Calculates the best hit ending at each position of the target, keeping
+	 * the starts of the paths
+	 *
+	 * @param query
+	 * @param target
+	 */
+	private void alignToTarget(String query, String target) {
+		setQuery(query);
+		final int length = query.length();
+		if (targetScores.length < target.length()) {
+			targetScores = new int[target.length()];
+			targetQueryEnds = new int[target.length()];
+			targetStarts = new long[target.length()];
+		}
+		final int[] h = this.h;
+		final int[] f = this.f;
+		final long[] hStarts = this.hStarts;
+		final long[] fStarts = this.fStarts;
+		Arrays.fill(h, 0, length + 1, 0);
+		Arrays.fill(f, 0, length + 1, MIN_SCORE);
+		for (int j = 0; j < target.length(); j++) {
+			final int[] row = getProfile(target.charAt(j));
+			int diagonal = 0;
+			long diagonalStart = 0;
+			int left = 0;
+			long leftStart = 0;
+			int e = MIN_SCORE;
+			long eStart = 0;
+			int best = 0;
+			int bestQueryEnd = 0;
+			long bestStart = 0;
+			for (int i = 1; i <= length; i++) {
+				final int up = h[i];
+				final long upStart = hStarts[i];
+				if (up + gapOpen >= f[i] + gapExtension) {
+					f[i] = up + gapOpen;
+					fStarts[i] = upStart;
+				} else {
+					f[i] += gapExtension;
+				}
+				if (left + gapOpen >= e + gapExtension) {
+					e = left + gapOpen;
+					eStart = leftStart;
+				} else {
+					e += gapExtension;
+				}
+				int score = diagonal + row[i];
+				// the alignment starts here if there is nothing before
+				long start = diagonal == 0 ? (long) j << 32 | i - 1 : diagonalStart;
+				if (f[i] > score) {
+					score = f[i];
+					start = fStarts[i];
+				}
+				if (e > score) {
+					score = e;
+					start = eStart;
+				}
+				if (score < 0) {
+					score = 0;
+				}
+				diagonal = up;
+				diagonalStart = upStart;
+				h[i] = score;
+				hStarts[i] = start;
+				left = score;
+				leftStart = start;
+				if (score > best) {
+					best = score;
+					bestQueryEnd = i;
+					bestStart = start;
+				}
+			}
+			targetScores[j] = best;
+			targetQueryEnds[j] = bestQueryEnd;
+			targetStarts[j] = bestStart;
+		}
+	}
+
+	private SmithWatermanHit getTargetHit(int targetPosition) {
+		final long start = targetStarts[targetPosition];
+		return new SmithWatermanHit(targetScores[targetPosition], (int) start, targetQueryEnds[targetPosition],
+				(int) (start >>> 32), targetPosition + 1);
+	}
+
+	/**
+	 *
+	 * @param query
+	 * @param target
+	 * @return the best local alignment of the query against the target, being
+	 *         the first one in the target in case of ties, or null if there is
+	 *         not any with a positive score
+	 */
+	public SmithWatermanHit getBestHit(String query, String target) {
+		alignToTarget(query, target);
+		int best = -1;
+		for (int j = 0; j < target.length(); j++) {
+			if (targetScores[j] > 0 && (best == -1 || targetScores[j] > targetScores[best])) {
+				best = j;
+			}
+		}
+		if (best == -1) {
+			return null;
+		}
+		return getTargetHit(best);
+	}
+
+	/**
+	 * Gets the best local alignments of the query against the target that do
+	 * not overlap in the target, taking the best one ending at each position
+	 * of the target
+	 *
+	 * @param query
+	 * @param target
+	 * @param maxHits
+	 * @return up to maxHits hits, sorted by decreasing score
+	 */
+	public List<SmithWatermanHit> getTopHits(String query, String target, int maxHits) {
+		alignToTarget(query, target);
+		final List<SmithWatermanHit> ret = new ArrayList<SmithWatermanHit>();
+		// score and position, sorted so that the ties go first by position
+		final long[] ends = new long[target.length()];
+		int numEnds = 0;
+		for (int j = 0; j < target.length(); j++) {
+			if (targetScores[j] > 0) {
+				ends[numEnds++] = (long) targetScores[j] << 32 | Integer.MAX_VALUE - j;
+			}
+		}
+		Arrays.sort(ends, 0, numEnds);
+		for (int k = numEnds - 1; k >= 0 && ret.size() < maxHits; k--) {
+			final SmithWatermanHit hit = getTargetHit(Integer.MAX_VALUE - (int) ends[k]);
+			boolean overlaps = false;
+			for (final SmithWatermanHit previousHit : ret) {
+				if (hit.getTargetStart() < previousHit.getTargetEnd()
+						&& previousHit.getTargetStart() < hit.getTargetEnd()) {
+					overlaps = true;
+					break;
+				}
+			}
+			if (!overlaps) {
+				ret.add(hit);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param queries
+	 * @param target
+	 * @return the score of the best local alignment of each query against the
+	 *         target
+	 */
+	public int[] getScores(List<String> queries, String target) {
+		final int[] ret = new int[queries.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = getScore(queries.get(i), target);
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param queries
+	 * @param target
+	 * @return the best local alignment of each query against the target, or
+	 *         null for the ones without any
+	 */
+	public List<SmithWatermanHit> getBestHits(List<String> queries, String target) {
+		final List<SmithWatermanHit> ret = new ArrayList<SmithWatermanHit>();
+		for (final String query : queries) {
+			ret.add(getBestHit(query, target));
+		}
+		return ret;
+	}
+}
@@ -1,10 +1,30 @@
 package edu.scripps.yates.utilities.alignment;
 
+import java.util.List;
+
+/**
+ * Smith-Waterman local alignment with the whole matrix, scoring 2 the matches
+ * and -1 the mismatches and the gaps.<br>
+ * When only the scores or the positions of the alignments are needed, use
+ * {@link #getScore(String, String)} and
+ * {@link #getTopHits(String, String, int)}, that keep only one row of the
+ * matrix, or a {@link SmithWatermanScorer} for other scores and for aligning
+ * many sequences.
+ *
+ * @author Salva
+ *
+ */
 public class SmithWatermanSimple {
+	private static final int MATCH = 2;
+	private static final int MISMATCH = -1;
+	private static final int GAP = -1;
 	char[] mSeqA;
 	char[] mSeqB;
 	int[][] mD;
 	int mScore;
+	// cell with the maximum score, the first one in case of ties
+	int mMaxI;
+	int mMaxJ;
 	String mAlignmentSeqA = "";
 	String mAlignmentSeqB = "";
 
@@ -21,90 +41,114 @@ public class SmithWatermanSimple {
 	}
 
 	void process() {
+		mMaxI = 1;
+		mMaxJ = 1;
+		int max = -1;
 		for (int i = 1; i <= mSeqA.length; i++) {
 			for (int j = 1; j <= mSeqB.length; j++) {
 				int scoreDiag = mD[i - 1][j - 1] + weight(i, j);
-				int scoreLeft = mD[i][j - 1] - 1;
-				int scoreUp = mD[i - 1][j] - 1;
+				int scoreLeft = mD[i][j - 1] + GAP;
+				int scoreUp = mD[i - 1][j] + GAP;
 				mD[i][j] = Math.max(Math.max(Math.max(scoreDiag, scoreLeft), scoreUp), 0);
+				if (mD[i][j] > max) {
+					mMaxI = i;
+					mMaxJ = j;
+					max = mD[i][j];
+				}
 			}
 		}
 	}
 
 	void backtrack() {
-		int i = 1;
-		int j = 1;
-		int max = mD[i][j];
-
-		for (int k = 1; k <= mSeqA.length; k++) {
-			for (int l = 1; l <= mSeqB.length; l++) {
-				if (mD[k][l] > max) {
-					i = k;
-					j = l;
-					max = mD[k][l];
-				}
-			}
-		}
+		int i = mMaxI;
+		int j = mMaxJ;
 
 		mScore = mD[i][j];
 
+		// built backwards and reversed at the end
+		final StringBuilder alignmentSeqA = new StringBuilder();
+		final StringBuilder alignmentSeqB = new StringBuilder();
+
 		int k = mSeqA.length;
 		int l = mSeqB.length;
 
 		while (k > i) {
-			mAlignmentSeqB += "-";
-			mAlignmentSeqA += mSeqA[k - 1];
+			alignmentSeqB.append('-');
+			alignmentSeqA.append(mSeqA[k - 1]);
 			k--;
 		}
 		while (l > j) {
-			mAlignmentSeqA += "-";
-			mAlignmentSeqB += mSeqB[l - 1];
+			alignmentSeqA.append('-');
+			alignmentSeqB.append(mSeqB[l - 1]);
 			l--;
 		}
 
 		while (mD[i][j] != 0) {
 			if (mD[i][j] == mD[i - 1][j - 1] + weight(i, j)) {
-				mAlignmentSeqA += mSeqA[i - 1];
-				mAlignmentSeqB += mSeqB[j - 1];
+				alignmentSeqA.append(mSeqA[i - 1]);
+				alignmentSeqB.append(mSeqB[j - 1]);
 				i--;
 				j--;
 				continue;
-			} else if (mD[i][j] == mD[i][j - 1] - 1) {
-				mAlignmentSeqA += "-";
-				mAlignmentSeqB += mSeqB[j - 1];
+			} else if (mD[i][j] == mD[i][j - 1] + GAP) {
+				alignmentSeqA.append('-');
+				alignmentSeqB.append(mSeqB[j - 1]);
 				j--;
 				continue;
 			} else {
-				mAlignmentSeqA += mSeqA[i - 1];
-				mAlignmentSeqB += "-";
+				alignmentSeqA.append(mSeqA[i - 1]);
+				alignmentSeqB.append('-');
 				i--;
 				continue;
 			}
 		}
 
 		while (i > 0) {
-			mAlignmentSeqB += "-";
-			mAlignmentSeqA += mSeqA[i - 1];
+			alignmentSeqB.append('-');
+			alignmentSeqA.append(mSeqA[i - 1]);
 			i--;
 		}
 		while (j > 0) {
-			mAlignmentSeqA += "-";
-			mAlignmentSeqB += mSeqB[j - 1];
+			alignmentSeqA.append('-');
+			alignmentSeqB.append(mSeqB[j - 1]);
 			j--;
 		}
 
-		mAlignmentSeqA = new StringBuffer(mAlignmentSeqA).reverse().toString();
-		mAlignmentSeqB = new StringBuffer(mAlignmentSeqB).reverse().toString();
+		mAlignmentSeqA = alignmentSeqA.reverse().toString();
+		mAlignmentSeqB = alignmentSeqB.reverse().toString();
 	}
 
 	private int weight(int i, int j) {
 		if (mSeqA[i - 1] == mSeqB[j - 1]) {
-			return 2;
+			return MATCH;
 		} else {
-			return -1;
+			return MISMATCH;
 		}
 	}
 
+	/**
+	 *
+	 * @param seqA
+	 * @param seqB
+	 * @return the score of the best local alignment, calculated without
+	 *         keeping the matrix
+	 */
+	public static int getScore(String seqA, String seqB) {
+		return new SmithWatermanScorer(MATCH, MISMATCH, GAP, GAP).getScore(seqA, seqB);
+	}
+
+	/**
+	 *
+	 * @param seqA
+	 * @param seqB
+	 * @param maxHits
+	 * @return the best local alignments of seqA that do not overlap in seqB,
+	 *         sorted by decreasing score
+	 */
+	public static List<SmithWatermanHit> getTopHits(String seqA, String seqB, int maxHits) {
+		return new SmithWatermanScorer(MATCH, MISMATCH, GAP, GAP).getTopHits(seqA, seqB, maxHits);
+	}
+
 	void printMatrix() {
 		System.out.print("D =       ");
 		for (int i = 0; i < mSeqB.length; i++) {
@@ -0,0 +1,550 @@
+package edu.scripps.yates.utilities.alignment.nwalign;
+
+import java.util.Arrays;
+
+/**
+ * Needleman-Wunsch global alignment with the same scoring than
+ * {@link NWAlign#needlemanWunsch(String, String, int, int)}: BLOSUM62 and
+ * affine gaps, in which a gap of length k costs gapOpen + (k - 1) *
+ * gapExtension and can be opened right after a gap in the other sequence.<br>
+ * Instead of the whole matrices of the dynamic programming it only keeps a few
+ * rows, so the memory is linear in the length of the sequences: the optimal
+ * path is found by divide and conquer (Hirschberg, as extended to affine gaps by
+ * Myers and Miller), crossing the middle row of each region with a forward pass
+ * over its upper half and a backward pass over its lower half, and only the
+ * small regions are aligned with a traceback matrix. That calculates about
+ * twice the cells, but two titins can be aligned with a few megabytes instead
+ * of gigabytes.<br>
+ * The scores of the first sequence against the second one are taken from a
+ * profile with the BLOSUM62 score of each amino acid against every position of
+ * the second sequence, and each row is calculated in two loops: one without
+ * dependencies between the columns (diagonals and gaps in the second sequence)
+ * that the JIT can unroll and vectorize, and a short sequential one for the
+ * gaps in the first sequence.<br>
+ * Optionally, the alignment can be restricted to a band of diagonals around
+ * the ones of both ends of the sequences, so that the time is linear too.<br>
+ * The score is the same than the one of NWAlign, but when there are several
+ * optimal alignments, the reported one may be different.
+ *
+ * @author Salva
+ *
+ */
+public class LinearSpaceNWAlign {
+	public static final int NO_BAND = -1;
+	// low enough to add penalties to it without overflowing
+	private static final int MIN_SCORE = Integer.MIN_VALUE / 8;
+	// regions up to this number of cells are aligned with a traceback matrix
+	private static final int MAX_TRACEBACK_CELLS = 1 << 16;
+	// traceback of a cell: where the score comes from, being 0 the diagonal,
+	// and whether the gaps ending in it are extensions
+	private static final byte FROM_H = 1;
+	private static final byte FROM_V = 2;
+	private static final byte H_EXTENDED = 4;
+	private static final byte V_EXTENDED = 8;
+
+	private final int gapOpen;
+	private final int gapExtension;
+	private final int bandWidth;
+	private String sequence1;
+	private String sequence2;
+	// amino acid order numbers, starting at position 1
+	private int[] seq1;
+	private int[] seq2;
+	// band of diagonals (i - j) of the cells that can be in the alignment
+	private int minDiagonal;
+	private int maxDiagonal;
+	// score of each amino acid against each position of the second sequence
+	private final int[][] profile = new int[NWAlign.BLOSUM62.length][];
+	// scores of the best paths to the cells of a row, and of the ones ending
+	// with a gap in the second sequence (H)
+	private int[] forwardRow;
+	private int[] forwardPreviousRow;
+	private int[] forwardH;
+	// scores of the best paths from the cells of a row, and of the ones
+	// starting in a gap in the second sequence, which can be extended
+	private int[] backwardRow;
+	private int[] backwardNextRow;
+	private int[] backwardH;
+	private int[] j2i;
+
+	/**
+	 * Aligner that can be reused for several pairs of sequences, keeping its
+	 * buffers. It is not thread safe.
+	 *
+	 * @param gapOpen
+	 * @param gapExtension
+	 * @param bandWidth
+	 */
+	LinearSpaceNWAlign(int gapOpen, int gapExtension, int bandWidth) {
+		this.gapOpen = gapOpen;
+		this.gapExtension = gapExtension;
+		this.bandWidth = bandWidth;
+	}
+
+	/**
+	 * Sets the sequences of the next alignment, building the profile of the
+	 * second one unless it is the same String than in the previous alignment
+	 *
+	 * @param sequence1
+	 * @param sequence2
+	 */
+	void setSequences(String sequence1, String sequence2) {
+		// the profile is kept while aligning against the same second sequence
+		final boolean sameProfile = sequence2 == this.sequence2;
+		this.sequence1 = sequence1;
+		this.sequence2 = sequence2;
+		seq1 = NWAlign.getResidueCodes(sequence1);
+		if (!sameProfile) {
+			seq2 = NWAlign.getResidueCodes(sequence2);
+		}
+		final int n = sequence1.length();
+		final int m = sequence2.length();
+		if (bandWidth < 0) {
+			minDiagonal = -m;
+			maxDiagonal = n;
+		} else {
+			minDiagonal = Math.min(0, n - m) - bandWidth;
+			maxDiagonal = Math.max(0, n - m) + bandWidth;
+		}
+		if (sameProfile) {
+			return;
+		}
+		if (forwardRow == null || forwardRow.length < m + 2) {
+			for (int aa = 0; aa < profile.length; aa++) {
+				profile[aa] = new int[m + 2];
+			}
+			forwardRow = new int[m + 2];
+			forwardPreviousRow = new int[m + 2];
+			forwardH = new int[m + 2];
+			backwardRow = null;
+		}
+		for (int aa = 0; aa < profile.length; aa++) {
+			final int[] scores = NWAlign.BLOSUM62[aa];
+			final int[] aaProfile = profile[aa];
+			for (int j = 1; j <= m; j++) {
+				aaProfile[j] = scores[seq2[j]];
+			}
+			aaProfile[m + 1] = 0;
+		}
+	}
+
+	/**
+	 * Align two sequences in text using {@link NWAlign#OPEN_GAP_PENALTY} and
+	 * {@link NWAlign#GAP_EXTENSION_PENALTY}
+	 *
+	 * @param sequence1
+	 * @param sequence2
+	 * @return
+	 */
+	public static NWResult align(String sequence1, String sequence2) {
+		return align(sequence1.toUpperCase(), sequence2.toUpperCase(), NWAlign.OPEN_GAP_PENALTY,
+				NWAlign.GAP_EXTENSION_PENALTY);
+	}
+
+	/**
+	 * Align two sequences in text, stating the gap open and the gap extension
+	 * penalties
+	 *
+	 * @param sequence1
+	 * @param sequence2
+	 * @param gapOpen
+	 * @param gapExtension
+	 * @return
+	 */
+	public static NWResult align(String sequence1, String sequence2, int gapOpen, int gapExtension) {
+		return align(sequence1, sequence2, gapOpen, gapExtension, NO_BAND);
+	}
+
+	/**
+	 * Align two sequences in text, stating the gap open and the gap extension
+	 * penalties, and the band of the alignment
+	 *
+	 * @param sequence1
+	 * @param sequence2
+	 * @param gapOpen
+	 * @param gapExtension
+	 * @param bandWidth    number of diagonals that the alignment can move away
+	 *                     from the ones of the start and the end of the
+	 *                     sequences, or {@link #NO_BAND}
+	 * @return the best alignment inside of the band
+	 */
+	public static NWResult align(String sequence1, String sequence2, int gapOpen, int gapExtension,
+			int bandWidth) {
+		final LinearSpaceNWAlign aligner = new LinearSpaceNWAlign(gapOpen, gapExtension, bandWidth);
+		aligner.setSequences(sequence1, sequence2);
+		return aligner.align();
+	}
+
+	/**
+	 * Score of the alignment of two sequences, without the alignment, which
+	 * only needs one pass over the cells
+	 *
+	 * @param sequence1
+	 * @param sequence2
+	 * @param gapOpen
+	 * @param gapExtension
+	 * @param bandWidth    number of diagonals that the alignment can move away
+	 *                     from the ones of the start and the end of the
+	 *                     sequences, or {@link #NO_BAND}
+	 * @return the same than {@link NWResult#getFinalAlignmentScore()}
+	 */
+	public static int getScore(String sequence1, String sequence2, int gapOpen, int gapExtension, int bandWidth) {
+		final LinearSpaceNWAlign aligner = new LinearSpaceNWAlign(gapOpen, gapExtension, bandWidth);
+		aligner.setSequences(sequence1, sequence2);
+		return aligner.getScore();
+	}
+
+	/**
+	 *
+	 * @return the score of the alignment of the current sequences
+	 */
+	int getScore() {
+		final int n = sequence1.length();
+		final int m = sequence2.length();
+		startForward(0, 0, m, false);
+		for (int i = 1; i <= n; i++) {
+			forward(i, 0, m);
+		}
+		return forwardRow[m];
+	}
+
+	/**
+	 *
+	 * @return the alignment of the current sequences
+	 */
+	NWResult align() {
+		final int m = sequence2.length();
+		if (backwardRow == null) {
+			backwardRow = new int[forwardRow.length];
+			backwardNextRow = new int[forwardRow.length];
+			backwardH = new int[forwardRow.length];
+		}
+		j2i = new int[m + 2];
+		for (int j = 1; j <= m; j++) {
+			j2i[j] = -1;
+		}
+		final int score = align(0, 0, sequence1.length(), m, false, false);
+		final NWResult ret = new NWResult();
+		ret.setSeq1(sequence1);
+		ret.setSeq2(sequence2);
+		return NWAlign.createResult(ret, seq1, seq2, j2i, score);
+	}
+
+	/**
+	 * Aligns the region between the cells (r0, c0) and (r1, c1), filling j2i
+	 *
+	 * @param r0
+	 * @param c0
+	 * @param r1
+	 * @param c1
+	 * @param startH whether the alignment comes from a gap in the second
+	 *               sequence that can be extended
+	 * @param endH   whether the alignment continues with a gap in the second
+	 *               sequence, whose cost is included in the score
+	 * @return the score of the region
+	 */
+	private int align(int r0, int c0, int r1, int c1, boolean startH, boolean endH) {
+		if (r1 - r0 < 2 || c1 == c0 || (long) (r1 - r0 + 1) * (c1 - c0 + 1) <= MAX_TRACEBACK_CELLS) {
+			return alignWithTraceback(r0, c0, r1, c1, startH, endH);
+		}
+		final int middle = (r0 + r1) >>> 1;
+		startForward(r0, c0, c1, startH);
+		for (int i = r0 + 1; i <= middle; i++) {
+			forward(i, c0, c1);
+		}
+		startBackward(r1, c0, c1, endH);
+		for (int i = r1 - 1; i > middle; i--) {
+			backward(i, c0, c1);
+		}
+		int best = MIN_SCORE;
+		int bestColumn = c0;
+		boolean crossingGap = false;
+		// paths crossing the middle row with a gap in the second sequence
+		for (int j = getFirstColumn(middle + 1, c0); j <= getLastColumn(middle, c1); j++) {
+			final int score = forwardH[j] + gapExtension + backwardH[j];
+			if (score > best) {
+				best = score;
+				bestColumn = j;
+				crossingGap = true;
+			}
+		}
+		backward(middle, c0, c1);
+		for (int j = getFirstColumn(middle, c0); j <= getLastColumn(middle, c1); j++) {
+			final int score = forwardRow[j] + backwardRow[j];
+			if (score > best) {
+				best = score;
+				bestColumn = j;
+				crossingGap = false;
+			}
+		}
+		if (crossingGap) {
+			align(r0, c0, middle - 1, bestColumn, startH, true);
+			align(middle + 1, bestColumn, r1, c1, true, endH);
+		} else {
+			align(r0, c0, middle, bestColumn, startH, false);
+			align(middle, bestColumn, r1, c1, false, endH);
+		}
+		return best;
+	}
+
+	private int getFirstColumn(int i, int c0) {
+		return Math.max(c0, i - maxDiagonal);
+	}
+
+	private int getLastColumn(int i, int c1) {
+		return Math.min(c1, i - minDiagonal);
+	}
+
+	/**
+	 * Cost of opening a gap in the second sequence from the cell (i, j). As in
+	 * NWAlign, the gaps at the beginning are never opened twice, and a gap after
+	 * a gap at the beginning of the first sequence can be an extension
+	 */
+	private int getHOpen(int i, int j) {
+		if (j == 0 && i > 0) {
+			return MIN_SCORE;
+		}
+		return i == 0 && j > 0 ? Math.max(gapOpen, gapExtension) : gapOpen;
+	}
+
+	/**
+	 * Cost of opening a gap in the first sequence from the cell (i, j), as in
+	 * {@link #getHOpen(int, int)}
+	 */
+	private int getVOpen(int i, int j) {
+		if (i == 0 && j > 0) {
+			return MIN_SCORE;
+		}
+		return j == 0 && i > 0 ? Math.max(gapOpen, gapExtension) : gapOpen;
+	}
+
+	/**
+	 * Starts the forward pass of a region in its first row
+	 */
+	private void startForward(int r0, int c0, int c1, boolean startH) {
+		final int[] row = forwardRow;
+		Arrays.fill(row, c0, c1 + 1, MIN_SCORE);
+		Arrays.fill(forwardPreviousRow, c0, c1 + 1, MIN_SCORE);
+		Arrays.fill(forwardH, c0, c1 + 1, MIN_SCORE);
+		row[c0] = 0;
+		if (startH) {
+			forwardH[c0] = 0;
+		}
+		int v = MIN_SCORE;
+		for (int j = c0 + 1; j <= getLastColumn(r0, c1); j++) {
+			v = Math.max(row[j - 1] + getVOpen(r0, j - 1), v + gapExtension);
+			row[j] = v;
+		}
+	}
+
+	/**
+	 * Calculates the row i of the forward pass from the previous one
+	 */
+	private void forward(int i, int c0, int c1) {
+		final int[] row = forwardPreviousRow;
+		final int[] previous = forwardRow;
+		forwardRow = row;
+		forwardPreviousRow = previous;
+		final int[] h = forwardH;
+		final int first = getFirstColumn(i, c0);
+		final int last = getLastColumn(i, c1);
+		int start = first;
+		if (first == c0) {
+			// only reachable from above
+			h[c0] = Math.max(previous[c0] + getHOpen(i - 1, c0), h[c0] + gapExtension);
+			row[c0] = h[c0];
+			start++;
+		} else {
+			row[first - 1] = MIN_SCORE;
+		}
+		// diagonals and gaps in the second sequence, independent between columns
+		final int[] scores = profile[seq1[i]];
+		final int hOpen = getHOpen(i - 1, 1);
+		for (int j = start; j <= last; j++) {
+			final int score = Math.max(previous[j] + hOpen, h[j] + gapExtension);
+			h[j] = score;
+			row[j] = Math.max(previous[j - 1] + scores[j], score);
+		}
+		// gaps in the first sequence
+		int v = MIN_SCORE;
+		for (int j = start; j <= last; j++) {
+			v = Math.max(row[j - 1] + getVOpen(i, j - 1), v + gapExtension);
+			if (v > row[j]) {
+				row[j] = v;
+			}
+		}
+	}
+
+	/**
+	 * Starts the backward pass of a region in its last row, which cannot be the
+	 * first row of the matrix
+	 */
+	private void startBackward(int r1, int c0, int c1, boolean endH) {
+		final int[] row = backwardRow;
+		Arrays.fill(row, c0, c1 + 2, MIN_SCORE);
+		Arrays.fill(backwardNextRow, c0, c1 + 2, MIN_SCORE);
+		Arrays.fill(backwardH, c0, c1 + 2, MIN_SCORE);
+		row[c1] = endH ? getHOpen(r1, c1) : 0;
+		backwardH[c1] = endH ? Math.max(getHOpen(r1, c1), gapExtension) : 0;
+		int v = row[c1];
+		for (int j = c1 - 1; j >= getFirstColumn(r1, c0); j--) {
+			final int gap = getVOpen(r1, j) + v;
+			row[j] = gap;
+			backwardH[j] = gap;
+			v = Math.max(gap, v + gapExtension);
+		}
+	}
+
+	/**
+	 * Calculates the row i of the backward pass from the next one. It cannot be
+	 * the first row of the matrix
+	 */
+	private void backward(int i, int c0, int c1) {
+		final int[] row = backwardNextRow;
+		final int[] next = backwardRow;
+		backwardRow = row;
+		backwardNextRow = next;
+		final int[] h = backwardH;
+		final int first = getFirstColumn(i, c0);
+		final int last = getLastColumn(i, c1);
+		int end = last;
+		int v = MIN_SCORE;
+		// a gap can also be opened again after a gap
+		final int hExtension = Math.max(gapOpen, gapExtension);
+		if (last == c1) {
+			// only a gap in the second sequence to the next row
+			row[c1] = getHOpen(i, c1) + h[c1];
+			h[c1] += c1 > 0 ? hExtension : gapExtension;
+			v = row[c1];
+			end--;
+		} else {
+			row[last + 1] = MIN_SCORE;
+		}
+		// diagonals and gaps in the second sequence, independent between columns
+		final int[] scores = profile[seq1[i + 1]];
+		for (int j = first; j <= end; j++) {
+			final int diagonal = next[j + 1] + scores[j + 1];
+			final int score = h[j];
+			row[j] = Math.max(diagonal, score + gapOpen);
+			h[j] = Math.max(diagonal, score + hExtension);
+		}
+		if (first == 0 && end >= 0) {
+			// the first column is only reached by a gap, which cannot be opened
+			// again
+			row[0] = next[1] + scores[1];
+			h[0] = Math.max(row[0], h[0] - hExtension + gapExtension);
+		}
+		// gaps in the first sequence
+		for (int j = end; j >= first; j--) {
+			final int gap = getVOpen(i, j) + v;
+			v = Math.max(Math.max(row[j], gap), v + gapExtension);
+			if (gap > row[j]) {
+				row[j] = gap;
+			}
+			if (gap > h[j]) {
+				h[j] = gap;
+			}
+		}
+	}
+
+	/**
+	 * Aligns a small region with a full traceback matrix, choosing between
+	 * equal scores as NWAlign does
+	 *
+	 * @return the score of the region
+	 */
+	private int alignWithTraceback(int r0, int c0, int r1, int c1, boolean startH, boolean endH) {
+		final int width = c1 - c0 + 1;
+		final byte[] traceback = new byte[(r1 - r0 + 1) * width];
+		startForward(r0, c0, c1, startH);
+		// in the first row, the scores are the ones of the gaps
+		for (int j = c0 + 1; j <= getLastColumn(r0, c1); j++) {
+			traceback[j - c0] = FROM_V;
+			if (j - 1 > c0 && forwardRow[j - 1] + getVOpen(r0, j - 1) <= forwardRow[j - 1] + gapExtension) {
+				traceback[j - c0] |= V_EXTENDED;
+			}
+		}
+		final int[] h = forwardH;
+		for (int i = r0 + 1; i <= r1; i++) {
+			final int[] row = forwardPreviousRow;
+			final int[] previous = forwardRow;
+			forwardRow = row;
+			forwardPreviousRow = previous;
+			final int first = getFirstColumn(i, c0);
+			final int last = getLastColumn(i, c1);
+			if (first > c0) {
+				row[first - 1] = MIN_SCORE;
+			}
+			final int[] scores = profile[seq1[i]];
+			final int offset = (i - r0) * width - c0;
+			int v = MIN_SCORE;
+			for (int j = first; j <= last; j++) {
+				byte direction = 0;
+				final int hOpen = previous[j] + getHOpen(i - 1, j);
+				final int hExtension = h[j] + gapExtension;
+				if (hOpen > hExtension) {
+					h[j] = hOpen;
+				} else {
+					h[j] = hExtension;
+					direction |= H_EXTENDED;
+				}
+				int diagonal = MIN_SCORE;
+				if (j > c0) {
+					diagonal = previous[j - 1] + scores[j];
+					final int vOpen = row[j - 1] + getVOpen(i, j - 1);
+					final int vExtension = v + gapExtension;
+					if (vOpen > vExtension) {
+						v = vOpen;
+					} else {
+						v = vExtension;
+						direction |= V_EXTENDED;
+					}
+				}
+				if (diagonal > h[j] && diagonal > v) {
+					row[j] = diagonal;
+				} else if (h[j] > v) {
+					row[j] = h[j];
+					direction |= FROM_H;
+				} else {
+					row[j] = v;
+					direction |= FROM_V;
+				}
+				traceback[offset + j] = direction;
+			}
+		}
+		int score = forwardRow[c1];
+		int state = 0;
+		if (endH) {
+			final int open = forwardRow[c1] + getHOpen(r1, c1);
+			final int extension = h[c1] + gapExtension;
+			if (open > extension) {
+				score = open;
+			} else {
+				score = extension;
+				state = FROM_H;
+			}
+		}
+		int i = r1;
+		int j = c1;
+		while (i > r0 || j > c0) {
+			final byte direction = traceback[(i - r0) * width + j - c0];
+			if (state == 0) {
+				state = direction & (FROM_H | FROM_V);
+				if (state == 0) {
+					j2i[j] = i;
+					i--;
+					j--;
+					continue;
+				}
+			}
+			if (state == FROM_H) {
+				state = (direction & H_EXTENDED) != 0 ? FROM_H : 0;
+				i--;
+			} else {
+				state = (direction & V_EXTENDED) != 0 ? FROM_V : 0;
+				j--;
+			}
+		}
+		return score;
+	}
+}
@@ -38,7 +38,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
-import java.text.DecimalFormat;
 
 /**
  * By default gap_extension penalty is -1 and gap openning is -11<br>
@@ -72,6 +71,17 @@ import java.text.DecimalFormat;
 public class NWAlign {
 	public static final int OPEN_GAP_PENALTY = -11;
 	public static final int GAP_EXTENSION_PENALTY = -1;
+	// Amino acid order in the BLAST's scoring matrix (e.g.,Blosum62).
+	static final String RESIDUES = "*ARNDCQEGHILKMFPSTWYVBZX";
+	// order number of each character in RESIDUES, 0 for the rest
+	private static final int[] RESIDUE_CODES = new int[128];
+	static final int[][] BLOSUM62 = new int[RESIDUES.length()][RESIDUES.length()];
+	static {
+		for (int i = 1; i < RESIDUES.length(); i++) {
+			RESIDUE_CODES[RESIDUES.charAt(i)] = i;
+		}
+		loadBlosum62Matrix(BLOSUM62);
+	}
 	// public static void main(String[] args) {
 	//
 	// String f1 = "";
@@ -178,7 +188,10 @@ public class NWAlign {
 
 	/**
 	 * Align two sequences in text, stating the fap_open and the gap_extension
-	 * penalties
+	 * penalties.<br>
+	 * It keeps several matrices of the size of both sequences, so for long
+	 * sequences use {@link LinearSpaceNWAlign}, which gets the same score in
+	 * linear memory.
 	 *
 	 * @param sequence1
 	 * @param sequence2
@@ -190,13 +203,10 @@ public class NWAlign {
 		ret.setSeq1(sequence1);
 		ret.setSeq2(sequence2);
 
-		int[][] imut = new int[24][24];
-		loadBlosum62Matrix(imut); // Read Blosum scoring matrix and store it in
-									// the
-									// imut variable.
-		String seqW = "*ARNDCQEGHILKMFPSTWYVBZX"; // Amino acide order in the
-													// BLAST's scoring matrix
-													// (e.g.,Blosum62).
+		final int[][] imut = BLOSUM62;
+		// amino acid order numbers of the sequences, starting at position 1
+		final int[] seq1 = getResidueCodes(sequence1);
+		final int[] seq2 = getResidueCodes(sequence2);
 		sequence1 = "*" + sequence1; // Add a '*' character in the head of a
 										// sequence and this
 		// can make java code much more consistent with orginal
@@ -208,28 +218,7 @@ public class NWAlign {
 		// character in the head of a sequence could make 1
 		// standard for the first postion of thse sequence in
 		// java code.
-		int[] seq1 = new int[sequence1.length()];
-		int[] seq2 = new int[sequence2.length()]; // seq1 and seq2 are arrays
-													// that
-		// store the amino acid order
-		// numbers of sequence1 and
-		// sequence2.
-		int i, j; // For example, 1 stand for A, 2 represent R and etc.
-		for (i = 1; i < sequence1.length(); i++) {
-			for (j = 1; j < seqW.length(); j++) {
-				if (sequence1.charAt(i) == seqW.charAt(j)) {
-					seq1[i] = j;
-				}
-			}
-		}
-
-		for (i = 1; i < sequence2.length(); i++) {
-			for (j = 1; j < seqW.length(); j++) {
-				if (sequence2.charAt(i) == seqW.charAt(j)) {
-					seq2[i] = j;
-				}
-			}
-		}
+		int i, j;
 
 		int[][] score = new int[sequence1.length()][sequence2.length()]; // score[i][j]
 																			// stard
@@ -502,10 +491,27 @@ public class NWAlign {
 			}
 		}
 
+		return createResult(ret, seq1, seq2, j2i, val[sequence1.length() - 1][sequence2.length() - 1]);
+	}
+
+	/**
+	 * Fills the result from the aligned positions
+	 *
+	 * @param ret
+	 * @param seq1  amino acid order numbers of the first sequence, from
+	 *              {@link #getResidueCodes(String)}
+	 * @param seq2  amino acid order numbers of the second sequence
+	 * @param j2i   position of the first sequence aligned to each position of
+	 *              the second one, or -1 if not aligned
+	 * @param score alignment score
+	 * @return
+	 */
+	static NWResult createResult(NWResult ret, int[] seq1, int[] seq2, int[] j2i, int score) {
+		int i, j;
 		// calculate sequence identity
 		int L_id = 0;
 		int L_ali = 0;
-		for (j = 1; j < sequence2.length(); j++) {
+		for (j = 1; j < seq2.length; j++) {
 			if (j2i[j] > 0) {
 				i = j2i[j];
 				L_ali = L_ali + 1;
@@ -515,59 +521,53 @@ public class NWAlign {
 			}
 		}
 
-		double identity = L_id * 1.0 / (sequence2.length() - 1);
-		int fina_score = val[sequence1.length() - 1][sequence2.length() - 1];
-		// System.out.println("Alignment score=" + fina_score);
-		ret.setFinalAlignmentScore(fina_score);
-		// System.out.println("Length of sequence 1:" + (sequence1.length() -
+		ret.setFinalAlignmentScore(score);
+		// System.out.println("Length of sequence 1:" + (seq1.length -
 		// 1));
 
-		// System.out.println("Length of sequence 2:" + (sequence2.length() -
+		// System.out.println("Length of sequence 2:" + (seq2.length -
 		// 1));
 
 		// System.out.println("Aligned length :" + L_ali);
 		ret.setAlignmentLength(L_ali);
 		// System.out.println("Identical length :" + L_id);
 		ret.setIdenticalLength(L_id);
-		DecimalFormat df = new DecimalFormat("0.000"); // Correct the identity
-														// to 3 decimal places.
-		// System.out.print("Sequence identity=" + df.format(identity));
-		// System.out.println(" " + L_id + "/" + (sequence2.length() - 1));
+		// System.out.println(" " + L_id + "/" + (seq2.length - 1));
 		// System.out.println();
 		StringBuilder alignment = new StringBuilder();
 		// output aligned sequences
-		char[] sequenceA = new char[sequence1.length() + sequence2.length()];
-		char[] sequenceB = new char[sequence1.length() + sequence2.length()];
-		char[] sequenceM = new char[sequence1.length() + sequence2.length()];
+		char[] sequenceA = new char[seq1.length + seq2.length];
+		char[] sequenceB = new char[seq1.length + seq2.length];
+		char[] sequenceM = new char[seq1.length + seq2.length];
 		int k = 0;
 		i = 1;
 		j = 1;
 		while (true) {
-			if ((i > (sequence1.length() - 1)) && (j > (sequence2.length() - 1)))
+			if ((i > (seq1.length - 1)) && (j > (seq2.length - 1)))
 				break;
-			if ((i > (sequence1.length() - 1)) && (j < (sequence2.length() - 1))) // unaligned
+			if ((i > (seq1.length - 1)) && (j < (seq2.length - 1))) // unaligned
 			// C on 1
 			{
 				k = k + 1;
 				sequenceA[k] = '-';
-				sequenceB[k] = seqW.charAt(seq2[j]);
+				sequenceB[k] = RESIDUES.charAt(seq2[j]);
 				sequenceM[k] = ' ';
 				j = j + 1;
-			} else if ((i < (sequence1.length() - 1)) && (j > (sequence2.length() - 1))) // unaligned
+			} else if ((i < (seq1.length - 1)) && (j > (seq2.length - 1))) // unaligned
 			// C
 			// on
 			// 2
 			{
 				k = k + 1;
-				sequenceA[k] = seqW.charAt(seq1[i]);
+				sequenceA[k] = RESIDUES.charAt(seq1[i]);
 				sequenceB[k] = '-';
 				sequenceM[k] = ' ';
 				i = i + 1;
 			} else if (i == j2i[j]) // if align
 			{
 				k = k + 1;
-				sequenceA[k] = seqW.charAt(seq1[i]);
-				sequenceB[k] = seqW.charAt(seq2[j]);
+				sequenceA[k] = RESIDUES.charAt(seq1[i]);
+				sequenceB[k] = RESIDUES.charAt(seq2[j]);
 				if (seq1[i] == seq2[j]) // identical
 				{
 					sequenceM[k] = ':';
@@ -580,13 +580,13 @@ public class NWAlign {
 			{
 				k = k + 1;
 				sequenceA[k] = '-';
-				sequenceB[k] = seqW.charAt(seq2[j]);
+				sequenceB[k] = RESIDUES.charAt(seq2[j]);
 				sequenceM[k] = ' ';
 				j = j + 1;
 			} else if (j2i[j] >= 0) // gap on 2
 			{
 				k = k + 1;
-				sequenceA[k] = seqW.charAt(seq1[i]);
+				sequenceA[k] = RESIDUES.charAt(seq1[i]);
 				sequenceB[k] = '-';
 				sequenceM[k] = ' ';
 				i = i + 1;
@@ -621,6 +621,36 @@ public class NWAlign {
 		return ret;
 	}
 
+	/**
+	 *
+	 * @param sequence
+	 * @return the order number in the scoring matrix of each amino acid of the
+	 *         sequence, starting at position 1, being 0 the unknown ones
+	 */
+	static int[] getResidueCodes(String sequence) {
+		final int[] ret = new int[sequence.length() + 1];
+		for (int i = 0; i < sequence.length(); i++) {
+			final char aa = sequence.charAt(i);
+			if (aa < RESIDUE_CODES.length) {
+				ret[i + 1] = RESIDUE_CODES[aa];
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param aa1
+	 * @param aa2
+	 * @return the BLOSUM62 score of two amino acids, in upper case, being the
+	 *         unknown ones scored as '*'
+	 */
+	public static int getBlosum62Score(char aa1, char aa2) {
+		final int code1 = aa1 < RESIDUE_CODES.length ? RESIDUE_CODES[aa1] : 0;
+		final int code2 = aa2 < RESIDUE_CODES.length ? RESIDUE_CODES[aa2] : 0;
+		return BLOSUM62[code1][code2];
+	}
+
 	private static String readFastaOrRawSequence(String file) // read a sequence
 																// from a Fasta
 																// file or a
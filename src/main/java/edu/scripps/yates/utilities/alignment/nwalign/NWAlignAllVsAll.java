@@ -0,0 +1,458 @@
+package edu.scripps.yates.utilities.alignment.nwalign;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.fasta.Fasta;
+import edu.scripps.yates.utilities.fasta.FastaReader;
+import edu.scripps.yates.utilities.matrix.sparse.SparseMatrix;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Aligns protein sequences by pairs, all against all or some against many,
+ * reporting the score of each pair to a {@link ScoreListener}, that can write
+ * them to a score file or to a {@link SparseMatrix}.<br>
+ * The sequences are aligned with {@link LinearSpaceNWAlign} in a work-stealing
+ * pool, one task per sequence, and each thread reuses the buffers of its
+ * aligner, including the profile of the sequence of the task, which is aligned
+ * against all of its pairs.<br>
+ * Optionally, only the pairs sharing a minimum number of distinct k-mers are
+ * aligned, which are found with an index of the k-mers of the sequences.
+ *
+ * @author Salva
+ *
+ */
+public class NWAlignAllVsAll {
+	private final static Logger log = Logger.getLogger(NWAlignAllVsAll.class);
+	public static final int MAX_KMER_LENGTH = 6;
+	// targets read from the fasta file at once
+	private static final int TARGETS_PER_BATCH = 4096;
+	private final int gapOpen;
+	private final int gapExtension;
+	private final int bandWidth;
+	private int kmerLength;
+	private int minSharedKmers;
+
+	public interface ScoreListener {
+		/**
+		 * Called with the score of each aligned pair, from one thread at a time
+		 *
+		 * @param fasta1
+		 * @param fasta2
+		 * @param score
+		 * @throws IOException
+		 */
+		public void onScore(Fasta fasta1, Fasta fasta2, int score) throws IOException;
+	}
+
+	/**
+	 * Aligner using {@link NWAlign#OPEN_GAP_PENALTY} and
+	 * {@link NWAlign#GAP_EXTENSION_PENALTY}, without band
+	 */
+	public NWAlignAllVsAll() {
+		this(NWAlign.OPEN_GAP_PENALTY, NWAlign.GAP_EXTENSION_PENALTY, LinearSpaceNWAlign.NO_BAND);
+	}
+
+	/**
+	 *
+	 * @param gapOpen
+	 * @param gapExtension
+	 * @param bandWidth    as in
+	 *                     {@link LinearSpaceNWAlign#align(String, String, int, int, int)}
+	 */
+	public NWAlignAllVsAll(int gapOpen, int gapExtension, int bandWidth) {
+		this.gapOpen = gapOpen;
+		this.gapExtension = gapExtension;
+		this.bandWidth = bandWidth;
+	}
+
+	/**
+	 * Only aligns the pairs of sequences sharing some k-mers
+	 *
+	 * @param kmerLength     up to {@link #MAX_KMER_LENGTH}
+	 * @param minSharedKmers minimum number of distinct k-mers shared by the
+	 *                       sequences, or 0 to align all the pairs
+	 */
+	public void setKmerFilter(int kmerLength, int minSharedKmers) {
+		if (kmerLength < 1 || kmerLength > MAX_KMER_LENGTH) {
+			throw new IllegalArgumentException("k-mer length must be between 1 and " + MAX_KMER_LENGTH);
+		}
+		this.kmerLength = kmerLength;
+		this.minSharedKmers = minSharedKmers;
+	}
+
+	/**
+	 * Aligns each sequence of the fasta file against the following ones, so
+	 * that each pair is aligned once, in the order of the file
+	 *
+	 * @param fastaReader
+	 * @param listener
+	 * @param numThreads  if it is 1, the sequences are aligned in the calling
+	 *                    thread
+	 * @throws IOException
+	 */
+	public void alignAllVsAll(FastaReader fastaReader, ScoreListener listener, int numThreads) throws IOException {
+		final List<Fasta> fastas = readFastas(fastaReader.getFastas(), Integer.MAX_VALUE);
+		log.info("Aligning " + fastas.size() + " sequences all vs all");
+		final ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+		try {
+			align(new Batch(fastas, fastas, true, listener), pool);
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Aligns all against all the sequences of the fasta file, writing the
+	 * scores to a file, one pair per line: accession1 accession2 score,
+	 * separated by tabs
+	 *
+	 * @param fastaReader
+	 * @param scoreFile
+	 * @param numThreads
+	 * @throws IOException
+	 */
+	public void alignAllVsAll(FastaReader fastaReader, File scoreFile, int numThreads) throws IOException {
+		final BufferedWriter writer = new BufferedWriter(new FileWriter(scoreFile));
+		try {
+			alignAllVsAll(fastaReader, getScoreFileWriter(writer), numThreads);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Aligns a sequence against all the sequences of a fasta file, which are
+	 * read in batches
+	 *
+	 * @param query
+	 * @param targets
+	 * @param listener   that receives the query as the first sequence
+	 * @param numThreads
+	 * @throws IOException
+	 */
+	public void alignOneVsMany(Fasta query, FastaReader targets, ScoreListener listener, int numThreads)
+			throws IOException {
+		alignManyVsMany(Collections.singletonList(query), targets, listener, numThreads);
+	}
+
+	/**
+	 * Aligns some sequences against all the sequences of a fasta file, which
+	 * are read in batches
+	 *
+	 * @param queries
+	 * @param targets
+	 * @param listener   that receives the queries as the first sequence
+	 * @param numThreads
+	 * @throws IOException
+	 */
+	public void alignManyVsMany(List<Fasta> queries, FastaReader targets, ScoreListener listener, int numThreads)
+			throws IOException {
+		log.info("Aligning " + queries.size() + " sequences against the sequences of a fasta file");
+		final ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+		try {
+			final Iterator<Fasta> iterator = targets.getFastas();
+			while (iterator.hasNext()) {
+				align(new Batch(readFastas(iterator, TARGETS_PER_BATCH), queries, false, listener), pool);
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param writer
+	 * @return a listener writing a line per pair: accession1 accession2 score,
+	 *         separated by tabs
+	 */
+	public static ScoreListener getScoreFileWriter(final Writer writer) {
+		return new ScoreListener() {
+			@Override
+			public void onScore(Fasta fasta1, Fasta fasta2, int score) throws IOException {
+				writer.write(fasta1.getAccession() + "\t" + fasta2.getAccession() + "\t" + score + "\n");
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param matrix
+	 * @return a listener adding the scores to a matrix, with the accession of
+	 *         the first sequence as row and the one of the second as column
+	 */
+	public static ScoreListener getSparseMatrixWriter(final SparseMatrix<Integer> matrix) {
+		return new ScoreListener() {
+			@Override
+			public void onScore(Fasta fasta1, Fasta fasta2, int score) throws IOException {
+				matrix.addValue(fasta1.getAccession(), fasta2.getAccession(), score);
+			}
+		};
+	}
+
+	private static List<Fasta> readFastas(Iterator<Fasta> iterator, int max) {
+		final List<Fasta> ret = new ArrayList<Fasta>();
+		while (ret.size() < max && iterator.hasNext()) {
+			final Fasta fasta = iterator.next();
+			if (fasta != null) {
+				// FastaImpl only keeps the last defline read, so the accession
+				// has to be parsed before reading the next one
+				fasta.getAccession();
+				ret.add(fasta);
+			}
+		}
+		return ret;
+	}
+
+	private void align(Batch batch, ForkJoinPool pool) throws IOException {
+		final long t1 = System.currentTimeMillis();
+		final RowsTask task = new RowsTask(batch, 0, batch.rows.size());
+		try {
+			if (pool != null) {
+				pool.invoke(task);
+			} else {
+				task.compute();
+			}
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+		log.info(batch.numAligned + " pairs aligned and " + batch.numFiltered + " pairs filtered in "
+				+ (System.currentTimeMillis() - t1) + " ms");
+	}
+
+	/**
+	 * Pairs to align: each of the rows against each of the columns, or against
+	 * the following ones if they are the same
+	 */
+	private class Batch {
+		private final List<Fasta> rows;
+		private final List<Fasta> columns;
+		private final boolean allVsAll;
+		private final ScoreListener listener;
+		private final String[] rowSequences;
+		private final String[] columnSequences;
+		private final KmerIndex index;
+		private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+			@Override
+			protected Workspace initialValue() {
+				return new Workspace(columns.size());
+			}
+		};
+		private final AtomicLong numAligned = new AtomicLong();
+		private final AtomicLong numFiltered = new AtomicLong();
+
+		private Batch(List<Fasta> rows, List<Fasta> columns, boolean allVsAll, ScoreListener listener) {
+			this.rows = rows;
+			this.columns = columns;
+			this.allVsAll = allVsAll;
+			this.listener = listener;
+			rowSequences = getSequences(rows);
+			columnSequences = allVsAll ? rowSequences : getSequences(columns);
+			index = minSharedKmers > 0 ? new KmerIndex(columnSequences, kmerLength) : null;
+		}
+
+		private String[] getSequences(List<Fasta> fastas) {
+			final String[] ret = new String[fastas.size()];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = fastas.get(i).getSequence().toUpperCase();
+			}
+			return ret;
+		}
+
+		private void align(int row) {
+			final Workspace workspace = workspaces.get();
+			final TIntArrayList candidates = workspace.candidates;
+			candidates.resetQuick();
+			final int first = allVsAll ? row + 1 : 0;
+			if (index == null) {
+				for (int column = first; column < columns.size(); column++) {
+					candidates.add(column);
+				}
+			} else {
+				index.getCandidates(rowSequences[row], first, minSharedKmers, workspace, candidates);
+				numFiltered.addAndGet(columns.size() - first - candidates.size());
+			}
+			final int[] scores = new int[candidates.size()];
+			final LinearSpaceNWAlign aligner = workspace.aligner;
+			for (int i = 0; i < scores.length; i++) {
+				// with the row as second sequence, its profile is built once
+				aligner.setSequences(columnSequences[candidates.getQuick(i)], rowSequences[row]);
+				scores[i] = aligner.getScore();
+			}
+			numAligned.addAndGet(scores.length);
+			synchronized (listener) {
+				try {
+					for (int i = 0; i < scores.length; i++) {
+						final Fasta column = columns.get(candidates.getQuick(i));
+						if (allVsAll) {
+							listener.onScore(rows.get(row), column, scores[i]);
+						} else {
+							listener.onScore(column, rows.get(row), scores[i]);
+						}
+					}
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+
+		/**
+		 * Buffers of a thread
+		 */
+		private class Workspace {
+			private final LinearSpaceNWAlign aligner = new LinearSpaceNWAlign(gapOpen, gapExtension, bandWidth);
+			private final TIntArrayList candidates = new TIntArrayList();
+			// k-mers shared with each column
+			private final int[] counts;
+			private final TIntArrayList touched = new TIntArrayList();
+
+			private Workspace(int numColumns) {
+				counts = index != null ? new int[numColumns] : null;
+			}
+		}
+	}
+
+	private static class RowsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Batch batch;
+		private final int from;
+		private final int to;
+
+		private RowsTask(Batch batch, int from, int to) {
+			this.batch = batch;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1 && getPool() != null) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new RowsTask(batch, from, middle), new RowsTask(batch, middle, to));
+				return;
+			}
+			for (int row = from; row < to; row++) {
+				batch.align(row);
+			}
+		}
+	}
+
+	/**
+	 * Positions of the sequences containing each k-mer, sorted by k-mer
+	 */
+	private static class KmerIndex {
+		private final int kmerLength;
+		private final int[] kmers;
+		// positions of the sequences of kmers[i] from starts[i] to starts[i+1]
+		private final int[] starts;
+		private final int[] sequences;
+
+		private KmerIndex(String[] sequences, int kmerLength) {
+			this.kmerLength = kmerLength;
+			int total = 0;
+			final int[][] kmersBySequence = new int[sequences.length][];
+			for (int s = 0; s < sequences.length; s++) {
+				kmersBySequence[s] = getKmers(sequences[s], kmerLength);
+				total += kmersBySequence[s].length;
+			}
+			// sorted by k-mer and then by sequence
+			final long[] pairs = new long[total];
+			int p = 0;
+			for (int s = 0; s < sequences.length; s++) {
+				for (final int kmer : kmersBySequence[s]) {
+					pairs[p++] = ((long) kmer << 32) | s;
+				}
+			}
+			Arrays.sort(pairs);
+			final TIntArrayList kmers = new TIntArrayList();
+			final TIntArrayList starts = new TIntArrayList();
+			this.sequences = new int[total];
+			for (p = 0; p < total; p++) {
+				final int kmer = (int) (pairs[p] >>> 32);
+				if (kmers.isEmpty() || kmers.get(kmers.size() - 1) != kmer) {
+					kmers.add(kmer);
+					starts.add(p);
+				}
+				this.sequences[p] = (int) pairs[p];
+			}
+			starts.add(total);
+			this.kmers = kmers.toArray();
+			this.starts = starts.toArray();
+		}
+
+		/**
+		 * Gets the sequences from the position first sharing a minimum number
+		 * of k-mers with a sequence, in order
+		 */
+		private void getCandidates(String sequence, int first, int minSharedKmers, Batch.Workspace workspace,
+				TIntArrayList candidates) {
+			final int[] counts = workspace.counts;
+			final TIntArrayList touched = workspace.touched;
+			touched.resetQuick();
+			for (final int kmer : getKmers(sequence, kmerLength)) {
+				final int k = Arrays.binarySearch(kmers, kmer);
+				if (k < 0) {
+					continue;
+				}
+				int start = Arrays.binarySearch(sequences, starts[k], starts[k + 1], first);
+				if (start < 0) {
+					start = -start - 1;
+				}
+				for (int i = start; i < starts[k + 1]; i++) {
+					if (counts[sequences[i]]++ == 0) {
+						touched.add(sequences[i]);
+					}
+				}
+			}
+			for (int i = 0; i < touched.size(); i++) {
+				final int s = touched.getQuick(i);
+				if (counts[s] >= minSharedKmers) {
+					candidates.add(s);
+				}
+				counts[s] = 0;
+			}
+			candidates.sort();
+		}
+
+		/**
+		 *
+		 * @return the distinct k-mers of the sequence, each one as a number in
+		 *         base the number of amino acids of the scoring matrix
+		 */
+		private static int[] getKmers(String sequence, int kmerLength) {
+			final int[] codes = NWAlign.getResidueCodes(sequence);
+			final TIntHashSet ret = new TIntHashSet();
+			int max = 1;
+			for (int i = 1; i < kmerLength; i++) {
+				max *= NWAlign.RESIDUES.length();
+			}
+			int kmer = 0;
+			for (int i = 1; i < codes.length; i++) {
+				kmer = (kmer % max) * NWAlign.RESIDUES.length() + codes[i];
+				if (i >= kmerLength) {
+					ret.add(kmer);
+				}
+			}
+			return ret.toArray();
+		}
+	}
+}
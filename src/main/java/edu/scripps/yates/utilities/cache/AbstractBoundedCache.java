@@ -0,0 +1,317 @@
+package edu.scripps.yates.utilities.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+import gnu.trove.map.hash.TObjectLongHashMap;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * {@link AbstractCache} with a limited size. When the maximum number of
+ * entries or the maximum total weight is exceeded, entries are evicted as
+ * decided by an {@link EvictionPolicy}. Entries can also expire after a time
+ * to live since they were added.<br>
+ * The weight of each entry is 1 by default. Override
+ * {@link #getWeight(Object, Object)} to bound the cache by size.<br>
+ * Hits, misses, evictions and expirations are counted in the
+ * {@link CacheStats} returned by {@link #getStats()}.<br>
+ * Since every read updates the eviction policy, all operations take the write
+ * lock.
+ *
+ * @author Salva
+ *
+ * @param <T>
+ * @param <K>
+ */
+public abstract class AbstractBoundedCache<T, K> extends AbstractCache<T, K> {
+	public static final long UNLIMITED = -1l;
+	private final EvictionPolicy<K> evictionPolicy;
+	private final long maxEntries;
+	private final long maxWeight;
+	private final long timeToLiveMillis;
+	private final TObjectLongHashMap<K> weights = new TObjectLongHashMap<K>();
+	private final TObjectLongHashMap<K> insertionTimes = new TObjectLongHashMap<K>();
+	private long totalWeight = 0l;
+	private final CacheStats stats = new CacheStats();
+
+	/**
+	 *
+	 * @param evictionPolicy
+	 * @param maxEntries       maximum number of entries, or {@link #UNLIMITED}
+	 * @param maxWeight        maximum sum of the weights of the entries, or
+	 *                         {@link #UNLIMITED}
+	 * @param timeToLiveMillis time after which an added entry expires, or
+	 *                         {@link #UNLIMITED}
+	 */
+	public AbstractBoundedCache(EvictionPolicy<K> evictionPolicy, long maxEntries, long maxWeight,
+			long timeToLiveMillis) {
+		super();
+		this.evictionPolicy = evictionPolicy;
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.timeToLiveMillis = timeToLiveMillis;
+	}
+
+	/**
+	 * Cache with a maximum number of entries, evicting the least recently used
+	 * ones
+	 *
+	 * @param maxEntries
+	 */
+	public AbstractBoundedCache(int maxEntries) {
+		this(new LRUEvictionPolicy<K>(), maxEntries, UNLIMITED, UNLIMITED);
+	}
+
+	/**
+	 * Weight of an entry, used to limit the cache by maxWeight. It is 1 by
+	 * default.
+	 *
+	 * @param key
+	 * @param t
+	 * @return
+	 */
+	protected long getWeight(K key, T t) {
+		return 1l;
+	}
+
+	/**
+	 * Called with the write lock every time that an entry is evicted to keep the
+	 * cache within its limits, but not when it expires or it is removed. It does
+	 * nothing by default.
+	 *
+	 * @param processedKey
+	 * @param t
+	 */
+	protected void onEviction(K processedKey, T t) {
+	}
+
+	public CacheStats getStats() {
+		return stats;
+	}
+
+	public long getTotalWeight() {
+		return totalWeight;
+	}
+
+	public int size() {
+		return map.size();
+	}
+
+	private boolean isExpired(K processedKey, long now) {
+		return timeToLiveMillis != UNLIMITED && now - insertionTimes.get(processedKey) > timeToLiveMillis;
+	}
+
+	private void put(K processedKey, T t, long now) {
+		remove(processedKey);
+		final long weight = getWeight(processedKey, t);
+		if (maxWeight != UNLIMITED && weight > maxWeight) {
+			// it would evict everything else and then itself
+			stats.recordEviction();
+			onEviction(processedKey, t);
+			return;
+		}
+		map.put(processedKey, t);
+		weights.put(processedKey, weight);
+		insertionTimes.put(processedKey, now);
+		totalWeight += weight;
+		evictionPolicy.recordInsertion(processedKey);
+		evictIfNecessary();
+	}
+
+	private T remove(K processedKey) {
+		if (!map.containsKey(processedKey)) {
+			return null;
+		}
+		totalWeight -= weights.remove(processedKey);
+		insertionTimes.remove(processedKey);
+		evictionPolicy.recordRemoval(processedKey);
+		return map.remove(processedKey);
+	}
+
+	private boolean isOverLimits() {
+		return (maxEntries != UNLIMITED && map.size() > maxEntries)
+				|| (maxWeight != UNLIMITED && totalWeight > maxWeight);
+	}
+
+	private void evictIfNecessary() {
+		while (isOverLimits()) {
+			final K victim = evictionPolicy.selectVictim();
+			if (victim == null) {
+				return;
+			}
+			final T t = remove(victim);
+			stats.recordEviction();
+			onEviction(victim, t);
+		}
+	}
+
+	/**
+	 * Gets the value of a key, updating the stats and the eviction policy. It has
+	 * to be called with the write lock.
+	 */
+	private T get(K processedKey, long now) {
+		if (!map.containsKey(processedKey)) {
+			stats.recordMiss();
+			return null;
+		}
+		if (isExpired(processedKey, now)) {
+			remove(processedKey);
+			stats.recordExpiration();
+			stats.recordMiss();
+			return null;
+		}
+		stats.recordHit();
+		evictionPolicy.recordAccess(processedKey);
+		return map.get(processedKey);
+	}
+
+	@Override
+	public void addtoCache(T t, K key) {
+		if (t == null) {
+			return;
+		}
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			put(processKey(key), t, System.currentTimeMillis());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void addtoCache(Map<K, T> map2) {
+		if (map2 == null) {
+			return;
+		}
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			final long now = System.currentTimeMillis();
+			for (final Map.Entry<K, T> entry : map2.entrySet()) {
+				if (entry.getValue() != null) {
+					put(processKey(entry.getKey()), entry.getValue(), now);
+				}
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public T getFromCache(K key) {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			return get(processKey(key), System.currentTimeMillis());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public Set<T> getFromCache(Collection<K> keys) {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			final long now = System.currentTimeMillis();
+			final Set<T> ret = new THashSet<T>();
+			for (final K key : keys) {
+				final T t = get(processKey(key), now);
+				if (t != null) {
+					ret.add(t);
+				}
+			}
+			return ret;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(K key) {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			final K processedKey = processKey(key);
+			if (!map.containsKey(processedKey)) {
+				return false;
+			}
+			if (isExpired(processedKey, System.currentTimeMillis())) {
+				remove(processedKey);
+				stats.recordExpiration();
+				return false;
+			}
+			return true;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsAll(Collection<K> keys) {
+		for (final K key : keys) {
+			if (!contains(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public T removeFromCache(K key) {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			return remove(processKey(key));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void clearCache() {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			map.clear();
+			weights.clear();
+			insertionTimes.clear();
+			totalWeight = 0l;
+			evictionPolicy.clear();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all the expired entries. Expired entries are otherwise only removed
+	 * when they are requested.
+	 */
+	public void cleanUp() {
+		if (timeToLiveMillis == UNLIMITED) {
+			return;
+		}
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			final long now = System.currentTimeMillis();
+			final List<K> expired = new ArrayList<K>();
+			for (final K key : map.keySet()) {
+				if (isExpired(key, now)) {
+					expired.add(key);
+				}
+			}
+			for (final K key : expired) {
+				remove(key);
+				stats.recordExpiration();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,556 @@
+package edu.scripps.yates.utilities.cache;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.index.TextFileIndex;
+import edu.scripps.yates.utilities.index.TextFileIndexIO;
+import edu.scripps.yates.utilities.util.Pair;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * Cache with two tiers: the hot entries are kept in memory, in a bounded
+ * cache, and the entries evicted from memory are written to a file that is
+ * indexed with a {@link TextFileIndex}. When an entry is not in memory, it is
+ * read from the file and kept in memory again.<br>
+ * The evicted entries are written in batches of {@link #setWriteBatchSize(int)}
+ * entries, and the entries that are in memory are only written by
+ * {@link #flush()} or {@link #close()}, which have to be called for a new cache
+ * created over the same file in another run of the JVM to start with all the
+ * entries that were added before.<br>
+ * The file is only appended, so replaced and removed entries leave obsolete
+ * records in it. When there are more than
+ * {@link #setCompactionThreshold(int)} of them, the file is rewritten with only
+ * the current entries and indexed again.<br>
+ * All the operations take the write lock, so that the memory and the file are
+ * updated together. Implement {@link #serialize(Object)} and
+ * {@link #deserialize(String)} to convert the values to and from text.
+ *
+ * @author Salva
+ *
+ * @param <T>
+ * @param <K>
+ */
+public abstract class AbstractTwoTierCache<T, K> extends AbstractBoundedCache<T, K> {
+	private static final Logger log = Logger.getLogger(AbstractTwoTierCache.class);
+	public static final int DEFAULT_WRITE_BATCH_SIZE = 1000;
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+	private static final String BEGIN_TOKEN = "<cache_entry";
+	private static final String END_TOKEN = "</cache_entry>";
+	private static final String KEY_ATTRIBUTE = " key=\"";
+	private static final String REMOVED_ATTRIBUTE = " removed=\"true\"";
+	// removal marks are indexed with this prefix, which is not in the url safe
+	// Base64 alphabet of the keys
+	private static final String REMOVED_KEY_PREFIX = "!";
+	private static final int COMPACTION_READ_BATCH_SIZE = 1000;
+	private final File storeFile;
+	private TextFileIndex store;
+	private final CacheStats diskStats = new CacheStats();
+	// evicted entries waiting to be written, being null the removed ones
+	private final Map<K, T> pendingEntries = new THashMap<K, T>();
+	// entries in memory that are already in the file
+	private final Set<K> storedKeys = new THashSet<K>();
+	private int numObsoleteRecords = 0;
+	private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+	private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+
+	/**
+	 * Reads the keys of the entries from their text, in case the index of the
+	 * store has to be rebuilt
+	 */
+	private static class StoreIndexIO extends TextFileIndexIO {
+
+		public StoreIndexIO(File file) throws IOException {
+			super(file, BEGIN_TOKEN, END_TOKEN);
+		}
+
+		@Override
+		protected Set<String> getKeys(String string) {
+			return getKeys(string, numEntries);
+		}
+
+		@Override
+		protected Set<String> getKeys(String string, int entryNumber) {
+			final Set<String> ret = new THashSet<String>();
+			final int start = string.indexOf(KEY_ATTRIBUTE);
+			if (start >= 0) {
+				final int end = string.indexOf('"', start + KEY_ATTRIBUTE.length());
+				final String key = string.substring(start + KEY_ATTRIBUTE.length(), end);
+				if (string.startsWith(REMOVED_ATTRIBUTE, end + 1)) {
+					ret.add(REMOVED_KEY_PREFIX + key);
+				} else {
+					ret.add(key);
+				}
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 *
+	 * @param storeFile      file in which the entries evicted from memory are
+	 *                       stored. Its index files are created in the same
+	 *                       folder.
+	 * @param evictionPolicy policy to evict entries from memory
+	 * @param maxEntries     maximum number of entries in memory, or
+	 *                       {@link #UNLIMITED}
+	 * @param maxWeight      maximum sum of the weights of the entries in memory,
+	 *                       or {@link #UNLIMITED}
+	 * @throws IOException
+	 */
+	public AbstractTwoTierCache(File storeFile, EvictionPolicy<K> evictionPolicy, long maxEntries, long maxWeight)
+			throws IOException {
+		super(evictionPolicy, maxEntries, maxWeight, UNLIMITED);
+		this.storeFile = storeFile;
+		store = new TextFileIndex(storeFile, new StoreIndexIO(storeFile));
+	}
+
+	/**
+	 * Two tier cache keeping in memory the maxEntries most recently used entries
+	 *
+	 * @param storeFile
+	 * @param maxEntries
+	 * @throws IOException
+	 */
+	public AbstractTwoTierCache(File storeFile, int maxEntries) throws IOException {
+		this(storeFile, new LRUEvictionPolicy<K>(), maxEntries, UNLIMITED);
+	}
+
+	/**
+	 * Converts a value to text in order to be stored in the file
+	 *
+	 * @param t
+	 * @return
+	 */
+	protected abstract String serialize(T t);
+
+	/**
+	 * Converts back a value that was stored in the file
+	 *
+	 * @param string
+	 * @return
+	 */
+	protected abstract T deserialize(String string);
+
+	/**
+	 * Text of the key used in the index of the file. It is String.valueOf(key) by
+	 * default.
+	 *
+	 * @param key
+	 * @return
+	 */
+	protected String getKeyString(K key) {
+		return String.valueOf(key);
+	}
+
+	/**
+	 *
+	 * @return counters of the requests that were not found in memory, being a hit
+	 *         if they were found in the entries waiting to be written or in the
+	 *         file
+	 */
+	public CacheStats getDiskStats() {
+		return diskStats;
+	}
+
+	/**
+	 * Sets how many evicted entries are kept in memory before writing them
+	 * together to the file. It is {@link #DEFAULT_WRITE_BATCH_SIZE} by default.
+	 *
+	 * @param writeBatchSize
+	 */
+	public void setWriteBatchSize(int writeBatchSize) {
+		this.writeBatchSize = writeBatchSize;
+	}
+
+	/**
+	 * Sets how many obsolete records, from replaced or removed entries, are
+	 * allowed in the file before compacting it. It is
+	 * {@link #DEFAULT_COMPACTION_THRESHOLD} by default.
+	 *
+	 * @param compactionThreshold
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	private String getStoreKey(K processedKey) {
+		return Base64.getUrlEncoder().withoutPadding()
+				.encodeToString(getKeyString(processedKey).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Checks in the index whether the last record of a key in the file is a value
+	 * and not a removal mark, without reading the file
+	 *
+	 * @param storeKey
+	 * @return
+	 * @throws IOException
+	 */
+	private boolean isStored(String storeKey) throws IOException {
+		final Pair<Long, Long> positions = store.getPositions(storeKey);
+		if (positions == null) {
+			return false;
+		}
+		final Pair<Long, Long> removalPositions = store.getPositions(REMOVED_KEY_PREFIX + storeKey);
+		return removalPositions == null || removalPositions.getFirstelement() < positions.getFirstelement();
+	}
+
+	private boolean isStored(K processedKey) {
+		try {
+			return isStored(getStoreKey(processedKey));
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.error(e.getMessage());
+		}
+		return false;
+	}
+
+	private T load(K processedKey) {
+		final String storeKey = getStoreKey(processedKey);
+		if (!isStored(processedKey)) {
+			return null;
+		}
+		final String entry = store.getItem(storeKey).trim();
+		final String value = entry.substring(entry.indexOf('>') + 1, entry.length() - END_TOKEN.length());
+		return deserialize(new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8));
+	}
+
+	@Override
+	protected void onEviction(K processedKey, T t) {
+		// the ones that were read from the file are already there
+		if (!storedKeys.remove(processedKey)) {
+			pendingEntries.put(processedKey, t);
+			if (pendingEntries.size() >= writeBatchSize) {
+				writePendingEntries();
+			}
+		}
+	}
+
+	/**
+	 * Writes the pending entries to the file, compacting it afterwards if
+	 * necessary. It has to be called with the write lock.
+	 */
+	private void writePendingEntries() {
+		if (pendingEntries.isEmpty()) {
+			return;
+		}
+		final List<String> items = new ArrayList<String>();
+		final List<Set<String>> keys = new ArrayList<Set<String>>();
+		int numObsoleteRecordsAfterWriting = numObsoleteRecords;
+		for (final Map.Entry<K, T> entry : pendingEntries.entrySet()) {
+			final String storeKey = getStoreKey(entry.getKey());
+			final T t = entry.getValue();
+			if (isStored(entry.getKey())) {
+				// the previous record is replaced, or removed together with
+				// its removal mark
+				numObsoleteRecordsAfterWriting += t == null ? 2 : 1;
+			}
+			if (t == null) {
+				items.add(BEGIN_TOKEN + KEY_ATTRIBUTE + storeKey + "\"" + REMOVED_ATTRIBUTE + ">" + END_TOKEN);
+				keys.add(Collections.singleton(REMOVED_KEY_PREFIX + storeKey));
+			} else {
+				items.add(BEGIN_TOKEN + KEY_ATTRIBUTE + storeKey + "\">"
+						+ Base64.getEncoder().encodeToString(serialize(t).getBytes(StandardCharsets.UTF_8))
+						+ END_TOKEN);
+				keys.add(Collections.singleton(storeKey));
+			}
+		}
+		if (store.addItems(items, keys) == null) {
+			// they are kept to try again in the next writing
+			log.error("Error writing " + items.size() + " entries in " + storeFile.getAbsolutePath());
+			return;
+		}
+		pendingEntries.clear();
+		numObsoleteRecords = numObsoleteRecordsAfterWriting;
+		if (numObsoleteRecords > compactionThreshold) {
+			try {
+				compact();
+			} catch (final IOException e) {
+				e.printStackTrace();
+				log.error("Error compacting " + storeFile.getAbsolutePath() + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private File[] getIndexFiles() {
+		final String base = storeFile.getAbsoluteFile().getParent() + File.separator
+				+ FilenameUtils.getBaseName(storeFile.getAbsolutePath());
+		return new File[] { new File(base + ".idx"), new File(base + ".bidx") };
+	}
+
+	/**
+	 * Rewrites the file with only the last record of each entry that was not
+	 * removed, and indexes it again. It has to be called with the write lock and
+	 * without pending entries.
+	 *
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		log.info("Compacting " + storeFile.getAbsolutePath() + " with " + numObsoleteRecords + " obsolete records");
+		final File compactedFile = File.createTempFile(storeFile.getName(), ".tmp",
+				storeFile.getAbsoluteFile().getParentFile());
+		try {
+			final BufferedWriter bw = new BufferedWriter(
+					new OutputStreamWriter(new FileOutputStream(compactedFile), StandardCharsets.UTF_8));
+			try {
+				final List<String> keys = new ArrayList<String>();
+				for (final String storeKey : store.getAllItemKeys()) {
+					if (!storeKey.startsWith(REMOVED_KEY_PREFIX) && isStored(storeKey)) {
+						keys.add(storeKey);
+						if (keys.size() == COMPACTION_READ_BATCH_SIZE) {
+							writeItems(store.getItems(keys), bw);
+							keys.clear();
+						}
+					}
+				}
+				writeItems(store.getItems(keys), bw);
+			} finally {
+				bw.close();
+			}
+			store.close();
+			Files.move(compactedFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			compactedFile.delete();
+		}
+		for (final File indexFile : getIndexFiles()) {
+			indexFile.delete();
+		}
+		store = new TextFileIndex(storeFile, new StoreIndexIO(storeFile));
+		numObsoleteRecords = 0;
+	}
+
+	private void writeItems(List<String> items, BufferedWriter bw) throws IOException {
+		for (final String item : items) {
+			bw.write("\n");
+			bw.write(item.trim());
+		}
+	}
+
+	@Override
+	public void addtoCache(T t, K key) {
+		if (t == null) {
+			return;
+		}
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			final K processedKey = processKey(key);
+			// the new value replaces the ones out of memory
+			pendingEntries.remove(processedKey);
+			storedKeys.remove(processedKey);
+			super.addtoCache(t, processedKey);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void addtoCache(Map<K, T> map2) {
+		if (map2 == null) {
+			return;
+		}
+		for (final Map.Entry<K, T> entry : map2.entrySet()) {
+			addtoCache(entry.getValue(), entry.getKey());
+		}
+	}
+
+	@Override
+	public T getFromCache(K key) {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			final T t = super.getFromCache(key);
+			if (t != null) {
+				return t;
+			}
+			final K processedKey = processKey(key);
+			final boolean pending = pendingEntries.containsKey(processedKey);
+			final T loaded = pending ? pendingEntries.get(processedKey) : load(processedKey);
+			if (loaded == null) {
+				diskStats.recordMiss();
+				return null;
+			}
+			diskStats.recordHit();
+			// back to memory, where the pending one keeps having to be written
+			pendingEntries.remove(processedKey);
+			super.addtoCache(loaded, processedKey);
+			if (!pending && map.containsKey(processedKey)) {
+				storedKeys.add(processedKey);
+			}
+			return loaded;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public Set<T> getFromCache(Collection<K> keys) {
+		final Set<T> ret = new THashSet<T>();
+		for (final K key : keys) {
+			final T t = getFromCache(key);
+			if (t != null) {
+				ret.add(t);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks the memory, the entries waiting to be written and the index of the
+	 * file, without reading the file
+	 */
+	@Override
+	public boolean contains(K key) {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			if (super.contains(key)) {
+				return true;
+			}
+			final K processedKey = processKey(key);
+			if (pendingEntries.containsKey(processedKey)) {
+				return pendingEntries.get(processedKey) != null;
+			}
+			return isStored(processedKey);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an entry from memory and from the file
+	 *
+	 * @return the value that was in memory or waiting to be written, but not the
+	 *         one in the file, which is not read
+	 */
+	@Override
+	public T removeFromCache(K key) {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			final K processedKey = processKey(key);
+			T ret = super.removeFromCache(processedKey);
+			storedKeys.remove(processedKey);
+			if (pendingEntries.containsKey(processedKey)) {
+				final T pending = pendingEntries.remove(processedKey);
+				if (ret == null) {
+					ret = pending;
+				}
+			}
+			if (isStored(processedKey)) {
+				// the file is only appended, so a removal mark is written
+				pendingEntries.put(processedKey, null);
+				if (pendingEntries.size() >= writeBatchSize) {
+					writePendingEntries();
+				}
+			}
+			return ret;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes to the file the pending entries and the ones in memory that are not
+	 * there yet, so that they are available for a new cache over the same file
+	 */
+	public void flush() {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			for (final Map.Entry<K, T> entry : map.entrySet()) {
+				if (!storedKeys.contains(entry.getKey())) {
+					pendingEntries.put(entry.getKey(), entry.getValue());
+				}
+			}
+			final int numEntries = pendingEntries.size();
+			writePendingEntries();
+			if (pendingEntries.isEmpty()) {
+				// the ones in memory are now in the file too
+				storedKeys.addAll(map.keySet());
+			}
+			log.debug(numEntries + " entries written in " + storeFile.getAbsolutePath());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the cache and closes the file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			flush();
+			store.close();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all the entries, from memory and from the file
+	 */
+	@Override
+	public void clearCache() {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			super.clearCache();
+			pendingEntries.clear();
+			storedKeys.clear();
+			numObsoleteRecords = 0;
+			try {
+				store.close();
+			} catch (final IOException e) {
+				log.warn(e.getMessage());
+			}
+			for (final File indexFile : getIndexFiles()) {
+				indexFile.delete();
+			}
+			storeFile.delete();
+			try {
+				store = new TextFileIndex(storeFile, new StoreIndexIO(storeFile));
+			} catch (final IOException e) {
+				e.printStackTrace();
+				log.error(e.getMessage());
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean isEmpty() {
+		final WriteLock writeLock = lock.writeLock();
+		try {
+			writeLock.lock();
+			return super.isEmpty() && pendingEntries.isEmpty() && (!storeFile.exists() || storeFile.length() == 0);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package edu.scripps.yates.utilities.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the hits, misses, evictions and expirations of a cache
+ * 
+ * @author Salva
+ *
+ */
+public class CacheStats {
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public void recordHit() {
+		hits.incrementAndGet();
+	}
+
+	public void recordMiss() {
+		misses.incrementAndGet();
+	}
+
+	public void recordEviction() {
+		evictions.incrementAndGet();
+	}
+
+	public void recordExpiration() {
+		expirations.incrementAndGet();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * 
+	 * @return the ratio of hits over the total number of requests, or 0 if no
+	 *         request was made
+	 */
+	public double getHitRate() {
+		final long hits = getHits();
+		final long requests = hits + getMisses();
+		if (requests == 0) {
+			return 0.0;
+		}
+		return 1.0 * hits / requests;
+	}
+
+	public void reset() {
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+		expirations.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + getHits() + ", misses=" + getMisses() + ", hitRate=" + getHitRate() + ", evictions="
+				+ getEvictions() + ", expirations=" + getExpirations();
+	}
+}
@@ -0,0 +1,121 @@
+package edu.scripps.yates.utilities.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.scripps.yates.utilities.cores.SystemCoreManager;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * {@link Cache} backed by a {@link ConcurrentHashMap}, so reads don't take any
+ * lock and writes only lock a small part of the map. Use it instead of
+ * {@link AbstractCache} when the cache is read from many threads.<br>
+ * As in {@link AbstractCache}, keys are transformed by
+ * {@link #processKey(Object)} before being stored or looked up. Null keys and
+ * values are ignored.
+ * 
+ * @author Salva
+ *
+ * @param <T>
+ * @param <K>
+ */
+public class ConcurrentCache<T, K> implements Cache<T, K> {
+	protected final ConcurrentHashMap<K, T> map;
+
+	public ConcurrentCache() {
+		this(16);
+	}
+
+	public ConcurrentCache(int initialCapacity) {
+		map = new ConcurrentHashMap<K, T>(initialCapacity, 0.75f, SystemCoreManager.getNumSystemCores());
+	}
+
+	@Override
+	public void addtoCache(T t, K key) {
+		if (t == null) {
+			return;
+		}
+		final K processedKey = processKey(key);
+		if (processedKey != null) {
+			map.put(processedKey, t);
+		}
+	}
+
+	@Override
+	public void addtoCache(Map<K, T> map2) {
+		if (map2 == null) {
+			return;
+		}
+		for (final Map.Entry<K, T> entry : map2.entrySet()) {
+			addtoCache(entry.getValue(), entry.getKey());
+		}
+	}
+
+	@Override
+	public T getFromCache(K key) {
+		final K processedKey = processKey(key);
+		if (processedKey == null) {
+			return null;
+		}
+		return map.get(processedKey);
+	}
+
+	@Override
+	public Set<T> getFromCache(Collection<K> keys) {
+		final Set<T> ret = new THashSet<T>();
+		for (final K key : keys) {
+			// a single lookup per key
+			final T t = getFromCache(key);
+			if (t != null) {
+				ret.add(t);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public boolean contains(K key) {
+		final K processedKey = processKey(key);
+		return processedKey != null && map.containsKey(processedKey);
+	}
+
+	@Override
+	public T removeFromCache(K key) {
+		final K processedKey = processKey(key);
+		if (processedKey == null) {
+			return null;
+		}
+		return map.remove(processedKey);
+	}
+
+	@Override
+	public boolean containsAll(Collection<K> keys) {
+		for (final K key : keys) {
+			if (!contains(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public K processKey(K key) {
+		return key;
+	}
+
+	@Override
+	public void clearCache() {
+		map.clear();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return map.isEmpty();
+	}
+
+	public int size() {
+		return map.size();
+	}
+}
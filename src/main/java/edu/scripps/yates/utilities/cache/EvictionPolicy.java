@@ -0,0 +1,30 @@
+package edu.scripps.yates.utilities.cache;
+
+/**
+ * Policy that decides which key has to be evicted from a bounded cache when it
+ * is full. The cache notifies the policy of every insertion, access and removal
+ * of a key.<br>
+ * Implementations don't need to be thread safe, since the cache calls them
+ * while holding its lock.
+ * 
+ * @author Salva
+ *
+ * @param <K>
+ */
+public interface EvictionPolicy<K> {
+
+	public void recordInsertion(K key);
+
+	public void recordAccess(K key);
+
+	public void recordRemoval(K key);
+
+	/**
+	 * 
+	 * @return the key to be evicted next, or null if the policy doesn't know
+	 *         any key
+	 */
+	public K selectVictim();
+
+	public void clear();
+}
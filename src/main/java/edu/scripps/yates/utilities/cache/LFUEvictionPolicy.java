@@ -0,0 +1,81 @@
+package edu.scripps.yates.utilities.cache;
+
+import java.util.LinkedHashSet;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Evicts the least frequently used key. Among keys with the same frequency,
+ * the least recently used one is evicted.
+ * 
+ * @author Salva
+ *
+ * @param <K>
+ */
+public class LFUEvictionPolicy<K> implements EvictionPolicy<K> {
+	private final TObjectIntHashMap<K> frequencies = new TObjectIntHashMap<K>();
+	private final TreeMap<Integer, LinkedHashSet<K>> keysByFrequency = new TreeMap<Integer, LinkedHashSet<K>>();
+
+	private void addToFrequency(K key, int frequency) {
+		LinkedHashSet<K> keys = keysByFrequency.get(frequency);
+		if (keys == null) {
+			keys = new LinkedHashSet<K>();
+			keysByFrequency.put(frequency, keys);
+		}
+		keys.add(key);
+		frequencies.put(key, frequency);
+	}
+
+	private void removeFromFrequency(K key, int frequency) {
+		final LinkedHashSet<K> keys = keysByFrequency.get(frequency);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				keysByFrequency.remove(frequency);
+			}
+		}
+	}
+
+	@Override
+	public void recordInsertion(K key) {
+		if (frequencies.containsKey(key)) {
+			recordAccess(key);
+		} else {
+			addToFrequency(key, 1);
+		}
+	}
+
+	@Override
+	public void recordAccess(K key) {
+		if (!frequencies.containsKey(key)) {
+			return;
+		}
+		final int frequency = frequencies.get(key);
+		removeFromFrequency(key, frequency);
+		addToFrequency(key, frequency + 1);
+	}
+
+	@Override
+	public void recordRemoval(K key) {
+		if (frequencies.containsKey(key)) {
+			removeFromFrequency(key, frequencies.remove(key));
+		}
+	}
+
+	@Override
+	public K selectVictim() {
+		final Entry<Integer, LinkedHashSet<K>> lowest = keysByFrequency.firstEntry();
+		if (lowest == null) {
+			return null;
+		}
+		return lowest.getValue().iterator().next();
+	}
+
+	@Override
+	public void clear() {
+		frequencies.clear();
+		keysByFrequency.clear();
+	}
+}
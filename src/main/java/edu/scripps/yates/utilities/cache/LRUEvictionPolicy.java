@@ -0,0 +1,45 @@
+package edu.scripps.yates.utilities.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used key
+ * 
+ * @author Salva
+ *
+ * @param <K>
+ */
+public class LRUEvictionPolicy<K> implements EvictionPolicy<K> {
+	// access ordered, so the first key is the least recently used
+	private final LinkedHashMap<K, Boolean> keys = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+	@Override
+	public void recordInsertion(K key) {
+		keys.put(key, Boolean.TRUE);
+	}
+
+	@Override
+	public void recordAccess(K key) {
+		keys.get(key);
+	}
+
+	@Override
+	public void recordRemoval(K key) {
+		keys.remove(key);
+	}
+
+	@Override
+	public K selectVictim() {
+		final Iterator<K> iterator = keys.keySet().iterator();
+		if (iterator.hasNext()) {
+			return iterator.next();
+		}
+		return null;
+	}
+
+	@Override
+	public void clear() {
+		keys.clear();
+	}
+}
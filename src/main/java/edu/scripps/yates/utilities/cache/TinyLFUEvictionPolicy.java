@@ -0,0 +1,178 @@
+package edu.scripps.yates.utilities.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * W-TinyLFU eviction policy. New keys enter a small LRU window. Keys leaving
+ * the window compete with the least recently used key of the main space, which
+ * is a segmented LRU (probation and protected segments), and the one with the
+ * lower estimated frequency is evicted. Frequencies are estimated with a
+ * count-min sketch that is periodically halved, so old popularity fades out.
+ * 
+ * @author Salva
+ *
+ * @param <K>
+ */
+public class TinyLFUEvictionPolicy<K> implements EvictionPolicy<K> {
+	private static final int MAX_FREQUENCY = 15;
+	private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+	// access ordered, so the first key of each segment is the least recently
+	// used
+	private final LinkedHashMap<K, Boolean> window = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+	private final LinkedHashMap<K, Boolean> probation = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+	private final LinkedHashMap<K, Boolean> protectedSegment = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+	private final int maxWindow;
+	private final int maxMain;
+	private final int maxProtected;
+	private final byte[][] sketch;
+	private final int sketchMask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * 
+	 * @param maxEntries expected maximum number of entries of the cache, used to
+	 *                   size the segments and the frequency sketch
+	 */
+	public TinyLFUEvictionPolicy(int maxEntries) {
+		maxWindow = Math.max(1, maxEntries / 100);
+		maxMain = Math.max(1, maxEntries - maxWindow);
+		maxProtected = Math.max(1, maxMain * 8 / 10);
+		int width = 16;
+		while (width < 4l * maxEntries) {
+			width <<= 1;
+		}
+		sketch = new byte[SEEDS.length][width];
+		sketchMask = width - 1;
+		sampleSize = 10 * Math.max(maxEntries, 16);
+	}
+
+	private int index(K key, int row) {
+		int h = key.hashCode() * SEEDS[row];
+		h ^= h >>> 16;
+		return h & sketchMask;
+	}
+
+	private void increment(K key) {
+		final int frequency = frequency(key);
+		if (frequency < MAX_FREQUENCY) {
+			// conservative update: only the counters with the minimum value
+			for (int row = 0; row < SEEDS.length; row++) {
+				final int index = index(key, row);
+				if (sketch[row][index] == frequency) {
+					sketch[row][index]++;
+				}
+			}
+		}
+		if (++additions >= sampleSize) {
+			for (final byte[] counters : sketch) {
+				for (int i = 0; i < counters.length; i++) {
+					counters[i] >>= 1;
+				}
+			}
+			additions /= 2;
+		}
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the estimated frequency of the key
+	 */
+	public int frequency(K key) {
+		int ret = MAX_FREQUENCY;
+		for (int row = 0; row < SEEDS.length; row++) {
+			ret = Math.min(ret, sketch[row][index(key, row)]);
+		}
+		return ret;
+	}
+
+	private static <K> K eldest(LinkedHashMap<K, Boolean> segment) {
+		final Iterator<K> iterator = segment.keySet().iterator();
+		if (iterator.hasNext()) {
+			return iterator.next();
+		}
+		return null;
+	}
+
+	private int mainSize() {
+		return probation.size() + protectedSegment.size();
+	}
+
+	@Override
+	public void recordInsertion(K key) {
+		if (window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key)) {
+			recordAccess(key);
+			return;
+		}
+		increment(key);
+		window.put(key, Boolean.TRUE);
+		// while the main space is not full, keys leaving the window go there
+		while (window.size() > maxWindow && mainSize() < maxMain) {
+			final K eldest = eldest(window);
+			window.remove(eldest);
+			probation.put(eldest, Boolean.TRUE);
+		}
+	}
+
+	@Override
+	public void recordAccess(K key) {
+		increment(key);
+		if (window.containsKey(key)) {
+			window.get(key);
+		} else if (probation.remove(key) != null) {
+			protectedSegment.put(key, Boolean.TRUE);
+			if (protectedSegment.size() > maxProtected) {
+				final K demoted = eldest(protectedSegment);
+				protectedSegment.remove(demoted);
+				probation.put(demoted, Boolean.TRUE);
+			}
+		} else {
+			protectedSegment.get(key);
+		}
+	}
+
+	@Override
+	public void recordRemoval(K key) {
+		if (window.remove(key) == null && probation.remove(key) == null) {
+			protectedSegment.remove(key);
+		}
+	}
+
+	@Override
+	public K selectVictim() {
+		K mainVictim = eldest(probation);
+		if (mainVictim == null) {
+			mainVictim = eldest(protectedSegment);
+		}
+		if (window.size() > maxWindow || mainVictim == null) {
+			final K candidate = eldest(window);
+			if (mainVictim == null || candidate == null) {
+				return candidate != null ? candidate : mainVictim;
+			}
+			// admission: the candidate only enters the main space if it is more
+			// popular than the key it would replace
+			if (frequency(candidate) > frequency(mainVictim)) {
+				window.remove(candidate);
+				probation.put(candidate, Boolean.TRUE);
+				return mainVictim;
+			}
+			return candidate;
+		}
+		return mainVictim;
+	}
+
+	@Override
+	public void clear() {
+		window.clear();
+		probation.clear();
+		protectedSegment.clear();
+		for (final byte[] counters : sketch) {
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] = 0;
+			}
+		}
+		additions = 0;
+	}
+}
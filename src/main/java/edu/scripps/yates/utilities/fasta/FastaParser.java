@@ -10,7 +10,7 @@ import java.util.regex.PatternSyntaxException;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.log4j.Logger;
 
-import edu.scripps.yates.utilities.masses.AssignMass;
+import edu.scripps.yates.utilities.masses.MassTable;
 import edu.scripps.yates.utilities.proteomicsmodel.Accession;
 import edu.scripps.yates.utilities.proteomicsmodel.enums.AccessionType;
 import edu.scripps.yates.utilities.proteomicsmodel.factories.AccessionEx;
@@ -758,10 +758,9 @@ public class FastaParser {
 		}
 		final String errorMessage = "Peptide sequence '" + seq
 				+ "' is not supported. Either having not recognizable characteres or in lower case? Has it a non standard PTM enconded on it? PTMs can be encoded as in PEPTID[+45.92]E";
-		AssignMass.getInstance(true);
 		for (int index = 0; index < seq.length(); index++) {
 			final char aa = seq.charAt(index);
-			if (!tolerantToFakePeptides && !AssignMass.containsMass(aa)) {
+			if (!tolerantToFakePeptides && !MassTable.MONOISOTOPIC.containsMass(aa)) {
 				throw new IllegalArgumentException("'" + aa + "' not recognized. " + errorMessage);
 			}
 		}
@@ -804,10 +803,9 @@ public class FastaParser {
 		}
 		final String errorMessage = "Peptide sequence '" + seq
 				+ "' is not supported. Either having not recognizable characteres or in lower case? Has it a non standard PTM enconded on it? PTMs can be encoded as in PEPTID[+45.92]E";
-		AssignMass.getInstance(true);
 		for (int index = 0; index < seq.length(); index++) {
 			final char aa = seq.charAt(index);
-			if (!tolerantToFakePeptides && !AssignMass.containsMass(aa)) {
+			if (!tolerantToFakePeptides && !MassTable.MONOISOTOPIC.containsMass(aa)) {
 				throw new IllegalArgumentException("'" + aa + "' not recognized. " + errorMessage);
 			}
 		}
@@ -850,10 +848,9 @@ public class FastaParser {
 		}
 		final String errorMessage = "Peptide sequence '" + seq
 				+ "' is not supported. Either having not recognizable characteres or in lower case? Has it a non standard PTM enconded on it? PTMs can be encoded as in PEPTID[+45.92]E";
-		AssignMass.getInstance(true);
 		for (int index = 0; index < seq.length(); index++) {
 			final char aa = seq.charAt(index);
-			if (!tolerantToFakePeptides && !AssignMass.containsMass(aa)) {
+			if (!tolerantToFakePeptides && !MassTable.MONOISOTOPIC.containsMass(aa)) {
 				throw new IllegalArgumentException("'" + aa + "' not recognized. " + errorMessage);
 			}
 		}
@@ -1072,8 +1069,7 @@ public class FastaParser {
 						ptm = -ptm;
 					}
 					if (modifiedAAMass) {
-						AssignMass.getInstance(true);
-						final double AAMass = AssignMass.getMass(currentAA);
+						final double AAMass = MassTable.MONOISOTOPIC.getMass(currentAA);
 						ptm = ptm - AAMass;
 					}
 					ret.put(position - 1, ptm);
@@ -0,0 +1,353 @@
+package edu.scripps.yates.utilities.fasta.dbindex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.THashSet;
+
+/**
+ * {@link DBIndexInterface} over the unique peptides of a protein database
+ * stored in columns sorted by mass: for each peptide, its mass, the protein and
+ * the position of its first occurrence, its length and the list of the
+ * proteins containing it. Queries by mass are binary searches over the mass
+ * column.<br>
+ * Subclasses decide where the columns are stored.
+ *
+ * @author Salva
+ *
+ */
+public abstract class AbstractPeptideMassIndex implements DBIndexInterface {
+	private static final String TERMINUS = "-";
+	private final double[] residueMasses;
+	private final boolean h2oPlusProtonAdded;
+
+	protected AbstractPeptideMassIndex(DBIndexSearchParams params) {
+		residueMasses = ProteomeDigester.getResidueMasses(params);
+		h2oPlusProtonAdded = params.isH2OPlusProtonAdded();
+	}
+
+	/**
+	 *
+	 * @return the number of unique peptide sequences in the index
+	 */
+	public abstract int getNumPeptides();
+
+	public abstract int getNumProteins();
+
+	protected abstract double getMass(int peptide);
+
+	/**
+	 *
+	 * @param peptide
+	 * @return the protein of the first occurrence of the peptide
+	 */
+	protected abstract int getProteinId(int peptide);
+
+	/**
+	 *
+	 * @param peptide
+	 * @return the position of the peptide in the protein of its first occurrence
+	 */
+	protected abstract int getOffset(int peptide);
+
+	protected abstract int getLength(int peptide);
+
+	/**
+	 *
+	 * @param peptide from 0 to {@link #getNumPeptides()}, both included
+	 * @return the position in the protein list of the first protein of the
+	 *         peptide
+	 */
+	protected abstract long getProteinListStart(int peptide);
+
+	protected abstract int getProteinListElement(long position);
+
+	protected abstract int getProteinLength(int proteinId);
+
+	protected abstract byte getResidue(int proteinId, int position);
+
+	protected abstract String getDefline(int proteinId);
+
+	/**
+	 * Position of the first peptide with a mass equal or greater than mass
+	 */
+	protected int lowerBound(double mass) {
+		return lowerBound(0, mass);
+	}
+
+	/**
+	 * Position of the first peptide from a position with a mass equal or greater
+	 * than mass
+	 */
+	protected int lowerBound(int from, double mass) {
+		int low = from;
+		int high = getNumPeptides();
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (getMass(middle) < mass) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private String getSequence(int proteinId, int offset, int length) {
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = getResidue(proteinId, offset + i);
+		}
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 *
+	 * @param peptide id of a peptide in the index
+	 * @return the peptide, with its id as {@link IndexedSequence#getId()}
+	 */
+	public IndexedSequence getIndexedSequence(int peptide) {
+		final int proteinId = getProteinId(peptide);
+		final int offset = getOffset(peptide);
+		final int length = getLength(peptide);
+		final String resLeft = offset > 0 ? String.valueOf((char) getResidue(proteinId, offset - 1)) : TERMINUS;
+		final String resRight = offset + length < getProteinLength(proteinId)
+				? String.valueOf((char) getResidue(proteinId, offset + length))
+				: TERMINUS;
+		final IndexedSequence ret = new IndexedSequence(peptide, getMass(peptide), offset, length,
+				getSequence(proteinId, offset, length), resLeft, resRight);
+		final long start = getProteinListStart(peptide);
+		final long end = getProteinListStart(peptide + 1);
+		final List<Integer> ids = new ArrayList<Integer>((int) (end - start));
+		for (long j = start; j < end; j++) {
+			ids.add(getProteinListElement(j));
+		}
+		ret.setProteinIds(ids);
+		return ret;
+	}
+
+	@Override
+	public List<IndexedSequence> getSequences(double precursorMass, double massTolerance)
+			throws DBIndexStoreException {
+		final List<IndexedSequence> ret = new ArrayList<IndexedSequence>();
+		final double maxMass = precursorMass + massTolerance;
+		final int numPeptides = getNumPeptides();
+		for (int i = lowerBound(precursorMass - massTolerance); i < numPeptides && getMass(i) <= maxMass; i++) {
+			ret.add(getIndexedSequence(i));
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the sequences in any of the mass ranges, without repetitions, sorted
+	 * by mass
+	 */
+	@Override
+	public List<IndexedSequence> getSequences(List<MassRange> massRanges) throws DBIndexStoreException {
+		final List<IndexedSequence> ret = new ArrayList<IndexedSequence>();
+		final int[] lastPeptide = { -1 };
+		query(massRanges, new MassRangeHitConsumer() {
+			@Override
+			public void accept(int massRange, int peptide) {
+				// hits are reported in order of mass
+				if (peptide != lastPeptide[0]) {
+					ret.add(getIndexedSequence(peptide));
+					lastPeptide[0] = peptide;
+				}
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Receives the peptides found in a batch of mass ranges
+	 */
+	public interface MassRangeHitConsumer {
+		/**
+		 *
+		 * @param massRange position of the mass range in the list of the query
+		 * @param peptide   id of the peptide in the index. Use
+		 *                  {@link AbstractPeptideMassIndex#getIndexedSequence(int)}
+		 *                  or {@link AbstractPeptideMassIndex#getPeptideMass(int)}
+		 *                  to get its data.
+		 */
+		public void accept(int massRange, int peptide);
+	}
+
+	/**
+	 * Queries a batch of mass ranges at once. The ranges are sorted and the ones
+	 * that overlap are merged, so the mass column is scanned once from the lowest
+	 * to the highest mass of each group of overlapping ranges, and every peptide
+	 * found is reported to the consumer once per range containing it, without
+	 * creating any object.<br>
+	 * The hits are reported in order of mass. The hits of the same peptide are
+	 * reported in order of the lower bound of the ranges.
+	 *
+	 * @param massRanges
+	 * @param consumer
+	 */
+	public void query(List<MassRange> massRanges, MassRangeHitConsumer consumer) {
+		final int numRanges = massRanges.size();
+		final double[] lows = new double[numRanges];
+		final double[] highs = new double[numRanges];
+		final Integer[] sorted = new Integer[numRanges];
+		for (int i = 0; i < numRanges; i++) {
+			final MassRange massRange = massRanges.get(i);
+			lows[i] = massRange.getPrecMass() - massRange.getTolerance();
+			highs[i] = massRange.getPrecMass() + massRange.getTolerance();
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, (range1, range2) -> Double.compare(lows[range1], lows[range2]));
+		final int numPeptides = getNumPeptides();
+		// ranges containing the current mass
+		final int[] active = new int[numRanges];
+		int numActive = 0;
+		int next = 0;
+		int peptide = 0;
+		while (next < numRanges || numActive > 0) {
+			if (numActive == 0) {
+				// jump to the next group of overlapping ranges
+				peptide = lowerBound(peptide, lows[sorted[next]]);
+			}
+			if (peptide >= numPeptides) {
+				return;
+			}
+			final double mass = getMass(peptide);
+			// the ones starting before this mass become active
+			while (next < numRanges && lows[sorted[next]] <= mass) {
+				active[numActive++] = sorted[next++];
+			}
+			// and the ones ending before it are removed
+			int kept = 0;
+			for (int i = 0; i < numActive; i++) {
+				if (highs[active[i]] >= mass) {
+					active[kept++] = active[i];
+				}
+			}
+			numActive = kept;
+			for (int i = 0; i < numActive; i++) {
+				consumer.accept(active[i], peptide);
+			}
+			if (numActive > 0) {
+				peptide++;
+			}
+		}
+	}
+
+	/**
+	 * Queries a batch of mass ranges as in {@link #query(List, MassRangeHitConsumer)}
+	 *
+	 * @param massRanges
+	 * @return for each mass range, the ids of the peptides in it, sorted by mass
+	 */
+	public int[][] getPeptideIds(List<MassRange> massRanges) {
+		final TIntArrayList[] hits = new TIntArrayList[massRanges.size()];
+		for (int i = 0; i < hits.length; i++) {
+			hits[i] = new TIntArrayList();
+		}
+		query(massRanges, new MassRangeHitConsumer() {
+			@Override
+			public void accept(int massRange, int peptide) {
+				hits[massRange].add(peptide);
+			}
+		});
+		final int[][] ret = new int[hits.length][];
+		for (int i = 0; i < hits.length; i++) {
+			ret[i] = hits[i].toArray();
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param peptide id of a peptide in the index
+	 * @return its mass
+	 */
+	public double getPeptideMass(int peptide) {
+		return getMass(peptide);
+	}
+
+	private boolean isSequence(int peptide, byte[] sequence) {
+		if (getLength(peptide) != sequence.length) {
+			return false;
+		}
+		final int proteinId = getProteinId(peptide);
+		final int offset = getOffset(peptide);
+		for (int i = 0; i < sequence.length; i++) {
+			if (getResidue(proteinId, offset + i) != sequence[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Position of a sequence in the index or -1 if it is not present
+	 */
+	protected int indexOf(String sequence) {
+		if (sequence == null) {
+			return -1;
+		}
+		final byte[] bytes = sequence.getBytes(StandardCharsets.US_ASCII);
+		final double mass = ProteomeDigester.getMass(bytes, 0, bytes.length, residueMasses, h2oPlusProtonAdded);
+		if (mass < 0) {
+			return -1;
+		}
+		// the mass is calculated in the same way, so it has to be identical
+		final int numPeptides = getNumPeptides();
+		for (int i = lowerBound(mass); i < numPeptides && getMass(i) == mass; i++) {
+			if (isSequence(i, bytes)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private List<IndexedProtein> getProteins(int peptide) throws DBIndexStoreException {
+		final List<IndexedProtein> ret = new ArrayList<IndexedProtein>();
+		if (peptide < 0) {
+			return ret;
+		}
+		final long end = getProteinListStart(peptide + 1);
+		for (long j = getProteinListStart(peptide); j < end; j++) {
+			ret.add(getIndexedProteinById(getProteinListElement(j)));
+		}
+		return ret;
+	}
+
+	@Override
+	public List<IndexedProtein> getProteins(IndexedSequence seq) throws DBIndexStoreException {
+		final long id = seq.getId();
+		if (id >= 0 && id < getNumPeptides() && seq.getSequence() != null
+				&& isSequence((int) id, seq.getSequence().getBytes(StandardCharsets.US_ASCII))) {
+			return getProteins((int) id);
+		}
+		return getProteins(indexOf(seq.getSequence()));
+	}
+
+	@Override
+	public Set<IndexedProtein> getProteins(String seq) throws DBIndexStoreException {
+		// the proteins of each peptide are already unique
+		return new THashSet<IndexedProtein>(getProteins(indexOf(seq)));
+	}
+
+	@Override
+	public IndexedProtein getIndexedProteinById(int proteinId) throws DBIndexStoreException {
+		if (proteinId < 0 || proteinId >= getNumProteins()) {
+			throw new DBIndexStoreException("Protein with id " + proteinId + " not found");
+		}
+		return new IndexedProtein(getDefline(proteinId), proteinId);
+	}
+
+	@Override
+	public String getProteinSequenceById(int proteinId) throws DBIndexStoreException {
+		if (proteinId < 0 || proteinId >= getNumProteins()) {
+			throw new DBIndexStoreException("Protein with id " + proteinId + " not found");
+		}
+		return getSequence(proteinId, 0, getProteinLength(proteinId));
+	}
+}
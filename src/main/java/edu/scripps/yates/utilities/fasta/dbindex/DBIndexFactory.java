@@ -0,0 +1,30 @@
+package edu.scripps.yates.utilities.fasta.dbindex;
+
+/**
+ * Creates the {@link DBIndexInterface} for the {@link IndexType} of some
+ * {@link DBIndexSearchParams}
+ *
+ * @author Salva
+ *
+ */
+public class DBIndexFactory {
+
+	/**
+	 * Gets an index of the peptides of the database of the parameters:
+	 * <ul>
+	 * <li>{@link IndexType#INDEX_LARGE}: a {@link MappedDBIndex}, built in a file
+	 * the first time and mapped in memory</li>
+	 * <li>{@link IndexType#INDEX_NORMAL}: an {@link InMemoryDBIndex}</li>
+	 * </ul>
+	 *
+	 * @param params
+	 * @return
+	 * @throws DBIndexStoreException
+	 */
+	public static AbstractPeptideMassIndex getDBIndex(DBIndexSearchParams params) throws DBIndexStoreException {
+		if (params.getIndexType() == IndexType.INDEX_LARGE) {
+			return MappedDBIndex.getInstance(params);
+		}
+		return new InMemoryDBIndex(params);
+	}
+}
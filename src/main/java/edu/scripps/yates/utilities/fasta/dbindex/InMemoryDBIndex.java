@@ -0,0 +1,139 @@
+package edu.scripps.yates.utilities.fasta.dbindex;
+
+import java.io.IOException;
+import java.util.List;
+
+import edu.scripps.yates.utilities.cores.SystemCoreManager;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * {@link DBIndexInterface} keeping all the peptides of a fasta file in memory.
+ * The fasta file (the database name of the {@link DBIndexSearchParams}) is
+ * digested in parallel using all the cores, and each unique peptide sequence
+ * is stored once in primitive arrays sorted by mass, with the proteins in
+ * which it appears. Queries by mass are binary searches over these arrays.
+ *
+ * @author Salva
+ *
+ */
+public class InMemoryDBIndex extends AbstractPeptideMassIndex {
+	private final List<String> deflines;
+	private final List<byte[]> proteinSequences;
+	// columns of the peptides, sorted by mass
+	private final double[] masses;
+	private final int[] proteinIds;
+	private final int[] offsets;
+	private final int[] lengths;
+	// proteins of peptide i are in proteinList from proteinListStarts[i] to
+	// proteinListStarts[i+1]
+	private final int[] proteinListStarts;
+	private final int[] proteinList;
+
+	/**
+	 * Creates the index using all the available cores
+	 *
+	 * @param params
+	 * @throws DBIndexStoreException
+	 */
+	public InMemoryDBIndex(DBIndexSearchParams params) throws DBIndexStoreException {
+		this(params, SystemCoreManager.getAvailableNumSystemCores());
+	}
+
+	/**
+	 *
+	 * @param params
+	 * @param numThreads number of threads digesting the proteins
+	 * @throws DBIndexStoreException
+	 */
+	public InMemoryDBIndex(DBIndexSearchParams params, int numThreads) throws DBIndexStoreException {
+		super(params);
+		final ProteomeDigester digester = new ProteomeDigester(params, numThreads);
+		final TDoubleArrayList masses = new TDoubleArrayList();
+		final TIntArrayList proteinIds = new TIntArrayList();
+		final TIntArrayList offsets = new TIntArrayList();
+		final TIntArrayList lengths = new TIntArrayList();
+		final TIntArrayList proteinListStarts = new TIntArrayList();
+		final TIntArrayList proteinList = new TIntArrayList();
+		try {
+			digester.readProteins(params.getDatabaseName());
+			digester.digest(new ProteomeDigester.UniquePeptideConsumer() {
+				@Override
+				public void accept(double mass, int proteinId, int offset, int length, int[] ids, int numProteins) {
+					masses.add(mass);
+					proteinIds.add(proteinId);
+					offsets.add(offset);
+					lengths.add(length);
+					proteinListStarts.add(proteinList.size());
+					proteinList.add(ids, 0, numProteins);
+				}
+			});
+		} catch (final IOException e) {
+			throw new DBIndexStoreException("Error indexing " + params.getDatabaseName(), e);
+		}
+		proteinListStarts.add(proteinList.size());
+		deflines = digester.getDeflines();
+		proteinSequences = digester.getSequences();
+		this.masses = masses.toArray();
+		this.proteinIds = proteinIds.toArray();
+		this.offsets = offsets.toArray();
+		this.lengths = lengths.toArray();
+		this.proteinListStarts = proteinListStarts.toArray();
+		this.proteinList = proteinList.toArray();
+	}
+
+	@Override
+	public int getNumPeptides() {
+		return masses.length;
+	}
+
+	@Override
+	public int getNumProteins() {
+		return proteinSequences.size();
+	}
+
+	@Override
+	protected double getMass(int peptide) {
+		return masses[peptide];
+	}
+
+	@Override
+	protected int getProteinId(int peptide) {
+		return proteinIds[peptide];
+	}
+
+	@Override
+	protected int getOffset(int peptide) {
+		return offsets[peptide];
+	}
+
+	@Override
+	protected int getLength(int peptide) {
+		return lengths[peptide];
+	}
+
+	@Override
+	protected long getProteinListStart(int peptide) {
+		return proteinListStarts[peptide];
+	}
+
+	@Override
+	protected int getProteinListElement(long position) {
+		return proteinList[(int) position];
+	}
+
+	@Override
+	protected int getProteinLength(int proteinId) {
+		return proteinSequences.get(proteinId).length;
+	}
+
+	@Override
+	protected byte getResidue(int proteinId, int position) {
+		return proteinSequences.get(proteinId)[position];
+	}
+
+	@Override
+	protected String getDefline(int proteinId) {
+		return deflines.get(proteinId);
+	}
+}
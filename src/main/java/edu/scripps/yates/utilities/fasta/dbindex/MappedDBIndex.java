@@ -0,0 +1,413 @@
+package edu.scripps.yates.utilities.fasta.dbindex;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.cores.SystemCoreManager;
+import edu.scripps.yates.utilities.index.MappedRegion;
+
+/**
+ * {@link DBIndexInterface} for {@link IndexType#INDEX_LARGE}: the peptides are
+ * stored in columns in a binary file that is mapped in memory, so the index is
+ * not loaded in the heap and all the JVMs of a node mapping the same file share
+ * a single copy of it in the page cache.<br>
+ * The file is named by
+ * {@link DBIndexSearchParams#getFullIndexFileName(String, Integer, boolean, String, boolean, String)}
+ * with the suffix {@link #INDEX_FILE_SUFFIX}, and it is built the first time it
+ * is needed or when the fasta file or the digestion parameters change. The
+ * layout of the file is:
+ * <ul>
+ * <li>header: magic number, version, length and modification time of the fasta
+ * file, number of peptides and proteins, and offset and length of each one of
+ * the columns</li>
+ * <li>peptide columns sorted by mass: mass (double), protein of the first
+ * occurrence (int), offset in that protein (int), length (int) and start of its
+ * list of proteins (long)</li>
+ * <li>protein lists: the ids of the proteins of each peptide (int)</li>
+ * <li>protein columns: start of the sequence (long), sequences (bytes), start
+ * of the defline (long) and deflines (UTF-8 bytes)</li>
+ * <li>digestion parameters with which the index was built (UTF-8 bytes)</li>
+ * </ul>
+ * Instances of this class are safe to be read from multiple threads.
+ *
+ * @author Salva
+ *
+ */
+public class MappedDBIndex extends AbstractPeptideMassIndex {
+	private static final Logger log = Logger.getLogger(MappedDBIndex.class);
+	public static final String INDEX_FILE_SUFFIX = "_massIndex";
+	private static final int MAGIC = 0x50494458;
+	private static final int VERSION = 2;
+	private static final int MASSES = 0;
+	private static final int PROTEIN_IDS = 1;
+	private static final int OFFSETS = 2;
+	private static final int LENGTHS = 3;
+	private static final int PROTEIN_LIST_STARTS = 4;
+	private static final int PROTEIN_LIST = 5;
+	private static final int SEQUENCE_STARTS = 6;
+	private static final int SEQUENCES = 7;
+	private static final int DEFLINE_STARTS = 8;
+	private static final int DEFLINES = 9;
+	private static final int PARAMETERS = 10;
+	private static final int NUM_COLUMNS = 11;
+	private static final int HEADER_SIZE = 40 + NUM_COLUMNS * 16;
+
+	private final File file;
+	private final int numPeptides;
+	private final int numProteins;
+	private final MappedRegion[] columns = new MappedRegion[NUM_COLUMNS];
+
+	private MappedDBIndex(DBIndexSearchParams params, File file) throws IOException {
+		super(params);
+		this.file = file;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = readHeader(channel, file);
+			header.getLong();
+			header.getLong();
+			numPeptides = (int) header.getLong();
+			numProteins = header.getInt();
+			header.getInt();
+			for (int column = 0; column < NUM_COLUMNS; column++) {
+				final long offset = header.getLong();
+				final long length = header.getLong();
+				if (offset + length > channel.size()) {
+					throw new IOException("Index file " + file.getAbsolutePath() + " is truncated");
+				}
+				columns[column] = new MappedRegion(channel, offset, length);
+			}
+		} finally {
+			// the mapped regions remain valid after closing the channel
+			raf.close();
+		}
+	}
+
+	private static ByteBuffer readHeader(FileChannel channel, File file) throws IOException {
+		final ByteBuffer ret = ByteBuffer.allocate(HEADER_SIZE);
+		while (ret.hasRemaining()) {
+			if (channel.read(ret, ret.position()) < 0) {
+				throw new IOException("Unexpected end of index file " + file.getAbsolutePath());
+			}
+		}
+		ret.flip();
+		if (ret.getInt() != MAGIC || ret.getInt() != VERSION) {
+			throw new IOException(file.getAbsolutePath() + " is not a valid index file");
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param params
+	 * @return the file of the index for these parameters
+	 */
+	public static File getIndexFile(DBIndexSearchParams params) {
+		return new File(params.getFullIndexFileName(INDEX_FILE_SUFFIX, null, false, null, false, null));
+	}
+
+	/**
+	 * Maps the index file of the parameters, building it with all the available
+	 * cores if it doesn't exist or if it was built from another version of the
+	 * fasta file or with other digestion parameters
+	 *
+	 * @param params
+	 * @return
+	 * @throws DBIndexStoreException
+	 */
+	public static MappedDBIndex getInstance(DBIndexSearchParams params) throws DBIndexStoreException {
+		return getInstance(params, SystemCoreManager.getAvailableNumSystemCores());
+	}
+
+	/**
+	 * Maps the index file of the parameters, building it if it doesn't exist or
+	 * if it was built from another version of the fasta file or with other
+	 * digestion parameters
+	 *
+	 * @param params
+	 * @param numThreads number of threads digesting the proteins if the index
+	 *                   has to be built
+	 * @return
+	 * @throws DBIndexStoreException
+	 */
+	public static MappedDBIndex getInstance(DBIndexSearchParams params, int numThreads)
+			throws DBIndexStoreException {
+		final File indexFile = getIndexFile(params);
+		try {
+			if (!isUpToDate(indexFile, new File(params.getDatabaseName()),
+					ProteomeDigester.getDigestionParameters(params))) {
+				build(params, indexFile, numThreads);
+			}
+			return new MappedDBIndex(params, indexFile);
+		} catch (final IOException e) {
+			throw new DBIndexStoreException("Error opening index file " + indexFile.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * Whether an index file exists and was built from the current version of the
+	 * fasta file and with the same digestion parameters
+	 */
+	private static boolean isUpToDate(File indexFile, File fastaFile, String digestionParameters) {
+		if (!indexFile.exists()) {
+			return false;
+		}
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+			try {
+				final FileChannel channel = raf.getChannel();
+				final ByteBuffer header = readHeader(channel, indexFile);
+				if (header.getLong() != fastaFile.length() || header.getLong() != fastaFile.lastModified()) {
+					return false;
+				}
+				header.position(header.position() + 16 + PARAMETERS * 16);
+				final long offset = header.getLong();
+				final ByteBuffer parameters = ByteBuffer.allocate((int) header.getLong());
+				while (parameters.hasRemaining()) {
+					if (channel.read(parameters, offset + parameters.position()) < 0) {
+						throw new IOException("Index file " + indexFile.getAbsolutePath() + " is truncated");
+					}
+				}
+				if (!digestionParameters.equals(new String(parameters.array(), StandardCharsets.UTF_8))) {
+					log.info("Index file " + indexFile.getAbsolutePath() + " was built with other parameters");
+					return false;
+				}
+				return true;
+			} finally {
+				raf.close();
+			}
+		} catch (final IOException e) {
+			log.warn(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Temporary file of one of the columns while building the index, with a
+	 * unique name so that several processes can build the same index at the same
+	 * time
+	 */
+	private static class ColumnWriter {
+		private final File file;
+		private final DataOutputStream dos;
+
+		private ColumnWriter(File indexFile, int column) throws IOException {
+			file = File.createTempFile(indexFile.getName() + ".col" + column + "_", ".tmp",
+					indexFile.getAbsoluteFile().getParentFile());
+			file.deleteOnExit();
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+		}
+	}
+
+	/**
+	 * Digests the fasta file of the parameters and writes the index file.<br>
+	 * The build is not streamed: {@link ProteomeDigester} keeps in memory all the
+	 * protein sequences, as one byte per residue, and every occurrence of every
+	 * peptide in primitive arrays (a double and three ints, plus an int for its
+	 * sorted position, that is, about 24 bytes per occurrence, and 4 more while
+	 * it is sorted) until all of them are sorted and merged. Only the unique
+	 * peptides reported by the merge are written to the temporary files of the
+	 * columns, which are then concatenated in a temporary index file that
+	 * atomically replaces the index at the end, so other processes never map a
+	 * partially written index. All the temporary files have unique names, so if
+	 * several processes build the same index, the last one replaces the others.
+	 *
+	 * @param params
+	 * @param indexFile
+	 * @param numThreads number of threads digesting the proteins
+	 * @throws IOException
+	 */
+	public static void build(DBIndexSearchParams params, File indexFile, int numThreads) throws IOException {
+		final File fastaFile = new File(params.getDatabaseName());
+		final long fastaLength = fastaFile.length();
+		final long fastaLastModified = fastaFile.lastModified();
+		if (indexFile.getAbsoluteFile().getParentFile() != null) {
+			indexFile.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		final ProteomeDigester digester = new ProteomeDigester(params, numThreads);
+		digester.readProteins(params.getDatabaseName());
+		final ColumnWriter[] writers = new ColumnWriter[NUM_COLUMNS];
+		try {
+			for (int column = 0; column < NUM_COLUMNS; column++) {
+				writers[column] = new ColumnWriter(indexFile, column);
+			}
+			final long[] proteinListSize = new long[1];
+			final long numPeptides = digester.digest(new ProteomeDigester.UniquePeptideConsumer() {
+				@Override
+				public void accept(double mass, int proteinId, int offset, int length, int[] proteinIds,
+						int numProteins) throws IOException {
+					writers[MASSES].dos.writeDouble(mass);
+					writers[PROTEIN_IDS].dos.writeInt(proteinId);
+					writers[OFFSETS].dos.writeInt(offset);
+					writers[LENGTHS].dos.writeInt(length);
+					writers[PROTEIN_LIST_STARTS].dos.writeLong(proteinListSize[0]);
+					for (int i = 0; i < numProteins; i++) {
+						writers[PROTEIN_LIST].dos.writeInt(proteinIds[i]);
+					}
+					proteinListSize[0] += numProteins;
+				}
+			});
+			if (numPeptides > Integer.MAX_VALUE) {
+				throw new IOException("Too many peptides to index: " + numPeptides);
+			}
+			writers[PROTEIN_LIST_STARTS].dos.writeLong(proteinListSize[0]);
+			final List<byte[]> sequences = digester.getSequences();
+			final List<String> deflines = digester.getDeflines();
+			long sequenceStart = 0;
+			long deflineStart = 0;
+			for (int proteinId = 0; proteinId < sequences.size(); proteinId++) {
+				writers[SEQUENCE_STARTS].dos.writeLong(sequenceStart);
+				writers[SEQUENCES].dos.write(sequences.get(proteinId));
+				sequenceStart += sequences.get(proteinId).length;
+				final byte[] defline = deflines.get(proteinId).getBytes(StandardCharsets.UTF_8);
+				writers[DEFLINE_STARTS].dos.writeLong(deflineStart);
+				writers[DEFLINES].dos.write(defline);
+				deflineStart += defline.length;
+			}
+			writers[SEQUENCE_STARTS].dos.writeLong(sequenceStart);
+			writers[DEFLINE_STARTS].dos.writeLong(deflineStart);
+			writers[PARAMETERS].dos
+					.write(ProteomeDigester.getDigestionParameters(params).getBytes(StandardCharsets.UTF_8));
+			for (final ColumnWriter writer : writers) {
+				writer.dos.close();
+			}
+			writeIndexFile(indexFile, writers, fastaLength, fastaLastModified, numPeptides, sequences.size());
+			log.info("Index with " + numPeptides + " peptides written to " + indexFile.getAbsolutePath());
+		} finally {
+			for (final ColumnWriter writer : writers) {
+				if (writer != null) {
+					writer.dos.close();
+					writer.file.delete();
+				}
+			}
+		}
+	}
+
+	private static void writeIndexFile(File indexFile, ColumnWriter[] writers, long fastaLength,
+			long fastaLastModified, long numPeptides, int numProteins) throws IOException {
+		final File tmpFile = File.createTempFile(indexFile.getName(), ".tmp",
+				indexFile.getAbsoluteFile().getParentFile());
+		final RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(fastaLength);
+			header.putLong(fastaLastModified);
+			header.putLong(numPeptides);
+			header.putInt(numProteins);
+			header.putInt(0);
+			long position = HEADER_SIZE;
+			for (final ColumnWriter writer : writers) {
+				// columns aligned to 8 bytes
+				position = (position + 7) & ~7l;
+				final long length = writer.file.length();
+				header.putLong(position);
+				header.putLong(length);
+				final FileChannel columnChannel = new RandomAccessFile(writer.file, "r").getChannel();
+				try {
+					long transferred = 0;
+					while (transferred < length) {
+						transferred += columnChannel.transferTo(transferred, length - transferred, channel.position(
+								position + transferred));
+					}
+				} finally {
+					columnChannel.close();
+				}
+				position += length;
+			}
+			header.flip();
+			channel.write(header, 0);
+			channel.force(false);
+		} catch (final IOException e) {
+			raf.close();
+			tmpFile.delete();
+			throw e;
+		} finally {
+			raf.close();
+		}
+		try {
+			Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			tmpFile.delete();
+			throw new IOException("Index file " + indexFile.getAbsolutePath() + " could not be replaced", e);
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public int getNumPeptides() {
+		return numPeptides;
+	}
+
+	@Override
+	public int getNumProteins() {
+		return numProteins;
+	}
+
+	@Override
+	protected double getMass(int peptide) {
+		return columns[MASSES].getDouble(8l * peptide);
+	}
+
+	@Override
+	protected int getProteinId(int peptide) {
+		return columns[PROTEIN_IDS].getInt(4l * peptide);
+	}
+
+	@Override
+	protected int getOffset(int peptide) {
+		return columns[OFFSETS].getInt(4l * peptide);
+	}
+
+	@Override
+	protected int getLength(int peptide) {
+		return columns[LENGTHS].getInt(4l * peptide);
+	}
+
+	@Override
+	protected long getProteinListStart(int peptide) {
+		return columns[PROTEIN_LIST_STARTS].getLong(8l * peptide);
+	}
+
+	@Override
+	protected int getProteinListElement(long position) {
+		return columns[PROTEIN_LIST].getInt(4l * position);
+	}
+
+	@Override
+	protected int getProteinLength(int proteinId) {
+		return (int) (columns[SEQUENCE_STARTS].getLong(8l * (proteinId + 1))
+				- columns[SEQUENCE_STARTS].getLong(8l * proteinId));
+	}
+
+	@Override
+	protected byte getResidue(int proteinId, int position) {
+		return columns[SEQUENCES].getByte(columns[SEQUENCE_STARTS].getLong(8l * proteinId) + position);
+	}
+
+	@Override
+	protected String getDefline(int proteinId) {
+		final long start = columns[DEFLINE_STARTS].getLong(8l * proteinId);
+		final byte[] bytes = new byte[(int) (columns[DEFLINE_STARTS].getLong(8l * (proteinId + 1)) - start)];
+		columns[DEFLINES].getBytes(start, bytes, 0, bytes.length);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
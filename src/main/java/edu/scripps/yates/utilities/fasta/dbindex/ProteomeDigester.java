@@ -0,0 +1,495 @@
+package edu.scripps.yates.utilities.fasta.dbindex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.fasta.Fasta;
+import edu.scripps.yates.utilities.fasta.FastaReader;
+import edu.scripps.yates.utilities.masses.AssignMass;
+import edu.scripps.yates.utilities.masses.MassTable;
+import edu.scripps.yates.utilities.sequence.DigestionEngine;
+import edu.scripps.yates.utilities.sequence.DigestionEngine.PeptideConsumer;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Digests all the proteins of a fasta file in parallel, as described by a
+ * {@link DBIndexSearchParams}, and reports the unique peptide sequences sorted
+ * by mass.<br>
+ * Each thread digests blocks of proteins and keeps its peptides in primitive
+ * arrays, which are sorted by the same thread. The sorted runs of all the
+ * threads are then merged, collapsing the occurrences of the same sequence in
+ * different proteins.
+ *
+ * @author Salva
+ *
+ */
+class ProteomeDigester {
+	private static final Logger log = Logger.getLogger(ProteomeDigester.class);
+	private static final int PROTEINS_PER_BLOCK = 256;
+	private final DBIndexSearchParams params;
+	private final int numThreads;
+	private final double[] residueMasses;
+	private final boolean[] mandatoryInternalAAs;
+	private final int maxPeptideLength;
+	private final List<String> deflines = new ArrayList<String>();
+	private final List<byte[]> sequences = new ArrayList<byte[]>();
+
+	/**
+	 * Receives the unique peptides sorted by mass
+	 */
+	interface UniquePeptideConsumer {
+		/**
+		 *
+		 * @param mass
+		 * @param proteinId   protein of the first occurrence of the peptide
+		 * @param offset      position of the peptide in that protein
+		 * @param length
+		 * @param proteinIds  ids of all the proteins containing the peptide, sorted.
+		 *                    The array is reused, so it has to be copied.
+		 * @param numProteins number of valid positions in proteinIds
+		 * @throws IOException
+		 */
+		void accept(double mass, int proteinId, int offset, int length, int[] proteinIds, int numProteins)
+				throws IOException;
+	}
+
+	ProteomeDigester(DBIndexSearchParams params, int numThreads) {
+		this.params = params;
+		this.numThreads = numThreads;
+		residueMasses = getResidueMasses(params);
+		mandatoryInternalAAs = getMandatoryInternalAAs();
+		maxPeptideLength = getMaxPeptideLength();
+	}
+
+	List<String> getDeflines() {
+		return deflines;
+	}
+
+	List<byte[]> getSequences() {
+		return sequences;
+	}
+
+	/**
+	 * Masses of the residues used to index the peptides
+	 *
+	 * @param params
+	 * @return a copy of the table of masses of {@link MassTable}, mono-isotopic
+	 *         or average as set in the parameters
+	 */
+	static double[] getResidueMasses(DBIndexSearchParams params) {
+		return MassTable.getDefault(params.isUseMonoParent()).getResidueMasses();
+	}
+
+	/**
+	 * Mass of a peptide as it is indexed
+	 *
+	 * @param sequence
+	 * @param start
+	 * @param end
+	 * @return the mass or -1 if the peptide has a residue without mass
+	 */
+	static double getMass(byte[] sequence, int start, int end, double[] residueMasses, boolean h2oPlusProton) {
+		double ret = h2oPlusProton ? AssignMass.H2O_PROTON : 0.0;
+		for (int i = start; i < end; i++) {
+			final double mass = residueMasses[sequence[i] & 0xff];
+			if (mass <= 0.0) {
+				return -1;
+			}
+			ret += mass;
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads the proteins of the fasta file, discarding the decoys if a regular
+	 * expression for them is provided in the parameters
+	 *
+	 * @param fastaFileName
+	 * @throws IOException
+	 */
+	void readProteins(String fastaFileName) throws IOException {
+		Pattern decoyPattern = null;
+		if (params.getDiscardDecoyRegexp() != null && !"".equals(params.getDiscardDecoyRegexp())) {
+			decoyPattern = Pattern.compile(params.getDiscardDecoyRegexp());
+		}
+		final Iterator<Fasta> fastas = new FastaReader(fastaFileName).getFastas();
+		while (fastas.hasNext()) {
+			final Fasta fasta = fastas.next();
+			// the defline has to be read before reading the next fasta
+			final String defline = fasta.getDefline();
+			if (decoyPattern != null && decoyPattern.matcher(defline).find()) {
+				continue;
+			}
+			deflines.add(defline);
+			sequences.add(fasta.getSequenceAsBytes());
+		}
+		log.info(sequences.size() + " proteins read from " + fastaFileName);
+	}
+
+	/**
+	 * Residues after which the enzyme of the parameters cuts
+	 *
+	 * @param params
+	 * @return
+	 */
+	private static char[] getCleavableResidues(DBIndexSearchParams params) {
+		char[] cleavables = params.getEnzymeArr();
+		if (cleavables == null && params.getEnzyme() != null) {
+			final boolean[] enzymeArr = params.getEnzyme().getEnzymeArr();
+			final StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < enzymeArr.length; i++) {
+				if (enzymeArr[i]) {
+					sb.append((char) i);
+				}
+			}
+			cleavables = sb.toString().toCharArray();
+		}
+		if (cleavables == null && params.getEnzymeResidues() != null) {
+			cleavables = params.getEnzymeResidues().toCharArray();
+		}
+		return cleavables;
+	}
+
+	private DigestionEngine getDigestionEngine() {
+		final String noCut = params.getEnzymeNocutResidues();
+		return new DigestionEngine(getCleavableResidues(params), noCut == null ? null : noCut.toCharArray(), true,
+				params.getMaxMissedCleavages());
+	}
+
+	private static boolean isSemiCleavage(DBIndexSearchParams params) {
+		return params.isSemiCleavage() || (params.getEnzyme() != null && params.getEnzyme().isSemiCleave());
+	}
+
+	private boolean isSemiCleavage() {
+		return isSemiCleavage(params);
+	}
+
+	/**
+	 * Description of the parameters that determine which peptides are digested
+	 * from a fasta file, and their masses, so that an index built with other
+	 * parameters can be detected. The {@link PeptideFilter} is not included,
+	 * since it cannot be described.
+	 *
+	 * @param params
+	 * @return
+	 */
+	static String getDigestionParameters(DBIndexSearchParams params) {
+		final char[] cleavables = getCleavableResidues(params);
+		final char[] mandatoryInternalAAs = params.getMandatoryInternalAAs();
+		return "enzyme=" + (cleavables == null ? "" : new String(cleavables)) + ";nocut="
+				+ params.getEnzymeNocutResidues() + ";missedCleavages=" + params.getMaxMissedCleavages() + ";semi="
+				+ isSemiCleavage(params) + ";minMass=" + params.getMinPrecursorMass() + ";maxMass="
+				+ params.getMaxPrecursorMass() + ";mono=" + params.isUseMonoParent() + ";h2oPlusProton="
+				+ params.isH2OPlusProtonAdded() + ";mandatory="
+				+ (mandatoryInternalAAs == null ? "" : new String(mandatoryInternalAAs)) + ";decoys="
+				+ params.getDiscardDecoyRegexp();
+	}
+
+	/**
+	 * Maximum length of a peptide under the maximum mass
+	 */
+	private int getMaxPeptideLength() {
+		if (params.getMaxPrecursorMass() <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		double minResidueMass = Double.MAX_VALUE;
+		for (final double mass : residueMasses) {
+			if (mass > 0.0) {
+				minResidueMass = Math.min(minResidueMass, mass);
+			}
+		}
+		return (int) (params.getMaxPrecursorMass() / minResidueMass) + 1;
+	}
+
+	/**
+	 * Digests the proteins previously read and reports the unique peptides
+	 * sorted by mass and then by sequence
+	 *
+	 * @param consumer
+	 * @return the number of unique peptides
+	 * @throws IOException
+	 */
+	long digest(UniquePeptideConsumer consumer) throws IOException {
+		final long t1 = System.currentTimeMillis();
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		final List<Run> runs = new ArrayList<Run>();
+		try {
+			final DigestionEngine engine = getDigestionEngine();
+			final AtomicInteger nextBlock = new AtomicInteger(0);
+			final List<Future<Run>> futures = new ArrayList<Future<Run>>();
+			for (int i = 0; i < numThreads; i++) {
+				futures.add(executor.submit(new Callable<Run>() {
+					@Override
+					public Run call() throws Exception {
+						final Run run = new Run();
+						int block;
+						while ((block = nextBlock.getAndIncrement()) * PROTEINS_PER_BLOCK < sequences.size()) {
+							final int last = Math.min(sequences.size(), (block + 1) * PROTEINS_PER_BLOCK);
+							for (int proteinId = block * PROTEINS_PER_BLOCK; proteinId < last; proteinId++) {
+								digest(engine, proteinId, run);
+							}
+						}
+						run.sort();
+						return run;
+					}
+				}));
+			}
+			for (final Future<Run> future : futures) {
+				runs.add(getResult(future));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		final long ret = merge(runs, consumer);
+		log.info(ret + " unique peptides indexed from " + sequences.size() + " proteins in "
+				+ (System.currentTimeMillis() - t1) + "ms using " + numThreads + " threads");
+		return ret;
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			throw new IOException("Digestion interrupted", e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private void digest(DigestionEngine engine, final int proteinId, final Run run) {
+		final byte[] sequence = sequences.get(proteinId);
+		final double minMass = params.getMinPrecursorMass();
+		final double maxMass = params.getMaxPrecursorMass() > 0 ? params.getMaxPrecursorMass() : Double.MAX_VALUE;
+		final boolean h2oPlusProton = params.isH2OPlusProtonAdded();
+		final PeptideFilter peptideFilter = params.getPeptideFilter();
+		final PeptideConsumer peptideConsumer = new PeptideConsumer() {
+			@Override
+			public void accept(int start, int end, int missedCleavages) {
+				final double mass = getMass(sequence, start, end, residueMasses, h2oPlusProton);
+				if (mass < minMass || mass > maxMass) {
+					return;
+				}
+				if (mandatoryInternalAAs != null && !containsAny(sequence, start, end, mandatoryInternalAAs)) {
+					return;
+				}
+				if (peptideFilter != null
+						&& !peptideFilter.isValid(new String(sequence, start, end - start, StandardCharsets.US_ASCII))) {
+					return;
+				}
+				run.add(mass, proteinId, start, end - start);
+			}
+		};
+		if (isSemiCleavage()) {
+			engine.digestSemiSpecific(sequence, sequence.length, 1, maxPeptideLength, peptideConsumer);
+		} else {
+			engine.digest(sequence, sequence.length, 1, maxPeptideLength, peptideConsumer);
+		}
+	}
+
+	private boolean[] getMandatoryInternalAAs() {
+		final char[] aas = params.getMandatoryInternalAAs();
+		if (aas == null || aas.length == 0) {
+			return null;
+		}
+		final boolean[] ret = new boolean[DigestionEngine.SIZE];
+		for (final char aa : aas) {
+			if (aa < DigestionEngine.SIZE) {
+				ret[aa] = true;
+			}
+		}
+		return ret;
+	}
+
+	private static boolean containsAny(byte[] sequence, int start, int end, boolean[] residues) {
+		for (int i = start; i < end; i++) {
+			if (residues[sequence[i] & 0xff]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares two peptides by mass, sequence, protein and offset
+	 */
+	private int compare(double mass1, int protein1, int offset1, int length1, double mass2, int protein2,
+			int offset2, int length2) {
+		final int ret = Double.compare(mass1, mass2);
+		if (ret != 0) {
+			return ret;
+		}
+		final int sequenceComparison = compareSequences(sequences.get(protein1), offset1, length1,
+				sequences.get(protein2), offset2, length2);
+		if (sequenceComparison != 0) {
+			return sequenceComparison;
+		}
+		if (protein1 != protein2) {
+			return Integer.compare(protein1, protein2);
+		}
+		return Integer.compare(offset1, offset2);
+	}
+
+	static int compareSequences(byte[] sequence1, int offset1, int length1, byte[] sequence2, int offset2,
+			int length2) {
+		final int length = Math.min(length1, length2);
+		for (int i = 0; i < length; i++) {
+			final int ret = (sequence1[offset1 + i] & 0xff) - (sequence2[offset2 + i] & 0xff);
+			if (ret != 0) {
+				return ret;
+			}
+		}
+		return length1 - length2;
+	}
+
+	/**
+	 * Peptides digested by one thread
+	 */
+	private class Run {
+		private final TDoubleArrayList masses = new TDoubleArrayList();
+		private final TIntArrayList proteins = new TIntArrayList();
+		private final TIntArrayList offsets = new TIntArrayList();
+		private final TIntArrayList lengths = new TIntArrayList();
+		private int[] order;
+		// position in order while merging
+		private int position = 0;
+
+		private void add(double mass, int protein, int offset, int length) {
+			masses.add(mass);
+			proteins.add(protein);
+			offsets.add(offset);
+			lengths.add(length);
+		}
+
+		private int compare(int i, int j) {
+			return ProteomeDigester.this.compare(masses.getQuick(i), proteins.getQuick(i), offsets.getQuick(i),
+					lengths.getQuick(i), masses.getQuick(j), proteins.getQuick(j), offsets.getQuick(j),
+					lengths.getQuick(j));
+		}
+
+		/**
+		 * Bottom-up merge sort of the positions of the peptides
+		 */
+		private void sort() {
+			final int size = masses.size();
+			int[] from = new int[size];
+			int[] to = new int[size];
+			for (int i = 0; i < size; i++) {
+				from[i] = i;
+			}
+			for (int width = 1; width < size; width *= 2) {
+				for (int low = 0; low < size; low += 2 * width) {
+					final int middle = Math.min(low + width, size);
+					final int high = Math.min(low + 2 * width, size);
+					int i = low;
+					int j = middle;
+					for (int k = low; k < high; k++) {
+						if (i < middle && (j >= high || compare(from[i], from[j]) <= 0)) {
+							to[k] = from[i++];
+						} else {
+							to[k] = from[j++];
+						}
+					}
+				}
+				final int[] tmp = from;
+				from = to;
+				to = tmp;
+			}
+			order = from;
+		}
+
+		private boolean hasCurrent() {
+			return position < order.length;
+		}
+
+		private int current() {
+			return order[position];
+		}
+	}
+
+	private int compareCurrent(Run run1, Run run2) {
+		final int i = run1.current();
+		final int j = run2.current();
+		return compare(run1.masses.getQuick(i), run1.proteins.getQuick(i), run1.offsets.getQuick(i),
+				run1.lengths.getQuick(i), run2.masses.getQuick(j), run2.proteins.getQuick(j),
+				run2.offsets.getQuick(j), run2.lengths.getQuick(j));
+	}
+
+	/**
+	 * Merges the sorted runs, reporting each sequence once with all its proteins
+	 */
+	private long merge(List<Run> runs, UniquePeptideConsumer consumer) throws IOException {
+		final PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()),
+				(run1, run2) -> compareCurrent(run1, run2));
+		for (final Run run : runs) {
+			if (run.hasCurrent()) {
+				queue.add(run);
+			}
+		}
+		long ret = 0;
+		int[] proteinIds = new int[16];
+		int numProteins = 0;
+		double mass = 0.0;
+		int protein = -1;
+		int offset = 0;
+		int length = 0;
+		while (!queue.isEmpty()) {
+			final Run run = queue.poll();
+			final int i = run.current();
+			final double currentMass = run.masses.getQuick(i);
+			final int currentProtein = run.proteins.getQuick(i);
+			final int currentOffset = run.offsets.getQuick(i);
+			final int currentLength = run.lengths.getQuick(i);
+			if (protein >= 0 && mass == currentMass && compareSequences(sequences.get(protein), offset, length,
+					sequences.get(currentProtein), currentOffset, currentLength) == 0) {
+				// another occurrence of the same sequence
+				if (proteinIds[numProteins - 1] != currentProtein) {
+					if (numProteins == proteinIds.length) {
+						final int[] tmp = new int[proteinIds.length * 2];
+						System.arraycopy(proteinIds, 0, tmp, 0, numProteins);
+						proteinIds = tmp;
+					}
+					proteinIds[numProteins++] = currentProtein;
+				}
+			} else {
+				if (protein >= 0) {
+					consumer.accept(mass, protein, offset, length, proteinIds, numProteins);
+					ret++;
+				}
+				mass = currentMass;
+				protein = currentProtein;
+				offset = currentOffset;
+				length = currentLength;
+				proteinIds[0] = currentProtein;
+				numProteins = 1;
+			}
+			run.position++;
+			if (run.hasCurrent()) {
+				queue.add(run);
+			}
+		}
+		if (protein >= 0) {
+			consumer.accept(mass, protein, offset, length, proteinIds, numProteins);
+			ret++;
+		}
+		// release the memory of the runs
+		runs.clear();
+		return ret;
+	}
+}
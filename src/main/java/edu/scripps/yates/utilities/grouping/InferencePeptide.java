@@ -9,6 +9,10 @@ public class InferencePeptide {
 	private PeptideRelation relation;
 	private final String id;
 	private final String sequence;
+	// position in which it was created by the PAnalyzer
+	private int index;
+	// position in the connected component being grouped by the PAnalyzer
+	private int position;
 
 	public InferencePeptide(GroupablePeptide pept) {
 		this(pept, PeptideRelation.NONDISCRIMINATING);
@@ -84,4 +88,20 @@ public class InferencePeptide {
 	private String getSequence() {
 		return sequence;
 	}
+
+	int getIndex() {
+		return index;
+	}
+
+	void setIndex(int index) {
+		this.index = index;
+	}
+
+	int getPosition() {
+		return position;
+	}
+
+	void setPosition(int position) {
+		this.position = position;
+	}
 }
@@ -10,6 +10,10 @@ public class InferenceProtein {
 	private ProteinEvidence evidence;
 	private ProteinGroupInference group;
 	private final String accession;
+	// position in which it was created by the PAnalyzer
+	private int index;
+	// position in the connected component being grouped by the PAnalyzer
+	private int position;
 
 	public InferenceProtein(GroupableProtein prot) {
 		this(prot, ProteinEvidence.NONCONCLUSIVE);
@@ -76,4 +80,19 @@ public class InferenceProtein {
 		}
 	}
 
+	int getIndex() {
+		return index;
+	}
+
+	void setIndex(int index) {
+		this.index = index;
+	}
+
+	int getPosition() {
+		return position;
+	}
+
+	void setPosition(int position) {
+		this.position = position;
+	}
 }
@@ -1,37 +1,72 @@
 package edu.scripps.yates.utilities.grouping;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.log4j.Logger;
 
+import edu.scripps.yates.utilities.cores.SystemCoreManager;
 import edu.scripps.yates.utilities.dates.DatesUtil;
 import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
 import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TLongHashSet;
 
 /**
- * 
+ * Protein inference. The relations between proteins and peptides are kept as
+ * integer adjacency arrays (CSR) while grouping, so that each step is linear in
+ * the number of protein-peptide relations, and the groups are merged with a
+ * union-find. The groups, their order and the order of their proteins are the
+ * same than the ones of the original algorithm.<br>
+ * The proteins that do not share peptides, directly or through other proteins,
+ * never end up in the same group, so the graph can be split in connected
+ * components that are grouped independently. {@link #run(Collection, int)}
+ * groups the components in parallel in a fork-join pool and merges their
+ * groups in the same order than {@link #run(Collection)}.<br>
+ * Once grouped, proteins can be added or removed with
+ * {@link #update(Collection, Collection)}, which only groups again the
+ * components affected by them.
+ *
  * @author gorka
  */
 public class PAnalyzer {
 	private static final Logger log = Logger.getLogger("log4j.logger.org.proteored");
+	// minimum number of protein-peptide relations to group components in
+	// different tasks
+	private static final int MIN_RELATIONS_PER_TASK = 10000;
 
 	private final Map<String, InferenceProtein> mProts;
 	private final Map<String, InferencePeptide> mPepts;
-	private final List<ProteinGroupInference> mGroups;
+	// groups by the accession of their first protein, in order of creation
+	private final Map<String, ProteinGroupInference> mGroups;
+	// groups returned for the ones in mGroups, by the same key
+	private final Map<String, ProteinGroup> mProteinGroups;
+	// number of times that each protein-peptide relation has been added, by
+	// the indexes of the protein and of the peptide
+	private final TLongIntHashMap mRelations;
+	private int numCreatedProts = 0;
+	private int numCreatedPepts = 0;
 	private PanalyzerStats mStats;
 	private final boolean separateNonConclusiveProteins;
+	// proteins by uniqueID when they are not ignored, being the first one the
+	// one that is grouped and the rest the ones with the same uniqueID that
+	// were added after it
+	private final Map<String, List<GroupableProtein>> mProteinsByUniqueID;
 
 	private final boolean ignoreProteinIDs;
 
 	/**
 	 * Constructor ignoring protein ids (allowing proteins with the same uniqueID
 	 * that could be its key, its accession) to be processed.
-	 * 
+	 *
 	 * @param separateNonConclusiveProteins
 	 */
 	public PAnalyzer(boolean separateNonConclusiveProteins) {
@@ -39,7 +74,7 @@ public class PAnalyzer {
 	}
 
 	/**
-	 * 
+	 *
 	 * @param separateNonConclusiveProteins
 	 * @param ignoreProteinIDs              this should be true if we have proteins
 	 *                                      which unique ID is its key, which is its
@@ -49,41 +84,97 @@ public class PAnalyzer {
 	public PAnalyzer(boolean separateNonConclusiveProteins, boolean ignoreProteinIDs) {
 		mProts = new THashMap<String, InferenceProtein>();
 		mPepts = new THashMap<String, InferencePeptide>();
-		mGroups = new ArrayList<ProteinGroupInference>();
+		mGroups = new LinkedHashMap<String, ProteinGroupInference>();
+		mProteinGroups = new THashMap<String, ProteinGroup>();
+		mRelations = new TLongIntHashMap();
+		mProteinsByUniqueID = new THashMap<String, List<GroupableProtein>>();
 		this.separateNonConclusiveProteins = separateNonConclusiveProteins;
 		this.ignoreProteinIDs = ignoreProteinIDs;
 	}
 
+	/**
+	 * Groups the proteins. If it is called more than once, the proteins are
+	 * added to the ones of the previous calls and all of them are grouped again.
+	 *
+	 * @param proteins
+	 * @return
+	 */
 	public List<ProteinGroup> run(Collection<GroupableProtein> proteins) {
+		return run(proteins, 1);
+	}
+
+	/**
+	 * Groups the proteins using all the available cores
+	 *
+	 * @param proteins
+	 * @return
+	 * @see #run(Collection, int)
+	 */
+	public List<ProteinGroup> runInParallel(Collection<GroupableProtein> proteins) {
+		return run(proteins, SystemCoreManager.getAvailableNumSystemCores());
+	}
+
+	/**
+	 * Groups the proteins, splitting them in connected components that are
+	 * grouped in parallel. The groups are the same and in the same order than
+	 * the ones of {@link #run(Collection)}.
+	 *
+	 * @param proteins
+	 * @param numThreads if it is 1, the proteins are grouped in the calling
+	 *                   thread without splitting them
+	 * @return
+	 */
+	public List<ProteinGroup> run(Collection<GroupableProtein> proteins, int numThreads) {
 		final long t1 = System.currentTimeMillis();
 		log.info("Grouping " + proteins.size() + " proteins");
-		createInferenceMaps(proteins);
+		createInferenceMaps(proteins, null, null);
 		log.debug("Running panalyzer for " + mProts.size() + " proteins and " + mPepts.size() + " peptides");
+		final InferenceProtein[] prots = mProts.values().toArray(new InferenceProtein[mProts.size()]);
+		final InferencePeptide[] pepts = mPepts.values().toArray(new InferencePeptide[mPepts.size()]);
+		// start again from scratch if there was a previous run
+		mGroups.clear();
+		mProteinGroups.clear();
+		mStats = null;
+		for (final InferenceProtein prot : prots) {
+			reset(prot);
+		}
 
-		// long t2 = System.currentTimeMillis();
-		log.debug("Classifying peptides");
-		classifyPeptides();
-		// long t3 = System.currentTimeMillis();
-		log.debug("Classifying proteins");
-		classifyProteins();
-		// long t4 = System.currentTimeMillis();
-		log.debug("creating groups");
-		createGroups();
-		// long t5 = System.currentTimeMillis();
-		log.debug("marking indistinguibles");
-		markIndistinguishable();
-		// long t6 = System.currentTimeMillis();
-
-		if (!separateNonConclusiveProteins) {
-			log.info("Returning " + mGroups.size() + " protein groups from " + proteins.size() + " proteins, in "
-					+ DatesUtil.getDescriptiveTimeFromMillisecs(System.currentTimeMillis() - t1));
-			log.info("Collapsing Non conclusive groups");
-			collapseNonConclusiveGroups();
-
+		final List<ProteinGroupInference> groups;
+		if (numThreads > 1) {
+			final List<Component> components = getComponents(prots, pepts);
+			log.debug("Grouping " + components.size() + " connected components in " + numThreads + " threads");
+			@SuppressWarnings("unchecked")
+			final List<ProteinGroupInference>[] componentGroups = new List[components.size()];
+			final ForkJoinPool pool = new ForkJoinPool(numThreads);
+			try {
+				pool.invoke(new ComponentsTask(components, componentGroups, 0, components.size()));
+			} finally {
+				pool.shutdown();
+			}
+			// the groups in the order in which they would have been created
+			// from all the proteins, which is the order of their first protein
+			final ProteinGroupInference[] groupsByFirstProtein = new ProteinGroupInference[prots.length];
+			for (int c = 0; c < components.size(); c++) {
+				final int[] positions = components.get(c).runPositions;
+				for (final ProteinGroupInference group : componentGroups[c]) {
+					groupsByFirstProtein[positions[group.get(0).getPosition()]] = group;
+				}
+			}
+			groups = new ArrayList<ProteinGroupInference>();
+			for (final ProteinGroupInference group : groupsByFirstProtein) {
+				if (group != null) {
+					groups.add(group);
+				}
+			}
+		} else {
+			groups = group(new Component(prots, pepts));
+		}
+		for (final ProteinGroupInference group : groups) {
+			mGroups.put(group.get(0).getAccession(), group);
 		}
 
 		log.debug("Extracting groups...");
-		final ArrayList<ProteinGroup> resultingGroups = extractProteinGroups();
+		final List<ProteinGroup> resultingGroups = extractProteinGroups(groups);
 		// long t7 = System.currentTimeMillis();
 
 		// SorterUtil.sortProteinGroupsByAccession(resultingGroups);
@@ -101,117 +192,522 @@ public class PAnalyzer {
 		return resultingGroups;
 	}
 
-	private void collapseNonConclusiveGroups() {
-		final Iterator<ProteinGroupInference> iterator = mGroups.iterator();
-		while (iterator.hasNext()) {
-			final ProteinGroupInference proteinGroup = iterator.next();
-			InferenceProtein protein = proteinGroup.get(0);
+	/**
+	 * Adds and removes proteins, grouping again only the connected components
+	 * that contain some of them, so that it takes time in proportion to the
+	 * size of these components and not to the number of proteins already
+	 * grouped. The groups are the same than the ones of grouping all the
+	 * proteins with {@link #run(Collection)}, although the groups and their
+	 * proteins may be in a different order.<br>
+	 * The proteins to remove have to be the same objects that were added, with
+	 * the same peptides. If the protein IDs are not ignored and a protein with
+	 * the same uniqueID than a removed one was added after it, that one takes its
+	 * place.
+	 *
+	 * @param addedProteins   proteins to add, or null
+	 * @param removedProteins proteins to remove, or null
+	 * @return the groups that replace the ones of the affected components, and
+	 *         the stats of all the groups
+	 */
+	public PAnalyzerUpdate update(Collection<GroupableProtein> addedProteins,
+			Collection<GroupableProtein> removedProteins) {
+		final long t1 = System.currentTimeMillis();
+		final Set<InferenceProtein> touchedProts = new THashSet<InferenceProtein>();
+		final Set<InferencePeptide> touchedPepts = new THashSet<InferencePeptide>();
+		final List<ProteinGroup> removedGroups = new ArrayList<ProteinGroup>();
+		if (removedProteins != null) {
+			removeFromInferenceMaps(removedProteins, touchedProts, touchedPepts, removedGroups);
+		}
+		if (addedProteins != null) {
+			createInferenceMaps(addedProteins, touchedProts, touchedPepts);
+		}
+		for (final InferencePeptide pept : touchedPepts) {
+			touchedProts.addAll(pept.getInferenceProteins());
+		}
+		final List<Component> components = getComponents(touchedProts);
+		// the groups of all the affected proteins are created again
+		for (final Component component : components) {
+			for (final InferenceProtein prot : component.prots) {
+				removeGroup(prot.getAccession(), removedGroups);
+				reset(prot);
+			}
+		}
+		final List<ProteinGroupInference> groups = new ArrayList<ProteinGroupInference>();
+		for (final Component component : components) {
+			groups.addAll(group(component));
+		}
+		for (final ProteinGroupInference group : groups) {
+			mGroups.put(group.get(0).getAccession(), group);
+			if (mStats != null) {
+				mStats.addGroup(group, 1);
+			}
+		}
+		final List<ProteinGroup> addedGroups = extractProteinGroups(groups);
+		log.info("Updated " + components.size() + " connected components with " + touchedProts.size()
+				+ " proteins, replacing " + removedGroups.size() + " protein groups by " + addedGroups.size() + " in "
+				+ DatesUtil.getDescriptiveTimeFromMillisecs(System.currentTimeMillis() - t1));
+		// a copy, since the stats of the analyzer change with the next update
+		return new PAnalyzerUpdate(addedGroups, removedGroups, new PanalyzerStats(getStats()));
+	}
 
-			if (proteinGroup.getEvidence() == ProteinEvidence.NONCONCLUSIVE) {
-				protein = proteinGroup.get(0);
-				// non conclusive groups only have one protein at index = 0
-				final int proteinHashCode = protein.hashCode();
-				final List<InferencePeptide> peptides = protein.getInferencePeptides();
-				for (final InferencePeptide peptide : peptides) {
-					if (peptide.getRelation() == PeptideRelation.NONDISCRIMINATING) {
-						final List<InferenceProtein> proteinsSharingThisPeptide = peptide.getInferenceProteins();
-						for (final InferenceProtein proteinSharingThisPeptide : proteinsSharingThisPeptide) {
-							if (proteinSharingThisPeptide.hashCode() != proteinHashCode) {
-								if (!proteinSharingThisPeptide.getGroup().contains(protein))
-									proteinSharingThisPeptide.getGroup().add(protein);
-								// protein.setEvidence(proteinSharingThisPeptide
-								// .getGroup().getEvidence());
+	/**
+	 *
+	 * @return all the current groups
+	 */
+	public List<ProteinGroup> getProteinGroups() {
+		final List<ProteinGroup> ret = new ArrayList<ProteinGroup>();
+		for (final String key : mGroups.keySet()) {
+			ret.add(mProteinGroups.get(key));
+		}
+		return ret;
+	}
 
-							}
-						}
-					}
-				}
-				iterator.remove();
+	private void removeGroup(String firstAccession, List<ProteinGroup> removedGroups) {
+		final ProteinGroupInference group = mGroups.remove(firstAccession);
+		if (group != null) {
+			if (mStats != null) {
+				mStats.addGroup(group, -1);
 			}
+			removedGroups.add(mProteinGroups.remove(firstAccession));
 		}
+	}
 
+	private static void reset(InferenceProtein prot) {
+		prot.setGroup(null);
+		if (prot.getEvidence() != ProteinEvidence.NONCONCLUSIVE) {
+			prot.setEvidence(ProteinEvidence.NONCONCLUSIVE);
+		}
 	}
 
-	private ArrayList<ProteinGroup> extractProteinGroups() {
-		final ArrayList<ProteinGroup> ret = new ArrayList<ProteinGroup>();
+	private List<ProteinGroup> extractProteinGroups(List<ProteinGroupInference> groups) {
+		final List<ProteinGroup> ret = new ArrayList<ProteinGroup>();
 
-		for (final ProteinGroupInference iProteinGroup : mGroups) {
+		for (final ProteinGroupInference iProteinGroup : groups) {
 			final ProteinGroup pg = new ProteinGroup(iProteinGroup);
+			mProteinGroups.put(iProteinGroup.get(0).getAccession(), pg);
 			ret.add(pg);
 		}
 
 		return ret;
 	}
 
-	private void createInferenceMaps(Collection<GroupableProtein> proteins) {
-		InferenceProtein iProt = null;
-		InferencePeptide iPept = null;
-		final THashSet<String> proteinIds = new THashSet<String>();
+	/**
+	 * Adds the proteins to the inference maps. If the protein IDs are not
+	 * ignored, only the first protein of each uniqueID, considering also the ones
+	 * of the previous calls, is added.
+	 *
+	 * @param proteins
+	 * @param touchedProts if not null, the inference proteins of the proteins are
+	 *                     added to it
+	 * @param touchedPepts if not null, the inference peptides of the peptides of
+	 *                     the proteins are added to it
+	 */
+	private void createInferenceMaps(Collection<GroupableProtein> proteins, Set<InferenceProtein> touchedProts,
+			Set<InferencePeptide> touchedPepts) {
 		boolean someProteinwithoutPeptides = false;
-		final THashMap<String, String> accs = new THashMap<String, String>();
 		for (final GroupableProtein prot : proteins) {
-			if (ignoreProteinIDs || !proteinIds.contains(prot.getUniqueID())) {
-				accs.put(prot.getUniqueID(), prot.getAccession());
-				proteinIds.add(prot.getUniqueID());
-				iProt = mProts.get(prot.getAccession());
-				if (iProt == null) {
-					iProt = new InferenceProtein(prot);
-					mProts.put(iProt.getAccession(), iProt);
-				} else {
-					// merge in a common inference protein
-					iProt.addProtein(prot);
-				}
-
-				final List<GroupablePeptide> peptides = prot.getGroupablePeptides();
-				if (peptides != null && !peptides.isEmpty()) {
-					for (final GroupablePeptide pept : peptides) {
-						iPept = mPepts.get(pept.getSequence());
-						if (iPept == null) {
-							iPept = new InferencePeptide(pept);
-							mPepts.put(pept.getSequence(), iPept);
-						} else {
-							// merge in a common inference peptide
-							iPept.addPeptide(pept);
-						}
-						if (!iPept.getInferenceProteins().contains(iProt)) {
-							iPept.getInferenceProteins().add(iProt);
-						}
-						if (!iProt.getInferencePeptides().contains(iPept)) {
-							iProt.getInferencePeptides().add(iPept);
-						}
-					}
-				} else {
-					// log.warn(prot.getDBId() + " no tiene peptidos!");
-					someProteinwithoutPeptides = true;
+			if (!ignoreProteinIDs) {
+				List<GroupableProtein> sameIDProteins = mProteinsByUniqueID.get(prot.getUniqueID());
+				if (sameIDProteins == null) {
+					sameIDProteins = new ArrayList<GroupableProtein>();
+					mProteinsByUniqueID.put(prot.getUniqueID(), sameIDProteins);
 				}
-			} else {
-				log.warn("This protein is already taken ");
-				if (accs.containsKey(prot.getUniqueID())) {
+				sameIDProteins.add(prot);
+				if (sameIDProteins.size() > 1) {
+					log.warn("This protein is already taken ");
 					log.info("Protein " + prot.getAccession() + "\t" + prot.getUniqueID());
-					log.info("Protein " + accs.get(prot.getUniqueID()));
+					log.info("Protein " + sameIDProteins.get(0).getAccession());
+					continue;
 				}
 			}
+			if (!addToInferenceMaps(prot, touchedProts, touchedPepts)) {
+				someProteinwithoutPeptides = true;
+			}
 		}
 		if (someProteinwithoutPeptides)
 			log.warn("some protein without peptides!!!!!");
 
 	}
 
-	private void classifyPeptides() {
+	/**
+	 *
+	 * @param prot
+	 * @param touchedProts
+	 * @param touchedPepts
+	 * @return false if the protein has no peptides
+	 */
+	private boolean addToInferenceMaps(GroupableProtein prot, Set<InferenceProtein> touchedProts,
+			Set<InferencePeptide> touchedPepts) {
+		InferenceProtein iProt = mProts.get(prot.getAccession());
+		if (iProt == null) {
+			iProt = new InferenceProtein(prot);
+			iProt.setIndex(numCreatedProts++);
+			mProts.put(iProt.getAccession(), iProt);
+		} else {
+			// merge in a common inference protein
+			iProt.addProtein(prot);
+		}
+		if (touchedProts != null) {
+			touchedProts.add(iProt);
+		}
+
+		final List<GroupablePeptide> peptides = prot.getGroupablePeptides();
+		if (peptides == null || peptides.isEmpty()) {
+			// log.warn(prot.getDBId() + " no tiene peptidos!");
+			return false;
+		}
+		for (final GroupablePeptide pept : peptides) {
+			InferencePeptide iPept = mPepts.get(pept.getSequence());
+			if (iPept == null) {
+				iPept = new InferencePeptide(pept);
+				iPept.setIndex(numCreatedPepts++);
+				mPepts.put(pept.getSequence(), iPept);
+			} else {
+				// merge in a common inference peptide
+				iPept.addPeptide(pept);
+			}
+			if (touchedPepts != null) {
+				touchedPepts.add(iPept);
+			}
+			if (mRelations.adjustOrPutValue(getKey(iProt.getIndex(), iPept.getIndex()), 1, 1) == 1) {
+				iPept.getInferenceProteins().add(iProt);
+				iProt.getInferencePeptides().add(iPept);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes the proteins and their peptides from the inference maps, removing
+	 * the inference proteins, peptides and relations that are left without any
+	 * protein or peptide
+	 *
+	 * @param proteins
+	 * @param touchedProts  the inference proteins that are not removed are added
+	 *                      to it
+	 * @param touchedPepts  the inference peptides that are not removed are added
+	 *                      to it
+	 * @param removedGroups the groups of the removed inference proteins are added
+	 *                      to it
+	 */
+	private void removeFromInferenceMaps(Collection<GroupableProtein> proteins, Set<InferenceProtein> touchedProts,
+			Set<InferencePeptide> touchedPepts, List<ProteinGroup> removedGroups) {
+		for (final GroupableProtein prot : proteins) {
+			GroupableProtein replacement = null;
+			if (!ignoreProteinIDs) {
+				final List<GroupableProtein> sameIDProteins = mProteinsByUniqueID.get(prot.getUniqueID());
+				final int index = sameIDProteins != null ? sameIDProteins.indexOf(prot) : -1;
+				if (index < 0) {
+					log.warn("Protein " + prot.getAccession() + " cannot be removed because it was not added");
+					continue;
+				}
+				sameIDProteins.remove(index);
+				if (sameIDProteins.isEmpty()) {
+					mProteinsByUniqueID.remove(prot.getUniqueID());
+				} else if (index == 0) {
+					replacement = sameIDProteins.get(0);
+				}
+				if (index > 0) {
+					// it was not in the inference maps
+					continue;
+				}
+			}
+			final InferenceProtein iProt = mProts.get(prot.getAccession());
+			if (iProt == null || !iProt.getProteinsMerged().remove(prot)) {
+				log.warn("Protein " + prot.getAccession() + " cannot be removed because it was not added");
+				continue;
+			}
+			touchedProts.add(iProt);
+			final List<GroupablePeptide> peptides = prot.getGroupablePeptides();
+			if (peptides != null) {
+				for (final GroupablePeptide pept : peptides) {
+					final InferencePeptide iPept = mPepts.get(pept.getSequence());
+					if (iPept == null) {
+						continue;
+					}
+					iPept.getPeptidesMerged().remove(pept);
+					touchedPepts.add(iPept);
+					final long key = getKey(iProt.getIndex(), iPept.getIndex());
+					if (mRelations.adjustOrPutValue(key, -1, 0) <= 0) {
+						mRelations.remove(key);
+						iPept.getInferenceProteins().remove(iProt);
+						iProt.getInferencePeptides().remove(iPept);
+					}
+					if (iPept.getPeptidesMerged().isEmpty()) {
+						mPepts.remove(pept.getSequence());
+						touchedPepts.remove(iPept);
+					}
+				}
+			}
+			if (iProt.getProteinsMerged().isEmpty()) {
+				mProts.remove(iProt.getAccession());
+				touchedProts.remove(iProt);
+				removeGroup(iProt.getAccession(), removedGroups);
+			}
+			if (replacement != null) {
+				addToInferenceMaps(replacement, touchedProts, touchedPepts);
+			}
+		}
+	}
+
+	private static long getKey(int index1, int index2) {
+		return ((long) index1 << 32) | index2;
+	}
+
+	/**
+	 * Proteins and peptides connected by their relations, with the relations as
+	 * adjacency arrays of their positions in the component
+	 *
+	 * @author Salva
+	 *
+	 */
+	private static class Component {
+		private final InferenceProtein[] prots;
+		private final InferencePeptide[] pepts;
+		private final int[] protPeptStarts;
+		private final int[] protPepts;
+		private final int[] peptProtStarts;
+		private final int[] peptProts;
+		// position of the proteins in all the proteins of a run
+		private int[] runPositions;
+
+		/**
+		 * The proteins and peptides are grouped in the order given, keeping the
+		 * order of the lists of each protein and peptide
+		 *
+		 * @param prots
+		 * @param pepts
+		 */
+		private Component(InferenceProtein[] prots, InferencePeptide[] pepts) {
+			this.prots = prots;
+			this.pepts = pepts;
+			int numRelations = 0;
+			for (int p = 0; p < prots.length; p++) {
+				prots[p].setPosition(p);
+				numRelations += prots[p].getInferencePeptides().size();
+			}
+			for (int p = 0; p < pepts.length; p++) {
+				pepts[p].setPosition(p);
+			}
+			protPeptStarts = new int[prots.length + 1];
+			protPepts = new int[numRelations];
+			for (int p = 0; p < prots.length; p++) {
+				int i = protPeptStarts[p];
+				for (final InferencePeptide peptide : prots[p].getInferencePeptides()) {
+					protPepts[i++] = peptide.getPosition();
+				}
+				protPeptStarts[p + 1] = i;
+			}
+			peptProtStarts = new int[pepts.length + 1];
+			peptProts = new int[numRelations];
+			for (int p = 0; p < pepts.length; p++) {
+				int i = peptProtStarts[p];
+				for (final InferenceProtein protein : pepts[p].getInferenceProteins()) {
+					peptProts[i++] = protein.getPosition();
+				}
+				peptProtStarts[p + 1] = i;
+			}
+		}
+
+		private int getNumProteins(int peptide) {
+			return peptProtStarts[peptide + 1] - peptProtStarts[peptide];
+		}
+	}
+
+	/**
+	 * Groups a range of components, splitting it in two tasks if it is big
+	 * enough
+	 *
+	 * @author Salva
+	 *
+	 */
+	private class ComponentsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Component> components;
+		private final List<ProteinGroupInference>[] groups;
+		private final int from;
+		private final int to;
+
+		private ComponentsTask(List<Component> components, List<ProteinGroupInference>[] groups, int from,
+				int to) {
+			this.components = components;
+			this.groups = groups;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			int numRelations = 0;
+			for (int c = from; c < to && numRelations < 2 * MIN_RELATIONS_PER_TASK; c++) {
+				numRelations += components.get(c).protPepts.length;
+			}
+			if (to - from > 1 && numRelations >= 2 * MIN_RELATIONS_PER_TASK) {
+				final int middle = (from + to) >>> 1;
+				invokeAll(new ComponentsTask(components, groups, from, middle),
+						new ComponentsTask(components, groups, middle, to));
+				return;
+			}
+			for (int c = from; c < to; c++) {
+				groups[c] = group(components.get(c));
+			}
+		}
+	}
+
+	/**
+	 * Splits the proteins and peptides of a run in connected components, using a
+	 * union-find of the proteins sharing peptides
+	 *
+	 * @param prots
+	 * @param pepts
+	 * @return the components, in the order of their first protein
+	 */
+	private static List<Component> getComponents(InferenceProtein[] prots, InferencePeptide[] pepts) {
+		final int[] parents = new int[prots.length];
+		for (int p = 0; p < prots.length; p++) {
+			parents[p] = p;
+			prots[p].setPosition(p);
+		}
+		for (final InferencePeptide pept : pepts) {
+			final List<InferenceProtein> proteins = pept.getInferenceProteins();
+			int root = find(parents, proteins.get(0).getPosition());
+			for (int i = 1; i < proteins.size(); i++) {
+				final int root2 = find(parents, proteins.get(i).getPosition());
+				// keep the lowest position as the root
+				if (root2 < root) {
+					parents[root] = root2;
+					root = root2;
+				} else if (root2 > root) {
+					parents[root2] = root;
+				}
+			}
+		}
+		// component of each protein and size of the components
+		final int[] componentIndexes = new int[prots.length];
+		final int[] numProts = new int[prots.length];
+		final int[] numPepts = new int[prots.length];
+		int numComponents = 0;
+		for (int p = 0; p < prots.length; p++) {
+			final int root = find(parents, p);
+			componentIndexes[p] = root == p ? numComponents++ : componentIndexes[root];
+			numProts[componentIndexes[p]]++;
+		}
+		for (final InferencePeptide pept : pepts) {
+			numPepts[componentIndexes[pept.getInferenceProteins().get(0).getPosition()]]++;
+		}
+		final InferenceProtein[][] componentProts = new InferenceProtein[numComponents][];
+		final InferencePeptide[][] componentPepts = new InferencePeptide[numComponents][];
+		final int[][] runPositions = new int[numComponents][];
+		for (int c = 0; c < numComponents; c++) {
+			componentProts[c] = new InferenceProtein[numProts[c]];
+			componentPepts[c] = new InferencePeptide[numPepts[c]];
+			runPositions[c] = new int[numProts[c]];
+			numProts[c] = 0;
+			numPepts[c] = 0;
+		}
+		for (int p = 0; p < prots.length; p++) {
+			final int c = componentIndexes[p];
+			runPositions[c][numProts[c]] = p;
+			componentProts[c][numProts[c]++] = prots[p];
+		}
+		for (final InferencePeptide pept : pepts) {
+			final int c = componentIndexes[pept.getInferenceProteins().get(0).getPosition()];
+			componentPepts[c][numPepts[c]++] = pept;
+		}
+		final List<Component> ret = new ArrayList<Component>(numComponents);
+		for (int c = 0; c < numComponents; c++) {
+			final Component component = new Component(componentProts[c], componentPepts[c]);
+			component.runPositions = runPositions[c];
+			ret.add(component);
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the connected components of some proteins, with their proteins and
+	 * peptides in the order in which they were created
+	 *
+	 * @param proteins
+	 * @return
+	 */
+	private static List<Component> getComponents(Collection<InferenceProtein> proteins) {
+		final List<Component> ret = new ArrayList<Component>();
+		final Set<InferenceProtein> visitedProts = new THashSet<InferenceProtein>();
+		final Set<InferencePeptide> visitedPepts = new THashSet<InferencePeptide>();
+		for (final InferenceProtein protein : proteins) {
+			if (!visitedProts.add(protein)) {
+				continue;
+			}
+			final List<InferenceProtein> prots = new ArrayList<InferenceProtein>();
+			final List<InferencePeptide> pepts = new ArrayList<InferencePeptide>();
+			prots.add(protein);
+			for (int i = 0; i < prots.size(); i++) {
+				for (final InferencePeptide pept : prots.get(i).getInferencePeptides()) {
+					if (visitedPepts.add(pept)) {
+						pepts.add(pept);
+						for (final InferenceProtein prot : pept.getInferenceProteins()) {
+							if (visitedProts.add(prot)) {
+								prots.add(prot);
+							}
+						}
+					}
+				}
+			}
+			final InferenceProtein[] protArray = prots.toArray(new InferenceProtein[prots.size()]);
+			Arrays.sort(protArray, new Comparator<InferenceProtein>() {
+				@Override
+				public int compare(InferenceProtein o1, InferenceProtein o2) {
+					return Integer.compare(o1.getIndex(), o2.getIndex());
+				}
+			});
+			final InferencePeptide[] peptArray = pepts.toArray(new InferencePeptide[pepts.size()]);
+			Arrays.sort(peptArray, new Comparator<InferencePeptide>() {
+				@Override
+				public int compare(InferencePeptide o1, InferencePeptide o2) {
+					return Integer.compare(o1.getIndex(), o2.getIndex());
+				}
+			});
+			ret.add(new Component(protArray, peptArray));
+		}
+		return ret;
+	}
+
+	/**
+	 * Classifies the peptides and proteins of a component and groups them
+	 *
+	 * @param component
+	 * @return the groups, in the order of their first protein
+	 */
+	private List<ProteinGroupInference> group(Component component) {
+		classifyPeptides(component);
+		classifyProteins(component);
+		final List<ProteinGroupInference> groups = createGroups(component);
+		markIndistinguishable(component, groups);
+		if (!separateNonConclusiveProteins) {
+			return collapseNonConclusiveGroups(component, groups);
+		}
+		return groups;
+	}
+
+	private void classifyPeptides(Component component) {
+		final InferenceProtein[] prots = component.prots;
+		final InferencePeptide[] pepts = component.pepts;
 		// Locate unique peptides
-		for (final InferencePeptide pept : mPepts.values()) {
-			if (pept.getInferenceProteins().size() == 1) {
+		for (int p = 0; p < pepts.length; p++) {
+			final InferencePeptide pept = pepts[p];
+			if (component.getNumProteins(p) == 1) {
 				pept.setRelation(PeptideRelation.UNIQUE);
-				pept.getInferenceProteins().get(0).setEvidence(ProteinEvidence.CONCLUSIVE);
+				prots[component.peptProts[component.peptProtStarts[p]]].setEvidence(ProteinEvidence.CONCLUSIVE);
 			} else {
 				pept.setRelation(PeptideRelation.DISCRIMINATING);
 			}
 		}
 		// Locate non-meaningful peptides (first round)
-		for (final InferenceProtein prot : mProts.values()) {
-			if (prot.getEvidence() == ProteinEvidence.CONCLUSIVE) {
+		for (int p = 0; p < prots.length; p++) {
+			if (prots[p].getEvidence() == ProteinEvidence.CONCLUSIVE) {
 				// if conclusive is because they have a unique peptide
-				for (final InferencePeptide pept : prot.getInferencePeptides()) {
+				for (int i = component.protPeptStarts[p]; i < component.protPeptStarts[p + 1]; i++) {
+					final InferencePeptide pept = pepts[component.protPepts[i]];
 					if (pept.getRelation() != PeptideRelation.UNIQUE) {
 						pept.setRelation(PeptideRelation.NONDISCRIMINATING);
 					}
@@ -221,20 +717,24 @@ public class PAnalyzer {
 
 		// Locate non-meaningful peptides (second round)
 		boolean shared;
-		for (final InferencePeptide pept : mPepts.values()) {
-			if (pept.getRelation() != PeptideRelation.DISCRIMINATING) {
+		for (int p = 0; p < pepts.length; p++) {
+			if (pepts[p].getRelation() != PeptideRelation.DISCRIMINATING) {
 				continue;
 			}
-			for (final InferencePeptide pept2 : pept.getInferenceProteins().get(0).getInferencePeptides()) {
+			final int firstProt = component.peptProts[component.peptProtStarts[p]];
+			for (int i = component.protPeptStarts[firstProt]; i < component.protPeptStarts[firstProt + 1]; i++) {
+				final int p2 = component.protPepts[i];
+				final InferencePeptide pept2 = pepts[p2];
 				if (pept2.getRelation() == PeptideRelation.NONDISCRIMINATING) {
 					continue;
 				}
-				if (pept2.getInferenceProteins().size() <= pept.getInferenceProteins().size()) {
+				if (component.getNumProteins(p2) <= component.getNumProteins(p)) {
 					continue;
 				}
 				shared = true;
-				for (final InferenceProtein p : pept.getInferenceProteins()) {
-					if (!p.getInferencePeptides().contains(pept2)) {
+				for (int j = component.peptProtStarts[p]; j < component.peptProtStarts[p + 1]; j++) {
+					final InferenceProtein prot = prots[component.peptProts[j]];
+					if (!mRelations.containsKey(getKey(prot.getIndex(), pept2.getIndex()))) {
 						shared = false;
 						break;
 					}
@@ -246,22 +746,22 @@ public class PAnalyzer {
 		}
 	}
 
-	private void classifyProteins() {
+	private void classifyProteins(Component component) {
 		boolean group;
 
-		for (final InferenceProtein prot : mProts.values()) {
+		for (int p = 0; p < component.prots.length; p++) {
+			final InferenceProtein prot = component.prots[p];
 			if (prot.getEvidence() == ProteinEvidence.CONCLUSIVE) {
 				continue;
 			}
-			final List<InferencePeptide> peptides = prot.getInferencePeptides();
-			if (peptides == null || peptides.isEmpty()) {
+			if (component.protPeptStarts[p] == component.protPeptStarts[p + 1]) {
 				prot.setEvidence(ProteinEvidence.FILTERED);
 				continue;
 			}
 
 			group = false;
-			for (final InferencePeptide pept : peptides) {
-				if (pept.getRelation() == PeptideRelation.DISCRIMINATING) {
+			for (int i = component.protPeptStarts[p]; i < component.protPeptStarts[p + 1]; i++) {
+				if (component.pepts[component.protPepts[i]].getRelation() == PeptideRelation.DISCRIMINATING) {
 					group = true;
 					break;
 				}
@@ -271,41 +771,111 @@ public class PAnalyzer {
 
 	}
 
-	private void createGroups() {
-		for (final InferenceProtein prot : mProts.values()) {
-			if (prot.getGroup() == null) {
-				final ProteinGroupInference group = new ProteinGroupInference(prot.getEvidence());
-				group.add(prot);
-				prot.setGroup(group);
-				mGroups.add(group);
+	/**
+	 * Each protein starts a group unless it is already in one. The ambiguous
+	 * proteins sharing a discriminating peptide are added to the group of the
+	 * protein, or its group is appended to theirs if they already had one. The
+	 * groups are linked lists of proteins, so that they are appended in constant
+	 * time keeping the order of the proteins, and the group of a protein is
+	 * found with a union-find.
+	 */
+	private List<ProteinGroupInference> createGroups(Component component) {
+		final InferenceProtein[] prots = component.prots;
+		final int numProts = prots.length;
+		// union-find of the proteins in the same group
+		final int[] parents = new int[numProts];
+		final int[] sizes = new int[numProts];
+		// group of the proteins in each tree of the union-find
+		final int[] treeGroups = new int[numProts];
+		// groups, in order of creation, as linked lists of proteins
+		final int[] firsts = new int[numProts];
+		final int[] lasts = new int[numProts];
+		final int[] nexts = new int[numProts];
+		final ProteinEvidence[] evidences = new ProteinEvidence[numProts];
+		final boolean[] removed = new boolean[numProts];
+		int numGroups = 0;
+		for (int p = 0; p < numProts; p++) {
+			parents[p] = -1;
+			nexts[p] = -1;
+		}
+		for (int p = 0; p < numProts; p++) {
+			final InferenceProtein prot = prots[p];
+			if (parents[p] < 0) {
+				final int group = numGroups++;
+				firsts[group] = p;
+				lasts[group] = p;
+				evidences[group] = prot.getEvidence();
+				parents[p] = p;
+				sizes[p] = 1;
+				treeGroups[p] = group;
 			}
 			if (prot.getEvidence() != ProteinEvidence.AMBIGUOUSGROUP) {
 				continue;
 			}
-			for (final InferencePeptide pept : prot.getInferencePeptides()) {
-				if (pept.getRelation() != PeptideRelation.DISCRIMINATING) {
+			for (int i = component.protPeptStarts[p]; i < component.protPeptStarts[p + 1]; i++) {
+				final int pept = component.protPepts[i];
+				if (component.pepts[pept].getRelation() != PeptideRelation.DISCRIMINATING) {
 					continue;
 				}
-				for (final InferenceProtein subp : pept.getInferenceProteins()) {
-					if (subp.getEvidence() != ProteinEvidence.AMBIGUOUSGROUP) {
+				for (int j = component.peptProtStarts[pept]; j < component.peptProtStarts[pept + 1]; j++) {
+					final int subp = component.peptProts[j];
+					if (prots[subp].getEvidence() != ProteinEvidence.AMBIGUOUSGROUP) {
 						continue;
 					}
-					if (subp.getGroup() != null) { // merge groups
-						if (subp.getGroup() == prot.getGroup()) {
+					final int protTree = find(parents, p);
+					if (parents[subp] >= 0) { // merge groups
+						final int subpTree = find(parents, subp);
+						if (subpTree == protTree) {
 							continue;
 						}
-						mGroups.remove(prot.getGroup());
-						subp.getGroup().addAll(prot.getGroup());
-						for (final InferenceProtein pg : prot.getGroup()) {
-							pg.setGroup(subp.getGroup());
-						}
+						final int protGroup = treeGroups[protTree];
+						final int subpGroup = treeGroups[subpTree];
+						removed[protGroup] = true;
+						nexts[lasts[subpGroup]] = firsts[protGroup];
+						lasts[subpGroup] = lasts[protGroup];
+						// union by size
+						final int tree = sizes[protTree] > sizes[subpTree] ? protTree : subpTree;
+						final int subtree = tree == protTree ? subpTree : protTree;
+						parents[subtree] = tree;
+						sizes[tree] += sizes[subtree];
+						treeGroups[tree] = subpGroup;
 						continue;
 					}
-					prot.getGroup().add(subp);
-					subp.setGroup(prot.getGroup());
+					final int protGroup = treeGroups[protTree];
+					nexts[lasts[protGroup]] = subp;
+					lasts[protGroup] = subp;
+					parents[subp] = protTree;
+					sizes[protTree]++;
 				}
 			}
 		}
+		final List<ProteinGroupInference> ret = new ArrayList<ProteinGroupInference>();
+		for (int group = 0; group < numGroups; group++) {
+			if (removed[group]) {
+				continue;
+			}
+			final ProteinGroupInference proteinGroup = new ProteinGroupInference(evidences[group]);
+			for (int p = firsts[group]; p >= 0; p = nexts[p]) {
+				proteinGroup.add(prots[p]);
+				prots[p].setGroup(proteinGroup);
+			}
+			ret.add(proteinGroup);
+		}
+		return ret;
+	}
+
+	private static int find(int[] parents, int p) {
+		int root = p;
+		while (parents[root] != root) {
+			root = parents[root];
+		}
+		// path compression
+		while (parents[p] != root) {
+			final int next = parents[p];
+			parents[p] = root;
+			p = next;
+		}
+		return root;
 	}
 
 	// private void markIndistinguishable() {
@@ -331,28 +901,42 @@ public class PAnalyzer {
 	// }
 	//
 	// }
-	private void markIndistinguishable() {
-		final Set<InferencePeptide> discriminating = new THashSet<InferencePeptide>();
+	/**
+	 * A group is indistinguishable if all its proteins have all the
+	 * discriminating peptides of the group. Since the discriminating peptides of
+	 * a protein are some of the ones of the group, it is enough to count them.
+	 */
+	private void markIndistinguishable(Component component, List<ProteinGroupInference> groups) {
+		// group in which each peptide was counted
+		final int[] counted = new int[component.pepts.length];
+		for (int p = 0; p < counted.length; p++) {
+			counted[p] = -1;
+		}
 		boolean indistinguishable;
-		for (final ProteinGroupInference group : mGroups) {
+		for (int g = 0; g < groups.size(); g++) {
+			final ProteinGroupInference group = groups.get(g);
 			if (group.getEvidence() != ProteinEvidence.AMBIGUOUSGROUP || group.size() < 2) {
 				continue;
 			}
-			indistinguishable = true;
+			int numDiscriminating = 0;
 			for (final InferenceProtein prot : group) {
-				for (final InferencePeptide pept : prot.getInferencePeptides()) {
-					if (pept.getRelation() == PeptideRelation.DISCRIMINATING) {
-						discriminating.add(pept);
+				final int p = prot.getPosition();
+				for (int i = component.protPeptStarts[p]; i < component.protPeptStarts[p + 1]; i++) {
+					final int pept = component.protPepts[i];
+					if (counted[pept] != g
+							&& component.pepts[pept].getRelation() == PeptideRelation.DISCRIMINATING) {
+						counted[pept] = g;
+						numDiscriminating++;
 					}
 				}
 			}
+			indistinguishable = true;
 			for (final InferenceProtein prot : group) {
-				if (!prot.getInferencePeptides().containsAll(discriminating)) {
+				if (getNumDiscriminatingPeptides(component, prot.getPosition()) != numDiscriminating) {
 					indistinguishable = false;
 					break;
 				}
 			}
-			discriminating.clear();
 			if (indistinguishable) {
 				group.setEvidence(ProteinEvidence.INDISTINGUISHABLE);
 				for (final InferenceProtein prot : group) {
@@ -362,13 +946,70 @@ public class PAnalyzer {
 		}
 	}
 
-	private PanalyzerStats getStats(List<ProteinGroupInference> groups) {
-		return new PanalyzerStats(groups);
+	private static int getNumDiscriminatingPeptides(Component component, int prot) {
+		int ret = 0;
+		for (int i = component.protPeptStarts[prot]; i < component.protPeptStarts[prot + 1]; i++) {
+			if (component.pepts[component.protPepts[i]].getRelation() == PeptideRelation.DISCRIMINATING) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Adds the non conclusive proteins to the groups of the proteins sharing
+	 * their non discriminating peptides
+	 *
+	 * @param component
+	 * @param groups
+	 * @return the groups that are not non conclusive
+	 */
+	private List<ProteinGroupInference> collapseNonConclusiveGroups(Component component,
+			List<ProteinGroupInference> groups) {
+		// position in groups of the group of each protein
+		final int[] groupPositions = new int[component.prots.length];
+		for (int g = 0; g < groups.size(); g++) {
+			for (final InferenceProtein protein : groups.get(g)) {
+				groupPositions[protein.getPosition()] = g;
+			}
+		}
+		// proteins added to each group, by the position of the group and of the
+		// protein
+		final TLongHashSet added = new TLongHashSet();
+		final List<ProteinGroupInference> ret = new ArrayList<ProteinGroupInference>();
+		for (final ProteinGroupInference proteinGroup : groups) {
+			if (proteinGroup.getEvidence() == ProteinEvidence.NONCONCLUSIVE) {
+				// non conclusive groups only have one protein at index = 0
+				final InferenceProtein protein = proteinGroup.get(0);
+				final int proteinHashCode = protein.hashCode();
+				final int p = protein.getPosition();
+				for (int i = component.protPeptStarts[p]; i < component.protPeptStarts[p + 1]; i++) {
+					final int peptide = component.protPepts[i];
+					if (component.pepts[peptide].getRelation() == PeptideRelation.NONDISCRIMINATING) {
+						for (int j = component.peptProtStarts[peptide]; j < component.peptProtStarts[peptide
+								+ 1]; j++) {
+							final int sharing = component.peptProts[j];
+							final InferenceProtein proteinSharingThisPeptide = component.prots[sharing];
+							if (proteinSharingThisPeptide.hashCode() != proteinHashCode) {
+								if (added.add(getKey(groupPositions[sharing], p)))
+									proteinSharingThisPeptide.getGroup().add(protein);
+								// protein.setEvidence(proteinSharingThisPeptide
+								// .getGroup().getEvidence());
+
+							}
+						}
+					}
+				}
+			} else {
+				ret.add(proteinGroup);
+			}
+		}
+		return ret;
 	}
 
 	public PanalyzerStats getStats() {
 		if (mStats == null) {
-			mStats = getStats(mGroups);
+			mStats = new PanalyzerStats(mGroups.values());
 		}
 		return mStats;
 	}
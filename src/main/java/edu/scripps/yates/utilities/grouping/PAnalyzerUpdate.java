@@ -0,0 +1,50 @@
+package edu.scripps.yates.utilities.grouping;
+
+import java.util.List;
+
+/**
+ * Result of {@link PAnalyzer#update(java.util.Collection, java.util.Collection)}:
+ * the groups of the connected components affected by the added and removed
+ * proteins, which replace the ones that were removed, and the stats of all the
+ * groups after the update.
+ *
+ * @author Salva
+ *
+ */
+public class PAnalyzerUpdate {
+	private final List<ProteinGroup> addedGroups;
+	private final List<ProteinGroup> removedGroups;
+	private final PanalyzerStats stats;
+
+	PAnalyzerUpdate(List<ProteinGroup> addedGroups, List<ProteinGroup> removedGroups, PanalyzerStats stats) {
+		this.addedGroups = addedGroups;
+		this.removedGroups = removedGroups;
+		this.stats = stats;
+	}
+
+	/**
+	 *
+	 * @return the new groups of the affected proteins
+	 */
+	public List<ProteinGroup> getAddedGroups() {
+		return addedGroups;
+	}
+
+	/**
+	 *
+	 * @return the groups that are not valid anymore, because some of their
+	 *         proteins were affected by the update
+	 */
+	public List<ProteinGroup> getRemovedGroups() {
+		return removedGroups;
+	}
+
+	/**
+	 *
+	 * @return the stats of all the groups right after the update, which don't
+	 *         change with later updates
+	 */
+	public PanalyzerStats getStats() {
+		return stats;
+	}
+}
@@ -98,6 +98,60 @@ public class PanalyzerStats {
 		proteinMinCount = -1;
 	}
 
+	/**
+	 * Copy of the counts of other stats
+	 *
+	 * @param stats
+	 */
+	public PanalyzerStats(PanalyzerStats stats) {
+		proteinCount = stats.proteinCount;
+		proteinMaxCount = stats.proteinMaxCount;
+		proteinMinCount = stats.proteinMinCount;
+		conclusiveCount = stats.conclusiveCount;
+		nonConclusiveCount = stats.nonConclusiveCount;
+		groupedCount = stats.groupedCount;
+		ambiguousGroupCount = stats.ambiguousGroupCount;
+		indistinguishableGroupCount = stats.indistinguishableGroupCount;
+		filteredCount = stats.filteredCount;
+		differentNonConclusiveCount = stats.differentNonConclusiveCount;
+	}
+
+	/**
+	 * Adds to the counts a group (sign = 1) or removes it (sign = -1), as when
+	 * the {@link PAnalyzer} updates the groups
+	 *
+	 * @param group
+	 * @param sign
+	 */
+	void addGroup(ProteinGroupInference group, int sign) {
+		switch (group.getEvidence()) {
+		case AMBIGUOUSGROUP:
+			ambiguousGroupCount += sign;
+			groupedCount += sign * group.size();
+			proteinCount += sign;
+			break;
+		case CONCLUSIVE:
+			conclusiveCount += sign;
+			proteinCount += sign;
+			break;
+		case FILTERED:
+			filteredCount += sign;
+			break;
+		case INDISTINGUISHABLE:
+			indistinguishableGroupCount += sign;
+			groupedCount += sign * group.size();
+			proteinCount += sign;
+			break;
+		case NONCONCLUSIVE:
+			nonConclusiveCount += sign;
+			// the non conclusive groups have a different protein each
+			differentNonConclusiveCount += sign;
+			break;
+		}
+		if (group.getEvidence() != ProteinEvidence.FILTERED)
+			proteinMaxCount += sign * group.size();
+	}
+
 	public void dump(PrintStream stream) {
 		// stream.println("Peptide count: " + PeptideCount);
 		stream.println(toString());
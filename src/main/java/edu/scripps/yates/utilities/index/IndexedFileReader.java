@@ -0,0 +1,155 @@
+package edu.scripps.yates.utilities.index;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.scripps.yates.utilities.util.Pair;
+
+/**
+ * Reader of the items of an indexed file. It keeps a single {@link FileChannel}
+ * open for the file and it reads the items with positional reads, which don't
+ * modify the state of the channel, so it can be used concurrently from
+ * multiple threads without any lock.<br>
+ * Items appended to the file after the channel was opened are also readable.
+ *
+ * @author Salva
+ *
+ */
+public class IndexedFileReader {
+	// items separated by less than this are read in a single read
+	private static final int MAX_GAP_TO_COALESCE = 64 * 1024;
+	// maximum size of a single coalesced read
+	private static final int MAX_COALESCED_READ = 16 * 1024 * 1024;
+	private final File file;
+	private volatile FileChannel channel;
+
+	public IndexedFileReader(File file) {
+		this.file = file;
+	}
+
+	private FileChannel getChannel() throws IOException {
+		FileChannel ret = channel;
+		if (ret == null || !ret.isOpen()) {
+			synchronized (this) {
+				ret = channel;
+				if (ret == null || !ret.isOpen()) {
+					ret = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					channel = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void read(byte[] bytes, long position) throws IOException {
+		try {
+			readFully(getChannel(), bytes, position);
+		} catch (final ClosedChannelException e) {
+			// if another thread was interrupted while reading, the channel is
+			// closed for everybody, so it is opened again. If it was this thread,
+			// the exception is thrown
+			if (Thread.currentThread().isInterrupted()) {
+				throw e;
+			}
+			readFully(getChannel(), bytes, position);
+		}
+	}
+
+	private void readFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException("Trying to read from position " + position + " to "
+						+ (position + bytes.length) + " in file " + file.getAbsolutePath() + " of "
+						+ channel.size() + " bytes");
+			}
+		}
+	}
+
+	/**
+	 * Reads the item between two positions of the file
+	 *
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	public String read(long start, long end) throws IOException {
+		final byte[] bytes = new byte[(int) (end - start)];
+		read(bytes, start);
+		return new String(bytes);
+	}
+
+	/**
+	 * Reads several items at once. The positions are sorted and the items that
+	 * are close in the file are read with a single read.
+	 *
+	 * @param positions the start and end positions of the items
+	 * @return the items, in the same order than the positions
+	 * @throws IOException
+	 */
+	public List<String> read(final List<Pair<Long, Long>> positions) throws IOException {
+		final String[] ret = new String[positions.size()];
+		final Integer[] sortedIndexes = new Integer[positions.size()];
+		for (int i = 0; i < sortedIndexes.length; i++) {
+			sortedIndexes[i] = i;
+		}
+		Arrays.sort(sortedIndexes, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Long.compare(positions.get(o1).getFirstelement(), positions.get(o2).getFirstelement());
+			}
+		});
+		int groupFirst = 0;
+		while (groupFirst < sortedIndexes.length) {
+			final long groupStart = positions.get(sortedIndexes[groupFirst]).getFirstelement();
+			long groupEnd = positions.get(sortedIndexes[groupFirst]).getSecondElement();
+			int groupLast = groupFirst;
+			while (groupLast + 1 < sortedIndexes.length) {
+				final Pair<Long, Long> next = positions.get(sortedIndexes[groupLast + 1]);
+				if (next.getFirstelement() - groupEnd > MAX_GAP_TO_COALESCE
+						|| Math.max(groupEnd, next.getSecondElement()) - groupStart > MAX_COALESCED_READ) {
+					break;
+				}
+				groupEnd = Math.max(groupEnd, next.getSecondElement());
+				groupLast++;
+			}
+			final byte[] bytes = new byte[(int) (groupEnd - groupStart)];
+			read(bytes, groupStart);
+			for (int i = groupFirst; i <= groupLast; i++) {
+				final Pair<Long, Long> pair = positions.get(sortedIndexes[i]);
+				ret[sortedIndexes[i]] = new String(bytes, (int) (pair.getFirstelement() - groupStart),
+						(int) (pair.getSecondElement() - pair.getFirstelement()));
+			}
+			groupFirst = groupLast + 1;
+		}
+		return new ArrayList<String>(Arrays.asList(ret));
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Closes the underlying channel. The reader can still be used after that, as
+	 * the channel is opened again when needed.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,391 @@
+package edu.scripps.yates.utilities.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import edu.scripps.yates.utilities.util.Pair;
+import gnu.trove.list.array.TLongArrayList;
+
+/**
+ * Binary, memory-mapped version of the index of a {@link TextFileIndex}.<br>
+ * The file is an open addressing hash table, so looking for a key doesn't
+ * require to parse anything nor to keep any object per entry in the heap. The
+ * layout of the file is:
+ * <ul>
+ * <li>header: magic number, version, length and checksum of the text index
+ * from which it was built, number of entries, number of slots, offset of the
+ * entries and offset and length of the keys</li>
+ * <li>slots: one int per slot with the index of the entry, or -1 if
+ * empty</li>
+ * <li>entries: 32 bytes per entry: key offset, key length, key hash, start
+ * and end positions of the item in the indexed file</li>
+ * <li>keys: the UTF-8 bytes of all the keys</li>
+ * </ul>
+ * Instances of this class are safe to be read from multiple threads.
+ *
+ * @author Salva
+ *
+ */
+public class MappedIndexFile {
+	private static final int MAGIC = 0x54464958;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 56;
+	// bytes of the beginning and of the end of the text index in its checksum
+	private static final int CHECKSUM_BLOCK_SIZE = 64 * 1024;
+	private static final int SLOT_SIZE = 4;
+	private static final int ENTRY_SIZE = 32;
+	private static final int EMPTY_SLOT = -1;
+
+	private final File file;
+	private final long sourceLength;
+	private final long sourceChecksum;
+	private final int numEntries;
+	private final int numSlots;
+	private final MappedRegion slots;
+	private final MappedRegion entries;
+	private final MappedRegion keys;
+
+	private MappedIndexFile(File file) throws IOException {
+		this.file = file;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException("Unexpected end of binary index file " + file.getAbsolutePath());
+				}
+			}
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException(file.getAbsolutePath() + " is not a valid binary index file");
+			}
+			sourceLength = header.getLong();
+			sourceChecksum = header.getLong();
+			numEntries = header.getInt();
+			numSlots = header.getInt();
+			final long entriesOffset = header.getLong();
+			final long keysOffset = header.getLong();
+			final long keysLength = header.getLong();
+			if (keysOffset + keysLength != channel.size()) {
+				throw new IOException("Binary index file " + file.getAbsolutePath() + " is truncated");
+			}
+			slots = new MappedRegion(channel, HEADER_SIZE, (long) numSlots * SLOT_SIZE);
+			entries = new MappedRegion(channel, entriesOffset, (long) numEntries * ENTRY_SIZE);
+			keys = new MappedRegion(channel, keysOffset, keysLength);
+		} finally {
+			// the mapped buffers remain valid after closing the channel
+			raf.close();
+		}
+	}
+
+	/**
+	 * Maps a binary index file previously written by
+	 * {@link #write(File, File, long, List, TLongArrayList, TLongArrayList)}
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException if the file is not a valid binary index file
+	 */
+	public static MappedIndexFile open(File file) throws IOException {
+		return new MappedIndexFile(file);
+	}
+
+	/**
+	 * FNV-1a hash of the bytes of a key
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	private static int hash(byte[] bytes) {
+		int h = 0x811C9DC5;
+		for (final byte b : bytes) {
+			h ^= b & 0xff;
+			h *= 0x01000193;
+		}
+		return h;
+	}
+
+	private static int getNumSlots(int numEntries) {
+		// load factor of 0.5 at most
+		int ret = 16;
+		while (ret < 2l * numEntries) {
+			ret <<= 1;
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @return the length of the text index file at the time this binary index
+	 *         was built. Entries appended to the text index after that position
+	 *         are not in this index.
+	 */
+	public long getSourceLength() {
+		return sourceLength;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 *
+	 * @return the number of entries written, including the ones with repeated
+	 *         keys
+	 */
+	public int getNumEntries() {
+		return numEntries;
+	}
+
+	/**
+	 * Checksum of the first and the last {@link #CHECKSUM_BLOCK_SIZE} bytes of the
+	 * text index up to a length, which changes if the text index is rewritten
+	 * even if it has the same or a greater length
+	 *
+	 * @param sourceFile
+	 * @param sourceLength
+	 * @return
+	 * @throws IOException
+	 */
+	private static long getChecksum(File sourceFile, long sourceLength) throws IOException {
+		final CRC32 crc = new CRC32();
+		final RandomAccessFile raf = new RandomAccessFile(sourceFile, "r");
+		try {
+			final byte[] bytes = new byte[(int) Math.min(CHECKSUM_BLOCK_SIZE, sourceLength)];
+			raf.readFully(bytes);
+			crc.update(bytes);
+			if (sourceLength > CHECKSUM_BLOCK_SIZE) {
+				final long tailStart = Math.max(CHECKSUM_BLOCK_SIZE, sourceLength - CHECKSUM_BLOCK_SIZE);
+				final byte[] tail = new byte[(int) (sourceLength - tailStart)];
+				raf.seek(tailStart);
+				raf.readFully(tail);
+				crc.update(tail);
+			}
+		} finally {
+			raf.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 *
+	 * @param sourceFile the text index
+	 * @return true if the text index is the one from which this binary index was
+	 *         built, maybe with entries appended after it
+	 * @throws IOException
+	 */
+	public boolean isUpToDate(File sourceFile) throws IOException {
+		return sourceFile.length() >= sourceLength && getChecksum(sourceFile, sourceLength) == sourceChecksum;
+	}
+
+	private int findEntry(String key) {
+		final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		final int hash = hash(keyBytes);
+		final int mask = numSlots - 1;
+		int slot = hash & mask;
+		while (true) {
+			final int entry = slots.getInt((long) slot * SLOT_SIZE);
+			if (entry == EMPTY_SLOT) {
+				return -1;
+			}
+			final long entryPosition = (long) entry * ENTRY_SIZE;
+			if (entries.getInt(entryPosition + 12) == hash
+					&& entries.getInt(entryPosition + 8) == keyBytes.length) {
+				final long keyOffset = entries.getLong(entryPosition);
+				boolean equals = true;
+				for (int i = 0; i < keyBytes.length; i++) {
+					if (keys.getByte(keyOffset + i) != keyBytes[i]) {
+						equals = false;
+						break;
+					}
+				}
+				if (equals) {
+					return entry;
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public boolean containsKey(String key) {
+		return findEntry(key) != -1;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the start and end positions of the item with that key in the
+	 *         indexed file, or null if the key is not in the index
+	 */
+	public Pair<Long, Long> get(String key) {
+		final int entry = findEntry(key);
+		if (entry == -1) {
+			return null;
+		}
+		final long entryPosition = (long) entry * ENTRY_SIZE;
+		return new Pair<Long, Long>(entries.getLong(entryPosition + 16), entries.getLong(entryPosition + 24));
+	}
+
+	/**
+	 *
+	 * @return the number of different keys in the index
+	 */
+	public int size() {
+		int ret = 0;
+		for (int slot = 0; slot < numSlots; slot++) {
+			if (slots.getInt((long) slot * SLOT_SIZE) != EMPTY_SLOT) {
+				ret++;
+			}
+		}
+		return ret;
+	}
+
+	public boolean isEmpty() {
+		return numEntries == 0;
+	}
+
+	/**
+	 *
+	 * @return all the keys of the index. Note that this creates a {@link String}
+	 *         per key.
+	 */
+	public List<String> getKeys() {
+		final List<String> ret = new ArrayList<String>();
+		for (int slot = 0; slot < numSlots; slot++) {
+			final int entry = slots.getInt((long) slot * SLOT_SIZE);
+			if (entry != EMPTY_SLOT) {
+				final long entryPosition = (long) entry * ENTRY_SIZE;
+				final long keyOffset = entries.getLong(entryPosition);
+				final byte[] keyBytes = new byte[entries.getInt(entryPosition + 8)];
+				for (int i = 0; i < keyBytes.length; i++) {
+					keyBytes[i] = keys.getByte(keyOffset + i);
+				}
+				ret.add(new String(keyBytes, StandardCharsets.UTF_8));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes a binary index file from a map of keys and positions
+	 *
+	 * @param file
+	 * @param sourceFile   text index file that contains the same entries
+	 * @param sourceLength length of the text index file with these entries
+	 * @param indexMap
+	 * @throws IOException
+	 */
+	public static void write(File file, File sourceFile, long sourceLength, Map<String, Pair<Long, Long>> indexMap)
+			throws IOException {
+		final List<String> keys = new ArrayList<String>(indexMap.size());
+		final TLongArrayList starts = new TLongArrayList(indexMap.size());
+		final TLongArrayList ends = new TLongArrayList(indexMap.size());
+		for (final Map.Entry<String, Pair<Long, Long>> entry : indexMap.entrySet()) {
+			keys.add(entry.getKey());
+			starts.add(entry.getValue().getFirstelement());
+			ends.add(entry.getValue().getSecondElement());
+		}
+		write(file, sourceFile, sourceLength, keys, starts, ends);
+	}
+
+	/**
+	 * Writes a binary index file. If a key is repeated, the last position is the
+	 * one kept, as it happens when reading the text index file.<br>
+	 * The file is written in a temporary file that atomically replaces the
+	 * previous one at the end, so other processes never map a partially written
+	 * index.
+	 *
+	 * @param file
+	 * @param sourceFile   text index file that contains the same entries
+	 * @param sourceLength length of the text index file with these entries
+	 * @param keys
+	 * @param starts
+	 * @param ends
+	 * @throws IOException
+	 */
+	public static void write(File file, File sourceFile, long sourceLength, List<String> keys,
+			TLongArrayList starts, TLongArrayList ends) throws IOException {
+		final long sourceChecksum = getChecksum(sourceFile, sourceLength);
+		final int numEntries = keys.size();
+		final int numSlots = getNumSlots(numEntries);
+		final int mask = numSlots - 1;
+		final int[] slotTable = new int[numSlots];
+		Arrays.fill(slotTable, EMPTY_SLOT);
+		final byte[][] keyBytes = new byte[numEntries][];
+		final int[] hashes = new int[numEntries];
+		long keysLength = 0;
+		for (int entry = 0; entry < numEntries; entry++) {
+			keyBytes[entry] = keys.get(entry).getBytes(StandardCharsets.UTF_8);
+			hashes[entry] = hash(keyBytes[entry]);
+			keysLength += keyBytes[entry].length;
+			int slot = hashes[entry] & mask;
+			while (slotTable[slot] != EMPTY_SLOT) {
+				final int other = slotTable[slot];
+				if (hashes[other] == hashes[entry] && Arrays.equals(keyBytes[other], keyBytes[entry])) {
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+			slotTable[slot] = entry;
+		}
+		final long entriesOffset = HEADER_SIZE + (long) numSlots * SLOT_SIZE;
+		final long keysOffset = entriesOffset + (long) numEntries * ENTRY_SIZE;
+
+		final File tmpFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+		final DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile), 1024 * 1024));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(sourceLength);
+			dos.writeLong(sourceChecksum);
+			dos.writeInt(numEntries);
+			dos.writeInt(numSlots);
+			dos.writeLong(entriesOffset);
+			dos.writeLong(keysOffset);
+			dos.writeLong(keysLength);
+			for (final int entry : slotTable) {
+				dos.writeInt(entry);
+			}
+			long keyOffset = 0;
+			for (int entry = 0; entry < numEntries; entry++) {
+				dos.writeLong(keyOffset);
+				dos.writeInt(keyBytes[entry].length);
+				dos.writeInt(hashes[entry]);
+				dos.writeLong(starts.get(entry));
+				dos.writeLong(ends.get(entry));
+				keyOffset += keyBytes[entry].length;
+			}
+			for (final byte[] bytes : keyBytes) {
+				dos.write(bytes);
+			}
+			dos.close();
+		} catch (final IOException e) {
+			dos.close();
+			tmpFile.delete();
+			throw e;
+		}
+		try {
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			tmpFile.delete();
+			throw new IOException("Binary index file " + file.getAbsolutePath() + " could not be replaced", e);
+		}
+	}
+}
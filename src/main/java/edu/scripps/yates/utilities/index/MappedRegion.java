@@ -0,0 +1,85 @@
+package edu.scripps.yates.utilities.index;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Read-only region of a file mapped in memory. Since a single
+ * {@link MappedByteBuffer} cannot be larger than 2Gb, the region is mapped in
+ * segments of 1Gb, which is a multiple of the size of any primitive, so a value
+ * never falls between two segments as long as the values of the region are
+ * aligned to their size from the start of the region.<br>
+ * The mapped pages are shared by all the processes mapping the same file.
+ *
+ * @author Salva
+ *
+ */
+public class MappedRegion {
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_MASK = (1l << SEGMENT_BITS) - 1;
+	private final MappedByteBuffer[] segments;
+	private final long length;
+
+	/**
+	 * Maps a region of a file. The channel can be closed afterwards.
+	 *
+	 * @param channel
+	 * @param offset  position of the region in the file
+	 * @param length  length of the region in bytes
+	 * @throws IOException
+	 */
+	public MappedRegion(FileChannel channel, long offset, long length) throws IOException {
+		this.length = length;
+		final int numSegments = (int) ((length + SEGMENT_MASK) >>> SEGMENT_BITS);
+		segments = new MappedByteBuffer[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			final long segmentStart = (long) i << SEGMENT_BITS;
+			final long segmentLength = Math.min(length - segmentStart, 1l << SEGMENT_BITS);
+			segments[i] = channel.map(MapMode.READ_ONLY, offset + segmentStart, segmentLength);
+		}
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public byte getByte(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].get((int) (position & SEGMENT_MASK));
+	}
+
+	public int getInt(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getInt((int) (position & SEGMENT_MASK));
+	}
+
+	public long getLong(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getLong((int) (position & SEGMENT_MASK));
+	}
+
+	public float getFloat(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getFloat((int) (position & SEGMENT_MASK));
+	}
+
+	public double getDouble(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getDouble((int) (position & SEGMENT_MASK));
+	}
+
+	public short getShort(long position) {
+		return segments[(int) (position >>> SEGMENT_BITS)].getShort((int) (position & SEGMENT_MASK));
+	}
+
+	/**
+	 * Copies bytes of the region to an array
+	 *
+	 * @param position
+	 * @param bytes
+	 * @param offset   position in the array
+	 * @param count    number of bytes to copy
+	 */
+	public void getBytes(long position, byte[] bytes, int offset, int count) {
+		for (int i = 0; i < count; i++) {
+			bytes[offset + i] = getByte(position + i);
+		}
+	}
+}
@@ -0,0 +1,433 @@
+package edu.scripps.yates.utilities.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.files.FileUtils;
+import edu.scripps.yates.utilities.util.Pair;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Parallel version of {@link TextFileIndexIO#getIndexMap()}. The file is split
+ * in as many byte ranges as threads, each of them starting in a line that
+ * starts with the begin token, so that each range can be indexed
+ * independently. The partial maps are then merged in the order of the ranges,
+ * so the result is the same than the one of the serial scan.<br>
+ * Lines are read with a buffered scanner that follows the same rules than
+ * {@link java.io.RandomAccessFile#readLine()}, and the text of the entries is
+ * only built if the keys depend on it.
+ *
+ * @author Salva
+ *
+ */
+class ParallelTextFileIndexer {
+	private static final Logger log = Logger.getLogger(ParallelTextFileIndexer.class);
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private final TextFileIndexIO textFileIndexIO;
+	private final byte[] beginToken;
+	private final byte[] endToken;
+	private final int numThreads;
+	private final boolean keysFromText;
+
+	/**
+	 *
+	 * @param textFileIndexIO
+	 * @param numThreads
+	 * @param keysFromText    whether the keys are taken from the text of the
+	 *                        entries or they are just the number of the entry
+	 */
+	ParallelTextFileIndexer(TextFileIndexIO textFileIndexIO, int numThreads, boolean keysFromText) {
+		this.textFileIndexIO = textFileIndexIO;
+		beginToken = getTokenBytes(textFileIndexIO.beginToken);
+		endToken = getTokenBytes(textFileIndexIO.endToken);
+		this.numThreads = numThreads;
+		this.keysFromText = keysFromText;
+	}
+
+	/**
+	 *
+	 * @param token
+	 * @return the bytes of the token as read by
+	 *         {@link java.io.RandomAccessFile#readLine()}, or null if the token
+	 *         can not be found in the file
+	 */
+	private static byte[] getTokenBytes(String token) {
+		for (int i = 0; i < token.length(); i++) {
+			if (token.charAt(i) > 0xff) {
+				return null;
+			}
+		}
+		return token.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Buffered reader of the lines of the file, from a given position
+	 */
+	private static class LineScanner {
+		private final FileChannel channel;
+		private final long fileLength;
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private long bufferStart;
+		private int bufferLength = 0;
+		private long lineStart;
+		private long lineEnd;
+		private long nextLineStart;
+
+		private LineScanner(FileChannel channel, long fileLength, long from) {
+			this.channel = channel;
+			this.fileLength = fileLength;
+			bufferStart = from;
+			lineStart = from;
+			nextLineStart = from;
+		}
+
+		private byte byteAt(long position) throws IOException {
+			if (position < bufferStart || position >= bufferStart + bufferLength) {
+				fill(position);
+			}
+			return buffer[(int) (position - bufferStart)];
+		}
+
+		/**
+		 * Fills the buffer from the start of the current line, so that the whole
+		 * line is kept in the buffer
+		 */
+		private void fill(long position) throws IOException {
+			final long from = position >= lineStart ? lineStart : position;
+			while (position - from >= buffer.length) {
+				buffer = new byte[buffer.length * 2];
+			}
+			bufferStart = from;
+			final int toRead = (int) Math.min(buffer.length, fileLength - from);
+			final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, toRead);
+			while (byteBuffer.hasRemaining()) {
+				if (channel.read(byteBuffer, from + byteBuffer.position()) < 0) {
+					break;
+				}
+			}
+			bufferLength = byteBuffer.position();
+		}
+
+		/**
+		 * Moves to the next line
+		 *
+		 * @return false if the end of the file was reached
+		 * @throws IOException
+		 */
+		private boolean nextLine() throws IOException {
+			if (nextLineStart >= fileLength) {
+				return false;
+			}
+			lineStart = nextLineStart;
+			long position = lineStart;
+			while (position < fileLength) {
+				final byte b = byteAt(position);
+				if (b == '\n') {
+					lineEnd = position;
+					nextLineStart = position + 1;
+					return true;
+				}
+				if (b == '\r') {
+					lineEnd = position;
+					nextLineStart = position + 1;
+					if (nextLineStart < fileLength && byteAt(nextLineStart) == '\n') {
+						nextLineStart++;
+					}
+					return true;
+				}
+				position++;
+			}
+			lineEnd = fileLength;
+			nextLineStart = fileLength;
+			return true;
+		}
+
+		private long trimmedStart() throws IOException {
+			long ret = lineStart;
+			while (ret < lineEnd && (byteAt(ret) & 0xff) <= ' ') {
+				ret++;
+			}
+			return ret;
+		}
+
+		private long trimmedEnd() throws IOException {
+			long ret = lineEnd;
+			while (ret > lineStart && (byteAt(ret - 1) & 0xff) <= ' ') {
+				ret--;
+			}
+			return ret;
+		}
+
+		private boolean startsWith(byte[] token) throws IOException {
+			if (token == null) {
+				return false;
+			}
+			final long start = trimmedStart();
+			if (trimmedEnd() - start < token.length) {
+				return false;
+			}
+			for (int i = 0; i < token.length; i++) {
+				if (byteAt(start + i) != token[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean endsWith(byte[] token) throws IOException {
+			if (token == null) {
+				return false;
+			}
+			final long end = trimmedEnd();
+			if (end - trimmedStart() < token.length) {
+				return false;
+			}
+			for (int i = 0; i < token.length; i++) {
+				if (byteAt(end - token.length + i) != token[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean isBlank() throws IOException {
+			return trimmedStart() == lineEnd;
+		}
+
+		/**
+		 *
+		 * @return the current line as read by
+		 *         {@link java.io.RandomAccessFile#readLine()} and trimmed
+		 * @throws IOException
+		 */
+		private String getTrimmedLine() throws IOException {
+			final long start = trimmedStart();
+			final long end = trimmedEnd();
+			if (start >= end) {
+				return "";
+			}
+			// makes sure that the line is in the buffer
+			byteAt(start);
+			byteAt(end - 1);
+			return new String(buffer, (int) (start - bufferStart), (int) (end - start), StandardCharsets.ISO_8859_1);
+		}
+	}
+
+	/**
+	 * Entries found in a range of the file
+	 */
+	private static class Chunk {
+		private final long start;
+		private final long end;
+		private final TLongArrayList inits = new TLongArrayList();
+		private final TLongArrayList ends = new TLongArrayList();
+		// number of begin tokens found before each entry, in this chunk
+		private final TIntArrayList numBegins = new TIntArrayList();
+		private int totalBegins = 0;
+		// number of begin tokens in the previous chunks
+		private int previousBegins;
+
+		private Chunk(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 *
+	 * @return the same map than {@link TextFileIndexIO#getIndexMap()}
+	 * @throws IOException
+	 */
+	Map<String, Pair<Long, Long>> getIndexMap() throws IOException {
+		final Map<String, Pair<Long, Long>> ret = new THashMap<String, Pair<Long, Long>>();
+		if (!textFileIndexIO.fileToIndex.exists()) {
+			return ret;
+		}
+		final FileChannel channel = FileChannel.open(textFileIndexIO.fileToIndex.toPath(), StandardOpenOption.READ);
+		FileLock lock = channel.tryLock(0, Long.MAX_VALUE, true);
+		while (lock == null) {
+			lock = channel.tryLock(0, Long.MAX_VALUE, true);
+			try {
+				Thread.sleep(1000);
+			} catch (final InterruptedException e) {
+			}
+			log.info("Waiting for reading access to file " + textFileIndexIO.fileToIndex.getAbsolutePath());
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			final long fileLength = channel.size();
+			log.info("Indexing file of " + FileUtils.getDescriptiveSizeFromBytes(fileLength) + " in " + numThreads
+					+ " threads");
+			final List<Chunk> chunks = getChunks(channel, fileLength);
+			// first, look for the entries in each chunk
+			final List<Future<Chunk>> scans = new ArrayList<Future<Chunk>>();
+			for (final Chunk chunk : chunks) {
+				scans.add(executor.submit(new Callable<Chunk>() {
+					@Override
+					public Chunk call() throws Exception {
+						return scan(channel, fileLength, chunk);
+					}
+				}));
+			}
+			int previousBegins = 0;
+			for (final Future<Chunk> scan : scans) {
+				final Chunk chunk = getResult(scan);
+				chunk.previousBegins = previousBegins;
+				previousBegins += chunk.totalBegins;
+			}
+			// then get the keys of the entries, now that the number of each entry
+			// is known
+			final List<Future<Map<String, Pair<Long, Long>>>> partialMaps = new ArrayList<Future<Map<String, Pair<Long, Long>>>>();
+			for (final Chunk chunk : chunks) {
+				partialMaps.add(executor.submit(new Callable<Map<String, Pair<Long, Long>>>() {
+					@Override
+					public Map<String, Pair<Long, Long>> call() throws Exception {
+						return getPartialIndexMap(channel, fileLength, chunk);
+					}
+				}));
+			}
+			// merge them in order, so that repeated keys end up with the
+			// position of the last entry, as in the serial scan
+			for (final Future<Map<String, Pair<Long, Long>>> partialMap : partialMaps) {
+				ret.putAll(getResult(partialMap));
+			}
+			textFileIndexIO.numEntries = previousBegins;
+		} finally {
+			executor.shutdownNow();
+			if (lock != null) {
+				lock.release();
+			}
+			channel.close();
+		}
+		return ret;
+	}
+
+	private static <T> T getResult(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			throw new IOException("Indexing interrupted", e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Splits the file in ranges starting in lines that start with the begin
+	 * token
+	 */
+	private List<Chunk> getChunks(FileChannel channel, long fileLength) throws IOException {
+		final List<Chunk> ret = new ArrayList<Chunk>();
+		long start = 0;
+		for (int i = 1; i <= numThreads; i++) {
+			long end = fileLength;
+			if (i < numThreads) {
+				end = Math.max(start, findEntryStart(channel, fileLength, fileLength / numThreads * i));
+			}
+			if (end > start || (i == numThreads && ret.isEmpty())) {
+				ret.add(new Chunk(start, end));
+			}
+			start = end;
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @return the start of the first line after position that starts with the
+	 *         begin token, or the length of the file if there is not any
+	 */
+	private long findEntryStart(FileChannel channel, long fileLength, long position) throws IOException {
+		final LineScanner scanner = new LineScanner(channel, fileLength, Math.max(0, position - 1));
+		long lineStart = position;
+		if (position > 0) {
+			final byte previous = scanner.byteAt(position - 1);
+			if (previous != '\n' && previous != '\r') {
+				// go to the end of the line in which the position falls
+				scanner.nextLine();
+				lineStart = scanner.nextLineStart;
+			} else if (previous == '\r' && position < fileLength && scanner.byteAt(position) == '\n') {
+				lineStart = position + 1;
+			}
+		}
+		final LineScanner lines = new LineScanner(channel, fileLength, lineStart);
+		while (lines.nextLine()) {
+			if (lines.startsWith(beginToken)) {
+				return lines.lineStart;
+			}
+		}
+		return fileLength;
+	}
+
+	private Chunk scan(FileChannel channel, long fileLength, Chunk chunk) throws IOException {
+		final LineScanner scanner = new LineScanner(channel, fileLength, chunk.start);
+		long init = chunk.start;
+		final boolean emptyEndToken = endToken != null && endToken.length == 0;
+		while (scanner.nextLine() && scanner.lineStart < chunk.end) {
+			if (scanner.startsWith(beginToken)) {
+				chunk.totalBegins++;
+				init = scanner.lineStart;
+			}
+			if ((!emptyEndToken && scanner.endsWith(endToken)) || (emptyEndToken && scanner.isBlank())) {
+				chunk.inits.add(init);
+				chunk.ends.add(scanner.nextLineStart);
+				chunk.numBegins.add(chunk.totalBegins);
+			}
+		}
+		log.debug("Range " + chunk.start + "-" + chunk.end + " scanned with " + chunk.inits.size() + " entries");
+		return chunk;
+	}
+
+	private Map<String, Pair<Long, Long>> getPartialIndexMap(FileChannel channel, long fileLength, Chunk chunk)
+			throws IOException {
+		final Map<String, Pair<Long, Long>> ret = new THashMap<String, Pair<Long, Long>>();
+		for (int i = 0; i < chunk.inits.size(); i++) {
+			final int entryNumber = chunk.previousBegins + chunk.numBegins.get(i);
+			final Pair<Long, Long> pair = new Pair<Long, Long>(chunk.inits.get(i), chunk.ends.get(i));
+			final Set<String> keys;
+			if (keysFromText) {
+				keys = textFileIndexIO.getKeys(getEntryText(channel, fileLength, chunk.inits.get(i), chunk.ends.get(i)),
+						entryNumber);
+			} else {
+				keys = textFileIndexIO.getKeys(null, entryNumber);
+			}
+			for (final String key : keys) {
+				ret.put(key, pair);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @return the same text that the serial scan passes to getKeys
+	 */
+	private String getEntryText(FileChannel channel, long fileLength, long init, long end) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		final LineScanner scanner = new LineScanner(channel, fileLength, init);
+		while (scanner.nextLine() && scanner.lineStart < end) {
+			sb.append(scanner.getTrimmedLine()).append("\n");
+		}
+		return sb.toString();
+	}
+}
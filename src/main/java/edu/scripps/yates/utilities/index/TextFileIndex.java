@@ -9,8 +9,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -20,14 +22,25 @@ import org.apache.log4j.Logger;
 
 import edu.scripps.yates.utilities.files.FileUtils;
 import edu.scripps.yates.utilities.util.Pair;
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.hash.THashMap;
+import gnu.trove.set.hash.THashSet;
 
 public class TextFileIndex implements FileIndex<String> {
 	private final Logger log = Logger.getLogger(TextFileIndex.class);
 	private final File fileToIndex;
 	private final File indexFile;
+	private final File binaryIndexFile;
+	// entries of the text index file that are not in the binary index
 	private final Map<String, Pair<Long, Long>> indexMap = new THashMap<String, Pair<Long, Long>>();
+	private MappedIndexFile binaryIndex;
 	private final static String INDEX_EXT = ".idx";
+	private final static String BINARY_INDEX_EXT = ".bidx";
+	// if the text index file has more entries than these that are not in the
+	// binary index, or more than a quarter of the ones in it, the binary index
+	// is rebuilt, so that appending many items takes linear time
+	private static final int MAX_ENTRIES_OUT_OF_BINARY_INDEX = 10000;
+	private static final int MAX_FRACTION_OUT_OF_BINARY_INDEX = 4;
 	private static final String TAB = "\t";
 	private static final String NEWLINE = "\n";
 	private final TextFileIndexIO textFileIndexIO;
@@ -41,20 +54,22 @@ public class TextFileIndex implements FileIndex<String> {
 	public TextFileIndex(File file, TextFileIndexIO textFileIndexIO) throws IOException {
 		fileToIndex = file;
 		// create the index file .idx
-		indexFile = new File(getIndexPathName(file));
+		indexFile = new File(getIndexPathName(file, INDEX_EXT));
+		binaryIndexFile = new File(getIndexPathName(file, BINARY_INDEX_EXT));
 		this.textFileIndexIO = textFileIndexIO;
 	}
 
 	public TextFileIndex(File file, String beginToken, String endToken) throws IOException {
 		fileToIndex = file;
 		// create the index file
-		indexFile = new File(getIndexPathName(file));
+		indexFile = new File(getIndexPathName(file, INDEX_EXT));
+		binaryIndexFile = new File(getIndexPathName(file, BINARY_INDEX_EXT));
 		textFileIndexIO = new TextFileIndexIO(fileToIndex, beginToken, endToken);
 	}
 
-	private String getIndexPathName(File file) {
+	private String getIndexPathName(File file, String extension) {
 		final String pathName = file.getParent() + File.separator + FilenameUtils.getBaseName(file.getAbsolutePath())
-				+ INDEX_EXT;
+				+ extension;
 		return pathName;
 	}
 
@@ -63,13 +78,26 @@ public class TextFileIndex implements FileIndex<String> {
 	}
 
 	public void indexFile() throws IOException {
+		indexFile(1);
+	}
+
+	/**
+	 * Indexes the file reading it in several threads. The resulting index is the
+	 * same than the one of {@link #indexFile()}.
+	 * 
+	 * @param numThreads
+	 * @throws IOException
+	 */
+	public void indexFile(int numThreads) throws IOException {
 		log.info("Indexing file " + FilenameUtils.getName(fileToIndex.getAbsolutePath()) + "...");
 		// read the index, getting the positions of the items
-		final Map<String, Pair<Long, Long>> indexMap = textFileIndexIO.getIndexMap();
-		// add to the map
-		this.indexMap.putAll(indexMap);
+		final Map<String, Pair<Long, Long>> indexMap = textFileIndexIO.getIndexMap(numThreads);
 		// write the index file without appending
 		writePositionsInIndex(indexMap, false);
+		// and the binary index, which is the one used for the lookups
+		MappedIndexFile.write(binaryIndexFile, indexFile, indexFile.length(), indexMap);
+		binaryIndex = MappedIndexFile.open(binaryIndexFile);
+		this.indexMap.clear();
 
 	}
 
@@ -85,7 +113,7 @@ public class TextFileIndex implements FileIndex<String> {
 			}
 			log.info("Waiting for writting access to file " + indexFile.getAbsolutePath());
 		}
-		final BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos));
+		final BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
 		try {
 			for (final String key : itemPositions.keySet()) {
 				final Pair<Long, Long> pair = itemPositions.get(key);
@@ -106,11 +134,9 @@ public class TextFileIndex implements FileIndex<String> {
 	@Override
 	public String getItem(String key) {
 		try {
-			// load index file
-			final Map<String, Pair<Long, Long>> indexMap = loadIndexFile();
 			// look for the provided key
-			if (indexMap.containsKey(key)) {
-				final Pair<Long, Long> pair = indexMap.get(key);
+			final Pair<Long, Long> pair = getPositions(key);
+			if (pair != null) {
 				final String item = textFileIndexIO.getItem(pair.getFirstelement(), pair.getSecondElement());
 				return item;
 			}
@@ -122,46 +148,161 @@ public class TextFileIndex implements FileIndex<String> {
 		return null;
 	}
 
-	private Map<String, Pair<Long, Long>> loadIndexFile() throws IOException {
+	/**
+	 * 
+	 * @param key
+	 * @return true if there is an item with that key in the index
+	 */
+	public boolean containsKey(String key) {
+		try {
+			return getPositions(key) != null;
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.error(e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * 
+	 * @param key
+	 * @return the start and end positions of the item in the indexed file, or
+	 *         null if the key is not in the index
+	 * @throws IOException
+	 */
+	public Pair<Long, Long> getPositions(String key) throws IOException {
+		// load index file
+		loadIndexFile();
+		// items added after the binary index was built take precedence
+		final Pair<Long, Long> pair = indexMap.get(key);
+		if (pair != null) {
+			return pair;
+		}
+		return binaryIndex.get(key);
+	}
+
+	private void loadIndexFile() throws IOException {
 		// if not ready, means that the index file has to be updated
 		if (status == Status.NOT_READY) {
 			indexMap.clear();
+			binaryIndex = null;
 			if (indexFile == null || !indexFile.exists() || indexFile.length() <= 0) {
 				indexFile();
 			}
+			status = Status.READY;
 		}
-		// if index Map is empty, read the index file
-		if (indexMap.isEmpty()) {
-			final FileInputStream fis = new FileInputStream(indexFile);
-			FileLock lock = fis.getChannel().tryLock(0, Long.MAX_VALUE, true);
-			while (lock == null) {
-				lock = fis.getChannel().tryLock(0, Long.MAX_VALUE, true);
+		if (binaryIndex == null) {
+			if (binaryIndexFile.exists()) {
 				try {
-					Thread.sleep(1000);
-				} catch (final InterruptedException e) {
+					binaryIndex = MappedIndexFile.open(binaryIndexFile);
+					if (!binaryIndex.isUpToDate(indexFile)) {
+						// the text index was rewritten after the binary one
+						binaryIndex = null;
+					}
+				} catch (final IOException e) {
+					log.warn("Error reading binary index file " + binaryIndexFile.getAbsolutePath() + ": "
+							+ e.getMessage());
+					binaryIndex = null;
 				}
-				log.info("Waiting for reading access to file " + indexFile.getAbsolutePath());
 			}
-			final BufferedReader fr = new BufferedReader(new InputStreamReader(fis));
-			try {
-				String line;
-				while ((line = fr.readLine()) != null) {
-					final String[] split = line.split(TAB);
-					final String key = split[0];
-					final long start = new Long(split[1]);
-					final long end = new Long(split[2]);
-					final Pair<Long, Long> pair = new Pair<Long, Long>(start, end);
-					indexMap.put(key, pair);
-				}
-			} finally {
-				if (lock != null) {
-					lock.release();
+			if (binaryIndex != null) {
+				// read the entries appended to the text index after the binary one
+				// was built
+				readIndexFile(binaryIndex.getSourceLength(), indexMap);
+				if (isBinaryIndexRebuildNeeded()) {
+					binaryIndex = null;
+					indexMap.clear();
 				}
-				fr.close();
+			}
+			if (binaryIndex == null) {
+				buildBinaryIndexFromIndexFile();
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return true if there are too many entries of the text index out of the
+	 *         binary index
+	 */
+	private boolean isBinaryIndexRebuildNeeded() {
+		return indexMap.size() > Math.max(MAX_ENTRIES_OUT_OF_BINARY_INDEX,
+				binaryIndex.getNumEntries() / MAX_FRACTION_OUT_OF_BINARY_INDEX);
+	}
+
+	/**
+	 * Builds the binary index file from the text index file, which is how the
+	 * text index files written by previous versions are migrated
+	 * 
+	 * @throws IOException
+	 */
+	private void buildBinaryIndexFromIndexFile() throws IOException {
+		log.info("Building binary index from " + FilenameUtils.getName(indexFile.getAbsolutePath()) + "...");
+		final List<String> keys = new ArrayList<String>();
+		final TLongArrayList starts = new TLongArrayList();
+		final TLongArrayList ends = new TLongArrayList();
+		final long sourceLength = readIndexFile(0, keys, starts, ends);
+		MappedIndexFile.write(binaryIndexFile, indexFile, sourceLength, keys, starts, ends);
+		binaryIndex = MappedIndexFile.open(binaryIndexFile);
+		log.info("Binary index built with " + keys.size() + " entries. File of index: "
+				+ FileUtils.getDescriptiveSizeFromBytes(binaryIndexFile.length()));
+	}
+
+	private long readIndexFile(long from, Map<String, Pair<Long, Long>> map) throws IOException {
+		final List<String> keys = new ArrayList<String>();
+		final TLongArrayList starts = new TLongArrayList();
+		final TLongArrayList ends = new TLongArrayList();
+		final long ret = readIndexFile(from, keys, starts, ends);
+		for (int i = 0; i < keys.size(); i++) {
+			map.put(keys.get(i), new Pair<Long, Long>(starts.get(i), ends.get(i)));
+		}
+		return ret;
+	}
 
+	/**
+	 * Reads the text index file from a given position
+	 * 
+	 * @param from
+	 * @param keys
+	 * @param starts
+	 * @param ends
+	 * @return the position up to which the file has been read
+	 * @throws IOException
+	 */
+	private long readIndexFile(long from, List<String> keys, TLongArrayList starts, TLongArrayList ends)
+			throws IOException {
+		final FileInputStream fis = new FileInputStream(indexFile);
+		FileLock lock = fis.getChannel().tryLock(0, Long.MAX_VALUE, true);
+		while (lock == null) {
+			lock = fis.getChannel().tryLock(0, Long.MAX_VALUE, true);
+			try {
+				Thread.sleep(1000);
+			} catch (final InterruptedException e) {
 			}
+			log.info("Waiting for reading access to file " + indexFile.getAbsolutePath());
 		}
-		return indexMap;
+		final long length = fis.getChannel().size();
+		fis.getChannel().position(from);
+		final BufferedReader fr = new BufferedReader(new InputStreamReader(fis, StandardCharsets.UTF_8));
+		try {
+			String line;
+			while ((line = fr.readLine()) != null) {
+				final int firstTab = line.indexOf(TAB);
+				final int secondTab = line.indexOf(TAB, firstTab + 1);
+				if (firstTab < 0 || secondTab < 0) {
+					continue;
+				}
+				keys.add(line.substring(0, firstTab));
+				starts.add(Long.parseLong(line.substring(firstTab + 1, secondTab)));
+				ends.add(Long.parseLong(line.substring(secondTab + 1)));
+			}
+		} finally {
+			if (lock != null) {
+				lock.release();
+			}
+			fr.close();
+		}
+		return length;
 	}
 
 	/**
@@ -174,20 +315,44 @@ public class TextFileIndex implements FileIndex<String> {
 	 */
 	@Override
 	public Map<String, Pair<Long, Long>> addItem(String item, Set<String> keys) {
+		return addItems(Collections.singletonList(item), Collections.singletonList(keys));
+	}
+
+	/**
+	 * Adds several items to the index, writing them together in the indexed file
+	 * and updating the index file once
+	 * 
+	 * @param items
+	 * @param keys  the keys of each item, or null to get them from the items
+	 * @return the positions of the items by key, or null if they could not be
+	 *         written
+	 */
+	public Map<String, Pair<Long, Long>> addItems(List<String> items, List<Set<String>> keys) {
 		// load index file
 		try {
 			loadIndexFile();
 
 			// add into the file to index
 
-			final Map<String, Pair<Long, Long>> itemPositions = textFileIndexIO.addNewItem(item, keys);
+			final Map<String, Pair<Long, Long>> itemPositions = textFileIndexIO.addNewItems(items, keys);
 
-			// add to the map
+			// add to the map of the entries that are not in the binary index
 			indexMap.putAll(itemPositions);
 
 			// write the index file appending
 			writePositionsInIndex(itemPositions, true);
 
+			if (isBinaryIndexRebuildNeeded()) {
+				// so that the new entries don't accumulate in the heap
+				try {
+					buildBinaryIndexFromIndexFile();
+					indexMap.clear();
+				} catch (final IOException e) {
+					log.warn("Error rebuilding binary index file " + binaryIndexFile.getAbsolutePath() + ": "
+							+ e.getMessage());
+				}
+			}
+
 			// return the positions
 			return itemPositions;
 		} catch (final IOException e) {
@@ -199,7 +364,7 @@ public class TextFileIndex implements FileIndex<String> {
 
 	@Override
 	public boolean isEmpty() {
-		if (status == Status.READY && indexMap.isEmpty()) {
+		if (status == Status.READY && indexMap.isEmpty() && (binaryIndex == null || binaryIndex.isEmpty())) {
 			return true;
 		}
 		return false;
@@ -207,21 +372,46 @@ public class TextFileIndex implements FileIndex<String> {
 
 	@Override
 	public List<String> getItems(Collection<String> keys) {
-		final List<String> ret = new ArrayList<String>();
-		for (final String key : keys) {
-			final String item = getItem(key);
-			if (item != null) {
-				ret.add(item);
+		try {
+			final List<Pair<Long, Long>> positions = new ArrayList<Pair<Long, Long>>();
+			int numMissingKeys = 0;
+			for (final String key : keys) {
+				final Pair<Long, Long> pair = getPositions(key);
+				if (pair != null) {
+					positions.add(pair);
+				} else {
+					numMissingKeys++;
+					log.debug("Item with key '" + key + "' is not in the index");
+				}
 			}
+			if (numMissingKeys > 0) {
+				log.info(numMissingKeys + " out of " + keys.size() + " keys are not in the index");
+			}
+			// all the items are read at once
+			return textFileIndexIO.getItems(positions);
+		} catch (final IOException e) {
+			e.printStackTrace();
+			log.error(e.getMessage());
 		}
-		return ret;
+		return new ArrayList<String>();
+	}
+
+	/**
+	 * Closes the channel used to read the indexed file
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		textFileIndexIO.close();
 	}
 
 	public List<String> getAllItemKeys() throws IOException {
 
-		final List<String> ret = new ArrayList<String>();
-		ret.addAll(loadIndexFile().keySet());
-		return ret;
+		loadIndexFile();
+		final Set<String> ret = new THashSet<String>();
+		ret.addAll(binaryIndex.getKeys());
+		ret.addAll(indexMap.keySet());
+		return new ArrayList<String>(ret);
 	}
 
 }
@@ -6,6 +6,9 @@ import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -36,6 +39,7 @@ public class TextFileIndexIO {
 	protected final String beginToken;
 	protected final String endToken;
 	protected final File fileToIndex;
+	private final IndexedFileReader reader;
 
 	/**
 	 * Constructor of the indexer of text files. It takes, the path to the file, and
@@ -71,6 +75,7 @@ public class TextFileIndexIO {
 		this.endToken = endToken;
 		numEntries = 0;
 		fileToIndex = file;
+		reader = new IndexedFileReader(file);
 	}
 
 	/**
@@ -88,6 +93,61 @@ public class TextFileIndexIO {
 		return set;
 	}
 
+	/**
+	 * Gets the keys to use in the index for the entry with a given number,
+	 * counted from 1.<br>
+	 * This is the method used when the file is indexed in parallel, so it may be
+	 * called from several threads at the same time. By default, it returns the
+	 * number of the entry, as {@link #getKeys(String)} does.<br>
+	 * Override this function, in a thread safe way, in order to index the entry
+	 * by another custom keys when indexing in parallel.
+	 * 
+	 * @param string
+	 * @param entryNumber
+	 * @return
+	 */
+	protected Set<String> getKeys(String string, int entryNumber) {
+		final Set<String> set = new THashSet<String>();
+		set.add(String.valueOf(entryNumber));
+		return set;
+	}
+
+	private boolean isOverridden(String methodName, Class<?>... parameterTypes) {
+		Class<?> clazz = getClass();
+		while (clazz != TextFileIndexIO.class) {
+			try {
+				clazz.getDeclaredMethod(methodName, parameterTypes);
+				return true;
+			} catch (final NoSuchMethodException e) {
+				clazz = clazz.getSuperclass();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the same index map than {@link #getIndexMap()}, but reading the file
+	 * in parallel, splitting it in ranges that start with the begin token.<br>
+	 * If {@link #getKeys(String)} is overridden but not
+	 * {@link #getKeys(String, int)}, the file is read serially, since the keys
+	 * could not be the same.
+	 * 
+	 * @param numThreads
+	 * @return the indexMap
+	 * @throws IOException
+	 */
+	public Map<String, Pair<Long, Long>> getIndexMap(int numThreads) throws IOException {
+		final boolean keysFromText = isOverridden("getKeys", String.class, int.class);
+		if (numThreads <= 1 || (!keysFromText && isOverridden("getKeys", String.class))) {
+			if (numThreads > 1) {
+				log.warn("getKeys(String, int) is not implemented in " + getClass().getName()
+						+ ". Indexing the file in a single thread");
+			}
+			return getIndexMap();
+		}
+		return new ParallelTextFileIndexer(this, numThreads, keysFromText).getIndexMap();
+	}
+
 	/**
 	 * @return the indexMap
 	 * @throws IOException
@@ -161,21 +221,43 @@ public class TextFileIndexIO {
 	 * @throws IOException
 	 */
 	public Map<String, Pair<Long, Long>> addNewItem(String item, Set<String> keys) throws IOException {
+		return addNewItems(Collections.singletonList(item), Collections.singletonList(keys));
+	}
 
-		if (!item.startsWith(beginToken)) {
-			if (item.contains(beginToken)) {
-				item = item.substring(item.indexOf(beginToken));
-			} else {
-				throw new IllegalArgumentException(
-						"The provided item '" + item + "' is not starting with the begin Token '" + beginToken + "'");
+	/**
+	 * Adds several items at the end of the file to index, with only one access to
+	 * the file
+	 * 
+	 * @param items
+	 * @param keys  the keys of each item, or null to get them from the item
+	 * @return a map containing the keys and positions in where the items were
+	 *         stored
+	 * @throws IOException
+	 */
+	public Map<String, Pair<Long, Long>> addNewItems(List<String> items, List<Set<String>> keys)
+			throws IOException {
+		final List<String> itemsToWrite = new ArrayList<String>();
+		final List<byte[]> bytesToWrite = new ArrayList<byte[]>();
+		int length = 0;
+		for (String item : items) {
+			if (!item.startsWith(beginToken)) {
+				if (item.contains(beginToken)) {
+					item = item.substring(item.indexOf(beginToken));
+				} else {
+					throw new IllegalArgumentException("The provided item '" + item
+							+ "' is not starting with the begin Token '" + beginToken + "'");
+				}
 			}
-		}
-		if (!item.endsWith(endToken))
-			throw new IllegalArgumentException(
-					"The provided item '" + item + "' is not ending with the end Token '" + endToken + "'");
+			if (!item.endsWith(endToken))
+				throw new IllegalArgumentException(
+						"The provided item '" + item + "' is not ending with the end Token '" + endToken + "'");
 
-		item = "\n" + item;
-		final byte[] bytes = item.getBytes();
+			item = "\n" + item;
+			final byte[] bytes = item.getBytes();
+			itemsToWrite.add(item);
+			bytesToWrite.add(bytes);
+			length += bytes.length;
+		}
 
 		MappedByteBuffer buffer = null;
 		final RandomAccessFile raf = new RandomAccessFile(fileToIndex, "rws");
@@ -190,33 +272,30 @@ public class TextFileIndexIO {
 		}
 		try {
 
-			buffer = raf.getChannel().map(MapMode.READ_WRITE, raf.length(), bytes.length);
+			// the positions have to be taken before mapping, because mapping beyond
+			// the end of the file makes it grow
+			long init = raf.length();
+			buffer = raf.getChannel().map(MapMode.READ_WRITE, init, length);
 
 			final Map<String, Pair<Long, Long>> ret = new THashMap<String, Pair<Long, Long>>();
-			// char[] itemInChars = item.toCharArray();
-
-			// go to the end
-			// raf.seek(raf.length());
-			// raf.writeBytes("\n");
-			// long init = raf.length();
-			// long end = raf.length() + itemInChars.length;
-			// raf.writeBytes(item);
+			for (int i = 0; i < itemsToWrite.size(); i++) {
+				final byte[] bytes = bytesToWrite.get(i);
+				buffer.put(bytes);
+				final long end = init + bytes.length;
 
-			// go to the end
-			final long init = raf.length();
-			final long end = raf.length() + bytes.length;
-			buffer.put(bytes);
-
-			// it is important to increase this variable before getKeys() is
-			// called
-			numEntries++;
-			// if everything is fine, store in the map
-			final Pair<Long, Long> pair = new Pair<Long, Long>(init, end);
-			if (keys == null || keys.isEmpty()) {
-				keys = getKeys(item);
-			}
-			for (final String key : keys) {
-				ret.put(key, pair);
+				// it is important to increase this variable before getKeys() is
+				// called
+				numEntries++;
+				// if everything is fine, store in the map
+				final Pair<Long, Long> pair = new Pair<Long, Long>(init, end);
+				Set<String> itemKeys = keys == null ? null : keys.get(i);
+				if (itemKeys == null || itemKeys.isEmpty()) {
+					itemKeys = getKeys(itemsToWrite.get(i));
+				}
+				for (final String key : itemKeys) {
+					ret.put(key, pair);
+				}
+				init = end;
 			}
 			return ret;
 		} finally {
@@ -237,25 +316,35 @@ public class TextFileIndexIO {
 	}
 
 	/**
+	 * Gets the item between two positions of the file. The file is read through
+	 * a channel that is shared by all the calls, without any file lock.
 	 * 
-	 * @param firstelement
-	 * @param secondElement
+	 * @param start
+	 * @param end
 	 * @throws IOException
 	 */
 	public String getItem(Long start, Long end) throws IOException {
+		return reader.read(start, end);
+	}
 
-		final RandomAccessFile raf = new RandomAccessFile(fileToIndex, "r");
-		try {
-			// go to the start
-			raf.seek(start);
-			final int lenthToRead = new Long(end - start).intValue();
-			// array to store the readed item
-			final byte[] bytesToRead = new byte[lenthToRead];
-			raf.read(bytesToRead);
-			final String readed = new String(bytesToRead);
-			return readed;
-		} finally {
-			raf.close();
-		}
+	/**
+	 * Gets several items at once, reading together the ones that are close in
+	 * the file
+	 * 
+	 * @param positions the start and end positions of the items
+	 * @return the items, in the same order than the positions
+	 * @throws IOException
+	 */
+	public List<String> getItems(List<Pair<Long, Long>> positions) throws IOException {
+		return reader.read(positions);
+	}
+
+	/**
+	 * Closes the channel used to read the items
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.close();
 	}
 }
@@ -6,7 +6,7 @@ import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
-import java.nio.channels.OverlappingFileLockException;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -40,6 +40,7 @@ public class TextFileIndexMultiThreadSafeIO {
 	private final String beginToken;
 	private final String endToken;
 	private final File fileToIndex;
+	private final IndexedFileReader reader;
 
 	/**
 	 * Constructor of the indexer of text files. It takes, the path to the file, and
@@ -75,6 +76,7 @@ public class TextFileIndexMultiThreadSafeIO {
 		this.endToken = endToken;
 		numEntries = 0;
 		fileToIndex = file;
+		reader = new IndexedFileReader(file);
 	}
 
 	/**
@@ -352,47 +354,35 @@ public class TextFileIndexMultiThreadSafeIO {
 	}
 
 	/**
+	 * Gets the item between two positions of the file. The file is read through
+	 * a channel that is shared by all the calls, without any file lock.
 	 * 
-	 * @param firstelement
-	 * @param secondElement
+	 * @param start
+	 * @param end
 	 * @throws IOException
 	 */
 	public String getItem(Long start, Long end) throws IOException {
+		return reader.read(start, end);
+	}
 
-		final RandomAccessFile raf = new RandomAccessFile(fileToIndex, "r");
-		FileLock lock = null;
-		try {
-			lock = raf.getChannel().tryLock(start, end - start, true);
-		} catch (final OverlappingFileLockException e) {
-			log.info(e);
-		}
-		while (lock == null) {
-			try {
-				lock = raf.getChannel().tryLock(start, end - start, true);
-			} catch (final OverlappingFileLockException e) {
-				log.info(e);
-			}
-			try {
-				Thread.sleep(1000);
-			} catch (final InterruptedException e) {
-			}
-			log.info("Waiting for reading access to file " + fileToIndex.getAbsolutePath());
-		}
-		try {
-			// go to the start
-			raf.seek(start);
-			final int lenthToRead = new Long(end - start).intValue();
-			// array to store the readed item
-			final byte[] bytesToRead = new byte[lenthToRead];
-			raf.read(bytesToRead);
-			final String readed = new String(bytesToRead);
-			return readed;
-		} finally {
-			if (lock != null) {
-				lock.release();
-			}
-			raf.close();
+	/**
+	 * Gets several items at once, reading together the ones that are close in
+	 * the file
+	 * 
+	 * @param positions the start and end positions of the items
+	 * @return the items, in the same order than the positions
+	 * @throws IOException
+	 */
+	public List<String> getItems(List<Pair<Long, Long>> positions) throws IOException {
+		return reader.read(positions);
+	}
 
-		}
+	/**
+	 * Closes the channel used to read the items
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		reader.close();
 	}
 }
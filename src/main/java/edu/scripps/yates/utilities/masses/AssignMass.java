@@ -1,5 +1,15 @@
 package edu.scripps.yates.utilities.masses;
 
+/**
+ * Masses of the residues and of the fragment ions of the peptides, kept in
+ * static tables that are shared by the whole JVM. Use a {@link MassTable} to
+ * have tables that don't change, and a {@link FragmentIonCalculator} to
+ * calculate the fragment ions of many peptides without creating an array per
+ * peptide.
+ *
+ * @author Salva
+ *
+ */
 public class AssignMass {
 	public static final int SIZE = 256;
 
@@ -9,8 +19,8 @@ public class AssignMass {
 	public static final int MADD_DIFF_C12C13_PPM = 1003;
 	private static final double double_ZERO = 0.000001;
 
-	private static final double[] aaMassAvg = new double[SIZE];
-	protected static final double[] aaMassMono = new double[SIZE];
+	private static final double[] aaMassAvg = MassTable.AVERAGE.getResidueMasses();
+	protected static final double[] aaMassMono = MassTable.MONOISOTOPIC.getResidueMasses();
 	// added by SALVA May-3rd-2018
 	public static final double H = 1.00784;
 	public static final double O = 15.99903;
@@ -49,76 +59,16 @@ public class AssignMass {
 	private static double nTerm;
 	private static double yionfragment;
 	private static double bionfragment;
+	/**
+	 * Relative abundances of the first 20 isotopic peaks of averagine, at
+	 * masses from {@link #ISOTOPIC_DISTRIBUTION_MASS_STEP} (first row) every
+	 * {@link #ISOTOPIC_DISTRIBUTION_MASS_STEP}
+	 */
 	private static final double[][] isotopicDistribution = new double[20][20];
+	public static final double ISOTOPIC_DISTRIBUTION_MASS_STEP = 500.0;
 	public static final int[][] intensePeaks = new int[20][];
 	public static final int[] mostIntensePeaks = new int[20];
 
-	static {
-		aaMassAvg['G'] = 57.05192;
-		aaMassMono['G'] = 57.0214636;
-		aaMassAvg['A'] = 71.07880;
-		aaMassMono['A'] = 71.0371136;
-		aaMassAvg['S'] = 87.07820;
-		aaMassMono['S'] = 87.0320282;
-		aaMassAvg['P'] = 97.11668;
-		aaMassMono['P'] = 97.0527636;
-		aaMassAvg['V'] = 99.13256;
-		aaMassMono['V'] = 99.0684136;
-		aaMassAvg['T'] = 101.10508;
-		aaMassMono['T'] = 101.0476782;
-		aaMassAvg['C'] = 103.13880;
-		aaMassMono['C'] = 103.0091854;
-		aaMassAvg['L'] = 113.15944;
-		aaMassMono['L'] = 113.0840636;
-		aaMassAvg['I'] = 113.15944;
-		aaMassMono['I'] = 113.0840636;
-		// X means any AA, so this is done to not crash, but the resulting mass
-		// shouldn't make sense
-		aaMassAvg['X'] = 113.15944;
-		aaMassMono['X'] = 113.0840636;
-		aaMassAvg['N'] = 114.10384;
-		aaMassMono['N'] = 114.0429272;
-		// added by SALVA May-3rd-2018
-		// pyrrolysine
-		// aaMassAvg['O'] = 114.14720;
-		// aaMassMono['O'] = 114.0793126;
-		aaMassAvg['O'] = 237.30249;
-		aaMassMono['O'] = 237.147785;
-
-		// according to Uniprot B is Aspartic acid or Asparagine, that is, D or
-		// N
-		aaMassAvg['B'] = 114.59622;
-		aaMassMono['B'] = 114.5349350;
-		aaMassAvg['D'] = 115.08860;
-		aaMassMono['D'] = 115.0269428;
-		aaMassAvg['Q'] = 128.13072;
-		aaMassMono['Q'] = 128.0585772;
-		aaMassAvg['K'] = 128.17408;
-		aaMassMono['K'] = 128.0949626;
-		// according to Uniprot, Z is Glutamic acid or Glutamine, that is, E or
-		// Q
-		aaMassAvg['Z'] = 128.62310;
-		aaMassMono['Z'] = 128.5505850;
-		aaMassAvg['E'] = 129.11548;
-		aaMassMono['E'] = 129.0425928;
-		aaMassAvg['M'] = 131.19256;
-		aaMassMono['M'] = 131.0404854;
-		aaMassAvg['H'] = 137.14108;
-		aaMassMono['H'] = 137.0589116;
-		aaMassAvg['F'] = 147.17656;
-		aaMassMono['F'] = 147.0684136;
-		aaMassAvg['R'] = 156.18748;
-		aaMassMono['R'] = 156.1011106;
-		aaMassAvg['Y'] = 163.17596;
-		aaMassMono['Y'] = 163.0633282;
-		aaMassAvg['W'] = 186.21320;
-		aaMassMono['W'] = 186.0793126;
-		// added by SALVA May-3rd-2018
-		// U is selenocysteine
-		aaMassAvg['U'] = 150.04249;
-		aaMassMono['U'] = 150.953693;
-	}
-
 	static {
 		// from averagine
 		isotopicDistribution[0][0] = 1.000000;
@@ -547,6 +497,12 @@ public class AssignMass {
 		return aaMasses[i];
 	}
 
+	/**
+	 *
+	 * @param seq
+	 * @param ion a (0), b (1) or c (2)
+	 * @return the forward ions of the peptide, skipping the residues without mass
+	 */
 	public static double[] getFragIonArr(String seq, int ion) {
 
 		final int size = seq.length() - 1; // TODO BUG ? should be seq.length()
@@ -592,6 +548,13 @@ public class AssignMass {
 		return arr;
 	}
 
+	/**
+	 *
+	 * @param seq
+	 * @param ion x (6), y (7) or z (8)
+	 * @return the reverse ions of the peptide, skipping the residues without
+	 *         mass
+	 */
 	public static double[] getFragIonArrRev(String seq, int ion) {
 
 		// seq="YLK";
@@ -641,6 +604,14 @@ public class AssignMass {
 		return rarr;
 	}
 
+	/**
+	 *
+	 * @param seq
+	 * @param ion          a (0), b (1) or c (2)
+	 * @param modIndexHash
+	 * @return the forward ions of the peptide, with the differential
+	 *         modifications
+	 */
 	public static double[] getFragIonArrMod(String seq, int ion, int[] modIndexHash) {
 
 		final int size = seq.length() - 1;
@@ -687,6 +658,14 @@ public class AssignMass {
 		return arr;
 	}
 
+	/**
+	 *
+	 * @param seq
+	 * @param ion          x (6), y (7) or z (8)
+	 * @param modIndexHash
+	 * @return the reverse ions of the peptide, with the differential
+	 *         modifications
+	 */
 	public static double[] getFragIonArrRevMod(String seq, int ion, int[] modIndexHash) {
 
 		final int size = seq.length() - 1; // TODO BUG? should be seq.length()
@@ -763,21 +742,19 @@ public class AssignMass {
 		// System.out.println("=======" + useMono);
 
 		// pdAAMass = new double[SIZE];
+		// the constants are taken from the immutable tables, which are the ones
+		// that should be used when the masses are needed from multiple threads
+		final MassTable table = MassTable.getDefault(useMono);
 		if (useMono) {
 			aaMasses = aaMassMono;
-
-			binWidth = 1.0005079;
-			hplus = 1.0072765;
-			h = 1.0078250;
-			oh = 15.9949146f + h;
 		} else /* average masses */
 		{
 			aaMasses = aaMassAvg;
-			binWidth = 1.0011413;
-			hplus = 1.00739;
-			h = 1.00794;
-			oh = 15.9994f + h;
 		}
+		binWidth = table.getBinWidth();
+		hplus = table.getHplus();
+		h = table.getH();
+		oh = table.getOh();
 
 	}
 
@@ -899,6 +876,21 @@ public class AssignMass {
 		// return (int)( (mass+shift)+ 0.5);
 	}
 
+	/**
+	 *
+	 * @param row from 0 to {@link #getNumIsotopicDistributions()}
+	 * @return a copy of the relative abundances of the isotopic peaks of
+	 *         averagine at mass (row + 1) *
+	 *         {@link #ISOTOPIC_DISTRIBUTION_MASS_STEP}, the most intense being 1
+	 */
+	public static double[] getIsotopicDistribution(int row) {
+		return isotopicDistribution[row].clone();
+	}
+
+	public static int getNumIsotopicDistributions() {
+		return isotopicDistribution.length;
+	}
+
 	public static void loadIntensePeaks() {
 		for (int i = 0; i < 20; i++) {
 			int numPeaks = 0;
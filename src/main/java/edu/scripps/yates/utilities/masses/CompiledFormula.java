@@ -0,0 +1,82 @@
+package edu.scripps.yates.utilities.masses;
+
+/**
+ * Chemical formula parsed by a {@link FormulaCalculator} into the number of
+ * atoms of each of its elements, with its mass already calculated. It is
+ * immutable.
+ *
+ * @author Salva
+ *
+ */
+public class CompiledFormula {
+	private final String formula;
+	private final String[] elements;
+	private final int[] counts;
+	private final double mass;
+
+	CompiledFormula(String formula, String[] elements, int[] counts, double mass) {
+		this.formula = formula;
+		this.elements = elements;
+		this.counts = counts;
+		this.mass = mass;
+	}
+
+	public String getFormula() {
+		return formula;
+	}
+
+	public double getMass() {
+		return mass;
+	}
+
+	/**
+	 *
+	 * @return the number of different elements in the formula
+	 */
+	public int getNumElements() {
+		return elements.length;
+	}
+
+	/**
+	 *
+	 * @param i from 0 to {@link #getNumElements()}
+	 * @return the symbol of the element, as in the element list of the
+	 *         {@link FormulaCalculator}
+	 */
+	public String getElement(int i) {
+		return elements[i];
+	}
+
+	/**
+	 *
+	 * @param i from 0 to {@link #getNumElements()}
+	 * @return the number of atoms of the element, which can be negative
+	 */
+	public int getCount(int i) {
+		return counts[i];
+	}
+
+	/**
+	 *
+	 * @param element
+	 * @return the number of atoms of the element, or 0 if it is not in the
+	 *         formula
+	 */
+	public int getCount(String element) {
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i].equals(element)) {
+				return counts[i];
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < elements.length; i++) {
+			sb.append(elements[i]).append(counts[i]);
+		}
+		return sb.toString();
+	}
+}
@@ -2,10 +2,11 @@ package edu.scripps.yates.utilities.masses;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
 
@@ -14,6 +15,10 @@ import org.apache.log4j.Logger;
 import com.compomics.util.general.MassCalc;
 import com.compomics.util.general.UnknownElementMassException;
 
+import edu.scripps.yates.utilities.cache.AbstractBoundedCache;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
 /*
  * CVS information:
  *
@@ -64,15 +69,41 @@ public class FormulaCalculator {
 	 */
 	private static Vector allMaps = new Vector(2);
 
+	private static final int ASCII = 128;
+
 	/**
-	 * An index into an array.
+	 * Maximum number of compiled formulas kept by each calculator.
 	 */
-	private static final int ELEMENT = 0;
+	public static final int FORMULA_CACHE_SIZE = 10000;
 
 	/**
-	 * An index into an array.
+	 * The element list as arrays, to compile the formulas without looking up
+	 * the HashMap.
 	 */
-	private static final int MULTIPLICITY = 1;
+	private String[] elements;
+	private double[] elementMasses;
+	private TObjectIntHashMap<String> elementIndexes;
+	private final int[] oneLetterIndexes = new int[ASCII];
+	private final int[] twoLetterIndexes = new int[ASCII * ASCII];
+
+	/**
+	 * Mass added once per compound: H2O for the aminoacids, H - PO2 for the
+	 * nucleotides.
+	 */
+	private double terminalMass = 0.0;
+
+	/**
+	 * Compiled formulas, in an {@link AbstractBoundedCache} of up to
+	 * {@link #FORMULA_CACHE_SIZE} formulas that evicts the least recently used
+	 * ones when it is full.
+	 */
+	private final AbstractBoundedCache<CompiledFormula, String> cache = new AbstractBoundedCache<CompiledFormula, String>(
+			FORMULA_CACHE_SIZE) {
+		@Override
+		protected Map<String, CompiledFormula> createMap() {
+			return new THashMap<String, CompiledFormula>();
+		}
+	};
 
 	/**
 	 * Index for the monoisotopic masses of the biochemically relevant elements.
@@ -121,6 +152,22 @@ public class FormulaCalculator {
 		}
 		masses = (HashMap) ((HashMap) allMaps.elementAt(aMassListIdentifier)).clone();
 		iChosen = aMassListIdentifier;
+		// If the sequence is somehow connected to AAmasses,
+		// we should add the mass of H2O!
+		// For nucleotides, add hydrogen (for 5') and subtract PO2 (for 3').
+		if (iChosen == MONOAA || iChosen == MONONUCLEOTIDES) {
+			final MassCalc innerMC = new MassCalc(MassCalc.MONOELEMENTS);
+			try {
+				if (iChosen == MONOAA) {
+					terminalMass = innerMC.calculateMass("H2O");
+				} else {
+					terminalMass = innerMC.calculateMass("H") - innerMC.calculateMass("PO2");
+				}
+			} catch (final UnknownElementMassException e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+		loadElements();
 	}
 
 	/**
@@ -134,6 +181,7 @@ public class FormulaCalculator {
 	 */
 	public FormulaCalculator(String aFilename) {
 		masses = loadMassesFromPropFile(aFilename);
+		loadElements();
 	}
 
 	/**
@@ -151,6 +199,7 @@ public class FormulaCalculator {
 	 */
 	public FormulaCalculator(HashMap aElementList) {
 		masses = aElementList;
+		loadElements();
 	}
 
 	/**
@@ -171,13 +220,16 @@ public class FormulaCalculator {
 	public FormulaCalculator(int aMassListIdentifier, HashMap aSupplElementList) {
 		this(aMassListIdentifier);
 		masses.putAll(aSupplElementList);
+		loadElements();
 	}
 
 	/**
 	 * This method attempts to calculate the mass of a chemical formula. It
 	 * cannot calculate the mass of an element if it is not known to this class
 	 * (i.e.: if it does not occur in the Properties instance). In that case it
-	 * will flag an exception.
+	 * will flag an exception.<br>
+	 * The formula is compiled once and kept in a cache, so calculating the mass
+	 * of a formula already seen is a lookup.
 	 *
 	 * @param aFormula
 	 *            String with the chemical formula (or bruto formula) of the
@@ -188,310 +240,227 @@ public class FormulaCalculator {
 	 *                class.
 	 */
 	public double calculateMass(String aFormula) throws UnknownElementMassException {
-		// Implemented with a character iterator.
-		final StringCharacterIterator sci = new StringCharacterIterator(aFormula);
-
-		// The mass we so hungrily crave.
-		double mass = 0.0;
-
-		// A HashMap for the Bruto formula.
-		final HashMap bruto = new HashMap(sci.getEndIndex());
-
-		// Now cycle the iterator.
-		char currentChar;
-		// Note that iterator advancement is taken care of in the
-		// processing methods called form this one!
-		while ((currentChar = sci.current()) != CharacterIterator.DONE) {
-			// For this character, there are only TWO possibilities:
-			// either it is a letter, or it is a opening bracket.
-			// If it is a letter, we forward to the getElement() method,
-			// else we forward it to the getInnerFormula method.
-			// The getElement returns an array with two elements: the
-			// element and its multiplicity (which can be '1' or more).
-			// Indexes are defined in the final variables ELEMENT and
-			// MULTIPLICITY.
-			// The getInnerFormula just returns a mass.
-			if (Character.isLetter(currentChar) || ('_' == currentChar) || ('*' == currentChar)
-					|| ('-' == currentChar)) {
-				final Object[] result = getElement(sci);
-				// this method takes care of adding this stuff to the
-				// brutoformula.
-				// Just to prevent code clutter.
-				addResultToBrutoFormula((String) result[ELEMENT], ((Integer) result[MULTIPLICITY]).intValue(), bruto);
-			} else if (currentChar == '(') {
-				mass += getInnerFormulaMass(sci);
-			} else {
-				// This means: no letter and no bracket.
-				// It has got to be an error.
-				throw new IllegalArgumentException(
-						"Formula '" + aFormula + "' could not be parsed due to the following unrecognized character: '"
-								+ currentChar + "'!\n");
-			}
-		}
-
-		// We have a part of the mass (at least, if any inner formulae were
-		// present) and the bruto formula for the remainder of the elements.
-		// We'll cycle it and add all masses.
-		final Iterator iter = bruto.keySet().iterator();
-		while (iter.hasNext()) {
-			final String key = (String) iter.next();
-			if (masses.containsKey(key)) {
-				final double tempMass = ((Double) masses.get(key)).doubleValue();
-				final int multiplicity = ((Integer) bruto.get(key)).intValue();
-				mass += multiplicity * tempMass;
-			} else {
-				// Oooops! Unknown element! Flag an UnknownElementMassException
-				// and be done with it.
-				throw new UnknownElementMassException(key);
-			}
-		}
-
-		// If the sequence is somehow connected to AAmasses,
-		// we should add the mass of H2O!
-		final MassCalc innerMC = new MassCalc(MassCalc.MONOELEMENTS);
-		if (iChosen == MONOAA) {
-
-			// mass += 18.010565;
-			mass += innerMC.calculateMass("H2O");
-		} else if (iChosen == MONONUCLEOTIDES) {
-			// For nucleotides, add hydrogen (for 5') and subtract PO2 (for 3').
-			mass += innerMC.calculateMass("H");
-			mass -= innerMC.calculateMass("PO2");
-		}
-
-		// This should be it.
-		return mass;
+		return compile(aFormula).getMass();
 	}
 
 	/**
-	 * This method adds the element with given multiplicity to the HashMap. the
-	 * element as the key, multiplicity as the value. If the element was already
-	 * present as a key, the multiplicity is added to the existing multiplicity.
+	 * Calculates the masses of many formulas
 	 *
-	 * @param aElement
-	 *            String with the element symbol.
-	 * @param aMultiplicity
-	 *            int with the multiplicity of the element.
-	 * @param aBruto
-	 *            HashMap with the bruto formula to add the element and
-	 *            multiplicity to.
+	 * @param formulas
+	 * @param result
+	 *            array where the mass of each formula is written, at the same
+	 *            position than the formula
+	 * @throws UnknownElementMassException
+	 *             when one of the composing elements' mass is unknown to the
+	 *             class.
 	 */
-	private void addResultToBrutoFormula(String aElement, int aMultiplicity, HashMap aBruto) {
-		if (aBruto.containsKey(aElement)) {
-			// Add the multiplicity to the existing value.
-			int tempValue = ((Integer) aBruto.get(aElement)).intValue();
-			tempValue += aMultiplicity;
-			aBruto.put(aElement, Integer.valueOf(tempValue));
-		} else {
-			// Not yet there, simply insert it.
-			aBruto.put(aElement, Integer.valueOf(aMultiplicity));
+	public void calculateMasses(List<String> formulas, double[] result) throws UnknownElementMassException {
+		for (int i = 0; i < formulas.size(); i++) {
+			result[i] = compile(formulas.get(i)).getMass();
 		}
 	}
 
 	/**
-	 * This method will read an element symbol and it's multiplicity from an
-	 * SCI.
+	 * Gets the elemental composition and the mass of a formula, parsing it only
+	 * if it is not in the cache of compiled formulas of this calculator.
 	 *
-	 * @param aSCI
-	 *            StringCharacterIterator to read from.
-	 * @return Object[] with the element behind index ELEMENT and the
-	 *         multiplicity behind index MULTIPLICITY.
+	 * @param aFormula
+	 * @return
+	 * @throws UnknownElementMassException
+	 *             when one of the composing elements' mass is unknown to the
+	 *             class.
 	 */
-	private Object[] getElement(StringCharacterIterator aSCI) {
-		final Object[] result = new Object[2];
-
-		// Okay, we'll need to find out the element name.
-		// It can consist of one or two letters, the second
-		// being lowercase if present.
-		String element = Character.toString(aSCI.current());
-		int multiplicity = 1;
-		int sign = 1;
-		// First of all, check whether there IS a next (the element
-		// could well be the last in line, in which case multiplicity is 1
-		// and we're done!
-		char next = aSCI.next();
-		if (next == CharacterIterator.DONE) {
-			// We don't do anything else here.
-		} else {
-			if (next == '-') {
-				sign = -1;
-				next = aSCI.next();
-			}
-			// Check if the next char is a lowercase letter.
-			if (Character.isLetter(next) && Character.isLowerCase(next)) {
-				// Add the second char to the element String and
-				// move the position one step further.
-				element += Character.toString(next);
-				next = aSCI.next();
-			} else if (next == '<') {
-				// It's the start of a modification tag.
-				// Let's grab it and add it!
-				element += isolateInnerPartString(aSCI, '<', '>', true);
-			}
-
-			// Now we can check multiplicity.
-			// This is only necessary if the next char is a number, else
-			// we'll just set it to '1'.
-			if ((next != CharacterIterator.DONE) && Character.isDigit(next)) {
-				multiplicity = getMultiplicity(aSCI);
-			} else {
-				// Just set to one.
-				multiplicity = 1;
-			}
+	public CompiledFormula compile(String aFormula) throws UnknownElementMassException {
+		CompiledFormula ret = cache.getFromCache(aFormula);
+		if (ret == null) {
+			ret = compileFormula(aFormula);
+			cache.addtoCache(ret, aFormula);
 		}
-
-		// Voila.
-		result[ELEMENT] = element;
-		result[MULTIPLICITY] = Integer.valueOf(multiplicity * sign);
-
-		return result;
+		return ret;
 	}
 
 	/**
-	 * This method attempts to read a multiplicity starting from the current
-	 * position in the SCI parameter. The position will be moved such that
-	 * calling next on the iterator results in getting the first non-numerical
-	 * character to follow the multiplicity.
-	 *
-	 * @param aSCI
-	 *            StringCharacterIterator to read from.
-	 * @return int the multiplicity.
+	 * Loads the element list in the arrays used to compile the formulas. It has
+	 * to be called every time the element list changes.
 	 */
-	private int getMultiplicity(StringCharacterIterator aSCI) {
-		int mp = 0;
-
-		// If the current char is not a number, multiplicity is simply
-		// '1'.
-		if (!Character.isDigit(aSCI.current())) {
-			mp = 1;
-		} else {
-			// The current char is the first of the number.
-			String number = Character.toString(aSCI.current());
-
-			// Fence-post.
-			char next = aSCI.next();
-			// Get all digits constructing the number.
-			while ((next != CharacterIterator.DONE) && Character.isDigit(next)) {
-
-				// Add it to the number.
-				number += Character.toString(next);
-
-				// Increment.
-				next = aSCI.next();
+	private void loadElements() {
+		final int size = masses.size();
+		elements = new String[size];
+		elementMasses = new double[size];
+		elementIndexes = new TObjectIntHashMap<String>(size, 0.5f, -1);
+		Arrays.fill(oneLetterIndexes, -1);
+		Arrays.fill(twoLetterIndexes, -1);
+		int index = 0;
+		for (final Object key : masses.keySet()) {
+			final String element = (String) key;
+			elements[index] = element;
+			elementMasses[index] = ((Number) masses.get(key)).doubleValue();
+			elementIndexes.put(element, index);
+			if (element.length() == 1 && element.charAt(0) < ASCII) {
+				oneLetterIndexes[element.charAt(0)] = index;
+			} else if (element.length() == 2 && element.charAt(0) < ASCII && element.charAt(1) < ASCII) {
+				twoLetterIndexes[element.charAt(0) * ASCII + element.charAt(1)] = index;
 			}
-
-			// Convert the number into an int.
-			mp = Integer.parseInt(number);
+			index++;
 		}
+		cache.clearCache();
+	}
 
-		// Voila.
-		return mp;
+	private CompiledFormula compileFormula(String formula) throws UnknownElementMassException {
+		final int[] allCounts = new int[elements.length];
+		final int terminalGroups = parseFormula(formula, 0, formula.length(), 1, allCounts);
+		int numElements = 0;
+		for (final int count : allCounts) {
+			if (count != 0) {
+				numElements++;
+			}
+		}
+		final String[] formulaElements = new String[numElements];
+		final int[] counts = new int[numElements];
+		double mass = terminalGroups * terminalMass;
+		int j = 0;
+		for (int i = 0; i < allCounts.length; i++) {
+			if (allCounts[i] != 0) {
+				formulaElements[j] = elements[i];
+				counts[j++] = allCounts[i];
+				mass += allCounts[i] * elementMasses[i];
+			}
+		}
+		return new CompiledFormula(formula, formulaElements, counts, mass);
 	}
 
 	/**
-	 * This method will isolate and calculate the mass for the inner formula
-	 * presented here, starting from the current position in the aSCI. This
-	 * means that a call to current yields an opening bracket. The position of
-	 * the SCI will be moved to the closing bracket of the inner formula.
+	 * Adds the number of atoms of each element of a part of a formula to counts.
+	 * <br>
+	 * As in the original parser, each inner formula between brackets is
+	 * calculated as a whole compound, so it has its own terminal group (the H2O
+	 * of the aminoacids, for example), multiplied by the multiplicity of the
+	 * inner formula.
 	 *
-	 * @param aSCI
-	 *            StringCharacterIterator with the inner formula.
-	 * @return double with the mass of the inner formula.
+	 * @param formula
+	 * @param start
+	 * @param end
+	 * @param scale
+	 *            multiplicity of this part of the formula
+	 * @param counts
+	 *            number of atoms of each element of the element list
+	 * @return the number of terminal groups of this part of the formula
 	 */
-	private double getInnerFormulaMass(StringCharacterIterator aSCI) throws UnknownElementMassException {
-
-		int multiplicity;
-
-		// Isolate inner formula String.
-		final String inner = isolateInnerPartString(aSCI, '(', ')', false);
-
-		// Calculate mass.
-		double mass = calculateMass(inner);
-
-		// Get multiplicity.
-		multiplicity = getMultiplicity(aSCI);
-
-		// Calculate result.
-		mass *= multiplicity;
-
-		return mass;
+	private int parseFormula(String formula, int start, int end, int scale, int[] counts)
+			throws UnknownElementMassException {
+		int terminalGroups = scale;
+		// unknown elements are reported once the formula is parsed, as in the
+		// original parser
+		String unknownElement = null;
+		int i = start;
+		while (i < end) {
+			final char currentChar = formula.charAt(i);
+			// For this character, there are only TWO possibilities:
+			// either it is a letter, or it is a opening bracket.
+			if (Character.isLetter(currentChar) || ('_' == currentChar) || ('*' == currentChar)
+					|| ('-' == currentChar)) {
+				// The element can consist of one or two letters, the second
+				// being lowercase if present, or a letter and a modification
+				// tag between '<' and '>'.
+				char second = 0;
+				int tagStart = -1;
+				int sign = 1;
+				int multiplicity = 1;
+				i++;
+				if (i < end && formula.charAt(i) == '-') {
+					sign = -1;
+					i++;
+				}
+				if (i < end) {
+					final char next = formula.charAt(i);
+					if (Character.isLetter(next) && Character.isLowerCase(next)) {
+						second = next;
+						i++;
+					} else if (next == '<') {
+						tagStart = i;
+						i = getClosingPosition(formula, i, end, '<', '>') + 1;
+					}
+					// there is no multiplicity after a modification tag
+					if (tagStart < 0 && i < end && Character.isDigit(formula.charAt(i))) {
+						multiplicity = 0;
+						while (i < end && Character.isDigit(formula.charAt(i))) {
+							multiplicity = multiplicity * 10 + Character.digit(formula.charAt(i), 10);
+							i++;
+						}
+					}
+				}
+				final int index = getElementIndex(formula, currentChar, second, tagStart, i);
+				if (index >= 0) {
+					counts[index] += sign * multiplicity * scale;
+				} else if (unknownElement == null) {
+					unknownElement = getElement(formula, currentChar, second, tagStart, i);
+				}
+			} else if (currentChar == '(') {
+				final int closing = getClosingPosition(formula, i, end, '(', ')');
+				int multiplicity = 1;
+				int next = closing + 1;
+				if (next < end && Character.isDigit(formula.charAt(next))) {
+					multiplicity = 0;
+					while (next < end && Character.isDigit(formula.charAt(next))) {
+						multiplicity = multiplicity * 10 + Character.digit(formula.charAt(next), 10);
+						next++;
+					}
+				}
+				terminalGroups += parseFormula(formula, i + 1, closing, scale * multiplicity, counts);
+				i = next;
+			} else {
+				// This means: no letter and no bracket.
+				// It has got to be an error.
+				throw new IllegalArgumentException(
+						"Formula '" + formula + "' could not be parsed due to the following unrecognized character: '"
+								+ currentChar + "'!\n");
+			}
+		}
+		if (unknownElement != null) {
+			// Oooops! Unknown element! Flag an UnknownElementMassException
+			// and be done with it.
+			throw new UnknownElementMassException(unknownElement);
+		}
+		return terminalGroups;
 	}
 
 	/**
-	 * This method will isolate an inner part, if the SCI is currently
-	 * positioned on the opening token of that inner part. <br />
-	 * It also allows for nested inner parts!
-	 *
-	 * @param aSCI
-	 *            StringCharacterIterator from which to read the inner formula.
-	 * @param aOpener
-	 *            char with the opening token for the inner part.
-	 * @param aCloser
-	 *            char with the closing token for the inner part.
-	 * @param aKeepTokens
-	 *            boolean that indicates whether the tokens should be included
-	 *            in the return String.
-	 * @return String with the inner formula.
+	 * Position of the token closing the one at position, allowing nested tokens
 	 */
-	private String isolateInnerPartString(StringCharacterIterator aSCI, char aOpener, char aCloser,
-			boolean aKeepTokens) {
-		// The String which we'll return.
-		String innerFormula = "";
-
-		// We will count tokens...
+	private int getClosingPosition(String formula, int position, int end, char aOpener, char aCloser) {
 		int tokenCount = 1;
-
-		// Current character is opening token and can and will be ignored.
-		char next = aSCI.next();
-		// This position is also the starting position for our String to be.
-		final int startPosition = aSCI.getIndex();
-		// This one is derived from the logic within the loop below.
-		int endPosition = -1;
-
-		// Now to count tokens. Opening token adds 1 to the counter,
-		// closing token subtracts 1. If the counter reaches zero, we've
-		// found the end of our innerFormula.
-		while (tokenCount > 0) {
-
-			if (next == aOpener) {
-				// Opening token, add one to counter.
+		for (int i = position + 1; i < end; i++) {
+			final char c = formula.charAt(i);
+			if (c == aOpener) {
 				tokenCount++;
-			} else if (next == aCloser) {
-				// Closing token, subtract one from counter.
+			} else if (c == aCloser) {
 				tokenCount--;
+				if (tokenCount == 0) {
+					return i;
+				}
 			}
-
-			// Advance one character.
-			next = aSCI.next();
 		}
+		throw new IllegalArgumentException("Formula '" + formula + "' could not be parsed due to a '" + aOpener
+				+ "' without its '" + aCloser + "'!\n");
+	}
 
-		// Okay, end found. We'll have to retrieve it's position, 'though.
-		// It's position is NOT the current, since that is BEYOND the last
-		// closing token. It is not one before that, since that would be
-		// the closing token itself.
-		// We need the position 2 before the current.
-		// BTW: this int is to reset to the current position when we're done.
-		final int imPosition = aSCI.getIndex();
-		endPosition = imPosition - 2;
-
-		// Construct the inner formula from the characters starting at
-		// 'startPosition' and ending with 'endPosition'. Note that both are
-		// inclusive.
-		for (int i = startPosition; i <= endPosition; i++) {
-			// Set the index for the char to retrieve.
-			aSCI.setIndex(i);
-			// Get the current char and append it to the String.
-			innerFormula += Character.valueOf(aSCI.current());
+	/**
+	 * Index in the element list of an element, or -1 if it is unknown. Only the
+	 * elements with a modification tag or with non ASCII characters need to
+	 * create a String.
+	 */
+	private int getElementIndex(String formula, char first, char second, int tagStart, int tagEnd) {
+		if (tagStart < 0 && first < ASCII && second < ASCII) {
+			return second == 0 ? oneLetterIndexes[first] : twoLetterIndexes[first * ASCII + second];
 		}
+		return elementIndexes.get(getElement(formula, first, second, tagStart, tagEnd));
+	}
 
-		// Reset the index on the SCI to the correct endposition (which is
-		// just after the last closing bracket, btw).
-		// We've stored that position in 'imPosition'.
-		aSCI.setIndex(imPosition);
-
-		// All done.
-		return ((aKeepTokens ? Character.valueOf(aOpener) : "") + innerFormula
-				+ (aKeepTokens ? Character.toString(aCloser) : ""));
+	private String getElement(String formula, char first, char second, int tagStart, int tagEnd) {
+		if (tagStart >= 0) {
+			return first + formula.substring(tagStart, tagEnd);
+		}
+		return second == 0 ? String.valueOf(first) : new String(new char[] { first, second });
 	}
 
 	/**
@@ -0,0 +1,159 @@
+package edu.scripps.yates.utilities.masses;
+
+import java.util.List;
+
+/**
+ * Calculates the ladders of singly charged fragment ions of many peptides at
+ * once, over the masses of a {@link MassTable}, writing them in a
+ * {@link FragmentIonLadders} that is reused from one batch to the next, so that
+ * no array is created per peptide.<br>
+ * The masses of the residues of the whole batch are first gathered in a single
+ * array and accumulated from both ends of each peptide. Then every ion type is
+ * a single loop over the whole batch adding a constant to one of these sums,
+ * which HotSpot compiles to SIMD instructions.<br>
+ * The ions have the same values and positions than the ones of
+ * {@link AssignMass#getFragIonArrMod(String, int, int[])} and
+ * {@link AssignMass#getFragIonArrRevMod(String, int, int[])}, using the
+ * terminal and fragment masses of the {@link MassTable}: for a peptide of
+ * length n there are n-1 fragments, where the forward ions (a, b, c) at
+ * position i contain the residues 0 to i and the reverse ions (x, y, z) at
+ * position i contain the residues i+1 to n-1. Residues without mass in the
+ * table (such as J or lower case letters) add 0.<br>
+ * For peptides with all their residues in the table, they are also the ones of
+ * {@link AssignMass#getFragIonArr(String, int)} and
+ * {@link AssignMass#getFragIonArrRev(String, int)}. These ones skip the
+ * residues without mass instead, so that the forward ions after them are moved
+ * one position towards the start of the array, leaving a 0 at the end, and the
+ * reverse ions that would contain them are 0.<br>
+ * The calculator is immutable and can be shared by multiple threads, using a
+ * {@link FragmentIonLadders} per thread.
+ *
+ * @author Salva
+ *
+ */
+public class FragmentIonCalculator {
+	public static final int ION_A = 0;
+	public static final int ION_B = 1;
+	public static final int ION_C = 2;
+	public static final int ION_X = 6;
+	public static final int ION_Y = 7;
+	public static final int ION_Z = 8;
+	public static final int[] ALL_IONS = { ION_A, ION_B, ION_C, ION_X, ION_Y, ION_Z };
+
+	private final double[] residueMasses;
+	// constant added to the accumulated residues of each ion type
+	private final double[] ionOffsets = new double[ION_Z + 1];
+
+	public FragmentIonCalculator(MassTable massTable) {
+		residueMasses = massTable.getResidueMasses();
+		ionOffsets[ION_A] = massTable.getnTerm() - 27.0;
+		ionOffsets[ION_B] = massTable.getBionfragment();
+		ionOffsets[ION_C] = massTable.getnTerm() + 18.0;
+		ionOffsets[ION_X] = massTable.getcTerm() + 45.0;
+		ionOffsets[ION_Y] = massTable.getYionfragment();
+		ionOffsets[ION_Z] = massTable.getcTerm() + 3.0;
+	}
+
+	public static boolean isForwardIon(int ion) {
+		return ion == ION_A || ion == ION_B || ion == ION_C;
+	}
+
+	/**
+	 * Calculates the ions of a batch of peptides
+	 *
+	 * @param peptides
+	 * @param ladders  where the ions are written, overriding the previous batch
+	 * @param ions     the ion types to calculate, from {@link #ION_A},
+	 *                 {@link #ION_B}, {@link #ION_C}, {@link #ION_X},
+	 *                 {@link #ION_Y} and {@link #ION_Z}
+	 */
+	public void calculate(List<? extends CharSequence> peptides, FragmentIonLadders ladders, int... ions) {
+		calculate(peptides, null, ladders, ions);
+	}
+
+	/**
+	 * Calculates the ions of a batch of peptides with modifications
+	 *
+	 * @param peptides
+	 * @param massDifferences for each peptide, the mass differences of the
+	 *                        modifications of each of its residues, or null if
+	 *                        it is not modified
+	 * @param ladders         where the ions are written, overriding the previous
+	 *                        batch
+	 * @param ions            the ion types to calculate, from {@link #ION_A},
+	 *                        {@link #ION_B}, {@link #ION_C}, {@link #ION_X},
+	 *                        {@link #ION_Y} and {@link #ION_Z}
+	 */
+	public void calculate(List<? extends CharSequence> peptides, List<double[]> massDifferences,
+			FragmentIonLadders ladders, int... ions) {
+		final int numPeptides = peptides.size();
+		int numFragments = 0;
+		for (int p = 0; p < numPeptides; p++) {
+			numFragments += Math.max(0, peptides.get(p).length() - 1);
+		}
+		ladders.reset(numPeptides, numFragments);
+		final int[] starts = ladders.starts;
+		final double[] peptideMasses = ladders.residuesMasses;
+		final double[] prefixes = ladders.prefixes;
+		final double[] suffixes = ladders.suffixes;
+		int start = 0;
+		for (int p = 0; p < numPeptides; p++) {
+			final CharSequence peptide = peptides.get(p);
+			final double[] deltas = massDifferences != null ? massDifferences.get(p) : null;
+			final int length = peptide.length();
+			final int size = Math.max(0, length - 1);
+			starts[p] = start;
+			// accumulated from the N-terminus
+			double sum = 0.0;
+			for (int i = 0; i < size; i++) {
+				sum += getResidueMass(peptide, deltas, i);
+				prefixes[start + i] = sum;
+			}
+			peptideMasses[p] = length > 0 ? sum + getResidueMass(peptide, deltas, length - 1) : 0.0;
+			// and from the C-terminus
+			sum = 0.0;
+			for (int i = size - 1; i >= 0; i--) {
+				sum += getResidueMass(peptide, deltas, i + 1);
+				suffixes[start + i] = sum;
+			}
+			start += size;
+		}
+		starts[numPeptides] = start;
+
+		for (final int ion : ions) {
+			final double offset = ionOffsets[ion];
+			final double[] sums = isForwardIon(ion) ? prefixes : suffixes;
+			final double[] out = ladders.getIonsForWriting(ion);
+			for (int i = 0; i < numFragments; i++) {
+				out[i] = sums[i] + offset;
+			}
+		}
+	}
+
+	private double getResidueMass(CharSequence peptide, double[] deltas, int position) {
+		final char aa = peptide.charAt(position);
+		final double mass = aa < residueMasses.length ? residueMasses[aa] : 0.0;
+		return deltas != null ? mass + deltas[position] : mass;
+	}
+
+	/**
+	 * Gets the mass differences of the modifications of a peptide, from the
+	 * modified positions as used in
+	 * {@link AssignMass#getFragIonArrMod(String, int, int[])}, and the masses of
+	 * {@link DiffModification}
+	 *
+	 * @param peptide
+	 * @param modIndexHash positions of the peptide with a value greater than 0
+	 *                     are modified
+	 * @return
+	 */
+	public static double[] getDiffModMasses(CharSequence peptide, int[] modIndexHash) {
+		final double[] ret = new double[peptide.length()];
+		for (int i = 0; i < ret.length && i < modIndexHash.length; i++) {
+			if (modIndexHash[i] > 0) {
+				ret[i] = DiffModification.getDiffModMass(peptide.charAt(i));
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,134 @@
+package edu.scripps.yates.utilities.masses;
+
+/**
+ * Reusable buffers with the fragment ions of a batch of peptides calculated by
+ * a {@link FragmentIonCalculator}. The ions of all the peptides of the batch
+ * are consecutive in one array per ion type: the ions of the peptide p are from
+ * {@link #getStart(int)} of p to {@link #getStart(int)} of p+1.<br>
+ * The buffers only grow, so once they are as large as the largest batch, no
+ * more memory is allocated. They are overridden by the next batch.
+ *
+ * @author Salva
+ *
+ */
+public class FragmentIonLadders {
+	private static final int INITIAL_CAPACITY = 1024;
+	int[] starts = new int[INITIAL_CAPACITY + 1];
+	double[] residuesMasses = new double[INITIAL_CAPACITY];
+	double[] prefixes = new double[INITIAL_CAPACITY];
+	double[] suffixes = new double[INITIAL_CAPACITY];
+	private final double[][] ions = new double[FragmentIonCalculator.ION_Z + 1][];
+	private final boolean[] calculated = new boolean[FragmentIonCalculator.ION_Z + 1];
+	private int numPeptides;
+	private int numFragments;
+
+	void reset(int numPeptides, int numFragments) {
+		this.numPeptides = numPeptides;
+		this.numFragments = numFragments;
+		if (starts.length < numPeptides + 1) {
+			final int capacity = grow(starts.length, numPeptides + 1);
+			starts = new int[capacity];
+			residuesMasses = new double[capacity];
+		}
+		if (prefixes.length < numFragments) {
+			final int capacity = grow(prefixes.length, numFragments);
+			prefixes = new double[capacity];
+			suffixes = new double[capacity];
+		}
+		for (int i = 0; i < calculated.length; i++) {
+			calculated[i] = false;
+		}
+	}
+
+	private static int grow(int capacity, int minCapacity) {
+		return Math.max(minCapacity, capacity + (capacity >> 1));
+	}
+
+	double[] getIonsForWriting(int ion) {
+		if (ions[ion] == null || ions[ion].length < numFragments) {
+			ions[ion] = new double[grow(prefixes.length, numFragments)];
+		}
+		calculated[ion] = true;
+		return ions[ion];
+	}
+
+	public int getNumPeptides() {
+		return numPeptides;
+	}
+
+	/**
+	 *
+	 * @return the number of fragments of all the peptides of the batch
+	 */
+	public int getNumFragments() {
+		return numFragments;
+	}
+
+	/**
+	 *
+	 * @param peptide position of the peptide in the batch
+	 * @return the position of its first fragment in the arrays of ions
+	 */
+	public int getStart(int peptide) {
+		return starts[peptide];
+	}
+
+	/**
+	 *
+	 * @param peptide position of the peptide in the batch
+	 * @return its number of fragments, which is its length minus one
+	 */
+	public int getNumFragments(int peptide) {
+		return starts[peptide + 1] - starts[peptide];
+	}
+
+	/**
+	 *
+	 * @param peptide position of the peptide in the batch
+	 * @return the sum of the masses of its residues, with its modifications
+	 */
+	public double getResiduesMass(int peptide) {
+		return residuesMasses[peptide];
+	}
+
+	/**
+	 * Gets the array with the ions of a type of all the peptides of the batch.
+	 * It is not a copy, and it can be longer than {@link #getNumFragments()}.
+	 *
+	 * @param ion
+	 * @return
+	 * @throws IllegalArgumentException if the ion type was not calculated in the
+	 *                                  last batch
+	 */
+	public double[] getIons(int ion) {
+		if (ion < 0 || ion >= calculated.length || !calculated[ion]) {
+			throw new IllegalArgumentException("Ion type " + ion + " was not calculated");
+		}
+		return ions[ion];
+	}
+
+	/**
+	 *
+	 * @param ion
+	 * @param peptide  position of the peptide in the batch
+	 * @param fragment position of the fragment in the peptide
+	 * @return the mass of the ion
+	 */
+	public double getIon(int ion, int peptide, int fragment) {
+		return getIons(ion)[starts[peptide] + fragment];
+	}
+
+	/**
+	 * Copies the ions of a type of a peptide, as returned by
+	 * {@link AssignMass#getFragIonArr(String, int)}
+	 *
+	 * @param ion
+	 * @param peptide position of the peptide in the batch
+	 * @return
+	 */
+	public double[] getIons(int ion, int peptide) {
+		final double[] ret = new double[getNumFragments(peptide)];
+		System.arraycopy(getIons(ion), starts[peptide], ret, 0, ret.length);
+		return ret;
+	}
+}
@@ -0,0 +1,97 @@
+package edu.scripps.yates.utilities.masses;
+
+/**
+ * Isotopic peaks of a compound calculated by an
+ * {@link IsotopeEnvelopeCalculator}: for each peak, its relative abundance,
+ * being 1 the one of the most intense peak, and its mass difference with the
+ * monoisotopic peak. It is immutable.
+ *
+ * @author Salva
+ *
+ */
+public class IsotopeEnvelope {
+	private final double monoisotopicMass;
+	private final double[] massDifferences;
+	private final double[] abundances;
+	private final int mostIntensePeak;
+
+	IsotopeEnvelope(double monoisotopicMass, double[] massDifferences, double[] abundances) {
+		this.monoisotopicMass = monoisotopicMass;
+		this.massDifferences = massDifferences;
+		this.abundances = abundances;
+		int mostIntense = 0;
+		for (int i = 1; i < abundances.length; i++) {
+			if (abundances[i] > abundances[mostIntense]) {
+				mostIntense = i;
+			}
+		}
+		mostIntensePeak = mostIntense;
+	}
+
+	/**
+	 * Same peaks at another mass, sharing the arrays of the peaks
+	 *
+	 * @param monoisotopicMass
+	 * @return
+	 */
+	IsotopeEnvelope withMonoisotopicMass(double monoisotopicMass) {
+		return new IsotopeEnvelope(monoisotopicMass, massDifferences, abundances);
+	}
+
+	/**
+	 *
+	 * @return the neutral mass of the monoisotopic peak
+	 */
+	public double getMonoisotopicMass() {
+		return monoisotopicMass;
+	}
+
+	public int getNumPeaks() {
+		return abundances.length;
+	}
+
+	/**
+	 *
+	 * @param peak from 0 (monoisotopic peak) to {@link #getNumPeaks()}
+	 * @return the relative abundance of the peak
+	 */
+	public double getAbundance(int peak) {
+		return abundances[peak];
+	}
+
+	/**
+	 *
+	 * @param peak from 0 (monoisotopic peak) to {@link #getNumPeaks()}
+	 * @return the neutral mass of the peak
+	 */
+	public double getMass(int peak) {
+		return monoisotopicMass + massDifferences[peak];
+	}
+
+	/**
+	 *
+	 * @param peak   from 0 (monoisotopic peak) to {@link #getNumPeaks()}
+	 * @param charge
+	 * @return the m/z of the peak with charge protons
+	 */
+	public double getMz(int peak, int charge) {
+		return (getMass(peak) + charge * AssignMass.PROTON) / charge;
+	}
+
+	/**
+	 *
+	 * @return the position of the most intense peak, being 0 the monoisotopic
+	 *         peak
+	 */
+	public int getMostIntensePeak() {
+		return mostIntensePeak;
+	}
+
+	/**
+	 *
+	 * @return a copy of the relative abundances of the peaks
+	 */
+	public double[] getAbundances() {
+		return abundances.clone();
+	}
+}
@@ -0,0 +1,385 @@
+package edu.scripps.yates.utilities.masses;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.scripps.yates.utilities.cache.AbstractBoundedCache;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Calculates the isotopic envelopes of peptides, of chemical formulas and of
+ * averagine at any mass:
+ * <ul>
+ * <li>{@link #getAveragineTableEnvelope(double)} interpolates the averagine
+ * table of {@link AssignMass}, which is the fastest but approximated.</li>
+ * <li>{@link #getAveragineEnvelope(double)} calculates the exact envelope of
+ * the averagine composition closest to the mass. They are cached by nominal
+ * mass bin, so only the first envelope of each bin is calculated.</li>
+ * <li>{@link #getEnvelope(CompiledFormula)} and
+ * {@link #getPeptideEnvelope(CharSequence)} calculate the exact envelope of an
+ * elemental composition, from a {@link FormulaCalculator} or from the residues
+ * of a peptide.</li>
+ * </ul>
+ * The exact envelopes are the expansion of the polynomial of the isotopes of
+ * each element, raised to the number of atoms by squaring. Each peak groups
+ * the isotopic variants with the same nominal mass, with their average mass.
+ * Since the peaks are truncated to the maximum number of peaks, the
+ * abundances of the peaks kept are exact.<br>
+ * The calculator is thread-safe.
+ *
+ * @author Salva
+ *
+ */
+public class IsotopeEnvelopeCalculator {
+	public static final int DEFAULT_MAX_PEAKS = 20;
+	public static final double DEFAULT_MIN_ABUNDANCE = 0.0001;
+	public static final int DEFAULT_CACHE_SIZE = 20000;
+	// averagine per residue: C4.9384 H7.7583 N1.3577 O1.4773 S0.0417
+	private static final double AVERAGINE_MASS = 111.1254;
+	private static final double[] AVERAGINE = { 4.9384, 7.7583, 1.3577, 1.4773, 0.0417 };
+	private static final String[] AVERAGINE_ELEMENTS = { "C", "H", "N", "O", "S" };
+	// elements of the residues
+	private static final String[] PEPTIDE_ELEMENTS = { "C", "H", "N", "O", "S", "Se" };
+	private static final int[][] RESIDUE_COMPOSITIONS = new int[MassTable.SIZE][];
+	private static final Map<String, double[][]> ISOTOPES = new THashMap<String, double[][]>();
+
+	static {
+		// masses and natural abundances of the stable isotopes
+		ISOTOPES.put("H", new double[][] { { 1.00782503207, 2.0141017778 }, { 0.999885, 0.000115 } });
+		ISOTOPES.put("C", new double[][] { { 12.0, 13.0033548378 }, { 0.9893, 0.0107 } });
+		ISOTOPES.put("N", new double[][] { { 14.0030740048, 15.0001088982 }, { 0.99636, 0.00364 } });
+		ISOTOPES.put("O", new double[][] { { 15.99491461956, 16.99913170, 17.9991610 },
+				{ 0.99757, 0.00038, 0.00205 } });
+		ISOTOPES.put("S", new double[][] { { 31.97207100, 32.97145876, 33.96786690, 35.96708076 },
+				{ 0.9499, 0.0075, 0.0425, 0.0001 } });
+		ISOTOPES.put("P", new double[][] { { 30.97376163 }, { 1.0 } });
+		ISOTOPES.put("Se",
+				new double[][] {
+						{ 73.9224764, 75.9192136, 76.9199140, 77.9173091, 79.9165213, 81.9166994 },
+						{ 0.0089, 0.0937, 0.0763, 0.2377, 0.4961, 0.0873 } });
+		ISOTOPES.put("Na", new double[][] { { 22.9897692809 }, { 1.0 } });
+		ISOTOPES.put("K", new double[][] { { 38.96370668, 39.96399848, 40.96182576 },
+				{ 0.932581, 0.000117, 0.067302 } });
+		ISOTOPES.put("Cl", new double[][] { { 34.96885268, 36.96590259 }, { 0.7576, 0.2424 } });
+		ISOTOPES.put("Br", new double[][] { { 78.9183371, 80.9162906 }, { 0.5069, 0.4931 } });
+		ISOTOPES.put("F", new double[][] { { 18.99840322 }, { 1.0 } });
+		ISOTOPES.put("I", new double[][] { { 126.904473 }, { 1.0 } });
+
+		// C, H, N, O, S and Se of each residue
+		RESIDUE_COMPOSITIONS['G'] = new int[] { 2, 3, 1, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['A'] = new int[] { 3, 5, 1, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['S'] = new int[] { 3, 5, 1, 2, 0, 0 };
+		RESIDUE_COMPOSITIONS['P'] = new int[] { 5, 7, 1, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['V'] = new int[] { 5, 9, 1, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['T'] = new int[] { 4, 7, 1, 2, 0, 0 };
+		RESIDUE_COMPOSITIONS['C'] = new int[] { 3, 5, 1, 1, 1, 0 };
+		RESIDUE_COMPOSITIONS['L'] = new int[] { 6, 11, 1, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['I'] = new int[] { 6, 11, 1, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['N'] = new int[] { 4, 6, 2, 2, 0, 0 };
+		RESIDUE_COMPOSITIONS['D'] = new int[] { 4, 5, 1, 3, 0, 0 };
+		RESIDUE_COMPOSITIONS['Q'] = new int[] { 5, 8, 2, 2, 0, 0 };
+		RESIDUE_COMPOSITIONS['K'] = new int[] { 6, 12, 2, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['E'] = new int[] { 5, 7, 1, 3, 0, 0 };
+		RESIDUE_COMPOSITIONS['M'] = new int[] { 5, 9, 1, 1, 1, 0 };
+		RESIDUE_COMPOSITIONS['H'] = new int[] { 6, 7, 3, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['F'] = new int[] { 9, 9, 1, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['R'] = new int[] { 6, 12, 4, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['Y'] = new int[] { 9, 9, 1, 2, 0, 0 };
+		RESIDUE_COMPOSITIONS['W'] = new int[] { 11, 10, 2, 1, 0, 0 };
+		RESIDUE_COMPOSITIONS['U'] = new int[] { 3, 5, 1, 1, 0, 1 };
+		RESIDUE_COMPOSITIONS['O'] = new int[] { 12, 19, 3, 2, 0, 0 };
+	}
+
+	private final int maxPeaks;
+	private final double minAbundance;
+	private final double binWidth;
+	private final AbstractBoundedCache<IsotopeEnvelope, Integer> averagineCache;
+	private final AbstractBoundedCache<IsotopeEnvelope, String> formulaCache;
+
+	public IsotopeEnvelopeCalculator() {
+		this(DEFAULT_MAX_PEAKS, DEFAULT_MIN_ABUNDANCE, 1.0, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 *
+	 * @param maxPeaks     maximum number of peaks of the envelopes
+	 * @param minAbundance relative abundance below which the last peaks of the
+	 *                     envelopes are discarded
+	 * @param binWidth     width of the mass bins in which the averagine
+	 *                     envelopes are cached
+	 * @param cacheSize    maximum number of envelopes cached
+	 */
+	public IsotopeEnvelopeCalculator(int maxPeaks, double minAbundance, double binWidth, int cacheSize) {
+		this.maxPeaks = maxPeaks;
+		this.minAbundance = minAbundance;
+		this.binWidth = binWidth;
+		averagineCache = new AbstractBoundedCache<IsotopeEnvelope, Integer>(cacheSize) {
+			@Override
+			protected Map<Integer, IsotopeEnvelope> createMap() {
+				return new THashMap<Integer, IsotopeEnvelope>();
+			}
+		};
+		formulaCache = new AbstractBoundedCache<IsotopeEnvelope, String>(cacheSize) {
+			@Override
+			protected Map<String, IsotopeEnvelope> createMap() {
+				return new THashMap<String, IsotopeEnvelope>();
+			}
+		};
+	}
+
+	/**
+	 * Envelope of averagine interpolated from the table of
+	 * {@link AssignMass#getIsotopicDistribution(int)}. The peaks are separated
+	 * by {@link AssignMass#DIFFMASSC12C13}.
+	 *
+	 * @param monoisotopicMass
+	 * @return
+	 */
+	public IsotopeEnvelope getAveragineTableEnvelope(double monoisotopicMass) {
+		final int numRows = AssignMass.getNumIsotopicDistributions();
+		final double position = Math.min(numRows - 1,
+				Math.max(0.0, monoisotopicMass / AssignMass.ISOTOPIC_DISTRIBUTION_MASS_STEP - 1));
+		final int row = Math.min(numRows - 2, (int) position);
+		final double fraction = position - row;
+		final double[] lower = AssignMass.getIsotopicDistribution(row);
+		final double[] upper = AssignMass.getIsotopicDistribution(row + 1);
+		final double[] abundances = new double[Math.min(maxPeaks, lower.length)];
+		for (int i = 0; i < abundances.length; i++) {
+			abundances[i] = lower[i] + fraction * (upper[i] - lower[i]);
+		}
+		final double[] massDifferences = new double[abundances.length];
+		for (int i = 0; i < massDifferences.length; i++) {
+			massDifferences[i] = i * AssignMass.DIFFMASSC12C13;
+		}
+		return getEnvelope(monoisotopicMass, abundances, massDifferences);
+	}
+
+	/**
+	 * Exact envelope of the averagine composition of the nominal mass bin of the
+	 * mass. It is calculated only the first time an envelope of the bin is
+	 * requested.
+	 *
+	 * @param monoisotopicMass
+	 * @return
+	 */
+	public IsotopeEnvelope getAveragineEnvelope(double monoisotopicMass) {
+		final int bin = (int) Math.round(monoisotopicMass / binWidth);
+		IsotopeEnvelope envelope = averagineCache.getFromCache(bin);
+		if (envelope == null) {
+			final double binMass = bin * binWidth;
+			final double units = binMass / AVERAGINE_MASS;
+			final int[] counts = new int[AVERAGINE.length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = (int) Math.round(AVERAGINE[i] * units);
+			}
+			envelope = getExactEnvelope(AVERAGINE_ELEMENTS, counts);
+			averagineCache.addtoCache(envelope, bin);
+		}
+		return envelope.withMonoisotopicMass(monoisotopicMass);
+	}
+
+	/**
+	 * Exact envelope of the elemental composition of a formula
+	 *
+	 * @param formula
+	 * @return
+	 * @throws IllegalArgumentException if the isotopes of an element are not
+	 *                                  known, or if the count of an element is
+	 *                                  negative
+	 */
+	public IsotopeEnvelope getEnvelope(CompiledFormula formula) {
+		final String[] elements = new String[formula.getNumElements()];
+		final int[] counts = new int[elements.length];
+		// the composition is the key, since the same formula can be parsed
+		// differently by calculators with other element lists, sorted because
+		// each calculator has its own order of the elements
+		final String[] keyParts = new String[elements.length];
+		for (int i = 0; i < elements.length; i++) {
+			elements[i] = formula.getElement(i);
+			counts[i] = formula.getCount(i);
+			keyParts[i] = elements[i] + counts[i];
+		}
+		Arrays.sort(keyParts);
+		final String key = Arrays.toString(keyParts);
+		IsotopeEnvelope envelope = formulaCache.getFromCache(key);
+		if (envelope == null) {
+			envelope = getExactEnvelope(elements, counts);
+			formulaCache.addtoCache(envelope, key);
+		}
+		return envelope;
+	}
+
+	/**
+	 * Exact envelope of an unmodified peptide
+	 *
+	 * @param sequence
+	 * @return
+	 * @throws IllegalArgumentException if the sequence has a residue other than
+	 *                                  the 20 standard ones, U and O
+	 */
+	public IsotopeEnvelope getPeptideEnvelope(CharSequence sequence) {
+		// H2O of the termini
+		final int[] counts = { 0, 2, 0, 1, 0, 0 };
+		for (int i = 0; i < sequence.length(); i++) {
+			final char aa = sequence.charAt(i);
+			final int[] composition = aa < MassTable.SIZE ? RESIDUE_COMPOSITIONS[aa] : null;
+			if (composition == null) {
+				throw new IllegalArgumentException(
+						"Aminoacid '" + aa + "' of peptide " + sequence + " has not a known composition");
+			}
+			for (int j = 0; j < counts.length; j++) {
+				counts[j] += composition[j];
+			}
+		}
+		return getExactEnvelope(PEPTIDE_ELEMENTS, counts);
+	}
+
+	/**
+	 * Envelopes of averagine for many masses, as in
+	 * {@link #getAveragineEnvelope(double)}
+	 *
+	 * @param monoisotopicMasses
+	 * @return
+	 */
+	public IsotopeEnvelope[] getAveragineEnvelopes(double[] monoisotopicMasses) {
+		final IsotopeEnvelope[] ret = new IsotopeEnvelope[monoisotopicMasses.length];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = getAveragineEnvelope(monoisotopicMasses[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 * Envelopes of many peptides, as in
+	 * {@link #getPeptideEnvelope(CharSequence)}
+	 *
+	 * @param sequences
+	 * @return
+	 */
+	public IsotopeEnvelope[] getPeptideEnvelopes(List<? extends CharSequence> sequences) {
+		final IsotopeEnvelope[] ret = new IsotopeEnvelope[sequences.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = getPeptideEnvelope(sequences.get(i));
+		}
+		return ret;
+	}
+
+	/**
+	 * Envelopes of many formulas, as in {@link #getEnvelope(CompiledFormula)}
+	 *
+	 * @param formulas
+	 * @return
+	 */
+	public IsotopeEnvelope[] getEnvelopes(List<CompiledFormula> formulas) {
+		final IsotopeEnvelope[] ret = new IsotopeEnvelope[formulas.size()];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = getEnvelope(formulas.get(i));
+		}
+		return ret;
+	}
+
+	private IsotopeEnvelope getExactEnvelope(String[] elements, int[] counts) {
+		// probability of each peak and sum of its probability by its mass
+		double[][] total = { { 1.0 }, { 0.0 } };
+		for (int i = 0; i < elements.length; i++) {
+			if (counts[i] == 0) {
+				continue;
+			}
+			if (counts[i] < 0) {
+				throw new IllegalArgumentException("Negative count of element " + elements[i]);
+			}
+			final double[][] isotopes = ISOTOPES.get(elements[i]);
+			if (isotopes == null) {
+				throw new IllegalArgumentException("Isotopes of element " + elements[i] + " not known");
+			}
+			total = convolve(total, power(getElementDistribution(isotopes), counts[i]));
+		}
+		final double[] probabilities = total[0];
+		final double monoisotopicMass = total[1][0] / probabilities[0];
+		final double[] massDifferences = new double[probabilities.length];
+		for (int i = 0; i < massDifferences.length; i++) {
+			massDifferences[i] = probabilities[i] > 0.0 ? total[1][i] / probabilities[i] - monoisotopicMass
+					: i * AssignMass.DIFFMASSC12C13;
+		}
+		return getEnvelope(monoisotopicMass, probabilities, massDifferences);
+	}
+
+	/**
+	 * Distribution of the nominal mass differences of the isotopes of an element
+	 * with the lightest one
+	 */
+	private double[][] getElementDistribution(double[][] isotopes) {
+		final double[] masses = isotopes[0];
+		final int size = Math.min(maxPeaks, (int) Math.round(masses[masses.length - 1] - masses[0]) + 1);
+		final double[][] ret = new double[2][size];
+		for (int i = 0; i < masses.length; i++) {
+			final int peak = (int) Math.round(masses[i] - masses[0]);
+			if (peak < size) {
+				ret[0][peak] += isotopes[1][i];
+				ret[1][peak] += isotopes[1][i] * masses[i];
+			}
+		}
+		return ret;
+	}
+
+	private double[][] power(double[][] distribution, int exponent) {
+		double[][] ret = { { 1.0 }, { 0.0 } };
+		double[][] square = distribution;
+		while (exponent > 0) {
+			if ((exponent & 1) != 0) {
+				ret = convolve(ret, square);
+			}
+			exponent >>= 1;
+			if (exponent > 0) {
+				square = convolve(square, square);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Distribution of the sum of two compounds, truncated to the maximum number
+	 * of peaks. The mass of each combination of peaks is the sum of their
+	 * masses.
+	 */
+	private double[][] convolve(double[][] a, double[][] b) {
+		final double[] aProbabilities = a[0];
+		final double[] aMasses = a[1];
+		final double[] bProbabilities = b[0];
+		final double[] bMasses = b[1];
+		final int size = Math.min(maxPeaks, aProbabilities.length + bProbabilities.length - 1);
+		final double[] probabilities = new double[size];
+		final double[] masses = new double[size];
+		for (int i = 0; i < aProbabilities.length && i < size; i++) {
+			final int last = Math.min(bProbabilities.length, size - i);
+			for (int j = 0; j < last; j++) {
+				probabilities[i + j] += aProbabilities[i] * bProbabilities[j];
+				masses[i + j] += aMasses[i] * bProbabilities[j] + aProbabilities[i] * bMasses[j];
+			}
+		}
+		return new double[][] { probabilities, masses };
+	}
+
+	/**
+	 * Envelope with the abundances relative to the most intense peak and
+	 * without the last peaks below the minimum abundance
+	 */
+	private IsotopeEnvelope getEnvelope(double monoisotopicMass, double[] abundances, double[] massDifferences) {
+		double max = 0.0;
+		for (final double abundance : abundances) {
+			max = Math.max(max, abundance);
+		}
+		int numPeaks = abundances.length;
+		while (numPeaks > 1 && abundances[numPeaks - 1] / max < minAbundance) {
+			numPeaks--;
+		}
+		final double[] relativeAbundances = new double[numPeaks];
+		for (int i = 0; i < numPeaks; i++) {
+			relativeAbundances[i] = abundances[i] / max;
+		}
+		final double[] differences = new double[numPeaks];
+		System.arraycopy(massDifferences, 0, differences, 0, numPeaks);
+		return new IsotopeEnvelope(monoisotopicMass, differences, relativeAbundances);
+	}
+}
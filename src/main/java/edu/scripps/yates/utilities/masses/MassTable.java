@@ -0,0 +1,279 @@
+package edu.scripps.yates.utilities.masses;
+
+/**
+ * Immutable table of the masses of the residues, the terminal groups and the
+ * ion fragments, either mono-isotopic or average, with optional fixed
+ * modifications applied to the residues and to the termini.<br>
+ * Unlike the static tables of {@link AssignMass}, which are global to the JVM
+ * and overwritten every time an {@link AssignMass} is created, a
+ * {@link MassTable} never changes once created, so it can be shared by
+ * multiple threads and different tables can be used at the same time. The
+ * fixed modifications are applied once when creating the table, with
+ * {@link #withFixedModification(char, double)},
+ * {@link #withNTermModification(double)} and
+ * {@link #withCTermModification(double)}, which return a new table.
+ *
+ * @author Salva
+ *
+ */
+public final class MassTable {
+	public static final int SIZE = 256;
+	private static final double[] AVERAGE_MASSES = new double[SIZE];
+	private static final double[] MONOISOTOPIC_MASSES = new double[SIZE];
+
+	static {
+		AVERAGE_MASSES['G'] = 57.05192;
+		MONOISOTOPIC_MASSES['G'] = 57.0214636;
+		AVERAGE_MASSES['A'] = 71.07880;
+		MONOISOTOPIC_MASSES['A'] = 71.0371136;
+		AVERAGE_MASSES['S'] = 87.07820;
+		MONOISOTOPIC_MASSES['S'] = 87.0320282;
+		AVERAGE_MASSES['P'] = 97.11668;
+		MONOISOTOPIC_MASSES['P'] = 97.0527636;
+		AVERAGE_MASSES['V'] = 99.13256;
+		MONOISOTOPIC_MASSES['V'] = 99.0684136;
+		AVERAGE_MASSES['T'] = 101.10508;
+		MONOISOTOPIC_MASSES['T'] = 101.0476782;
+		AVERAGE_MASSES['C'] = 103.13880;
+		MONOISOTOPIC_MASSES['C'] = 103.0091854;
+		AVERAGE_MASSES['L'] = 113.15944;
+		MONOISOTOPIC_MASSES['L'] = 113.0840636;
+		AVERAGE_MASSES['I'] = 113.15944;
+		MONOISOTOPIC_MASSES['I'] = 113.0840636;
+		// X means any AA, so this is done to not crash, but the resulting mass
+		// shouldn't make sense
+		AVERAGE_MASSES['X'] = 113.15944;
+		MONOISOTOPIC_MASSES['X'] = 113.0840636;
+		AVERAGE_MASSES['N'] = 114.10384;
+		MONOISOTOPIC_MASSES['N'] = 114.0429272;
+		// added by SALVA May-3rd-2018
+		// pyrrolysine
+		// AVERAGE_MASSES['O'] = 114.14720;
+		// MONOISOTOPIC_MASSES['O'] = 114.0793126;
+		AVERAGE_MASSES['O'] = 237.30249;
+		MONOISOTOPIC_MASSES['O'] = 237.147785;
+
+		// according to Uniprot B is Aspartic acid or Asparagine, that is, D or
+		// N
+		AVERAGE_MASSES['B'] = 114.59622;
+		MONOISOTOPIC_MASSES['B'] = 114.5349350;
+		AVERAGE_MASSES['D'] = 115.08860;
+		MONOISOTOPIC_MASSES['D'] = 115.0269428;
+		AVERAGE_MASSES['Q'] = 128.13072;
+		MONOISOTOPIC_MASSES['Q'] = 128.0585772;
+		AVERAGE_MASSES['K'] = 128.17408;
+		MONOISOTOPIC_MASSES['K'] = 128.0949626;
+		// according to Uniprot, Z is Glutamic acid or Glutamine, that is, E or
+		// Q
+		AVERAGE_MASSES['Z'] = 128.62310;
+		MONOISOTOPIC_MASSES['Z'] = 128.5505850;
+		AVERAGE_MASSES['E'] = 129.11548;
+		MONOISOTOPIC_MASSES['E'] = 129.0425928;
+		AVERAGE_MASSES['M'] = 131.19256;
+		MONOISOTOPIC_MASSES['M'] = 131.0404854;
+		AVERAGE_MASSES['H'] = 137.14108;
+		MONOISOTOPIC_MASSES['H'] = 137.0589116;
+		AVERAGE_MASSES['F'] = 147.17656;
+		MONOISOTOPIC_MASSES['F'] = 147.0684136;
+		AVERAGE_MASSES['R'] = 156.18748;
+		MONOISOTOPIC_MASSES['R'] = 156.1011106;
+		AVERAGE_MASSES['Y'] = 163.17596;
+		MONOISOTOPIC_MASSES['Y'] = 163.0633282;
+		AVERAGE_MASSES['W'] = 186.21320;
+		MONOISOTOPIC_MASSES['W'] = 186.0793126;
+		// added by SALVA May-3rd-2018
+		// U is selenocysteine
+		AVERAGE_MASSES['U'] = 150.04249;
+		MONOISOTOPIC_MASSES['U'] = 150.953693;
+	}
+
+	/**
+	 * Mono-isotopic masses without modifications
+	 */
+	public static final MassTable MONOISOTOPIC = new MassTable(true);
+	/**
+	 * Average masses without modifications
+	 */
+	public static final MassTable AVERAGE = new MassTable(false);
+
+	private final boolean useMono;
+	private final double[] residueMasses;
+	private final double hplus;
+	private final double h;
+	private final double oh;
+	private final double binWidth;
+	private final double nTerm;
+	private final double cTerm;
+
+	private MassTable(boolean useMono) {
+		this.useMono = useMono;
+		if (useMono) {
+			residueMasses = MONOISOTOPIC_MASSES.clone();
+			binWidth = 1.0005079;
+			hplus = 1.0072765;
+			h = 1.0078250;
+			oh = 15.9949146f + h;
+		} else {
+			residueMasses = AVERAGE_MASSES.clone();
+			binWidth = 1.0011413;
+			hplus = 1.00739;
+			h = 1.00794;
+			oh = 15.9994f + h;
+		}
+		nTerm = 0.0;
+		cTerm = 0.0;
+	}
+
+	private MassTable(MassTable table, double[] residueMasses, double nTerm, double cTerm) {
+		useMono = table.useMono;
+		this.residueMasses = residueMasses;
+		hplus = table.hplus;
+		h = table.h;
+		oh = table.oh;
+		binWidth = table.binWidth;
+		this.nTerm = nTerm;
+		this.cTerm = cTerm;
+	}
+
+	/**
+	 *
+	 * @param useMono
+	 * @return {@link #MONOISOTOPIC} or {@link #AVERAGE}
+	 */
+	public static MassTable getDefault(boolean useMono) {
+		return useMono ? MONOISOTOPIC : AVERAGE;
+	}
+
+	/**
+	 * Gets a new table with a fixed modification on a residue
+	 *
+	 * @param aa
+	 * @param massDifference mass added to the residue
+	 * @return
+	 * @throws IllegalArgumentException if the residue is not in the table, that
+	 *                                  is, if it is not lower than {@link #SIZE}
+	 */
+	public MassTable withFixedModification(char aa, double massDifference) {
+		if (aa >= SIZE) {
+			throw new IllegalArgumentException("Residue '" + aa + "' cannot be modified, since it is not in the table");
+		}
+		final double[] masses = residueMasses.clone();
+		masses[aa] += massDifference;
+		return new MassTable(this, masses, nTerm, cTerm);
+	}
+
+	/**
+	 * Gets a new table with a fixed modification on the N-terminus of the
+	 * peptides
+	 *
+	 * @param massDifference
+	 * @return
+	 */
+	public MassTable withNTermModification(double massDifference) {
+		return new MassTable(this, residueMasses, nTerm + massDifference, cTerm);
+	}
+
+	/**
+	 * Gets a new table with a fixed modification on the C-terminus of the
+	 * peptides
+	 *
+	 * @param massDifference
+	 * @return
+	 */
+	public MassTable withCTermModification(double massDifference) {
+		return new MassTable(this, residueMasses, nTerm, cTerm + massDifference);
+	}
+
+	public boolean isUseMono() {
+		return useMono;
+	}
+
+	/**
+	 *
+	 * @param aa
+	 * @return the mass of the residue, with its fixed modification, or 0 if it is
+	 *         not a known residue
+	 */
+	public double getMass(char aa) {
+		return aa < SIZE ? residueMasses[aa] : 0.0;
+	}
+
+	public boolean containsMass(char aa) {
+		return getMass(aa) != 0.0;
+	}
+
+	/**
+	 *
+	 * @return a copy of the masses of the residues, indexed by their character
+	 */
+	public double[] getResidueMasses() {
+		return residueMasses.clone();
+	}
+
+	/**
+	 *
+	 * @param sequence
+	 * @return the sum of the masses of the residues of the sequence
+	 */
+	public double getResiduesMass(CharSequence sequence) {
+		double ret = 0.0;
+		for (int i = 0; i < sequence.length(); i++) {
+			ret += getMass(sequence.charAt(i));
+		}
+		return ret;
+	}
+
+	public double getHplus() {
+		return hplus;
+	}
+
+	public double getH() {
+		return h;
+	}
+
+	public double getOh() {
+		return oh;
+	}
+
+	public double getBinWidth() {
+		return binWidth;
+	}
+
+	/**
+	 *
+	 * @return the mass of the fixed modification of the N-terminus
+	 */
+	public double getnTerm() {
+		return nTerm;
+	}
+
+	/**
+	 *
+	 * @return the mass of the fixed modification of the C-terminus
+	 */
+	public double getcTerm() {
+		return cTerm;
+	}
+
+	/**
+	 *
+	 * @return the mass added to the residues of a singly charged b ion: a proton
+	 *         and the N-terminal modification
+	 */
+	public double getBionfragment() {
+		return hplus + nTerm;
+	}
+
+	/**
+	 *
+	 * @return the mass added to the residues of a singly charged y ion: water, a
+	 *         proton and the C-terminal modification
+	 */
+	public double getYionfragment() {
+		return oh + h + hplus + cTerm;
+	}
+
+	public int getBinnedValue(double mass, double shift) {
+		return (int) ((mass + shift) / binWidth + 0.5);
+	}
+}
@@ -27,8 +27,7 @@ public class UniprotAminoacid {
 
 	public Double getMonoMass() {
 		if (monoMass == null) {
-			AssignMass.getInstance(true);
-			monoMass = AssignMass.getMass(oneLetterCode);
+			monoMass = MassTable.MONOISOTOPIC.getMass(oneLetterCode);
 		}
 		return monoMass;
 	}
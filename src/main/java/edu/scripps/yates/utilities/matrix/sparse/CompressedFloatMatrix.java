@@ -0,0 +1,135 @@
+package edu.scripps.yates.utilities.matrix.sparse;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link CompressedSparseMatrix} of {@code float} values
+ *
+ * @author Salva
+ *
+ */
+public class CompressedFloatMatrix extends CompressedSparseMatrix {
+	private final float[] values;
+
+	/**
+	 * Matrix in the heap
+	 *
+	 * @param numRows
+	 * @param numCols
+	 * @param compressedRows true for CSR, false for CSC
+	 * @param pointers       position of the first value of each row (CSR) or
+	 *                       column (CSC), plus the number of values at the end
+	 * @param indexes        column (CSR) or row (CSC) of each value, sorted
+	 *                       within each row (or column)
+	 * @param values
+	 * @param rowNames       optional
+	 * @param colNames       optional
+	 */
+	public CompressedFloatMatrix(int numRows, int numCols, boolean compressedRows, long[] pointers, int[] indexes,
+			float[] values, List<String> rowNames, List<String> colNames) {
+		super(numRows, numCols, compressedRows, pointers, indexes, rowNames, colNames);
+		if (values.length != indexes.length) {
+			throw new IllegalArgumentException(values.length + " values for " + indexes.length + " indexes");
+		}
+		this.values = values;
+	}
+
+	CompressedFloatMatrix(Header header) {
+		super(header);
+		values = null;
+	}
+
+	@Override
+	public ValueType getValueType() {
+		return ValueType.FLOAT;
+	}
+
+	private float getValueAt(long position) {
+		if (values != null) {
+			return values[(int) position];
+		}
+		return valuesRegion.getFloat(position * 4);
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @param colIndex
+	 * @return the value of the cell, being 0 the ones not stored
+	 */
+	public float getValue(int rowIndex, int colIndex) {
+		final long position = getPosition(rowIndex, colIndex);
+		if (position == -1) {
+			return 0;
+		}
+		return getValueAt(position);
+	}
+
+	private float[] getValues(long[] positions) {
+		final float[] ret = new float[positions.length];
+		for (int i = 0; i < ret.length; i++) {
+			ret[i] = getValueAt(positions[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @return the non-zero values of a row, sorted by column, as in
+	 *         {@link #getRowIndexes(int)}
+	 */
+	public float[] getRowValues(int rowIndex) {
+		return getValues(getRowPositions(rowIndex));
+	}
+
+	/**
+	 *
+	 * @param colIndex
+	 * @return the non-zero values of a column, sorted by row, as in
+	 *         {@link #getColumnIndexes(int)}
+	 */
+	public float[] getColumnValues(int colIndex) {
+		return getValues(getColumnPositions(colIndex));
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @return all the values of a row, including the zeros
+	 */
+	public float[] getDenseRow(int rowIndex) {
+		final float[] ret = new float[getNumCols()];
+		final long[] positions = getRowPositions(rowIndex);
+		final int[] colIndexes = getRowIndexes(positions);
+		for (int i = 0; i < positions.length; i++) {
+			ret[colIndexes[i]] = getValueAt(positions[i]);
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param colIndex
+	 * @return all the values of a column, including the zeros
+	 */
+	public float[] getDenseColumn(int colIndex) {
+		final float[] ret = new float[getNumRows()];
+		final long[] positions = getColumnPositions(colIndex);
+		final int[] rowIndexes = getColumnIndexes(positions);
+		for (int i = 0; i < positions.length; i++) {
+			ret[rowIndexes[i]] = getValueAt(positions[i]);
+		}
+		return ret;
+	}
+
+	@Override
+	protected void writeValues(DataOutputStream dos) throws IOException {
+		final long numValues = getNumValues();
+		for (long position = 0; position < numValues; position++) {
+			dos.writeFloat(getValueAt(position));
+		}
+	}
+}
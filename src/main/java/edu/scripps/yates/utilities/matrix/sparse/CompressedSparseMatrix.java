@@ -0,0 +1,715 @@
+package edu.scripps.yates.utilities.matrix.sparse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.scripps.yates.utilities.index.MappedRegion;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Immutable sparse matrix of primitive values in compressed sparse row (CSR)
+ * or compressed sparse column (CSC) layout: the non-zero values are sorted by
+ * row and then by column (or the other way around), and for each row (or
+ * column) there is a pointer to the position of its first value. So there is
+ * no object per value, and a row of a CSR matrix or a column of a CSC matrix
+ * is a contiguous range of values. Getting a column of a CSR matrix (or a row
+ * of a CSC one) requires a binary search per row.<br>
+ * The matrix is kept either in arrays in the heap or in a binary file mapped in
+ * memory, which is opened without parsing anything, and whose pages are shared
+ * by all the processes mapping the same file. The layout of the file is:
+ * <ul>
+ * <li>header: magic number, version, value type, layout, number of rows,
+ * number of columns, number of values and offsets of the other sections</li>
+ * <li>pointers: one long per row (CSR) or column (CSC), plus the total number
+ * of values</li>
+ * <li>indexes: one int per value, with its column (CSR) or row (CSC)</li>
+ * <li>values: the values, in the size of their type</li>
+ * <li>names: number of row names and the names, and the same for the columns,
+ * which may be missing</li>
+ * </ul>
+ * Instances of this class are safe to be read from multiple threads.
+ *
+ * @author Salva
+ *
+ */
+public abstract class CompressedSparseMatrix {
+	private static final int MAGIC = 0x43534D58;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+
+	public enum ValueType {
+		DOUBLE(8), FLOAT(4), INTEGER(4), SHORT(2);
+
+		private final int size;
+
+		private ValueType(int size) {
+			this.size = size;
+		}
+
+		/**
+		 *
+		 * @return the size in bytes of a value
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 *
+		 * @param value
+		 * @return the value converted to this type, as in a cast, which can be 0
+		 *         for a value that was not 0
+		 */
+		public double cast(double value) {
+			switch (this) {
+			case DOUBLE:
+				return value;
+			case FLOAT:
+				return (float) value;
+			case INTEGER:
+				return (int) value;
+			default:
+				return (short) value;
+			}
+		}
+	}
+
+	private final int numRows;
+	private final int numCols;
+	private final boolean compressedRows;
+	// in the heap
+	private final long[] pointers;
+	private final int[] indexes;
+	// or in a mapped file
+	private final MappedRegion pointersRegion;
+	private final MappedRegion indexesRegion;
+	protected final MappedRegion valuesRegion;
+	private final List<String> rowNames;
+	private final List<String> colNames;
+	private TObjectIntHashMap<String> rowIndexes;
+	private TObjectIntHashMap<String> colIndexes;
+
+	/**
+	 * Matrix in the heap
+	 *
+	 * @param numRows
+	 * @param numCols
+	 * @param compressedRows true for CSR, false for CSC
+	 * @param pointers       position of the first value of each row (CSR) or
+	 *                       column (CSC), plus the number of values at the end
+	 * @param indexes        column (CSR) or row (CSC) of each value, sorted
+	 *                       within each row (or column)
+	 * @param rowNames       optional
+	 * @param colNames       optional
+	 */
+	protected CompressedSparseMatrix(int numRows, int numCols, boolean compressedRows, long[] pointers,
+			int[] indexes, List<String> rowNames, List<String> colNames) {
+		this.numRows = numRows;
+		this.numCols = numCols;
+		this.compressedRows = compressedRows;
+		if (pointers.length != getNumLines() + 1 || pointers[pointers.length - 1] != indexes.length) {
+			throw new IllegalArgumentException("Pointers not valid for " + getNumLines() + " "
+					+ (compressedRows ? "rows" : "columns") + " and " + indexes.length + " values");
+		}
+		this.pointers = pointers;
+		this.indexes = indexes;
+		pointersRegion = null;
+		indexesRegion = null;
+		valuesRegion = null;
+		this.rowNames = rowNames;
+		this.colNames = colNames;
+	}
+
+	/**
+	 * Matrix mapped from a file
+	 *
+	 * @param header
+	 */
+	protected CompressedSparseMatrix(Header header) {
+		numRows = header.numRows;
+		numCols = header.numCols;
+		compressedRows = header.compressedRows;
+		pointers = null;
+		indexes = null;
+		pointersRegion = header.pointersRegion;
+		indexesRegion = header.indexesRegion;
+		valuesRegion = header.valuesRegion;
+		rowNames = header.rowNames;
+		colNames = header.colNames;
+	}
+
+	/**
+	 * Everything read from a binary file but the values
+	 *
+	 * @author Salva
+	 *
+	 */
+	protected static class Header {
+		private ValueType valueType;
+		private int numRows;
+		private int numCols;
+		private boolean compressedRows;
+		private MappedRegion pointersRegion;
+		private MappedRegion indexesRegion;
+		private MappedRegion valuesRegion;
+		private List<String> rowNames;
+		private List<String> colNames;
+	}
+
+	public abstract ValueType getValueType();
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumCols() {
+		return numCols;
+	}
+
+	/**
+	 *
+	 * @return true if the layout is CSR, false if it is CSC
+	 */
+	public boolean isCompressedRows() {
+		return compressedRows;
+	}
+
+	/**
+	 *
+	 * @return true if the matrix is mapped from a file
+	 */
+	public boolean isMapped() {
+		return pointers == null;
+	}
+
+	private int getNumLines() {
+		return compressedRows ? numRows : numCols;
+	}
+
+	/**
+	 *
+	 * @return the number of non-zero values
+	 */
+	public long getNumValues() {
+		return getPointer(getNumLines());
+	}
+
+	/**
+	 *
+	 * @param line row (CSR) or column (CSC)
+	 * @return the position of its first value
+	 */
+	protected final long getPointer(int line) {
+		if (pointers != null) {
+			return pointers[line];
+		}
+		return pointersRegion.getLong((long) line * 8);
+	}
+
+	/**
+	 *
+	 * @param position
+	 * @return the column (CSR) or row (CSC) of the value at that position
+	 */
+	protected final int getIndex(long position) {
+		if (indexes != null) {
+			return indexes[(int) position];
+		}
+		return indexesRegion.getInt(position * 4);
+	}
+
+	/**
+	 *
+	 * @param line
+	 * @param index
+	 * @return the position of the value of a line at an index, or -1 if it is
+	 *         zero
+	 */
+	private long findPosition(int line, int index) {
+		long low = getPointer(line);
+		long high = getPointer(line + 1) - 1;
+		while (low <= high) {
+			final long middle = (low + high) >>> 1;
+			final int middleIndex = getIndex(middle);
+			if (middleIndex < index) {
+				low = middle + 1;
+			} else if (middleIndex > index) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @param colIndex
+	 * @return the position of the value of a cell, or -1 if it is zero
+	 */
+	protected final long getPosition(int rowIndex, int colIndex) {
+		if (rowIndex < 0 || rowIndex >= numRows || colIndex < 0 || colIndex >= numCols) {
+			throw new IndexOutOfBoundsException("Cell " + rowIndex + "," + colIndex + " out of a matrix of "
+					+ numRows + " rows and " + numCols + " columns");
+		}
+		if (compressedRows) {
+			return findPosition(rowIndex, colIndex);
+		}
+		return findPosition(colIndex, rowIndex);
+	}
+
+	private long[] getPositions(int line, boolean compressedLine) {
+		if (compressedLine) {
+			final long start = getPointer(line);
+			final long[] ret = new long[(int) (getPointer(line + 1) - start)];
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = start + i;
+			}
+			return ret;
+		}
+		final TLongArrayList ret = new TLongArrayList();
+		for (int otherLine = 0; otherLine < getNumLines(); otherLine++) {
+			final long position = findPosition(otherLine, line);
+			if (position != -1) {
+				ret.add(position);
+			}
+		}
+		return ret.toArray();
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @return the positions of the non-zero values of a row, sorted by column
+	 */
+	protected final long[] getRowPositions(int rowIndex) {
+		return getPositions(rowIndex, compressedRows);
+	}
+
+	/**
+	 *
+	 * @param colIndex
+	 * @return the positions of the non-zero values of a column, sorted by row
+	 */
+	protected final long[] getColumnPositions(int colIndex) {
+		return getPositions(colIndex, !compressedRows);
+	}
+
+	private int[] getIndexes(long[] positions, boolean compressedLine) {
+		final int[] ret = new int[positions.length];
+		if (compressedLine) {
+			for (int i = 0; i < ret.length; i++) {
+				ret[i] = getIndex(positions[i]);
+			}
+		} else {
+			// the index is the line in which it was found
+			int otherLine = 0;
+			for (int i = 0; i < ret.length; i++) {
+				while (getPointer(otherLine + 1) <= positions[i]) {
+					otherLine++;
+				}
+				ret[i] = otherLine;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param rowPositions from {@link #getRowPositions(int)}
+	 * @return the columns of the values at those positions
+	 */
+	protected final int[] getRowIndexes(long[] rowPositions) {
+		return getIndexes(rowPositions, compressedRows);
+	}
+
+	/**
+	 *
+	 * @param columnPositions from {@link #getColumnPositions(int)}
+	 * @return the rows of the values at those positions
+	 */
+	protected final int[] getColumnIndexes(long[] columnPositions) {
+		return getIndexes(columnPositions, !compressedRows);
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @return the columns of the non-zero values of a row, in the same order
+	 *         than the values returned by the getRowValues method of the
+	 *         subclasses
+	 */
+	public int[] getRowIndexes(int rowIndex) {
+		return getRowIndexes(getRowPositions(rowIndex));
+	}
+
+	/**
+	 *
+	 * @param colIndex
+	 * @return the rows of the non-zero values of a column, in the same order
+	 *         than the values returned by the getColumnValues method of the
+	 *         subclasses
+	 */
+	public int[] getColumnIndexes(int colIndex) {
+		return getColumnIndexes(getColumnPositions(colIndex));
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @return the number of non-zero values of a row
+	 */
+	public int getNumValuesInRow(int rowIndex) {
+		if (compressedRows) {
+			return (int) (getPointer(rowIndex + 1) - getPointer(rowIndex));
+		}
+		return getRowPositions(rowIndex).length;
+	}
+
+	/**
+	 *
+	 * @param colIndex
+	 * @return the number of non-zero values of a column
+	 */
+	public int getNumValuesInColumn(int colIndex) {
+		if (!compressedRows) {
+			return (int) (getPointer(colIndex + 1) - getPointer(colIndex));
+		}
+		return getColumnPositions(colIndex).length;
+	}
+
+	/**
+	 *
+	 * @param rowIndex
+	 * @return the name of the row or null if the matrix has no row names
+	 */
+	public String getRowName(int rowIndex) {
+		if (rowNames == null) {
+			return null;
+		}
+		return rowNames.get(rowIndex);
+	}
+
+	/**
+	 *
+	 * @param colIndex
+	 * @return the name of the column or null if the matrix has no column names
+	 */
+	public String getColName(int colIndex) {
+		if (colNames == null) {
+			return null;
+		}
+		return colNames.get(colIndex);
+	}
+
+	private static TObjectIntHashMap<String> getIndexesByName(List<String> names) {
+		final TObjectIntHashMap<String> ret = new TObjectIntHashMap<String>(names.size(), 0.5f, -1);
+		for (int i = 0; i < names.size(); i++) {
+			ret.put(names.get(i), i);
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param rowName
+	 * @return the index of the row with that name, or -1 if not found
+	 */
+	public synchronized int getRowIndex(String rowName) {
+		if (rowNames == null) {
+			return -1;
+		}
+		if (rowIndexes == null) {
+			rowIndexes = getIndexesByName(rowNames);
+		}
+		return rowIndexes.get(rowName);
+	}
+
+	/**
+	 *
+	 * @param colName
+	 * @return the index of the column with that name, or -1 if not found
+	 */
+	public synchronized int getColIndex(String colName) {
+		if (colNames == null) {
+			return -1;
+		}
+		if (colIndexes == null) {
+			colIndexes = getIndexesByName(colNames);
+		}
+		return colIndexes.get(colName);
+	}
+
+	/**
+	 * Sorts the indexes within each line, moving the values with them
+	 *
+	 * @param pointers
+	 * @param indexes
+	 * @param values
+	 */
+	static void sortLines(long[] pointers, int[] indexes, double[] values) {
+		long[] keys = new long[0];
+		final double[] lineValues = new double[indexes.length];
+		for (int line = 0; line < pointers.length - 1; line++) {
+			final int start = (int) pointers[line];
+			final int length = (int) (pointers[line + 1] - start);
+			if (keys.length < length) {
+				keys = new long[length];
+			}
+			// index and position in the line
+			for (int i = 0; i < length; i++) {
+				keys[i] = (long) indexes[start + i] << 32 | i;
+			}
+			Arrays.sort(keys, 0, length);
+			System.arraycopy(values, start, lineValues, 0, length);
+			for (int i = 0; i < length; i++) {
+				indexes[start + i] = (int) (keys[i] >>> 32);
+				values[start + i] = lineValues[(int) keys[i]];
+			}
+		}
+	}
+
+	/**
+	 * Creates a matrix in the heap of a given type, converting the values
+	 *
+	 * @param valueType
+	 * @param numRows
+	 * @param numCols
+	 * @param compressedRows
+	 * @param pointers
+	 * @param indexes        sorted within each line
+	 * @param values
+	 * @param rowNames
+	 * @param colNames
+	 * @return
+	 */
+	static CompressedSparseMatrix create(ValueType valueType, int numRows, int numCols, boolean compressedRows,
+			long[] pointers, int[] indexes, double[] values, List<String> rowNames, List<String> colNames) {
+		switch (valueType) {
+		case DOUBLE:
+			return new CompressedDoubleMatrix(numRows, numCols, compressedRows, pointers, indexes, values, rowNames,
+					colNames);
+		case FLOAT:
+			final float[] floats = new float[values.length];
+			for (int i = 0; i < values.length; i++) {
+				floats[i] = (float) values[i];
+			}
+			return new CompressedFloatMatrix(numRows, numCols, compressedRows, pointers, indexes, floats, rowNames,
+					colNames);
+		case INTEGER:
+			final int[] ints = new int[values.length];
+			for (int i = 0; i < values.length; i++) {
+				ints[i] = (int) values[i];
+			}
+			return new CompressedIntegerMatrix(numRows, numCols, compressedRows, pointers, indexes, ints, rowNames,
+					colNames);
+		default:
+			final short[] shorts = new short[values.length];
+			for (int i = 0; i < values.length; i++) {
+				shorts[i] = (short) values[i];
+			}
+			return new CompressedShortMatrix(numRows, numCols, compressedRows, pointers, indexes, shorts, rowNames,
+					colNames);
+		}
+	}
+
+	/**
+	 * Writes the values, in the order of their positions
+	 *
+	 * @param dos
+	 * @throws IOException
+	 */
+	protected abstract void writeValues(DataOutputStream dos) throws IOException;
+
+	/**
+	 * Writes the matrix in a binary file that can be mapped with
+	 * {@link #open(File)}. The file is written in a temporary file that is
+	 * renamed at the end, so other processes never map a partially written
+	 * matrix.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		final DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile), 1024 * 1024));
+		try {
+			final long numValues = getNumValues();
+			writeHeader(dos, getValueType(), numRows, numCols, compressedRows, numValues);
+			for (int line = 0; line <= getNumLines(); line++) {
+				dos.writeLong(getPointer(line));
+			}
+			for (long position = 0; position < numValues; position++) {
+				dos.writeInt(getIndex(position));
+			}
+			writeValues(dos);
+			writeNames(dos, rowNames, colNames);
+		} finally {
+			dos.close();
+		}
+		replaceFile(tmpFile, file);
+	}
+
+	/**
+	 * Writes the header of a binary matrix file, in which the sections start
+	 * right after it, one after the other
+	 *
+	 * @param dos
+	 * @param valueType
+	 * @param numRows
+	 * @param numCols
+	 * @param compressedRows
+	 * @param numValues
+	 * @throws IOException
+	 */
+	static void writeHeader(DataOutputStream dos, ValueType valueType, int numRows, int numCols,
+			boolean compressedRows, long numValues) throws IOException {
+		final long pointersOffset = HEADER_SIZE;
+		final long indexesOffset = pointersOffset + ((compressedRows ? numRows : numCols) + 1l) * 8;
+		final long valuesOffset = indexesOffset + numValues * 4;
+		final long namesOffset = valuesOffset + numValues * valueType.getSize();
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(valueType.ordinal());
+		dos.writeInt(compressedRows ? 1 : 0);
+		dos.writeInt(numRows);
+		dos.writeInt(numCols);
+		dos.writeLong(numValues);
+		dos.writeLong(pointersOffset);
+		dos.writeLong(indexesOffset);
+		dos.writeLong(valuesOffset);
+		dos.writeLong(namesOffset);
+	}
+
+	/**
+	 * Writes the names section of a binary matrix file
+	 *
+	 * @param dos
+	 * @param rowNames optional
+	 * @param colNames optional
+	 * @throws IOException
+	 */
+	static void writeNames(DataOutputStream dos, List<String> rowNames, List<String> colNames) throws IOException {
+		for (final List<String> names : Arrays.asList(rowNames, colNames)) {
+			if (names == null) {
+				dos.writeInt(0);
+			} else {
+				dos.writeInt(names.size());
+				for (final String name : names) {
+					dos.writeUTF(name);
+				}
+			}
+		}
+	}
+
+	static void replaceFile(File tmpFile, File file) throws IOException {
+		if (file.exists() && !file.delete()) {
+			tmpFile.delete();
+			throw new IOException("Matrix file " + file.getAbsolutePath() + " could not be replaced");
+		}
+		if (!tmpFile.renameTo(file)) {
+			throw new IOException("Error renaming " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+		}
+	}
+
+	private static List<String> readNames(DataInputStream dis, int expectedSize) throws IOException {
+		final int size = dis.readInt();
+		if (size == 0) {
+			return null;
+		}
+		if (size != expectedSize) {
+			throw new IOException("Expected " + expectedSize + " names but found " + size);
+		}
+		final List<String> ret = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			ret.add(dis.readUTF());
+		}
+		return ret;
+	}
+
+	/**
+	 * Maps a binary matrix file written by {@link #write(File)}, reading only the
+	 * names of the rows and columns
+	 *
+	 * @param file
+	 * @return a {@link CompressedDoubleMatrix}, {@link CompressedFloatMatrix},
+	 *         {@link CompressedIntegerMatrix} or {@link CompressedShortMatrix},
+	 *         depending on the type of the values
+	 * @throws IOException if the file is not a valid binary matrix file
+	 */
+	public static CompressedSparseMatrix open(File file) throws IOException {
+		final Header header = new Header();
+		final long namesOffset;
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, buffer.position()) < 0) {
+					throw new IOException("Unexpected end of binary matrix file " + file.getAbsolutePath());
+				}
+			}
+			buffer.flip();
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException(file.getAbsolutePath() + " is not a valid binary matrix file");
+			}
+			final int valueTypeOrdinal = buffer.getInt();
+			if (valueTypeOrdinal < 0 || valueTypeOrdinal >= ValueType.values().length) {
+				throw new IOException("Unknown value type " + valueTypeOrdinal + " in binary matrix file "
+						+ file.getAbsolutePath());
+			}
+			header.valueType = ValueType.values()[valueTypeOrdinal];
+			header.compressedRows = buffer.getInt() == 1;
+			header.numRows = buffer.getInt();
+			header.numCols = buffer.getInt();
+			final long numValues = buffer.getLong();
+			final long pointersOffset = buffer.getLong();
+			final long indexesOffset = buffer.getLong();
+			final long valuesOffset = buffer.getLong();
+			namesOffset = buffer.getLong();
+			if (namesOffset > channel.size()) {
+				throw new IOException("Binary matrix file " + file.getAbsolutePath() + " is truncated");
+			}
+			header.pointersRegion = new MappedRegion(channel, pointersOffset, indexesOffset - pointersOffset);
+			header.indexesRegion = new MappedRegion(channel, indexesOffset, numValues * 4);
+			header.valuesRegion = new MappedRegion(channel, valuesOffset, namesOffset - valuesOffset);
+		} finally {
+			// the mapped buffers remain valid after closing the channel
+			raf.close();
+		}
+		final FileInputStream fis = new FileInputStream(file);
+		final DataInputStream dis = new DataInputStream(new BufferedInputStream(fis));
+		try {
+			fis.getChannel().position(namesOffset);
+			header.rowNames = readNames(dis, header.numRows);
+			header.colNames = readNames(dis, header.numCols);
+		} finally {
+			dis.close();
+		}
+		switch (header.valueType) {
+		case DOUBLE:
+			return new CompressedDoubleMatrix(header);
+		case FLOAT:
+			return new CompressedFloatMatrix(header);
+		case INTEGER:
+			return new CompressedIntegerMatrix(header);
+		default:
+			return new CompressedShortMatrix(header);
+		}
+	}
+}
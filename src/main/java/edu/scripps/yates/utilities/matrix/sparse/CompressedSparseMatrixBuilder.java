@@ -0,0 +1,421 @@
+package edu.scripps.yates.utilities.matrix.sparse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.matrix.sparse.CompressedSparseMatrix.ValueType;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+/**
+ * Builds the binary file of a {@link CompressedSparseMatrix} from a stream of
+ * (row name, column name, value) triplets of any size, without keeping the
+ * matrix in memory: the triplets are kept in a buffer that, when full, is
+ * sorted and written to a temporary file (a run), and at the end all the runs
+ * are merged directly into the binary file. Only the names of the rows and
+ * columns and a pointer per row (or column) are kept in memory.<br>
+ * If a cell is added more than once, the last value is kept, as in
+ * {@link SparseMatrix}, and the cells with a 0 are not stored. The values are
+ * converted to the type of the matrix as in a cast.
+ *
+ * @author Salva
+ *
+ */
+public class CompressedSparseMatrixBuilder {
+	private static final Logger log = Logger.getLogger(CompressedSparseMatrixBuilder.class);
+	public static final int DEFAULT_MAX_VALUES_IN_MEMORY = 1 << 22;
+	private final ValueType valueType;
+	private final boolean compressedRows;
+	private final File tmpFolder;
+	private final TObjectIntHashMap<String> rowIndexes = new TObjectIntHashMap<String>(16, 0.5f, -1);
+	private final TObjectIntHashMap<String> colIndexes = new TObjectIntHashMap<String>(16, 0.5f, -1);
+	private final List<String> rowNames = new ArrayList<String>();
+	private final List<String> colNames = new ArrayList<String>();
+	// buffer of triplets, by row (CSR) or column (CSC) and index in it
+	private final int[] lines;
+	private final int[] indexes;
+	private final double[] values;
+	private int bufferSize;
+	private final List<File> runFiles = new ArrayList<File>();
+	private long numAddedValues;
+	private boolean built;
+
+	/**
+	 * Builder that keeps up to {@link #DEFAULT_MAX_VALUES_IN_MEMORY} values in
+	 * memory and writes the runs in the default temporary folder
+	 *
+	 * @param valueType
+	 * @param compressedRows true for CSR layout, to get rows faster, false for
+	 *                       CSC layout, to get columns faster
+	 */
+	public CompressedSparseMatrixBuilder(ValueType valueType, boolean compressedRows) {
+		this(valueType, compressedRows, null, DEFAULT_MAX_VALUES_IN_MEMORY);
+	}
+
+	/**
+	 *
+	 * @param valueType
+	 * @param compressedRows    true for CSR layout, to get rows faster, false
+	 *                          for CSC layout, to get columns faster
+	 * @param tmpFolder         folder for the runs, or null for the default
+	 *                          temporary folder
+	 * @param maxValuesInMemory size of the buffer. Each value takes 32 bytes
+	 *                          while sorting it.
+	 */
+	public CompressedSparseMatrixBuilder(ValueType valueType, boolean compressedRows, File tmpFolder,
+			int maxValuesInMemory) {
+		this.valueType = valueType;
+		this.compressedRows = compressedRows;
+		this.tmpFolder = tmpFolder;
+		lines = new int[maxValuesInMemory];
+		indexes = new int[maxValuesInMemory];
+		values = new double[maxValuesInMemory];
+	}
+
+	private static int getIndex(String name, TObjectIntHashMap<String> indexesByName, List<String> names) {
+		int ret = indexesByName.get(name);
+		if (ret == -1) {
+			ret = names.size();
+			indexesByName.put(name, ret);
+			names.add(name);
+		}
+		return ret;
+	}
+
+	public void addValue(String rowName, String colName, double value) throws IOException {
+		if (built) {
+			throw new IllegalStateException("The matrix is already built");
+		}
+		final int row = getIndex(rowName, rowIndexes, rowNames);
+		final int col = getIndex(colName, colIndexes, colNames);
+		if (bufferSize == lines.length) {
+			writeRun();
+		}
+		lines[bufferSize] = compressedRows ? row : col;
+		indexes[bufferSize] = compressedRows ? col : row;
+		values[bufferSize] = value;
+		bufferSize++;
+		numAddedValues++;
+	}
+
+	/**
+	 *
+	 * @return the number of values added, including the repeated cells
+	 */
+	public long getNumAddedValues() {
+		return numAddedValues;
+	}
+
+	public int getNumRows() {
+		return rowNames.size();
+	}
+
+	public int getNumCols() {
+		return colNames.size();
+	}
+
+	private int getNumLines() {
+		return compressedRows ? rowNames.size() : colNames.size();
+	}
+
+	/**
+	 * Sorts the buffer by line and index with two counting sorts, the first one
+	 * by index and the second one by line, which being stable keep the values
+	 * of the same cell in the order in which they were added
+	 */
+	private void sortBuffer() {
+		final int[] auxLines = new int[bufferSize];
+		final int[] auxIndexes = new int[bufferSize];
+		final double[] auxValues = new double[bufferSize];
+		final int[] counts = new int[Math.max(rowNames.size(), colNames.size()) + 1];
+		for (int i = 0; i < bufferSize; i++) {
+			counts[indexes[i] + 1]++;
+		}
+		for (int i = 1; i < counts.length; i++) {
+			counts[i] += counts[i - 1];
+		}
+		for (int i = 0; i < bufferSize; i++) {
+			final int position = counts[indexes[i]]++;
+			auxLines[position] = lines[i];
+			auxIndexes[position] = indexes[i];
+			auxValues[position] = values[i];
+		}
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < bufferSize; i++) {
+			counts[auxLines[i] + 1]++;
+		}
+		for (int i = 1; i < counts.length; i++) {
+			counts[i] += counts[i - 1];
+		}
+		for (int i = 0; i < bufferSize; i++) {
+			final int position = counts[auxLines[i]]++;
+			lines[position] = auxLines[i];
+			indexes[position] = auxIndexes[i];
+			values[position] = auxValues[i];
+		}
+	}
+
+	private void writeRun() throws IOException {
+		sortBuffer();
+		final File runFile = File.createTempFile("matrixRun", ".tmp", tmpFolder);
+		runFile.deleteOnExit();
+		runFiles.add(runFile);
+		final DataOutputStream dos = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(runFile), 1024 * 1024));
+		try {
+			for (int i = 0; i < bufferSize; i++) {
+				// only the last value of each cell
+				if (i + 1 < bufferSize && lines[i + 1] == lines[i] && indexes[i + 1] == indexes[i]) {
+					continue;
+				}
+				dos.writeInt(lines[i]);
+				dos.writeInt(indexes[i]);
+				dos.writeDouble(values[i]);
+			}
+		} finally {
+			dos.close();
+		}
+		log.info("Run " + runFiles.size() + " with " + bufferSize + " values written to "
+				+ runFile.getAbsolutePath());
+		bufferSize = 0;
+	}
+
+	/**
+	 * Sorted triplets of a run, being the latest runs the ones with higher order
+	 *
+	 * @author Salva
+	 *
+	 */
+	private abstract static class Run {
+		private final int order;
+		protected int line;
+		protected int index;
+		protected double value;
+
+		private Run(int order) {
+			this.order = order;
+		}
+
+		/**
+		 * Moves to the next triplet
+		 *
+		 * @return false if there are no more
+		 * @throws IOException
+		 */
+		protected abstract boolean next() throws IOException;
+
+		protected void close() throws IOException {
+		}
+	}
+
+	private static class FileRun extends Run {
+		private final DataInputStream dis;
+
+		private FileRun(int order, File file) throws IOException {
+			super(order);
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+		}
+
+		@Override
+		protected boolean next() throws IOException {
+			try {
+				line = dis.readInt();
+			} catch (final EOFException e) {
+				return false;
+			}
+			index = dis.readInt();
+			value = dis.readDouble();
+			return true;
+		}
+
+		@Override
+		protected void close() throws IOException {
+			dis.close();
+		}
+	}
+
+	/**
+	 * The buffer, which is not written to a file
+	 */
+	private class BufferRun extends Run {
+		private int position = -1;
+
+		private BufferRun(int order) {
+			super(order);
+		}
+
+		@Override
+		protected boolean next() {
+			position++;
+			if (position >= bufferSize) {
+				return false;
+			}
+			// only the last value of each cell
+			while (position + 1 < bufferSize && lines[position + 1] == lines[position]
+					&& indexes[position + 1] == indexes[position]) {
+				position++;
+			}
+			line = lines[position];
+			index = indexes[position];
+			value = values[position];
+			return true;
+		}
+	}
+
+	private void writeValue(DataOutputStream dos, double value) throws IOException {
+		switch (valueType) {
+		case DOUBLE:
+			dos.writeDouble(value);
+			break;
+		case FLOAT:
+			dos.writeFloat((float) value);
+			break;
+		case INTEGER:
+			dos.writeInt((int) value);
+			break;
+		default:
+			dos.writeShort((short) value);
+		}
+	}
+
+	private static void append(DataOutputStream dos, File file) throws IOException {
+		final InputStream is = new BufferedInputStream(new FileInputStream(file), 1024 * 1024);
+		try {
+			final byte[] bytes = new byte[64 * 1024];
+			int read;
+			while ((read = is.read(bytes)) != -1) {
+				dos.write(bytes, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Merges all the added triplets into a binary matrix file and maps it. The
+	 * builder cannot be used afterwards.
+	 *
+	 * @param file
+	 * @return the matrix mapped from the file
+	 * @throws IOException
+	 */
+	public CompressedSparseMatrix build(File file) throws IOException {
+		if (built) {
+			throw new IllegalStateException("The matrix is already built");
+		}
+		built = true;
+		sortBuffer();
+		final PriorityQueue<Run> queue = new PriorityQueue<Run>(runFiles.size() + 1, new Comparator<Run>() {
+			@Override
+			public int compare(Run run1, Run run2) {
+				if (run1.line != run2.line) {
+					return Integer.compare(run1.line, run2.line);
+				}
+				if (run1.index != run2.index) {
+					return Integer.compare(run1.index, run2.index);
+				}
+				// the latest value first
+				return Integer.compare(run2.order, run1.order);
+			}
+		});
+		final List<Run> runs = new ArrayList<Run>();
+		final long[] pointers = new long[getNumLines() + 1];
+		long numValues = 0;
+		final File indexesFile = File.createTempFile("matrixIndexes", ".tmp", tmpFolder);
+		final File valuesFile = File.createTempFile("matrixValues", ".tmp", tmpFolder);
+		final File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			for (int i = 0; i < runFiles.size(); i++) {
+				runs.add(new FileRun(i, runFiles.get(i)));
+			}
+			runs.add(new BufferRun(runFiles.size()));
+			final DataOutputStream indexesDos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(indexesFile), 1024 * 1024));
+			final DataOutputStream valuesDos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(valuesFile), 1024 * 1024));
+			try {
+				for (final Run run : runs) {
+					if (run.next()) {
+						queue.add(run);
+					}
+				}
+				int lastLine = -1;
+				int lastIndex = -1;
+				while (!queue.isEmpty()) {
+					final Run run = queue.poll();
+					// older values of the same cell are skipped
+					if (run.line != lastLine || run.index != lastIndex) {
+						lastLine = run.line;
+						lastIndex = run.index;
+						// a value can be 0 after the cast to the type of the matrix
+						final double value = valueType.cast(run.value);
+						if (value != 0) {
+							pointers[run.line + 1]++;
+							indexesDos.writeInt(run.index);
+							writeValue(valuesDos, value);
+							numValues++;
+						}
+					}
+					if (run.next()) {
+						queue.add(run);
+					}
+				}
+			} finally {
+				indexesDos.close();
+				valuesDos.close();
+			}
+			for (int line = 1; line < pointers.length; line++) {
+				pointers[line] += pointers[line - 1];
+			}
+
+			final DataOutputStream dos = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmpFile), 1024 * 1024));
+			try {
+				CompressedSparseMatrix.writeHeader(dos, valueType, rowNames.size(), colNames.size(), compressedRows,
+						numValues);
+				for (final long pointer : pointers) {
+					dos.writeLong(pointer);
+				}
+				append(dos, indexesFile);
+				append(dos, valuesFile);
+				CompressedSparseMatrix.writeNames(dos, rowNames, colNames);
+			} finally {
+				dos.close();
+			}
+			CompressedSparseMatrix.replaceFile(tmpFile, file);
+		} finally {
+			// also the runs opened before one that could not be opened
+			for (final Run run : runs) {
+				try {
+					run.close();
+				} catch (final IOException e) {
+					log.warn("Error closing run: " + e.getMessage());
+				}
+			}
+			// it only exists if the matrix could not be written
+			tmpFile.delete();
+			indexesFile.delete();
+			valuesFile.delete();
+			for (final File runFile : runFiles) {
+				runFile.delete();
+			}
+		}
+		log.info("Matrix with " + numValues + " values, " + rowNames.size() + " rows and " + colNames.size()
+				+ " columns built from " + numAddedValues + " values in " + (runFiles.size() + 1) + " runs");
+		return CompressedSparseMatrix.open(file);
+	}
+}
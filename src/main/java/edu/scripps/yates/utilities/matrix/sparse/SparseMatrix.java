@@ -9,6 +9,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -18,6 +21,7 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.log4j.Logger;
 
 import edu.scripps.yates.utilities.dates.DatesUtil;
+import edu.scripps.yates.utilities.matrix.sparse.CompressedSparseMatrix.ValueType;
 import edu.scripps.yates.utilities.progresscounter.ProgressCounter;
 import edu.scripps.yates.utilities.progresscounter.ProgressPrintingType;
 import gnu.trove.list.TIntList;
@@ -26,6 +30,17 @@ import gnu.trove.map.hash.THashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
+/**
+ * Sparse matrix with the values by row and column names, kept in hash maps and
+ * stored in text files.<br>
+ * For big matrices of numbers, it can be converted to a
+ * {@link CompressedSparseMatrix} with
+ * {@link #toCompressedMatrix(ValueType, boolean)}.
+ *
+ * @author Salva
+ *
+ * @param <T>
+ */
 public abstract class SparseMatrix<T> {
 	private final static Logger log = Logger.getLogger(SparseMatrix.class);
 	// Maps with the indexes of the rows and the columns
@@ -540,6 +555,87 @@ public abstract class SparseMatrix<T> {
 		return reverseIndexes;
 	}
 
+	private static List<String> getNames(TObjectIntHashMap<String> indexes, int size) {
+		final TIntObjectHashMap<String> reverseIndexes = new TIntObjectHashMap<String>();
+		for (final Object name : indexes.keys()) {
+			reverseIndexes.put(indexes.get(name), (String) name);
+		}
+		final List<String> ret = new ArrayList<String>(size);
+		for (int i = 0; i < size; i++) {
+			final String name = reverseIndexes.get(i);
+			if (name == null) {
+				// values added by index
+				return null;
+			}
+			ret.add(name);
+		}
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param value
+	 * @param valueType
+	 * @return the value as it is stored in a {@link CompressedSparseMatrix}
+	 */
+	private static double getCompressedValue(Object value, ValueType valueType) {
+		return valueType.cast(((Number) value).doubleValue());
+	}
+
+	/**
+	 * Converts this matrix to a {@link CompressedSparseMatrix}, which keeps the
+	 * values in primitive arrays and can be written to a binary file that is
+	 * mapped in memory instead of being parsed. The values have to be
+	 * {@link Number}s, and are converted to the given type. The values that are
+	 * 0, also after the conversion, are not stored.
+	 *
+	 * @param valueType
+	 * @param compressedRows true for CSR layout, to get rows faster, false for
+	 *                       CSC layout, to get columns faster
+	 * @return
+	 */
+	public CompressedSparseMatrix toCompressedMatrix(ValueType valueType, boolean compressedRows) {
+		int numRows = Math.max(maxRowIndex + 1, rowIndexes.size());
+		int numCols = Math.max(maxColIndex + 1, colIndexes.size());
+		for (final int row : data.keys()) {
+			numRows = Math.max(numRows, row + 1);
+			for (final int col : data.get(row).keys()) {
+				numCols = Math.max(numCols, col + 1);
+			}
+		}
+		final long[] pointers = new long[(compressedRows ? numRows : numCols) + 1];
+		for (final int row : data.keys()) {
+			final TIntObjectHashMap<T> valuesPerColumn = data.get(row);
+			for (final int col : valuesPerColumn.keys()) {
+				if (getCompressedValue(valuesPerColumn.get(col), valueType) != 0) {
+					pointers[(compressedRows ? row : col) + 1]++;
+				}
+			}
+		}
+		for (int line = 1; line < pointers.length; line++) {
+			pointers[line] += pointers[line - 1];
+		}
+		final int numValues = (int) pointers[pointers.length - 1];
+		final int[] indexes = new int[numValues];
+		final double[] values = new double[numValues];
+		final long[] nextPositions = Arrays.copyOf(pointers, pointers.length - 1);
+		for (final int row : data.keys()) {
+			final TIntObjectHashMap<T> valuesPerColumn = data.get(row);
+			for (final int col : valuesPerColumn.keys()) {
+				final double value = getCompressedValue(valuesPerColumn.get(col), valueType);
+				if (value == 0) {
+					continue;
+				}
+				final int position = (int) nextPositions[compressedRows ? row : col]++;
+				indexes[position] = compressedRows ? col : row;
+				values[position] = value;
+			}
+		}
+		CompressedSparseMatrix.sortLines(pointers, indexes, values);
+		return CompressedSparseMatrix.create(valueType, numRows, numCols, compressedRows, pointers, indexes, values,
+				getNames(rowIndexes, numRows), getNames(colIndexes, numCols));
+	}
+
 	/**
 	 * This method needs to be defined so that when reading the file the object is
 	 * read properly
@@ -0,0 +1,340 @@
+package edu.scripps.yates.utilities.sequence;
+
+import edu.scripps.yates.utilities.fasta.dbindex.Enzyme;
+
+/**
+ * In-silico digestion of protein sequences working directly on char[] or
+ * byte[] sequences. The residues are looked up in tables of 256 positions, as
+ * in {@link Enzyme}, and the peptides are reported to a
+ * {@link PeptideConsumer} as (start, end, missedCleavages), so that no object
+ * is created during the digestion.<br>
+ * The peptides are reported in the same order than {@link MyEnzyme}: first the
+ * fully cleaved peptides in the order of the sequence, and then, for each one
+ * of them, the peptides with 1, 2,... missed cleavages starting on it.<br>
+ * An instance doesn't keep any state of the digestion, so it can be shared by
+ * multiple threads.
+ *
+ * @author Salva
+ *
+ */
+public class DigestionEngine {
+	public static final int SIZE = 256;
+	/**
+	 * Residue that appears in translated sequences for the stop codons. Peptides
+	 * containing it are not reported.
+	 */
+	public static final char STOP_CODON = '_';
+	private final boolean[] cleavables = new boolean[SIZE];
+	private final boolean[] restrictors = new boolean[SIZE];
+	private final boolean[] excluded = new boolean[SIZE];
+	private final boolean cTerm;
+	private final int maxMissedCleavages;
+
+	/**
+	 * Receives the peptides of a digestion
+	 *
+	 * @author Salva
+	 *
+	 */
+	public interface PeptideConsumer {
+		/**
+		 *
+		 * @param start           position of the first residue of the peptide in
+		 *                        the sequence (0-based)
+		 * @param end             position after the last residue of the peptide
+		 *                        (exclusive), as in {@link String#substring(int, int)}
+		 * @param missedCleavages number of cleavage sites inside of the peptide
+		 */
+		public void accept(int start, int end, int missedCleavages);
+	}
+
+	/**
+	 *
+	 * @param cleavables         residues after which (or before which if not
+	 *                           cTerm) the enzyme cleaves
+	 * @param restrictors        residues that prevent the cleavage when they are
+	 *                           next to a cleavable residue
+	 * @param cTerm              true if the enzyme cleaves at the C-terminal side
+	 *                           of the cleavable residues, false if at the
+	 *                           N-terminal side
+	 * @param maxMissedCleavages
+	 */
+	public DigestionEngine(char[] cleavables, char[] restrictors, boolean cTerm, int maxMissedCleavages) {
+		setResidues(this.cleavables, cleavables);
+		setResidues(this.restrictors, restrictors);
+		excluded[STOP_CODON] = true;
+		this.cTerm = cTerm;
+		this.maxMissedCleavages = maxMissedCleavages;
+	}
+
+	/**
+	 * Digestion engine for an {@link Enzyme}, which cleaves at the C-terminal
+	 * side
+	 *
+	 * @param enzyme
+	 * @param noCutResidues residues that prevent the cleavage when they follow a
+	 *                      cleavable residue. It can be null.
+	 */
+	public DigestionEngine(Enzyme enzyme, String noCutResidues) {
+		final boolean[] enzymeArr = enzyme.getEnzymeArr();
+		for (int i = 0; i < SIZE; i++) {
+			cleavables[i] = enzymeArr[i];
+		}
+		if (noCutResidues != null) {
+			setResidues(restrictors, noCutResidues.toCharArray());
+		}
+		excluded[STOP_CODON] = true;
+		cTerm = true;
+		maxMissedCleavages = enzyme.getMisscleavages();
+	}
+
+	private static void setResidues(boolean[] table, char[] residues) {
+		if (residues == null) {
+			return;
+		}
+		for (final char c : residues) {
+			if (c < SIZE) {
+				table[c] = true;
+			}
+		}
+	}
+
+	public int getMaxMissedCleavages() {
+		return maxMissedCleavages;
+	}
+
+	public boolean isCTerm() {
+		return cTerm;
+	}
+
+	public boolean isCleavable(char c) {
+		return c < SIZE && cleavables[c];
+	}
+
+	/**
+	 * Whether there is a cleavage site between the residues at position - 1 and
+	 * position
+	 */
+	private boolean isCleavageSite(char[] sequence, int length, int position) {
+		if (cTerm) {
+			final char previous = sequence[position - 1];
+			final char current = sequence[position];
+			return previous < SIZE && cleavables[previous] && !(current < SIZE && restrictors[current]);
+		}
+		final char current = sequence[position];
+		if (current >= SIZE || !cleavables[current]) {
+			return false;
+		}
+		if (position + 1 < length) {
+			final char next = sequence[position + 1];
+			return next >= SIZE || !restrictors[next];
+		}
+		return true;
+	}
+
+	private boolean isCleavageSite(byte[] sequence, int length, int position) {
+		if (cTerm) {
+			return cleavables[sequence[position - 1] & 0xff] && !restrictors[sequence[position] & 0xff];
+		}
+		if (!cleavables[sequence[position] & 0xff]) {
+			return false;
+		}
+		return position + 1 >= length || !restrictors[sequence[position + 1] & 0xff];
+	}
+
+	/**
+	 * Digests a sequence, reporting the peptides between the minimum and maximum
+	 * length, with up to the maximum number of missed cleavages, and not
+	 * containing a {@link #STOP_CODON}
+	 *
+	 * @param sequence
+	 * @param length           number of residues of the sequence, as the array
+	 *                         can be longer in order to be reused
+	 * @param minPeptideLength
+	 * @param maxPeptideLength
+	 * @param consumer
+	 * @return the number of peptides reported
+	 */
+	public int digest(char[] sequence, int length, int minPeptideLength, int maxPeptideLength,
+			PeptideConsumer consumer) {
+		int ret = digest(sequence, length, minPeptideLength, maxPeptideLength, 0, 0, consumer);
+		if (maxMissedCleavages > 0) {
+			ret += digest(sequence, length, minPeptideLength, maxPeptideLength, 1, maxMissedCleavages, consumer);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reports the peptides with a number of missed cleavages between
+	 * minMissedCleavages and maxMissedCleavages, starting on every cleavage site
+	 */
+	private int digest(char[] sequence, int length, int minPeptideLength, int maxPeptideLength,
+			int minMissedCleavages, int maxMissedCleavages, PeptideConsumer consumer) {
+		int ret = 0;
+		int start = 0;
+		while (start < length) {
+			// the start of the next fully cleaved peptide, which is always searched
+			// even if this one is too long
+			int nextStart = length;
+			int missedCleavages = 0;
+			boolean hasExcluded = false;
+			for (int position = start; position < length; position++) {
+				final char c = sequence[position];
+				if (c < SIZE && excluded[c]) {
+					hasExcluded = true;
+				}
+				final int end = position + 1;
+				if (missedCleavages > 0 && end - start > maxPeptideLength) {
+					// longer peptides will not be reported
+					break;
+				}
+				if (end == length || isCleavageSite(sequence, length, end)) {
+					if (missedCleavages == 0) {
+						nextStart = end;
+					}
+					final int peptideLength = end - start;
+					if (peptideLength > maxPeptideLength) {
+						break;
+					}
+					if (missedCleavages >= minMissedCleavages && !hasExcluded && peptideLength >= minPeptideLength) {
+						consumer.accept(start, end, missedCleavages);
+						ret++;
+					}
+					if (++missedCleavages > maxMissedCleavages) {
+						break;
+					}
+				}
+			}
+			start = nextStart;
+		}
+		return ret;
+	}
+
+	/**
+	 * Digests a sequence of one byte per residue, as read from an ASCII file,
+	 * reporting the peptides between the minimum and maximum length, with up to
+	 * the maximum number of missed cleavages, and not containing a
+	 * {@link #STOP_CODON}
+	 *
+	 * @param sequence
+	 * @param length           number of residues of the sequence, as the array
+	 *                         can be longer in order to be reused
+	 * @param minPeptideLength
+	 * @param maxPeptideLength
+	 * @param consumer
+	 * @return the number of peptides reported
+	 */
+	public int digest(byte[] sequence, int length, int minPeptideLength, int maxPeptideLength,
+			PeptideConsumer consumer) {
+		int ret = digest(sequence, length, minPeptideLength, maxPeptideLength, 0, 0, consumer);
+		if (maxMissedCleavages > 0) {
+			ret += digest(sequence, length, minPeptideLength, maxPeptideLength, 1, maxMissedCleavages, consumer);
+		}
+		return ret;
+	}
+
+	private int digest(byte[] sequence, int length, int minPeptideLength, int maxPeptideLength,
+			int minMissedCleavages, int maxMissedCleavages, PeptideConsumer consumer) {
+		int ret = 0;
+		int start = 0;
+		while (start < length) {
+			int nextStart = length;
+			int missedCleavages = 0;
+			boolean hasExcluded = false;
+			for (int position = start; position < length; position++) {
+				if (excluded[sequence[position] & 0xff]) {
+					hasExcluded = true;
+				}
+				final int end = position + 1;
+				if (missedCleavages > 0 && end - start > maxPeptideLength) {
+					// longer peptides will not be reported
+					break;
+				}
+				if (end == length || isCleavageSite(sequence, length, end)) {
+					if (missedCleavages == 0) {
+						nextStart = end;
+					}
+					final int peptideLength = end - start;
+					if (peptideLength > maxPeptideLength) {
+						break;
+					}
+					if (missedCleavages >= minMissedCleavages && !hasExcluded && peptideLength >= minPeptideLength) {
+						consumer.accept(start, end, missedCleavages);
+						ret++;
+					}
+					if (++missedCleavages > maxMissedCleavages) {
+						break;
+					}
+				}
+			}
+			start = nextStart;
+		}
+		return ret;
+	}
+
+	/**
+	 * Semi-specific digestion of a sequence of one byte per residue: reports the
+	 * peptides that have at least one of their ends in a cleavage site (or in a
+	 * terminus of the sequence), between the minimum and maximum length, with up
+	 * to the maximum number of missed cleavages, and not containing a
+	 * {@link #STOP_CODON}. The fully specific peptides are also reported, once.
+	 * Unlike {@link #digest(byte[], int, int, int, PeptideConsumer)}, the peptides
+	 * are reported in no particular order.
+	 *
+	 * @param sequence
+	 * @param length
+	 * @param minPeptideLength
+	 * @param maxPeptideLength
+	 * @param consumer
+	 * @return the number of peptides reported
+	 */
+	public int digestSemiSpecific(byte[] sequence, int length, int minPeptideLength, int maxPeptideLength,
+			PeptideConsumer consumer) {
+		int ret = 0;
+		// peptides starting in a cleavage site
+		for (int start = 0; start < length; start++) {
+			if (start > 0 && !isCleavageSite(sequence, length, start)) {
+				continue;
+			}
+			int missedCleavages = 0;
+			final int lastEnd = (int) Math.min(length, (long) start + maxPeptideLength);
+			for (int end = start + 1; end <= lastEnd; end++) {
+				if (excluded[sequence[end - 1] & 0xff]) {
+					break;
+				}
+				if (end - start >= minPeptideLength) {
+					consumer.accept(start, end, missedCleavages);
+					ret++;
+				}
+				if (end < length && isCleavageSite(sequence, length, end) && ++missedCleavages > maxMissedCleavages) {
+					break;
+				}
+			}
+		}
+		// peptides ending in a cleavage site and not starting in one
+		for (int end = 1; end <= length; end++) {
+			if (end < length && !isCleavageSite(sequence, length, end)) {
+				continue;
+			}
+			int missedCleavages = 0;
+			final int firstStart = Math.max(0, end - maxPeptideLength);
+			for (int start = end - 1; start >= firstStart; start--) {
+				if (excluded[sequence[start] & 0xff]) {
+					break;
+				}
+				if (start == 0 || isCleavageSite(sequence, length, start)) {
+					// already reported, and internal for the longer ones
+					if (++missedCleavages > maxMissedCleavages) {
+						break;
+					}
+					continue;
+				}
+				if (end - start >= minPeptideLength) {
+					consumer.accept(start, end, missedCleavages);
+					ret++;
+				}
+			}
+		}
+		return ret;
+	}
+}
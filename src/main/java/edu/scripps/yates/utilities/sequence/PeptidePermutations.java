@@ -0,0 +1,170 @@
+package edu.scripps.yates.utilities.sequence;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Variants of a peptide sequence with all the possible combinations of a set of
+ * equivalent aminoacids (such as I and L) in the positions where the peptide
+ * has one of them. The variants are generated lazily one by one while
+ * iterating, starting from the original sequence, so they are never all in
+ * memory, and they can be limited to a maximum number.<br>
+ * To compare peptides without generating the variants, use
+ * {@link #matches(CharSequence)} or compare their canonical sequences from
+ * {@link #getCanonicalSequence(CharSequence, char[], char)}.
+ *
+ * @author Salva
+ *
+ */
+public class PeptidePermutations implements Iterable<String> {
+	public static final char[] LEUCINE_ISOLEUCINE = { 'I', 'L' };
+	public static final long UNLIMITED = Long.MAX_VALUE;
+	private final String peptide;
+	private final char[] aas;
+	private final int[] positions;
+	private final long size;
+
+	/**
+	 * All the variants of the peptide
+	 *
+	 * @param peptide
+	 * @param aas     equivalent aminoacids
+	 */
+	public PeptidePermutations(String peptide, char[] aas) {
+		this(peptide, aas, UNLIMITED);
+	}
+
+	/**
+	 *
+	 * @param peptide
+	 * @param aas             equivalent aminoacids
+	 * @param maxPermutations maximum number of variants to generate, including
+	 *                        the original sequence
+	 */
+	public PeptidePermutations(String peptide, char[] aas, long maxPermutations) {
+		this.peptide = peptide;
+		this.aas = aas.clone();
+		final TIntArrayList positions = new TIntArrayList();
+		for (int i = 0; i < peptide.length(); i++) {
+			if (indexOf(peptide.charAt(i)) >= 0) {
+				positions.add(i);
+			}
+		}
+		this.positions = positions.toArray();
+		long total = 1l;
+		for (int i = 0; i < this.positions.length && total < maxPermutations; i++) {
+			total = total > maxPermutations / aas.length ? maxPermutations : total * aas.length;
+		}
+		size = Math.min(total, maxPermutations);
+	}
+
+	private int indexOf(char aa) {
+		for (int i = 0; i < aas.length; i++) {
+			if (aas[i] == aa) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 *
+	 * @return the number of variants that will be generated
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 *
+	 * @return the number of positions of the peptide with one of the equivalent
+	 *         aminoacids
+	 */
+	public int getNumVariablePositions() {
+		return positions.length;
+	}
+
+	/**
+	 * Iterates over the variants, the first one being the original sequence,
+	 * without repetitions
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private final char[] sequence = peptide.toCharArray();
+			// index in aas of the aminoacid of each position
+			private final int[] digits = new int[positions.length];
+			private long generated = 0l;
+
+			@Override
+			public boolean hasNext() {
+				return generated < size;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				if (generated > 0) {
+					// next combination, as in a counter in base aas.length
+					for (int i = 0; i < positions.length; i++) {
+						final int digit = digits[i] + 1 == aas.length ? 0 : digits[i] + 1;
+						digits[i] = digit;
+						sequence[positions[i]] = aas[(indexOf(peptide.charAt(positions[i])) + digit) % aas.length];
+						if (digit != 0) {
+							break;
+						}
+					}
+				}
+				generated++;
+				return new String(sequence);
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param sequence
+	 * @return true if the sequence is one of the variants of the peptide
+	 */
+	public boolean matches(CharSequence sequence) {
+		if (sequence.length() != peptide.length()) {
+			return false;
+		}
+		for (int i = 0; i < sequence.length(); i++) {
+			final char aa = sequence.charAt(i);
+			final char original = peptide.charAt(i);
+			if (aa != original && (indexOf(aa) < 0 || indexOf(original) < 0)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the sequence with all the equivalent aminoacids replaced by the same
+	 * symbol, which is the same for all the variants of the sequence
+	 *
+	 * @param sequence
+	 * @param aas
+	 * @param canonical symbol for the equivalent aminoacids
+	 * @return
+	 */
+	public static String getCanonicalSequence(CharSequence sequence, char[] aas, char canonical) {
+		final char[] ret = new char[sequence.length()];
+		for (int i = 0; i < ret.length; i++) {
+			char aa = sequence.charAt(i);
+			for (final char equivalent : aas) {
+				if (aa == equivalent) {
+					aa = canonical;
+					break;
+				}
+			}
+			ret[i] = aa;
+		}
+		return new String(ret);
+	}
+}
@@ -0,0 +1,300 @@
+package edu.scripps.yates.utilities.sequence;
+
+import java.util.List;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.map.hash.TLongFloatHashMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * Calculates the pI and the GRAVY of many peptides at once.<br>
+ * The residues of each peptide are counted in a single pass. The pI only
+ * depends on the number of ionizable residues (K, R, H, D, E, C and Y), so it
+ * is calculated once per composition and remembered: peptides with the same
+ * composition share the same result. The pIs of the new compositions of a
+ * batch are calculated all together with the same bisection of
+ * {@link PeptideSequenceProperties#calculatepI(String)}, advancing all of them
+ * one step at a time, and the charges of the ionizable groups at each pH
+ * visited are calculated once for the whole batch. The results are identical
+ * to the ones of {@link PeptideSequenceProperties#calculatepI(String)}.<br>
+ * The GRAVY is the average of the Kyte-Doolittle hydropathy of the residues.
+ * <br>
+ * Since it keeps the calculated pIs, an instance should not be shared by
+ * different threads.
+ *
+ * @author Salva
+ *
+ */
+public class PeptidePropertiesCalculator {
+	// positions of the ionizable residues in the composition vectors
+	private static final int LYS = 0;
+	private static final int ARG = 1;
+	private static final int HIS = 2;
+	private static final int ASP = 3;
+	private static final int GLU = 4;
+	private static final int CYS = 5;
+	private static final int TYR = 6;
+	private static final int NUM_IONIZABLE = 7;
+	private static final int[] IONIZABLE = new int[128];
+	// bits of each count in the key of a composition
+	private static final int BITS = 9;
+	private static final int MAX_COUNT = (1 << BITS) - 1;
+	private static final double[] HYDROPATHY = new double[128];
+
+	static {
+		for (int i = 0; i < IONIZABLE.length; i++) {
+			IONIZABLE[i] = -1;
+		}
+		IONIZABLE['K'] = LYS;
+		IONIZABLE['R'] = ARG;
+		IONIZABLE['H'] = HIS;
+		IONIZABLE['D'] = ASP;
+		IONIZABLE['E'] = GLU;
+		IONIZABLE['C'] = CYS;
+		IONIZABLE['Y'] = TYR;
+		// Kyte-Doolittle
+		HYDROPATHY['A'] = 1.8;
+		HYDROPATHY['R'] = -4.5;
+		HYDROPATHY['N'] = -3.5;
+		HYDROPATHY['D'] = -3.5;
+		HYDROPATHY['C'] = 2.5;
+		HYDROPATHY['Q'] = -3.5;
+		HYDROPATHY['E'] = -3.5;
+		HYDROPATHY['G'] = -0.4;
+		HYDROPATHY['H'] = -3.2;
+		HYDROPATHY['I'] = 4.5;
+		HYDROPATHY['L'] = 3.8;
+		HYDROPATHY['K'] = -3.9;
+		HYDROPATHY['M'] = 1.9;
+		HYDROPATHY['F'] = 2.8;
+		HYDROPATHY['P'] = -1.6;
+		HYDROPATHY['S'] = -0.8;
+		HYDROPATHY['T'] = -0.7;
+		HYDROPATHY['W'] = -0.9;
+		HYDROPATHY['Y'] = -1.3;
+		HYDROPATHY['V'] = 4.2;
+	}
+
+	private final TLongFloatHashMap pIByComposition = new TLongFloatHashMap();
+	// charges of the ionizable groups by pH, as the bits of the float
+	private final TIntObjectHashMap<float[]> chargesByPH = new TIntObjectHashMap<float[]>();
+
+	/**
+	 *
+	 * @param peptides
+	 * @return the pI of each peptide, at the same position than the peptide
+	 * @throws IllegalArgumentException if a peptide is null or empty
+	 */
+	public float[] calculatepI(List<? extends CharSequence> peptides) {
+		final float[] ret = new float[peptides.size()];
+		calculate(peptides, ret, null);
+		return ret;
+	}
+
+	/**
+	 *
+	 * @param peptides
+	 * @return the GRAVY of each peptide, at the same position than the peptide
+	 */
+	public double[] calculateGravy(List<? extends CharSequence> peptides) {
+		final double[] ret = new double[peptides.size()];
+		calculate(peptides, null, ret);
+		return ret;
+	}
+
+	/**
+	 * Calculates the pI and the GRAVY of a batch of peptides, counting their
+	 * residues only once
+	 *
+	 * @param peptides
+	 * @param pIs      array where the pI of each peptide is written, or null to
+	 *                 not calculate them
+	 * @param gravies  array where the GRAVY of each peptide is written, or null
+	 *                 to not calculate them
+	 * @throws IllegalArgumentException if a peptide is null or empty
+	 */
+	public void calculate(List<? extends CharSequence> peptides, float[] pIs, double[] gravies) {
+		final int numPeptides = peptides.size();
+		// compositions without a calculated pI, without repetitions
+		final TLongIntHashMap pendingIndexes = new TLongIntHashMap(16, 0.5f, -1, -1);
+		final int[] pending = pIs != null ? new int[numPeptides] : null;
+		int[] pendingCounts = new int[16 * NUM_IONIZABLE];
+		int numPending = 0;
+		final int[] counts = new int[NUM_IONIZABLE];
+		for (int p = 0; p < numPeptides; p++) {
+			final CharSequence peptide = peptides.get(p);
+			if (peptide == null || peptide.length() == 0) {
+				throw new IllegalArgumentException("Sequence is null or empty. pI cannot be calculated");
+			}
+			for (int i = 0; i < NUM_IONIZABLE; i++) {
+				counts[i] = 0;
+			}
+			double hydropathy = 0.0;
+			final int length = peptide.length();
+			for (int i = 0; i < length; i++) {
+				final char aa = peptide.charAt(i);
+				if (aa < IONIZABLE.length) {
+					final int ionizable = IONIZABLE[aa];
+					if (ionizable >= 0) {
+						counts[ionizable]++;
+					}
+					hydropathy += HYDROPATHY[aa];
+				}
+			}
+			if (gravies != null) {
+				gravies[p] = hydropathy / length;
+			}
+			if (pIs == null) {
+				continue;
+			}
+			final long key = getKey(counts);
+			if (key >= 0 && pIByComposition.containsKey(key)) {
+				pIs[p] = pIByComposition.get(key);
+				pending[p] = -1;
+				continue;
+			}
+			int index = key >= 0 ? pendingIndexes.get(key) : -1;
+			if (index < 0) {
+				index = numPending++;
+				if (key >= 0) {
+					pendingIndexes.put(key, index);
+				}
+				if (pendingCounts.length < numPending * NUM_IONIZABLE) {
+					final int[] tmp = new int[pendingCounts.length * 2];
+					System.arraycopy(pendingCounts, 0, tmp, 0, pendingCounts.length);
+					pendingCounts = tmp;
+				}
+				System.arraycopy(counts, 0, pendingCounts, index * NUM_IONIZABLE, NUM_IONIZABLE);
+			}
+			pending[p] = index;
+		}
+		if (pIs == null || numPending == 0) {
+			return;
+		}
+		final float[] pendingPIs = calculatepI(pendingCounts, numPending);
+		for (final long key : pendingIndexes.keys()) {
+			pIByComposition.put(key, pendingPIs[pendingIndexes.get(key)]);
+		}
+		for (int p = 0; p < numPeptides; p++) {
+			if (pending[p] >= 0) {
+				pIs[p] = pendingPIs[pending[p]];
+			}
+		}
+	}
+
+	/**
+	 * Key of a composition vector, with each count in {@link #BITS} bits, or -1
+	 * if a count does not fit
+	 */
+	private static long getKey(int[] counts) {
+		long key = 0l;
+		for (int i = 0; i < NUM_IONIZABLE; i++) {
+			if (counts[i] > MAX_COUNT) {
+				return -1l;
+			}
+			key = (key << BITS) | counts[i];
+		}
+		return key;
+	}
+
+	/**
+	 * Same bisection than {@link PeptideSequenceProperties#calculatepI(String)},
+	 * advancing all the compositions at the same time
+	 *
+	 * @param compositions counts of the ionizable residues of each composition,
+	 *                     one after the other
+	 * @param num          number of compositions
+	 * @return
+	 */
+	private float[] calculatepI(int[] compositions, int num) {
+		final float[] pHs = new float[num];
+		final float[] jumps = new float[num];
+		final float[] charges = new float[num];
+		final float[] lastCharges = new float[num];
+		final int[] active = new int[num];
+		int numActive = 0;
+		for (int i = 0; i < num; i++) {
+			pHs[i] = 7.0f;
+			jumps[i] = 3.5f;
+			charges[i] = chargeAtPH(getCharges(7.0f), compositions, i);
+			if (roundTo(charges[i]) != roundTo(lastCharges[i])) {
+				active[numActive++] = i;
+			}
+		}
+		while (numActive > 0) {
+			int stillActive = 0;
+			for (int a = 0; a < numActive; a++) {
+				final int i = active[a];
+				if (charges[i] > 0) {
+					pHs[i] += jumps[i];
+				} else {
+					pHs[i] -= jumps[i];
+				}
+				jumps[i] /= 2;
+				lastCharges[i] = charges[i];
+				charges[i] = chargeAtPH(getCharges(pHs[i]), compositions, i);
+				if ((pHs[i] > 14) || (pHs[i] < 0)) {
+					pHs[i] = Float.NaN;
+				} else if (roundTo(charges[i]) != roundTo(lastCharges[i])) {
+					active[stillActive++] = i;
+				}
+			}
+			numActive = stillActive;
+		}
+		return pHs;
+	}
+
+	/**
+	 * Same charge than
+	 * {@link PeptideSequenceProperties#chargeAtPH(float, int, int, int, int, int, int, int)}
+	 */
+	private static float chargeAtPH(float[] charges, int[] compositions, int composition) {
+		final int offset = composition * NUM_IONIZABLE;
+		float accum = charges[0];
+		accum += compositions[offset + LYS] * charges[1];
+		accum += compositions[offset + ARG] * charges[2];
+		accum += compositions[offset + HIS] * charges[3];
+		accum -= compositions[offset + ASP] * charges[4];
+		accum -= compositions[offset + GLU] * charges[4];
+		accum -= compositions[offset + CYS] * charges[5];
+		accum -= compositions[offset + TYR] * charges[6];
+		return accum;
+	}
+
+	/**
+	 * Charges of the termini and of one of each ionizable residue at a pH
+	 */
+	private float[] getCharges(float pH) {
+		final int key = Float.floatToIntBits(pH);
+		float[] charges = chargesByPH.get(key);
+		if (charges == null) {
+			charges = new float[] { percentPositive(pH, 8.0f) - percentNegative(pH, 3.1f),
+					percentPositive(pH, 10.0f), percentPositive(pH, 12.0f), percentPositive(pH, 6.5f),
+					percentNegative(pH, 4.4f), percentNegative(pH, 8.5f), percentNegative(pH, 10.0f) };
+			chargesByPH.put(key, charges);
+		}
+		return charges;
+	}
+
+	private static float percentPositive(float pH, float pK) {
+		final double concentrationRatio = Math.pow(10f, pK - pH);
+		return (float) (concentrationRatio / (concentrationRatio + 1));
+	}
+
+	private static float percentNegative(float pH, float pK) {
+		final double concentrationRatio = Math.pow(10, pH - pK);
+		return (float) (concentrationRatio / (concentrationRatio + 1));
+	}
+
+	private static float roundTo(float value) {
+		return (float) (Math.rint(value * 10.0) / 10.0);
+	}
+
+	/**
+	 *
+	 * @return the number of compositions with a calculated pI
+	 */
+	public int getNumCompositions() {
+		return pIByComposition.size();
+	}
+}
@@ -1,15 +1,11 @@
 package edu.scripps.yates.utilities.sequence;
 
-import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 import com.compomics.util.protein.AASequenceImpl;
 
-import edu.scripps.yates.utilities.strings.StringUtils;
 import gnu.trove.set.hash.THashSet;
 
 /**
@@ -27,7 +23,9 @@ public class PeptideSequenceProperties {
 	}
 
 	/**
-	 * Method taken from DTAFile class from DTASelect project code
+	 * Method taken from DTAFile class from DTASelect project code.<br>
+	 * To calculate the pI of many peptides, use a
+	 * {@link PeptidePropertiesCalculator}, which gives the same results.
 	 *
 	 * @param sequence
 	 * @return
@@ -182,7 +180,12 @@ public class PeptideSequenceProperties {
 	/**
 	 * Returns a collection of peptide sequences constructed from the original
 	 * one, with all the possible combinations of I and L in the positions where
-	 * that peptide has one of those AAs
+	 * that peptide has one of those AAs.<br>
+	 * The number of sequences grows exponentially with the number of I and L,
+	 * so use {@link #getPermutationsLeucineIsoleucine(String, long)} to iterate
+	 * over them without keeping them in memory, or compare the sequences with
+	 * {@link ProteinSequenceUtils#getLeucineIsoleucineCanonicalSequence(String)}
+	 * to not generate them at all.
 	 * 
 	 * @param originalPeptide
 	 * @return
@@ -203,37 +206,54 @@ public class PeptideSequenceProperties {
 	 * @return
 	 */
 	public static Set<String> permutatePeptideAAs(String originalPeptide, String[] aas) {
+		return permutatePeptideAAs(originalPeptide, aas, PeptidePermutations.UNLIMITED);
+	}
 
+	/**
+	 * Same as {@link #permutatePeptideAAs(String, String[])} but with a maximum
+	 * number of sequences
+	 * 
+	 * @param originalPeptide
+	 * @param aas
+	 * @param maxPermutations
+	 * @return
+	 */
+	public static Set<String> permutatePeptideAAs(String originalPeptide, String[] aas, long maxPermutations) {
 		final Set<String> ret = new THashSet<String>();
-		final List<Integer> positions = new ArrayList<Integer>();
-		for (final String aa : aas) {
-			StringUtils.allPositionsOf(originalPeptide, aa).forEach(position -> positions.add(position));
+		for (final String permutation : getPermutations(originalPeptide, aas, maxPermutations)) {
+			ret.add(permutation);
 		}
+		return ret;
+	}
 
-		if (positions.isEmpty()) {
-			ret.add(originalPeptide);
-			return ret;
-		}
-		final double numCombinations = Math.pow(2, positions.size());
-		String pattern = "";
-		for (int n = 0; n < positions.size(); n++) {
-			pattern += "0";
-		}
-		final DecimalFormat df = new DecimalFormat(pattern);
-
-		for (int n = 0; n < numCombinations; n++) {
-			final String num = df.format(Double.valueOf(Integer.toBinaryString(n)));
-
-			final StringBuilder peptide = new StringBuilder(originalPeptide);
-			for (int index = 0; index < num.length(); index++) {
-				final char charAt = num.charAt(index);
-				final Integer valueOf = Integer.valueOf(String.valueOf(charAt));
-				final String string = aas[valueOf];
-				final char charAt2 = string.charAt(0);
-				peptide.setCharAt(positions.get(index) - 1, charAt2);
-			}
-			ret.add(peptide.toString());
+	/**
+	 * Gets the combinations of I and L of a peptide, generated while iterating
+	 * 
+	 * @param originalPeptide
+	 * @param maxPermutations maximum number of sequences, or
+	 *                        {@link PeptidePermutations#UNLIMITED}
+	 * @return
+	 */
+	public static PeptidePermutations getPermutationsLeucineIsoleucine(String originalPeptide,
+			long maxPermutations) {
+		return new PeptidePermutations(originalPeptide, PeptidePermutations.LEUCINE_ISOLEUCINE, maxPermutations);
+	}
+
+	/**
+	 * Gets the combinations of the aminoacids of aas of a peptide, generated
+	 * while iterating
+	 * 
+	 * @param originalPeptide
+	 * @param aas
+	 * @param maxPermutations maximum number of sequences, or
+	 *                        {@link PeptidePermutations#UNLIMITED}
+	 * @return
+	 */
+	public static PeptidePermutations getPermutations(String originalPeptide, String[] aas, long maxPermutations) {
+		final char[] chars = new char[aas.length];
+		for (int i = 0; i < aas.length; i++) {
+			chars[i] = aas[i].charAt(0);
 		}
-		return ret;
+		return new PeptidePermutations(originalPeptide, chars, maxPermutations);
 	}
 }
@@ -0,0 +1,374 @@
+package edu.scripps.yates.utilities.sequence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edu.scripps.yates.utilities.cores.SystemCoreManager;
+import edu.scripps.yates.utilities.fasta.Fasta;
+import edu.scripps.yates.utilities.fasta.FastaReader;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Suffix array over all the sequences of a proteome, to find the positions of
+ * many peptides in all the proteins at once, as
+ * {@link ProteinSequenceUtils#getPositionsOfPeptideSequenceInProteinSequence(String, String, String)}
+ * does for one peptide and one protein.<br>
+ * The proteins are concatenated in upper case and with I and L replaced by
+ * {@link ProteinSequenceUtils#LEUCINE_ISOLEUCINE_SYMBOL}, and the suffix array
+ * is built once by prefix doubling. Then each peptide is found by binary
+ * search in time proportional to its length and the logarithm of the size of
+ * the proteome. The index is read-only once built, so peptides can be searched
+ * from many threads, as in {@link #getPositions(List, int)}.<br>
+ * Building the index needs about 10 bytes per residue, and the index keeps 6
+ * bytes per residue.
+ *
+ * @author Salva
+ *
+ */
+public class ProteinSequenceIndex {
+	private static final Logger log = Logger.getLogger(ProteinSequenceIndex.class);
+	private static final byte SEPARATOR = 0;
+	private static final int PEPTIDES_PER_BLOCK = 1024;
+	private final List<String> accessions;
+	// concatenated canonical sequences, each one followed by SEPARATOR
+	private final byte[] text;
+	// original residues, for the PositionInProtein
+	private final byte[] residues;
+	private final int[] proteinStarts;
+	private final int[] suffixArray;
+
+	/**
+	 *
+	 * @param accessions accessions of the proteins
+	 * @param sequences  sequences of the proteins, in the same order
+	 */
+	public ProteinSequenceIndex(List<String> accessions, List<? extends CharSequence> sequences) {
+		final long t1 = System.currentTimeMillis();
+		this.accessions = new ArrayList<String>(accessions);
+		long length = 0;
+		for (final CharSequence sequence : sequences) {
+			length += sequence.length() + 1;
+		}
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Proteome too large to be indexed: " + length + " residues");
+		}
+		text = new byte[(int) length];
+		residues = new byte[(int) length];
+		proteinStarts = new int[sequences.size()];
+		int position = 0;
+		for (int p = 0; p < sequences.size(); p++) {
+			final CharSequence sequence = sequences.get(p);
+			proteinStarts[p] = position;
+			for (int i = 0; i < sequence.length(); i++) {
+				final char aa = sequence.charAt(i);
+				residues[position] = (byte) aa;
+				text[position++] = canonical(aa);
+			}
+			text[position++] = SEPARATOR;
+		}
+		suffixArray = buildSuffixArray();
+		log.info("Suffix array of " + sequences.size() + " proteins and " + length + " residues built in "
+				+ (System.currentTimeMillis() - t1) + "ms");
+	}
+
+	/**
+	 * Indexes the proteins of a fasta file
+	 *
+	 * @param fastaFileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static ProteinSequenceIndex fromFasta(String fastaFileName) throws IOException {
+		final List<String> accessions = new ArrayList<String>();
+		final List<String> sequences = new ArrayList<String>();
+		final Iterator<Fasta> fastas = new FastaReader(fastaFileName).getFastas();
+		while (fastas.hasNext()) {
+			final Fasta fasta = fastas.next();
+			// the accession has to be read before reading the next fasta
+			accessions.add(fasta.getAccession());
+			sequences.add(fasta.getSequence());
+		}
+		return new ProteinSequenceIndex(accessions, sequences);
+	}
+
+	private static byte canonical(char aa) {
+		final char upper = Character.toUpperCase(aa);
+		if (upper == 'I' || upper == 'L') {
+			return (byte) ProteinSequenceUtils.LEUCINE_ISOLEUCINE_SYMBOL;
+		}
+		return (byte) upper;
+	}
+
+	/**
+	 * Sorts the suffixes by prefix doubling, refining only the groups of
+	 * suffixes that are not sorted yet (Larsson-Sadakane). The rank of a suffix
+	 * is the last position of its group in the suffix array. Each separator has
+	 * its own rank, greater than any residue, so no suffix is compared beyond
+	 * the end of its protein.
+	 */
+	private int[] buildSuffixArray() {
+		final int n = text.length;
+		final int[] sa = new int[n];
+		final int[] rank = new int[n];
+		// sort by the first residue
+		final int numRanks = 256 + proteinStarts.length;
+		final int[] counts = new int[numRanks + 1];
+		int protein = 0;
+		for (int i = 0; i < n; i++) {
+			rank[i] = text[i] == SEPARATOR ? 256 + protein++ : text[i] & 0xff;
+			counts[rank[i] + 1]++;
+		}
+		for (int r = 1; r <= numRanks; r++) {
+			counts[r] += counts[r - 1];
+		}
+		for (int i = 0; i < n; i++) {
+			sa[counts[rank[i]]++] = i;
+		}
+		// groups of suffixes with the same first residue, as pairs of first and
+		// last position in the suffix array
+		TIntArrayList groups = new TIntArrayList();
+		int start = 0;
+		for (int j = 1; j <= n; j++) {
+			if (j == n || rank[sa[j]] != rank[sa[start]]) {
+				if (j - 1 > start) {
+					groups.add(start);
+					groups.add(j - 1);
+				}
+				start = j;
+			}
+		}
+		for (int j = 0, groupStart = 0; j < n; j++) {
+			if (j + 1 == n || rank[sa[j + 1]] != rank[sa[groupStart]]) {
+				for (int x = groupStart; x <= j; x++) {
+					rank[sa[x]] = j;
+				}
+				groupStart = j + 1;
+			}
+		}
+		long[] keys = new long[16];
+		for (int k = 1; !groups.isEmpty(); k <<= 1) {
+			final TIntArrayList unsorted = new TIntArrayList();
+			for (int g = 0; g < groups.size(); g += 2) {
+				final int first = groups.get(g);
+				final int last = groups.get(g + 1);
+				final int size = last - first + 1;
+				if (keys.length < size) {
+					keys = new long[Math.max(size, keys.length * 2)];
+				}
+				// sort the group by the rank of the suffix k positions after
+				for (int x = 0; x < size; x++) {
+					final int suffix = sa[first + x];
+					keys[x] = ((long) getRank(rank, suffix + k) << 32) | suffix;
+				}
+				Arrays.sort(keys, 0, size);
+				for (int x = 0; x < size; x++) {
+					sa[first + x] = (int) keys[x];
+				}
+				// split it in the suffixes with the same rank
+				int subgroupStart = 0;
+				for (int x = 1; x <= size; x++) {
+					if (x == size || (keys[x] >>> 32) != (keys[subgroupStart] >>> 32)) {
+						for (int y = subgroupStart; y < x; y++) {
+							rank[sa[first + y]] = first + x - 1;
+						}
+						if (x - 1 > subgroupStart) {
+							unsorted.add(first + subgroupStart);
+							unsorted.add(first + x - 1);
+						}
+						subgroupStart = x;
+					}
+				}
+			}
+			groups = unsorted;
+		}
+		return sa;
+	}
+
+	private static int getRank(int[] rank, int position) {
+		return position < rank.length ? rank[position] : 0;
+	}
+
+	public int getNumProteins() {
+		return proteinStarts.length;
+	}
+
+	/**
+	 * Compares the suffix at a position with the peptide, only up to the length
+	 * of the peptide. A separator is greater than any residue.
+	 */
+	private int compare(int suffix, byte[] peptide) {
+		for (int i = 0; i < peptide.length; i++) {
+			final byte b = text[suffix + i];
+			if (b == SEPARATOR) {
+				return 1;
+			}
+			if (b != peptide[i]) {
+				return (b & 0xff) - (peptide[i] & 0xff);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Positions in the text of all the occurrences of a peptide, sorted
+	 */
+	private int[] findOccurrences(String peptideSequence) {
+		if (peptideSequence == null || peptideSequence.isEmpty()) {
+			return new int[0];
+		}
+		final byte[] peptide = new byte[peptideSequence.length()];
+		for (int i = 0; i < peptide.length; i++) {
+			peptide[i] = canonical(peptideSequence.charAt(i));
+		}
+		// first suffix starting by the peptide
+		int low = 0;
+		int high = suffixArray.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (compare(suffixArray[middle], peptide) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		final int first = low;
+		// and the first one after them
+		high = suffixArray.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (compare(suffixArray[middle], peptide) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		final int[] ret = Arrays.copyOfRange(suffixArray, first, low);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	private int getProteinIndex(int position) {
+		final int protein = Arrays.binarySearch(proteinStarts, position);
+		// the first residue of an empty protein is the one of the next one
+		return protein >= 0 ? getLastProteinStartingAt(protein) : -protein - 2;
+	}
+
+	private int getLastProteinStartingAt(int protein) {
+		while (protein + 1 < proteinStarts.length && proteinStarts[protein + 1] == proteinStarts[protein]) {
+			protein++;
+		}
+		return protein;
+	}
+
+	/**
+	 * Gets the positions of a peptide in all the proteins, considering I and L
+	 * as the same aminoacid
+	 *
+	 * @param peptideSequence
+	 * @return the positions, starting by 1, sorted by protein and position
+	 */
+	public List<PositionInProtein> getPositions(String peptideSequence) {
+		final int[] occurrences = findOccurrences(peptideSequence);
+		final List<PositionInProtein> ret = new ArrayList<PositionInProtein>(occurrences.length);
+		for (final int occurrence : occurrences) {
+			final int protein = getProteinIndex(occurrence);
+			ret.add(new PositionInProtein(occurrence - proteinStarts[protein] + 1, (char) residues[occurrence],
+					accessions.get(protein)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the positions of the aminoacids in aas of a peptide in all the
+	 * proteins, as
+	 * {@link ProteinSequenceUtils#getPositionsInProteinForSites(char[], String, String, String)}
+	 * does for one protein
+	 *
+	 * @param aas
+	 * @param peptideSequence
+	 * @return
+	 */
+	public List<PositionInProtein> getPositionsForSites(char[] aas, String peptideSequence) {
+		final List<PositionInProtein> ret = new ArrayList<PositionInProtein>();
+		final int[] occurrences = findOccurrences(peptideSequence);
+		for (final char aa : aas) {
+			final byte site = canonical(aa);
+			for (int positionInPeptide = 0; positionInPeptide < peptideSequence.length(); positionInPeptide++) {
+				if (canonical(peptideSequence.charAt(positionInPeptide)) != site) {
+					continue;
+				}
+				for (final int occurrence : occurrences) {
+					final int protein = getProteinIndex(occurrence);
+					final int positionOfSite = occurrence + positionInPeptide;
+					ret.add(new PositionInProtein(positionOfSite - proteinStarts[protein] + 1,
+							(char) residues[positionOfSite], accessions.get(protein)));
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the positions of many peptides in all the proteins, in parallel
+	 *
+	 * @param peptideSequences
+	 * @param numThreads
+	 * @return for each peptide, its positions, as in {@link #getPositions(String)}
+	 */
+	public List<List<PositionInProtein>> getPositions(final List<String> peptideSequences, int numThreads) {
+		@SuppressWarnings("unchecked")
+		final List<PositionInProtein>[] results = new List[peptideSequences.size()];
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			final AtomicInteger nextBlock = new AtomicInteger(0);
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < numThreads; t++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						int block;
+						while ((block = nextBlock.getAndIncrement()) * PEPTIDES_PER_BLOCK < results.length) {
+							final int last = Math.min(results.length, (block + 1) * PEPTIDES_PER_BLOCK);
+							for (int i = block * PEPTIDES_PER_BLOCK; i < last; i++) {
+								results[i] = getPositions(peptideSequences.get(i));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			for (final Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (final InterruptedException e) {
+			throw new IllegalStateException("Search of peptides interrupted", e);
+		} catch (final ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Gets the positions of many peptides in all the proteins, using all the
+	 * available cores
+	 *
+	 * @param peptideSequences
+	 * @return for each peptide, its positions, as in {@link #getPositions(String)}
+	 */
+	public List<List<PositionInProtein>> getPositions(List<String> peptideSequences) {
+		return getPositions(peptideSequences, SystemCoreManager.getAvailableNumSystemCores());
+	}
+}
@@ -7,6 +7,24 @@ import edu.scripps.yates.utilities.strings.StringUtils;
 import gnu.trove.list.array.TIntArrayList;
 
 public class ProteinSequenceUtils {
+	/**
+	 * Symbol replacing I and L, since in proteomics we cannot distinguish
+	 * between them
+	 */
+	public static final char LEUCINE_ISOLEUCINE_SYMBOL = '&';
+
+	/**
+	 * Gets the sequence in upper case with I and L replaced by
+	 * {@link #LEUCINE_ISOLEUCINE_SYMBOL}, so that two sequences are equal if
+	 * they only differ in I and L
+	 * 
+	 * @param sequence
+	 * @return
+	 */
+	public static String getLeucineIsoleucineCanonicalSequence(String sequence) {
+		return PeptidePermutations.getCanonicalSequence(sequence.toUpperCase(), PeptidePermutations.LEUCINE_ISOLEUCINE,
+				LEUCINE_ISOLEUCINE_SYMBOL);
+	}
 
 	/**
 	 * Returns the positions in which the peptide sequence is found in the protein
@@ -23,8 +41,8 @@ public class ProteinSequenceUtils {
 			String proteinSequence, String proteinACC) {
 		final List<PositionInProtein> ret = new ArrayList<PositionInProtein>();
 
-		final String proteinSequenceSafe = proteinSequence.toUpperCase().replace("I", "&").replace("L", "&");
-		final String peptideSequenceSafe = peptideSequence.toUpperCase().replace("I", "&").replace("L", "&");
+		final String proteinSequenceSafe = getLeucineIsoleucineCanonicalSequence(proteinSequence);
+		final String peptideSequenceSafe = getLeucineIsoleucineCanonicalSequence(peptideSequence);
 		// because in proteomics we cannot distinguish between I and L, we convert all
 		// to & in the protein and in the peptide
 
@@ -51,12 +69,12 @@ public class ProteinSequenceUtils {
 
 		// because in proteomics we cannot distinguish between I and L, we convert all
 		// to & in the protein and in the peptide
-		final String proteinSequenceSafe = proteinSequence.toUpperCase().replace("I", "&").replace("L", "&");
-		final String peptideSequenceSafe = peptideSequence.toUpperCase().replace("I", "&").replace("L", "&");
+		final String proteinSequenceSafe = getLeucineIsoleucineCanonicalSequence(proteinSequence);
+		final String peptideSequenceSafe = getLeucineIsoleucineCanonicalSequence(peptideSequence);
 		for (char aa : aas) {
 			aa = Character.toUpperCase(aa);
 			if (aa == 'I' || aa == 'L') {
-				aa = '&';
+				aa = LEUCINE_ISOLEUCINE_SYMBOL;
 			}
 			final TIntArrayList positionsInPeptide = StringUtils.allPositionsOf(peptideSequenceSafe, aa);
 			for (final int positionInPeptide : positionsInPeptide.toArray()) {
@@ -0,0 +1,76 @@
+package edu.scripps.yates.alignment;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.alignment.nwalign.LinearSpaceNWAlign;
+import edu.scripps.yates.utilities.alignment.nwalign.NWAlign;
+import edu.scripps.yates.utilities.alignment.nwalign.NWResult;
+import junit.framework.Assert;
+
+public class LinearSpaceNWAlignTest {
+	private static final String AMINOACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+	private static String getRandomSequence(Random random, int length) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append(AMINOACIDS.charAt(random.nextInt(AMINOACIDS.length())));
+		}
+		return sb.toString();
+	}
+
+	private static String mutate(Random random, String sequence) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < sequence.length(); i++) {
+			final double x = random.nextDouble();
+			if (x < 0.05) {
+				continue;
+			}
+			if (x < 0.1) {
+				sb.append(getRandomSequence(random, 1 + random.nextInt(5)));
+			}
+			sb.append(x < 0.2 ? getRandomSequence(random, 1) : sequence.substring(i, i + 1));
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void sameScoreThanNWAlign() {
+		final Random random = new Random(1234);
+		for (int i = 0; i < 50; i++) {
+			// big enough to be split in regions
+			final String sequence1 = getRandomSequence(random, 200 + random.nextInt(400));
+			final String sequence2 = i % 2 == 0 ? mutate(random, sequence1)
+					: getRandomSequence(random, 200 + random.nextInt(400));
+			final NWResult expected = NWAlign.needlemanWunsch(sequence1, sequence2);
+			final NWResult result = LinearSpaceNWAlign.align(sequence1, sequence2);
+			Assert.assertEquals(expected.getFinalAlignmentScore(), result.getFinalAlignmentScore());
+			Assert.assertEquals(sequence1, result.getAlignedSequence1().replace("-", ""));
+			Assert.assertEquals(sequence2, result.getAlignedSequence2().replace("-", ""));
+			Assert.assertEquals(expected.getFinalAlignmentScore(), LinearSpaceNWAlign.getScore(sequence1, sequence2,
+					NWAlign.OPEN_GAP_PENALTY, NWAlign.GAP_EXTENSION_PENALTY, LinearSpaceNWAlign.NO_BAND));
+		}
+	}
+
+	@Test
+	public void aligningInABand() {
+		final Random random = new Random(4321);
+		for (int i = 0; i < 20; i++) {
+			final String sequence1 = getRandomSequence(random, 500);
+			final String sequence2 = mutate(random, sequence1);
+			final int score = NWAlign.needlemanWunsch(sequence1, sequence2).getFinalAlignmentScore();
+			final NWResult result = LinearSpaceNWAlign.align(sequence1, sequence2, NWAlign.OPEN_GAP_PENALTY,
+					NWAlign.GAP_EXTENSION_PENALTY, 5);
+			Assert.assertTrue(result.getFinalAlignmentScore() <= score);
+			Assert.assertEquals(LinearSpaceNWAlign.getScore(sequence1, sequence2, NWAlign.OPEN_GAP_PENALTY,
+					NWAlign.GAP_EXTENSION_PENALTY, 5), result.getFinalAlignmentScore());
+			Assert.assertEquals(sequence1, result.getAlignedSequence1().replace("-", ""));
+			Assert.assertEquals(sequence2, result.getAlignedSequence2().replace("-", ""));
+			// a band wide enough does not change the alignment
+			Assert.assertEquals(score, LinearSpaceNWAlign
+					.align(sequence1, sequence2, NWAlign.OPEN_GAP_PENALTY, NWAlign.GAP_EXTENSION_PENALTY, 1000)
+					.getFinalAlignmentScore());
+		}
+	}
+}
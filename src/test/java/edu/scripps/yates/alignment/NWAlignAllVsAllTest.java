@@ -0,0 +1,121 @@
+package edu.scripps.yates.alignment;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.alignment.nwalign.LinearSpaceNWAlign;
+import edu.scripps.yates.utilities.alignment.nwalign.NWAlign;
+import edu.scripps.yates.utilities.alignment.nwalign.NWAlignAllVsAll;
+import edu.scripps.yates.utilities.fasta.Fasta;
+import edu.scripps.yates.utilities.fasta.FastaReader;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import junit.framework.Assert;
+
+public class NWAlignAllVsAllTest {
+	private static final String AMINOACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+	/**
+	 * Families of 3 isoforms, each one with a different deletion
+	 */
+	private File createFasta(int numFamilies) throws IOException {
+		final File file = File.createTempFile("allVsAll", ".fasta");
+		file.deleteOnExit();
+		final Random random = new Random(11);
+		final FileWriter fw = new FileWriter(file);
+		for (int i = 0; i < numFamilies; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = 50 + random.nextInt(150);
+			for (int j = 0; j < length; j++) {
+				sb.append(AMINOACIDS.charAt(random.nextInt(AMINOACIDS.length())));
+			}
+			for (int isoform = 0; isoform < 3; isoform++) {
+				final int start = random.nextInt(length - 20);
+				fw.write(">sp|P" + i + "-" + isoform + "|PROT" + i + " protein " + i + "\n");
+				fw.write(sb.substring(0, start) + sb.substring(start + random.nextInt(20)) + "\n");
+			}
+		}
+		fw.close();
+		return file;
+	}
+
+	private static List<Fasta> readFastas(FastaReader reader) throws IOException {
+		final List<Fasta> ret = new ArrayList<Fasta>();
+		final Iterator<Fasta> fastas = reader.getFastas();
+		while (fastas.hasNext()) {
+			final Fasta fasta = fastas.next();
+			// before the next defline is read
+			fasta.getAccession();
+			ret.add(fasta);
+		}
+		return ret;
+	}
+
+	private static TObjectIntHashMap<String> getScores(NWAlignAllVsAll aligner, FastaReader reader, int numThreads)
+			throws IOException {
+		final TObjectIntHashMap<String> ret = new TObjectIntHashMap<String>();
+		aligner.alignAllVsAll(reader, new NWAlignAllVsAll.ScoreListener() {
+			@Override
+			public void onScore(Fasta fasta1, Fasta fasta2, int score) {
+				Assert.assertFalse(ret.containsKey(fasta1.getAccession() + " " + fasta2.getAccession()));
+				ret.put(fasta1.getAccession() + " " + fasta2.getAccession(), score);
+			}
+		}, numThreads);
+		return ret;
+	}
+
+	@Test
+	public void aligningAllVsAll() throws IOException {
+		final FastaReader reader = new FastaReader(createFasta(10).getAbsolutePath());
+		final List<Fasta> fastas = readFastas(reader);
+		final NWAlignAllVsAll aligner = new NWAlignAllVsAll();
+		final TObjectIntHashMap<String> scores = getScores(aligner, reader, 1);
+		Assert.assertEquals(fastas.size() * (fastas.size() - 1) / 2, scores.size());
+		for (int i = 0; i < fastas.size(); i++) {
+			for (int j = i + 1; j < fastas.size(); j++) {
+				final int score = LinearSpaceNWAlign.getScore(fastas.get(i).getSequence(), fastas.get(j).getSequence(),
+						NWAlign.OPEN_GAP_PENALTY, NWAlign.GAP_EXTENSION_PENALTY, LinearSpaceNWAlign.NO_BAND);
+				Assert.assertEquals(score,
+						scores.get(fastas.get(i).getAccession() + " " + fastas.get(j).getAccession()));
+			}
+		}
+		Assert.assertEquals(scores, getScores(aligner, reader, 4));
+
+		// only the isoforms of the same family share 20 5-mers
+		aligner.setKmerFilter(5, 20);
+		final TObjectIntHashMap<String> filteredScores = getScores(aligner, reader, 4);
+		Assert.assertEquals(fastas.size(), filteredScores.size());
+		for (final String pair : filteredScores.keySet()) {
+			final String[] accessions = pair.split(" ");
+			Assert.assertEquals(accessions[0].split("-")[0], accessions[1].split("-")[0]);
+			Assert.assertEquals(scores.get(pair), filteredScores.get(pair));
+		}
+	}
+
+	@Test
+	public void aligningOneVsMany() throws IOException {
+		final FastaReader reader = new FastaReader(createFasta(10).getAbsolutePath());
+		final List<Fasta> fastas = readFastas(reader);
+		final Fasta query = fastas.get(4);
+		final TObjectIntHashMap<String> scores = new TObjectIntHashMap<String>();
+		new NWAlignAllVsAll().alignOneVsMany(query, reader, new NWAlignAllVsAll.ScoreListener() {
+			@Override
+			public void onScore(Fasta fasta1, Fasta fasta2, int score) {
+				Assert.assertEquals(query, fasta1);
+				scores.put(fasta2.getAccession(), score);
+			}
+		}, 2);
+		Assert.assertEquals(fastas.size(), scores.size());
+		for (final Fasta fasta : fastas) {
+			Assert.assertEquals(LinearSpaceNWAlign.getScore(query.getSequence(), fasta.getSequence(),
+					NWAlign.OPEN_GAP_PENALTY, NWAlign.GAP_EXTENSION_PENALTY, LinearSpaceNWAlign.NO_BAND),
+					scores.get(fasta.getAccession()));
+		}
+	}
+}
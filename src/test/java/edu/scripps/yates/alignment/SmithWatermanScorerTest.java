@@ -0,0 +1,130 @@
+package edu.scripps.yates.alignment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.alignment.SmithWatermanHit;
+import edu.scripps.yates.utilities.alignment.SmithWatermanScorer;
+import edu.scripps.yates.utilities.alignment.SmithWatermanSimple;
+import edu.scripps.yates.utilities.alignment.nwalign.NWAlign;
+import junit.framework.Assert;
+
+public class SmithWatermanScorerTest {
+	private static final String AMINOACIDS = "ACDEFGHIKLMNPQRSTVWY";
+
+	private static String getRandomSequence(Random random, int length) {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append(AMINOACIDS.charAt(random.nextInt(AMINOACIDS.length())));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gotoh with the whole matrices
+	 */
+	private static int getExpectedScore(String query, String target, int match, int mismatch, int gapOpen,
+			int gapExtension) {
+		final int[][] h = new int[query.length() + 1][target.length() + 1];
+		final int[][] e = new int[query.length() + 1][target.length() + 1];
+		final int[][] f = new int[query.length() + 1][target.length() + 1];
+		int ret = 0;
+		for (int i = 0; i <= query.length(); i++) {
+			for (int j = 0; j <= target.length(); j++) {
+				e[i][j] = f[i][j] = -100000;
+				if (i > 0 && j > 0) {
+					e[i][j] = Math.max(h[i][j - 1] + gapOpen, e[i][j - 1] + gapExtension);
+					f[i][j] = Math.max(h[i - 1][j] + gapOpen, f[i - 1][j] + gapExtension);
+					final int score = query.charAt(i - 1) == target.charAt(j - 1) ? match : mismatch;
+					h[i][j] = Math.max(Math.max(0, h[i - 1][j - 1] + score), Math.max(e[i][j], f[i][j]));
+					ret = Math.max(ret, h[i][j]);
+				}
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void scoringLocalAlignments() {
+		final Random random = new Random(2468);
+		final SmithWatermanScorer scorer = new SmithWatermanScorer(5, -3, -8, -2);
+		for (int i = 0; i < 200; i++) {
+			final String query = getRandomSequence(random, 5 + random.nextInt(30));
+			String target = getRandomSequence(random, random.nextInt(300));
+			if (i % 2 == 0) {
+				final int position = random.nextInt(target.length() + 1);
+				target = target.substring(0, position) + query.substring(random.nextInt(query.length()))
+						+ target.substring(position);
+			}
+			Assert.assertEquals(getExpectedScore(query, target, 2, -1, -1, -1),
+					SmithWatermanSimple.getScore(query, target));
+			final int score = getExpectedScore(query, target, 5, -3, -8, -2);
+			Assert.assertEquals(score, scorer.getScore(query, target));
+			final SmithWatermanHit hit = scorer.getBestHit(query, target);
+			if (score == 0) {
+				Assert.assertNull(hit);
+				continue;
+			}
+			Assert.assertEquals(score, hit.getScore());
+			// the whole alignment is in the hit
+			Assert.assertEquals(score,
+					scorer.getScore(query.substring(hit.getQueryStart(), hit.getQueryEnd()),
+							target.substring(hit.getTargetStart(), hit.getTargetEnd())));
+		}
+	}
+
+	@Test
+	public void gettingTopHits() {
+		final Random random = new Random(1357);
+		final String peptide = getRandomSequence(random, 12);
+		final String protein = getRandomSequence(random, 100) + peptide + getRandomSequence(random, 50)
+				+ peptide.substring(0, 6) + getRandomSequence(random, 50);
+		final List<SmithWatermanHit> hits = SmithWatermanSimple.getTopHits(peptide, protein, 3);
+		Assert.assertEquals(3, hits.size());
+		Assert.assertEquals(24, hits.get(0).getScore());
+		Assert.assertEquals(100, hits.get(0).getTargetStart());
+		Assert.assertEquals(112, hits.get(0).getTargetEnd());
+		Assert.assertEquals(0, hits.get(0).getQueryStart());
+		Assert.assertEquals(12, hits.get(0).getQueryEnd());
+		Assert.assertTrue(hits.get(1).getScore() >= 12);
+		Assert.assertTrue(hits.get(1).getTargetStart() <= 162);
+		Assert.assertTrue(hits.get(1).getTargetEnd() >= 168);
+		for (int i = 1; i < hits.size(); i++) {
+			Assert.assertTrue(hits.get(i).getScore() <= hits.get(i - 1).getScore());
+			for (int j = 0; j < i; j++) {
+				Assert.assertTrue(hits.get(i).getTargetEnd() <= hits.get(j).getTargetStart()
+						|| hits.get(i).getTargetStart() >= hits.get(j).getTargetEnd());
+			}
+		}
+	}
+
+	@Test
+	public void scoringPeptidesInBatch() {
+		final Random random = new Random(97531);
+		final String protein = getRandomSequence(random, 500);
+		final List<String> peptides = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			final int start = random.nextInt(490);
+			peptides.add(i % 2 == 0 ? protein.substring(start, start + 5 + random.nextInt(5))
+					: getRandomSequence(random, 5 + random.nextInt(20)));
+		}
+		final SmithWatermanScorer scorer = new SmithWatermanScorer(NWAlign.OPEN_GAP_PENALTY,
+				NWAlign.GAP_EXTENSION_PENALTY);
+		final int[] scores = scorer.getScores(peptides, protein);
+		final List<SmithWatermanHit> hits = scorer.getBestHits(peptides, protein);
+		for (int i = 0; i < peptides.size(); i++) {
+			Assert.assertEquals(scores[i], new SmithWatermanScorer(NWAlign.OPEN_GAP_PENALTY,
+					NWAlign.GAP_EXTENSION_PENALTY).getScore(peptides.get(i), protein));
+			Assert.assertEquals(scores[i], hits.get(i) == null ? 0 : hits.get(i).getScore());
+			if (i % 2 == 0) {
+				// found where it is
+				final String peptide = peptides.get(i);
+				Assert.assertEquals(NWAlign.needlemanWunsch(peptide, peptide).getFinalAlignmentScore(), scores[i]);
+				Assert.assertEquals(peptide, protein.substring(hits.get(i).getTargetStart(), hits.get(i).getTargetEnd()));
+			}
+		}
+	}
+}
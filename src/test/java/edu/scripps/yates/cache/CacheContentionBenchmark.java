@@ -0,0 +1,85 @@
+package edu.scripps.yates.cache;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import edu.scripps.yates.utilities.cache.AbstractCache;
+import edu.scripps.yates.utilities.cache.Cache;
+import edu.scripps.yates.utilities.cache.ConcurrentCache;
+import gnu.trove.map.hash.THashMap;
+
+/**
+ * Compares the throughput of {@link AbstractCache} and {@link ConcurrentCache}
+ * with an increasing number of threads doing 95% reads and 5% writes. It is
+ * not run as a test. Run it with:<br>
+ * java edu.scripps.yates.cache.CacheContentionBenchmark [maxThreads]
+ * [operationsPerThread]
+ */
+public class CacheContentionBenchmark {
+	private static final int NUM_KEYS = 100000;
+
+	private static class LockedCache extends AbstractCache<String, String> {
+		@Override
+		protected Map<String, String> createMap() {
+			return new THashMap<String, String>();
+		}
+	}
+
+	private static double run(final Cache<String, String> cache, int numThreads, final int operationsPerThread)
+			throws InterruptedException {
+		final String[] keys = new String[NUM_KEYS];
+		for (int i = 0; i < NUM_KEYS; i++) {
+			keys[i] = "P" + i;
+			cache.addtoCache(keys[i], keys[i]);
+		}
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch end = new CountDownLatch(numThreads);
+		for (int t = 0; t < numThreads; t++) {
+			final long seed = t;
+			new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random(seed);
+					try {
+						start.await();
+						for (int i = 0; i < operationsPerThread; i++) {
+							final String key = keys[random.nextInt(NUM_KEYS)];
+							if (random.nextInt(100) < 5) {
+								cache.addtoCache(key, key);
+							} else {
+								cache.getFromCache(key);
+							}
+						}
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						// always, so that the main thread doesn't wait forever
+						end.countDown();
+					}
+				}
+			}.start();
+		}
+		final long t0 = System.nanoTime();
+		start.countDown();
+		end.await();
+		final long elapsed = System.nanoTime() - t0;
+		return 1.0e9 * numThreads * operationsPerThread / elapsed;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		final int maxThreads = args.length > 0 ? Integer.valueOf(args[0]) : 32;
+		final int operationsPerThread = args.length > 1 ? Integer.valueOf(args[1]) : 1000000;
+		System.out.println("threads\tAbstractCache (ops/s)\tConcurrentCache (ops/s)");
+		for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+			// warm up
+			run(new LockedCache(), numThreads, operationsPerThread / 10);
+			run(new ConcurrentCache<String, String>(), numThreads, operationsPerThread / 10);
+			final double locked = run(new LockedCache(), numThreads, operationsPerThread);
+			final double concurrent = run(new ConcurrentCache<String, String>(NUM_KEYS), numThreads,
+					operationsPerThread);
+			System.out.println(numThreads + "\t" + String.format("%.0f", locked) + "\t"
+					+ String.format("%.0f", concurrent));
+		}
+	}
+}
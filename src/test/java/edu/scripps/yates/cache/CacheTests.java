@@ -0,0 +1,307 @@
+package edu.scripps.yates.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scripps.yates.utilities.cache.AbstractBoundedCache;
+import edu.scripps.yates.utilities.cache.AbstractTwoTierCache;
+import edu.scripps.yates.utilities.cache.ConcurrentCache;
+import edu.scripps.yates.utilities.cache.EvictionPolicy;
+import edu.scripps.yates.utilities.cache.LFUEvictionPolicy;
+import edu.scripps.yates.utilities.cache.TinyLFUEvictionPolicy;
+import gnu.trove.map.hash.THashMap;
+import junit.framework.Assert;
+
+public class CacheTests {
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static class StringCache extends AbstractBoundedCache<String, String> {
+
+		public StringCache(EvictionPolicy<String> evictionPolicy, long maxEntries, long maxWeight,
+				long timeToLiveMillis) {
+			super(evictionPolicy, maxEntries, maxWeight, timeToLiveMillis);
+		}
+
+		public StringCache(int maxEntries) {
+			super(maxEntries);
+		}
+
+		@Override
+		protected Map<String, String> createMap() {
+			return new THashMap<String, String>();
+		}
+
+		@Override
+		protected long getWeight(String key, String t) {
+			return t.length();
+		}
+	}
+
+	@Test
+	public void testingLRUCache() {
+		final StringCache cache = new StringCache(2);
+		cache.addtoCache("a", "1");
+		cache.addtoCache("b", "2");
+		cache.getFromCache("1");
+		cache.addtoCache("c", "3");
+		Assert.assertTrue(cache.contains("1"));
+		Assert.assertFalse(cache.contains("2"));
+		Assert.assertTrue(cache.contains("3"));
+		Assert.assertNull(cache.getFromCache("2"));
+		Assert.assertEquals(1, cache.getStats().getHits());
+		Assert.assertEquals(1, cache.getStats().getMisses());
+		Assert.assertEquals(1, cache.getStats().getEvictions());
+	}
+
+	@Test
+	public void testingLFUAndWeightedCache() {
+		final StringCache cache = new StringCache(new LFUEvictionPolicy<String>(), AbstractBoundedCache.UNLIMITED,
+				10, AbstractBoundedCache.UNLIMITED);
+		cache.addtoCache("aaaa", "1");
+		cache.addtoCache("bbbb", "2");
+		cache.getFromCache("1");
+		cache.getFromCache("1");
+		// 4 + 4 + 4 > 10, so the least frequently used one is evicted
+		cache.addtoCache("cccc", "3");
+		Assert.assertEquals(8, cache.getTotalWeight());
+		Assert.assertTrue(cache.contains("1"));
+		Assert.assertFalse(cache.contains("2"));
+		// heavier than the whole cache
+		cache.addtoCache("ddddddddddd", "4");
+		Assert.assertFalse(cache.contains("4"));
+		Assert.assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void testingTinyLFUCache() {
+		final StringCache cache = new StringCache(new TinyLFUEvictionPolicy<String>(100), 100,
+				AbstractBoundedCache.UNLIMITED, AbstractBoundedCache.UNLIMITED);
+		for (int i = 0; i < 100; i++) {
+			cache.addtoCache("hot" + i, "hot" + i);
+		}
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 100; i++) {
+				cache.getFromCache("hot" + i);
+			}
+		}
+		// a scan of keys used only once should not flush the popular ones
+		for (int i = 0; i < 1000; i++) {
+			cache.addtoCache("cold" + i, "cold" + i);
+		}
+		int hot = 0;
+		for (int i = 0; i < 100; i++) {
+			if (cache.contains("hot" + i)) {
+				hot++;
+			}
+		}
+		Assert.assertEquals(100, cache.size());
+		Assert.assertTrue(hot >= 90);
+	}
+
+	@Test
+	public void testingTimeToLive() throws InterruptedException {
+		final StringCache cache = new StringCache(new LFUEvictionPolicy<String>(), AbstractBoundedCache.UNLIMITED,
+				AbstractBoundedCache.UNLIMITED, 50);
+		cache.addtoCache("a", "1");
+		Assert.assertEquals("a", cache.getFromCache("1"));
+		Thread.sleep(100);
+		Assert.assertNull(cache.getFromCache("1"));
+		Assert.assertEquals(1, cache.getStats().getExpirations());
+		Assert.assertTrue(cache.isEmpty());
+	}
+
+	private static class StringTwoTierCache extends AbstractTwoTierCache<String, String> {
+
+		public StringTwoTierCache(File storeFile, int maxEntries) throws IOException {
+			super(storeFile, maxEntries);
+		}
+
+		@Override
+		protected Map<String, String> createMap() {
+			return new THashMap<String, String>();
+		}
+
+		@Override
+		protected String serialize(String t) {
+			return t;
+		}
+
+		@Override
+		protected String deserialize(String string) {
+			return string;
+		}
+	}
+
+	@Test
+	public void testingTwoTierCache() throws IOException {
+		final File storeFile = new File(temporaryFolder.newFolder(), "store.txt");
+		final StringTwoTierCache cache = new StringTwoTierCache(storeFile, 2);
+		cache.addtoCache("value\nwith <cache_entry> lines", "1");
+		cache.addtoCache("b", "2");
+		// nothing is written until something is evicted from memory
+		Assert.assertTrue(!storeFile.exists() || storeFile.length() == 0);
+		cache.addtoCache("c", "3");
+		// "1" is evicted, but waiting to be written with more entries
+		Assert.assertTrue(!storeFile.exists() || storeFile.length() == 0);
+		Assert.assertTrue(cache.contains("1"));
+		cache.flush();
+		Assert.assertTrue(storeFile.length() > 0);
+		cache.removeFromCache("2");
+		Assert.assertEquals(1, cache.size());
+		// evicted from memory, but read from the file
+		Assert.assertEquals("value\nwith <cache_entry> lines", cache.getFromCache("1"));
+		Assert.assertEquals(1, cache.getDiskStats().getHits());
+		Assert.assertFalse(cache.contains("2"));
+		Assert.assertNull(cache.getFromCache("2"));
+		cache.close();
+
+		// as in a new run of the JVM
+		final StringTwoTierCache cache2 = new StringTwoTierCache(storeFile, 2);
+		Assert.assertTrue(cache2.contains("3"));
+		Assert.assertEquals("c", cache2.getFromCache("3"));
+		Assert.assertEquals("value\nwith <cache_entry> lines", cache2.getFromCache("1"));
+		Assert.assertFalse(cache2.contains("2"));
+		cache2.clearCache();
+		Assert.assertTrue(cache2.isEmpty());
+		Assert.assertNull(new StringTwoTierCache(storeFile, 2).getFromCache("3"));
+	}
+
+	@Test
+	public void compactingTwoTierCache() throws IOException {
+		final File storeFile = new File(temporaryFolder.newFolder(), "store.txt");
+		final StringTwoTierCache cache = new StringTwoTierCache(storeFile, 10);
+		cache.setWriteBatchSize(5);
+		cache.setCompactionThreshold(100);
+		for (int i = 0; i < 50; i++) {
+			cache.addtoCache("value" + i, String.valueOf(i));
+		}
+		cache.flush();
+		final long length = storeFile.length();
+		// replacing and removing the same entries
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 40; i++) {
+				cache.addtoCache("value" + i + "_" + round, String.valueOf(i));
+			}
+			for (int i = 20; i < 40; i++) {
+				cache.removeFromCache(String.valueOf(i));
+			}
+			cache.flush();
+		}
+		// the obsolete records are not accumulated in the file
+		Assert.assertTrue(storeFile.length() < 2 * length);
+		cache.close();
+		final StringTwoTierCache cache2 = new StringTwoTierCache(storeFile, 10);
+		for (int i = 0; i < 50; i++) {
+			final String value = cache2.getFromCache(String.valueOf(i));
+			if (i < 20) {
+				Assert.assertEquals("value" + i + "_9", value);
+			} else if (i < 40) {
+				Assert.assertNull(value);
+				Assert.assertFalse(cache2.contains(String.valueOf(i)));
+			} else {
+				Assert.assertEquals("value" + i, value);
+			}
+		}
+	}
+
+	@Test
+	public void testingConcurrentCache() {
+		// case insensitive keys
+		final ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>() {
+			@Override
+			public String processKey(String key) {
+				return key == null ? null : key.toUpperCase();
+			}
+		};
+		Assert.assertTrue(cache.isEmpty());
+		cache.addtoCache("a", "p1");
+		cache.addtoCache("b", "P2");
+		// null keys and values are ignored
+		cache.addtoCache(null, "P3");
+		cache.addtoCache("c", null);
+		Assert.assertEquals(2, cache.size());
+		Assert.assertEquals("a", cache.getFromCache("P1"));
+		Assert.assertEquals("b", cache.getFromCache("p2"));
+		Assert.assertNull(cache.getFromCache("P3"));
+		Assert.assertNull(cache.getFromCache((String) null));
+		Assert.assertTrue(cache.contains("p1"));
+		Assert.assertFalse(cache.contains(null));
+		Assert.assertTrue(cache.containsAll(Arrays.asList("p1", "P2")));
+		Assert.assertFalse(cache.containsAll(Arrays.asList("p1", "P3")));
+		final Set<String> values = cache.getFromCache(Arrays.asList("P1", "p1", "p2", "P3"));
+		Assert.assertEquals(2, values.size());
+		Assert.assertTrue(values.contains("a"));
+		Assert.assertTrue(values.contains("b"));
+		// replaced
+		cache.addtoCache("a2", "P1");
+		Assert.assertEquals("a2", cache.getFromCache("p1"));
+		Assert.assertEquals(2, cache.size());
+
+		Assert.assertEquals("a2", cache.removeFromCache("p1"));
+		Assert.assertNull(cache.removeFromCache("P1"));
+		Assert.assertFalse(cache.contains("P1"));
+		Assert.assertEquals(1, cache.size());
+		cache.clearCache();
+		Assert.assertTrue(cache.isEmpty());
+		Assert.assertFalse(cache.contains("P2"));
+	}
+
+	@Test
+	public void usingConcurrentCacheFromMultipleThreads() throws InterruptedException, ExecutionException {
+		final ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>();
+		final int numThreads = 8;
+		final int numKeys = 10000;
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < numThreads; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						boolean ret = true;
+						for (int i = 0; i < numKeys; i++) {
+							// each thread its own keys and the shared ones
+							final String ownKey = "T" + thread + "_" + i;
+							cache.addtoCache(ownKey + "value", ownKey);
+							cache.addtoCache("shared" + i, "S" + i);
+							ret &= (ownKey + "value").equals(cache.getFromCache(ownKey));
+							ret &= ("shared" + i).equals(cache.getFromCache("S" + i));
+							if (i % 2 == 0) {
+								ret &= (ownKey + "value").equals(cache.removeFromCache(ownKey));
+								ret &= !cache.contains(ownKey);
+							}
+						}
+						return ret;
+					}
+				}));
+			}
+			for (final Future<Boolean> future : futures) {
+				Assert.assertTrue(future.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		// the odd keys of each thread and the shared ones
+		Assert.assertEquals(numThreads * numKeys / 2 + numKeys, cache.size());
+		for (int t = 0; t < numThreads; t++) {
+			Assert.assertFalse(cache.contains("T" + t + "_0"));
+			Assert.assertEquals("T" + t + "_1value", cache.getFromCache("T" + t + "_1"));
+		}
+	}
+}
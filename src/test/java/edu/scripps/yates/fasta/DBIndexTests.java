@@ -0,0 +1,392 @@
+package edu.scripps.yates.fasta;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.fasta.dbindex.DBIndexFactory;
+import edu.scripps.yates.utilities.fasta.dbindex.DBIndexInterface;
+import edu.scripps.yates.utilities.fasta.dbindex.DBIndexSearchParams;
+import edu.scripps.yates.utilities.fasta.dbindex.DBIndexStoreException;
+import edu.scripps.yates.utilities.fasta.dbindex.Enzyme;
+import edu.scripps.yates.utilities.fasta.dbindex.InMemoryDBIndex;
+import edu.scripps.yates.utilities.fasta.dbindex.IndexType;
+import edu.scripps.yates.utilities.fasta.dbindex.IndexedProtein;
+import edu.scripps.yates.utilities.fasta.dbindex.IndexedSequence;
+import edu.scripps.yates.utilities.fasta.dbindex.MappedDBIndex;
+import edu.scripps.yates.utilities.fasta.dbindex.MassRange;
+import edu.scripps.yates.utilities.fasta.dbindex.PeptideFilter;
+import edu.scripps.yates.utilities.masses.AssignMass;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TIntHashSet;
+import junit.framework.Assert;
+
+public class DBIndexTests {
+	private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWYKRKRP";
+	private static final double MIN_MASS = 600.0;
+	private static final double MAX_MASS = 3000.0;
+
+	private static class TestParams implements DBIndexSearchParams {
+		private final String fastaFile;
+		private final boolean semiCleavage;
+		private final IndexType indexType;
+
+		private TestParams(String fastaFile, boolean semiCleavage, IndexType indexType) {
+			this.fastaFile = fastaFile;
+			this.semiCleavage = semiCleavage;
+			this.indexType = indexType;
+		}
+
+		@Override
+		public IndexType getIndexType() {
+			return indexType;
+		}
+
+		@Override
+		public boolean isInMemoryIndex() {
+			return indexType == IndexType.INDEX_NORMAL;
+		}
+
+		@Override
+		public int getIndexFactor() {
+			return 0;
+		}
+
+		@Override
+		public String getDatabaseName() {
+			return fastaFile;
+		}
+
+		@Override
+		public int getMaxMissedCleavages() {
+			return 2;
+		}
+
+		@Override
+		public double getMaxPrecursorMass() {
+			return MAX_MASS;
+		}
+
+		@Override
+		public double getMinPrecursorMass() {
+			return MIN_MASS;
+		}
+
+		@Override
+		public boolean isUseIndex() {
+			return true;
+		}
+
+		@Override
+		public String getEnzymeNocutResidues() {
+			return "P";
+		}
+
+		@Override
+		public String getEnzymeResidues() {
+			return "KR";
+		}
+
+		@Override
+		public int getEnzymeOffset() {
+			return 0;
+		}
+
+		@Override
+		public boolean isUseMonoParent() {
+			return true;
+		}
+
+		@Override
+		public Enzyme getEnzyme() {
+			return null;
+		}
+
+		@Override
+		public char[] getEnzymeArr() {
+			return "KR".toCharArray();
+		}
+
+		@Override
+		public boolean isH2OPlusProtonAdded() {
+			return true;
+		}
+
+		@Override
+		public int getMassGroupFactor() {
+			return 1000;
+		}
+
+		@Override
+		public char[] getMandatoryInternalAAs() {
+			return null;
+		}
+
+		@Override
+		public boolean isUsingProtDB() {
+			return false;
+		}
+
+		@Override
+		public boolean isUsingSeqDB() {
+			return false;
+		}
+
+		@Override
+		public String getMongoDBURI() {
+			return null;
+		}
+
+		@Override
+		public String getMassDBName() {
+			return null;
+		}
+
+		@Override
+		public String getMassDBCollection() {
+			return null;
+		}
+
+		@Override
+		public String getSeqDBName() {
+			return null;
+		}
+
+		@Override
+		public String getSeqDBCollection() {
+			return null;
+		}
+
+		@Override
+		public String getProtDBName() {
+			return null;
+		}
+
+		@Override
+		public String getProtDBCollection() {
+			return null;
+		}
+
+		@Override
+		public boolean isUsingMongoDB() {
+			return false;
+		}
+
+		@Override
+		public boolean isSemiCleavage() {
+			return semiCleavage;
+		}
+
+		@Override
+		public PeptideFilter getPeptideFilter() {
+			return null;
+		}
+
+		@Override
+		public Boolean isLookProteoforms() {
+			return false;
+		}
+
+		@Override
+		public File getUniprotReleasesFolder() {
+			return null;
+		}
+
+		@Override
+		public String getUniprotVersion() {
+			return null;
+		}
+
+		@Override
+		public String getDiscardDecoyRegexp() {
+			return "^Reverse_";
+		}
+
+		@Override
+		public String getFullIndexFileName(String sufix, Integer maxVariationsPerPeptide, boolean useUniprot,
+				String uniprotVersion, boolean usePhosphosite, String phosphoSiteSpecies) {
+			return new File(fastaFile).getParent() + File.separator + "test" + sufix + ".idx";
+		}
+	}
+
+	private File createFasta(int numProteins) throws IOException {
+		final File file = File.createTempFile("dbindex", ".fasta");
+		file.deleteOnExit();
+		final Random random = new Random(7);
+		final FileWriter fw = new FileWriter(file);
+		for (int i = 0; i < numProteins; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = 50 + random.nextInt(300);
+			for (int j = 0; j < length; j++) {
+				sb.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+			}
+			fw.write(">" + (i % 10 == 9 ? "Reverse_" : "") + "sp|P" + i + "|PROT" + i + " protein " + i + "\n");
+			// shared sequences between proteins
+			fw.write(sb.toString() + (i % 2 == 0 ? "AAAAGGGGSSSSTTTTKLLLLKPEPTIDER" : "") + "\n");
+		}
+		fw.close();
+		return file;
+	}
+
+	private static boolean isSite(String protein, int position) {
+		return position == 0 || position == protein.length() || ((protein.charAt(position - 1) == 'K'
+				|| protein.charAt(position - 1) == 'R') && protein.charAt(position) != 'P');
+	}
+
+	/**
+	 * Peptides of the proteins, by brute force, with the ids of their proteins
+	 */
+	private Map<String, TIntHashSet> getExpectedPeptides(DBIndexInterface index, int numProteins,
+			boolean semiCleavage) throws DBIndexStoreException {
+		final double[] masses = new AssignMass(true).getPdAAMass();
+		final Map<String, TIntHashSet> ret = new THashMap<String, TIntHashSet>();
+		for (int id = 0; id < numProteins; id++) {
+			final String protein = index.getProteinSequenceById(id);
+			for (int start = 0; start < protein.length(); start++) {
+				for (int end = start + 1; end <= protein.length(); end++) {
+					final boolean specificStart = isSite(protein, start);
+					final boolean specificEnd = isSite(protein, end);
+					if (semiCleavage ? !specificStart && !specificEnd : !specificStart || !specificEnd) {
+						continue;
+					}
+					int missedCleavages = 0;
+					double mass = AssignMass.H2O_PROTON;
+					for (int i = start; i < end; i++) {
+						if (i > start && isSite(protein, i)) {
+							missedCleavages++;
+						}
+						mass += masses[protein.charAt(i)];
+					}
+					if (missedCleavages > 2 || mass < MIN_MASS || mass > MAX_MASS) {
+						continue;
+					}
+					final String peptide = protein.substring(start, end);
+					if (!ret.containsKey(peptide)) {
+						ret.put(peptide, new TIntHashSet());
+					}
+					ret.get(peptide).add(id);
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void assertIndexContent(DBIndexInterface index, int numProteins, boolean semiCleavage)
+			throws DBIndexStoreException {
+		final Map<String, TIntHashSet> expected = getExpectedPeptides(index, numProteins, semiCleavage);
+		final List<IndexedSequence> sequences = index.getSequences((MIN_MASS + MAX_MASS) / 2,
+				(MAX_MASS - MIN_MASS) / 2);
+		Assert.assertEquals(expected.size(), sequences.size());
+		double previousMass = 0.0;
+		final Set<String> found = new THashSet<String>();
+		for (final IndexedSequence sequence : sequences) {
+			Assert.assertTrue(sequence.getMass() >= previousMass);
+			previousMass = sequence.getMass();
+			Assert.assertTrue(found.add(sequence.getSequence()));
+			final TIntHashSet proteinIds = expected.get(sequence.getSequence());
+			Assert.assertNotNull(sequence.getSequence(), proteinIds);
+			Assert.assertEquals(proteinIds.size(), sequence.getProteinIds().size());
+			for (final Integer proteinId : sequence.getProteinIds()) {
+				Assert.assertTrue(proteinIds.contains(proteinId));
+			}
+		}
+		// query by sequence
+		final Set<IndexedProtein> proteins = index.getProteins("LLLLKPEPTIDER");
+		Assert.assertEquals(expected.get("LLLLKPEPTIDER").size(), proteins.size());
+		for (final IndexedProtein protein : proteins) {
+			Assert.assertTrue(index.getProteinSequenceById((int) protein.getId()).contains("LLLLKPEPTIDER"));
+		}
+		// a narrow window
+		final IndexedSequence sequence = sequences.get(sequences.size() / 2);
+		final List<IndexedSequence> narrow = index.getSequences(sequence.getMass(), 0.0001);
+		Assert.assertTrue(narrow.contains(sequence));
+		for (final IndexedSequence other : narrow) {
+			Assert.assertTrue(Math.abs(other.getMass() - sequence.getMass()) <= 0.0001);
+		}
+	}
+
+	@Test
+	public void inMemoryIndexTest() throws IOException, DBIndexStoreException {
+		final File fasta = createFasta(200);
+		for (final boolean semiCleavage : new boolean[] { false, true }) {
+			final InMemoryDBIndex index = new InMemoryDBIndex(
+					new TestParams(fasta.getAbsolutePath(), semiCleavage, IndexType.INDEX_NORMAL), 3);
+			// the decoys are discarded
+			Assert.assertEquals(180, index.getNumProteins());
+			assertIndexContent(index, 180, semiCleavage);
+		}
+	}
+
+	@Test
+	public void mappedIndexTest() throws IOException, DBIndexStoreException {
+		final File fasta = createFasta(200);
+		final TestParams params = new TestParams(fasta.getAbsolutePath(), false, IndexType.INDEX_LARGE);
+		final File indexFile = MappedDBIndex.getIndexFile(params);
+		indexFile.deleteOnExit();
+		final MappedDBIndex index = (MappedDBIndex) DBIndexFactory.getDBIndex(params);
+		Assert.assertTrue(indexFile.exists());
+		Assert.assertEquals(180, index.getNumProteins());
+		assertIndexContent(index, 180, false);
+		// the same as in memory
+		final InMemoryDBIndex inMemoryIndex = new InMemoryDBIndex(params, 2);
+		Assert.assertEquals(inMemoryIndex.getNumPeptides(), index.getNumPeptides());
+		Assert.assertEquals(inMemoryIndex.getIndexedProteinById(7).getFastaDefLine(),
+				index.getIndexedProteinById(7).getFastaDefLine());
+		// opened again without building it
+		final long lastModified = indexFile.lastModified();
+		final MappedDBIndex index2 = MappedDBIndex.getInstance(params);
+		Assert.assertEquals(lastModified, indexFile.lastModified());
+		Assert.assertEquals(index.getNumPeptides(), index2.getNumPeptides());
+		final List<IndexedSequence> sequences = index2.getSequences(1500.0, 10.0);
+		Assert.assertEquals(index.getSequences(1500.0, 10.0), sequences);
+		Assert.assertFalse(sequences.isEmpty());
+		// built again with other digestion parameters
+		final TestParams semiParams = new TestParams(fasta.getAbsolutePath(), true, IndexType.INDEX_LARGE);
+		Assert.assertEquals(indexFile, MappedDBIndex.getIndexFile(semiParams));
+		final MappedDBIndex semiIndex = MappedDBIndex.getInstance(semiParams, 2);
+		Assert.assertEquals(new InMemoryDBIndex(semiParams, 2).getNumPeptides(), semiIndex.getNumPeptides());
+		Assert.assertTrue(semiIndex.getNumPeptides() > index.getNumPeptides());
+		// without leaving temporary files
+		for (final File file : indexFile.getAbsoluteFile().getParentFile().listFiles()) {
+			Assert.assertFalse(file.getName(),
+					file.getName().startsWith(indexFile.getName()) && file.getName().endsWith(".tmp"));
+		}
+	}
+
+	@Test
+	public void batchedQueryTest() throws IOException, DBIndexStoreException {
+		final File fasta = createFasta(100);
+		final InMemoryDBIndex index = new InMemoryDBIndex(
+				new TestParams(fasta.getAbsolutePath(), false, IndexType.INDEX_NORMAL), 2);
+		final Random random = new Random(3);
+		final List<MassRange> massRanges = new ArrayList<MassRange>();
+		for (int i = 0; i < 500; i++) {
+			// many overlapping ranges, some of them empty
+			massRanges.add(new MassRange(MIN_MASS + random.nextDouble() * (MAX_MASS - MIN_MASS),
+					random.nextDouble() * (i % 2 == 0 ? 0.01 : 3.0)));
+		}
+		final int[][] ids = index.getPeptideIds(massRanges);
+		final Set<IndexedSequence> union = new THashSet<IndexedSequence>();
+		for (int i = 0; i < massRanges.size(); i++) {
+			final MassRange massRange = massRanges.get(i);
+			final List<IndexedSequence> expected = index.getSequences(massRange.getPrecMass(),
+					massRange.getTolerance());
+			union.addAll(expected);
+			Assert.assertEquals(expected.size(), ids[i].length);
+			for (int j = 0; j < ids[i].length; j++) {
+				Assert.assertEquals(expected.get(j).getId(), ids[i][j]);
+			}
+		}
+		final List<IndexedSequence> merged = index.getSequences(massRanges);
+		Assert.assertEquals(union.size(), merged.size());
+		Assert.assertTrue(union.containsAll(merged));
+	}
+}
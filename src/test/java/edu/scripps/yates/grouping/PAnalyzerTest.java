@@ -0,0 +1,341 @@
+package edu.scripps.yates.grouping;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.grouping.GroupablePeptide;
+import edu.scripps.yates.utilities.grouping.GroupableProtein;
+import edu.scripps.yates.utilities.grouping.PAnalyzer;
+import edu.scripps.yates.utilities.grouping.PAnalyzerUpdate;
+import edu.scripps.yates.utilities.grouping.PeptideRelation;
+import edu.scripps.yates.utilities.grouping.ProteinEvidence;
+import edu.scripps.yates.utilities.grouping.ProteinGroup;
+import gnu.trove.map.hash.THashMap;
+import junit.framework.Assert;
+
+public class PAnalyzerTest {
+	private static int psmCounter = 0;
+
+	private static class Peptide implements GroupablePeptide {
+		private final String sequence;
+		private final String id = String.valueOf(psmCounter++);
+		private final List<GroupableProtein> proteins = new ArrayList<GroupableProtein>();
+		private PeptideRelation relation;
+
+		private Peptide(String sequence) {
+			this.sequence = sequence;
+		}
+
+		@Override
+		public String getSequence() {
+			return sequence;
+		}
+
+		@Override
+		public String getIdentifier() {
+			return id;
+		}
+
+		@Override
+		public void setRelation(PeptideRelation relation) {
+			this.relation = relation;
+		}
+
+		@Override
+		public PeptideRelation getRelation() {
+			return relation;
+		}
+
+		@Override
+		public List<GroupableProtein> getGroupableProteins() {
+			return proteins;
+		}
+	}
+
+	private static class Protein implements GroupableProtein {
+		private final String accession;
+		private final String uniqueID;
+		private final List<GroupablePeptide> peptides = new ArrayList<GroupablePeptide>();
+		private ProteinEvidence evidence;
+		private ProteinGroup proteinGroup;
+
+		private Protein(String accession, String uniqueID, String... sequences) {
+			this.accession = accession;
+			this.uniqueID = uniqueID;
+			for (final String sequence : sequences) {
+				final Peptide peptide = new Peptide(sequence);
+				peptide.getGroupableProteins().add(this);
+				peptides.add(peptide);
+			}
+		}
+
+		@Override
+		public List<GroupablePeptide> getGroupablePeptides() {
+			return peptides;
+		}
+
+		@Override
+		public ProteinGroup getProteinGroup() {
+			return proteinGroup;
+		}
+
+		@Override
+		public String getUniqueID() {
+			return uniqueID;
+		}
+
+		@Override
+		public String getAccession() {
+			return accession;
+		}
+
+		@Override
+		public void setEvidence(ProteinEvidence evidence) {
+			this.evidence = evidence;
+		}
+
+		@Override
+		public ProteinEvidence getEvidence() {
+			return evidence;
+		}
+
+		@Override
+		public void setProteinGroup(ProteinGroup proteinGroup) {
+			this.proteinGroup = proteinGroup;
+		}
+	}
+
+	private static List<GroupableProtein> getProteins() {
+		final List<GroupableProtein> ret = new ArrayList<GroupableProtein>();
+		ret.add(new Protein("P1", "1", "UNIQUE", "SHARED"));
+		ret.add(new Protein("P2", "2", "SHARED"));
+		ret.add(new Protein("P3", "3", "DISCA", "DISCB"));
+		ret.add(new Protein("P4", "4", "DISCA", "DISCB"));
+		// same protein identified twice
+		ret.add(new Protein("P4", "5", "DISCA"));
+		ret.add(new Protein("P5", "6", "DISCC", "DISCD"));
+		ret.add(new Protein("P6", "7", "DISCC"));
+		ret.add(new Protein("P7", "8", "DISCD"));
+		ret.add(new Protein("P8", "9"));
+		return ret;
+	}
+
+	private static THashMap<String, ProteinGroup> getGroupsByKey(List<ProteinGroup> groups) {
+		final THashMap<String, ProteinGroup> ret = new THashMap<String, ProteinGroup>();
+		for (final ProteinGroup group : groups) {
+			ret.put(group.getKey(), group);
+		}
+		Assert.assertEquals(groups.size(), ret.size());
+		return ret;
+	}
+
+	@Test
+	public void separatingNonConclusiveProteins() {
+		final List<GroupableProtein> proteins = getProteins();
+		final PAnalyzer panalyzer = new PAnalyzer(true);
+		final THashMap<String, ProteinGroup> groups = getGroupsByKey(panalyzer.run(proteins));
+		Assert.assertEquals(5, groups.size());
+		Assert.assertTrue(groups.containsKey("P1[CONCLUSIVE]"));
+		Assert.assertTrue(groups.containsKey("P2[NONCONCLUSIVE]"));
+		Assert.assertTrue(groups.containsKey("P3,P4[INDISTINGUISHABLE]"));
+		Assert.assertEquals(3, groups.get("P3,P4[INDISTINGUISHABLE]").size());
+		Assert.assertTrue(groups.containsKey("P5,P6,P7[AMBIGUOUSGROUP]"));
+		Assert.assertTrue(groups.containsKey("P8[FILTERED]"));
+		Assert.assertEquals(PeptideRelation.UNIQUE, proteins.get(0).getGroupablePeptides().get(0).getRelation());
+		Assert.assertEquals(PeptideRelation.NONDISCRIMINATING,
+				proteins.get(1).getGroupablePeptides().get(0).getRelation());
+		Assert.assertEquals(PeptideRelation.DISCRIMINATING,
+				proteins.get(5).getGroupablePeptides().get(0).getRelation());
+		Assert.assertEquals(ProteinEvidence.INDISTINGUISHABLE, proteins.get(4).getEvidence());
+		Assert.assertEquals(1, panalyzer.getStats().conclusiveCount);
+		Assert.assertEquals(1, panalyzer.getStats().indistinguishableGroupCount);
+		Assert.assertEquals(1, panalyzer.getStats().ambiguousGroupCount);
+	}
+
+	@Test
+	public void collapsingNonConclusiveProteins() {
+		final List<GroupableProtein> proteins = getProteins();
+		final THashMap<String, ProteinGroup> groups = getGroupsByKey(new PAnalyzer(false).run(proteins));
+		Assert.assertEquals(4, groups.size());
+		Assert.assertTrue(groups.containsKey("P1,P2[CONCLUSIVE]"));
+		Assert.assertEquals(ProteinEvidence.NONCONCLUSIVE, proteins.get(1).getEvidence());
+	}
+
+	@Test
+	public void groupingComponentsInParallel() {
+		for (final boolean separateNonConclusiveProteins : new boolean[] { true, false }) {
+			final List<ProteinGroup> groups = new PAnalyzer(separateNonConclusiveProteins).run(getProteins());
+			final List<ProteinGroup> parallelGroups = new PAnalyzer(separateNonConclusiveProteins).run(getProteins(),
+					4);
+			Assert.assertEquals(groups.size(), parallelGroups.size());
+			for (int i = 0; i < groups.size(); i++) {
+				Assert.assertEquals(groups.get(i).getKey(), parallelGroups.get(i).getKey());
+			}
+		}
+	}
+
+	private static List<String> getKeys(List<ProteinGroup> groups) {
+		final List<String> ret = new ArrayList<String>();
+		for (final ProteinGroup group : groups) {
+			ret.add(group.getKey());
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	@Test
+	public void updatingGroups() {
+		final List<GroupableProtein> proteins = getProteins();
+		final List<GroupableProtein> initial = new ArrayList<GroupableProtein>(proteins);
+		final List<GroupableProtein> added = new ArrayList<GroupableProtein>();
+		// P2 and P7
+		added.add(initial.remove(7));
+		added.add(initial.remove(1));
+		final PAnalyzer panalyzer = new PAnalyzer(true);
+		panalyzer.run(initial);
+		// P5 is conclusive without P7
+		Assert.assertEquals(0, panalyzer.getStats().ambiguousGroupCount);
+		Assert.assertEquals(2, panalyzer.getStats().conclusiveCount);
+		// P8
+		final List<GroupableProtein> removed = new ArrayList<GroupableProtein>();
+		removed.add(proteins.get(8));
+		final PAnalyzerUpdate update = panalyzer.update(added, removed);
+		Assert.assertTrue(getKeys(update.getRemovedGroups()).contains("P8[FILTERED]"));
+		Assert.assertTrue(getKeys(update.getAddedGroups()).contains("P5,P6,P7[AMBIGUOUSGROUP]"));
+		// P3 and P4 are not affected
+		Assert.assertFalse(getKeys(update.getAddedGroups()).contains("P3,P4[INDISTINGUISHABLE]"));
+
+		final List<GroupableProtein> expected = getProteins();
+		expected.remove(8);
+		final PAnalyzer fullPanalyzer = new PAnalyzer(true);
+		Assert.assertEquals(getKeys(fullPanalyzer.run(expected)), getKeys(panalyzer.getProteinGroups()));
+		Assert.assertEquals(fullPanalyzer.getStats().toString(), update.getStats().toString());
+	}
+
+	@Test
+	public void updatingGroupsWithProteinIDs() {
+		final List<GroupableProtein> proteins = getProteins();
+		final List<GroupableProtein> initial = new ArrayList<GroupableProtein>(proteins);
+		final List<GroupableProtein> added = new ArrayList<GroupableProtein>();
+		// P2
+		added.add(initial.remove(1));
+		// same uniqueID than P3, which takes its place when P3 is removed
+		added.add(new Protein("P9", "3", "SHARED"));
+		// same uniqueID than P1, which is always discarded
+		added.add(new Protein("P10", "1", "DISCA"));
+		final List<GroupableProtein> removed = new ArrayList<GroupableProtein>();
+		// P3
+		removed.add(proteins.get(2));
+		final PAnalyzer panalyzer = new PAnalyzer(true, false);
+		panalyzer.run(initial);
+		final PAnalyzerUpdate update = panalyzer.update(added, removed);
+		// P9 is grouped instead of P3, but not P10
+		final List<String> addedKeys = getKeys(update.getAddedGroups());
+		Assert.assertTrue(addedKeys.contains("P9[NONCONCLUSIVE]"));
+		Assert.assertTrue(addedKeys.contains("P4[CONCLUSIVE]"));
+		Assert.assertTrue(getKeys(update.getRemovedGroups()).contains("P3,P4[INDISTINGUISHABLE]"));
+		Assert.assertFalse(addedKeys.toString().contains("P10"));
+
+		final List<GroupableProtein> expected = new ArrayList<GroupableProtein>(initial);
+		expected.removeAll(removed);
+		expected.addAll(added);
+		final PAnalyzer fullPanalyzer = new PAnalyzer(true, false);
+		Assert.assertEquals(getKeys(fullPanalyzer.run(expected)), getKeys(panalyzer.getProteinGroups()));
+		final String stats = fullPanalyzer.getStats().toString();
+		Assert.assertEquals(stats, update.getStats().toString());
+
+		// the stats of the update don't change with the next one
+		panalyzer.update(new ArrayList<GroupableProtein>(), added);
+		Assert.assertFalse(stats.equals(panalyzer.getStats().toString()));
+		Assert.assertEquals(stats, update.getStats().toString());
+	}
+
+	/**
+	 * Random proteins in connected components that don't share any peptide,
+	 * with shared and unique peptides and repeated accessions
+	 *
+	 * @param seed
+	 * @param numComponents
+	 * @return the proteins of each component. The same seed gives new objects
+	 *         with the same proteins.
+	 */
+	private static List<List<GroupableProtein>> getRandomComponents(long seed, int numComponents) {
+		final Random random = new Random(seed);
+		final List<List<GroupableProtein>> ret = new ArrayList<List<GroupableProtein>>();
+		for (int c = 0; c < numComponents; c++) {
+			final List<GroupableProtein> proteins = new ArrayList<GroupableProtein>();
+			final int numProteins = 1 + random.nextInt(6);
+			final int numPeptides = 1 + random.nextInt(12);
+			for (int p = 0; p < numProteins; p++) {
+				// sometimes the same protein identified twice
+				final int accession = p > 0 && random.nextInt(10) == 0 ? random.nextInt(p) : p;
+				final List<String> sequences = new ArrayList<String>();
+				final int numProteinPeptides = 1 + random.nextInt(numPeptides);
+				for (int i = 0; i < numProteinPeptides; i++) {
+					sequences.add("C" + c + "PEP" + random.nextInt(numPeptides));
+				}
+				proteins.add(new Protein("C" + c + "_" + accession, c + "_" + p,
+						sequences.toArray(new String[sequences.size()])));
+			}
+			ret.add(proteins);
+		}
+		return ret;
+	}
+
+	private static List<GroupableProtein> getAllProteins(List<List<GroupableProtein>> components) {
+		final List<GroupableProtein> ret = new ArrayList<GroupableProtein>();
+		for (final List<GroupableProtein> component : components) {
+			ret.addAll(component);
+		}
+		return ret;
+	}
+
+	@Test
+	public void groupingLargeDatasetInParallel() {
+		// enough protein-peptide relations to split the components in several
+		// tasks
+		final long seed = 4321;
+		final int numComponents = 5000;
+		int numRelations = 0;
+		for (final GroupableProtein protein : getAllProteins(getRandomComponents(seed, numComponents))) {
+			numRelations += protein.getGroupablePeptides().size();
+		}
+		Assert.assertTrue(numRelations > 4 * 10000);
+
+		for (final boolean separateNonConclusiveProteins : new boolean[] { true, false }) {
+			final List<GroupableProtein> proteins = getAllProteins(getRandomComponents(seed, numComponents));
+			final PAnalyzer panalyzer = new PAnalyzer(separateNonConclusiveProteins);
+			final List<ProteinGroup> groups = panalyzer.run(proteins);
+			for (final int numThreads : new int[] { 2, 4, 7 }) {
+				final List<GroupableProtein> parallelProteins = getAllProteins(
+						getRandomComponents(seed, numComponents));
+				final PAnalyzer parallelPanalyzer = new PAnalyzer(separateNonConclusiveProteins);
+				final List<ProteinGroup> parallelGroups = parallelPanalyzer.run(parallelProteins, numThreads);
+				// the same groups in the same order
+				Assert.assertEquals(groups.size(), parallelGroups.size());
+				for (int i = 0; i < groups.size(); i++) {
+					Assert.assertEquals(groups.get(i).getKey(), parallelGroups.get(i).getKey());
+					Assert.assertEquals(groups.get(i).getEvidence(), parallelGroups.get(i).getEvidence());
+				}
+				Assert.assertEquals(panalyzer.getStats().toString(), parallelPanalyzer.getStats().toString());
+				for (int i = 0; i < proteins.size(); i++) {
+					Assert.assertEquals(proteins.get(i).getEvidence(), parallelProteins.get(i).getEvidence());
+				}
+			}
+
+			// the groups of a component don't depend on the other components
+			final List<String> componentKeys = new ArrayList<String>();
+			for (final List<GroupableProtein> component : getRandomComponents(seed, numComponents)) {
+				for (final ProteinGroup group : new PAnalyzer(separateNonConclusiveProteins).run(component)) {
+					componentKeys.add(group.getKey());
+				}
+			}
+			Collections.sort(componentKeys);
+			Assert.assertEquals(componentKeys, getKeys(groups));
+		}
+	}
+}
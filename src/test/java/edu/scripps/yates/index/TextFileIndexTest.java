@@ -0,0 +1,193 @@
+package edu.scripps.yates.index;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.scripps.yates.utilities.index.TextFileIndex;
+import edu.scripps.yates.utilities.index.TextFileIndexIO;
+import edu.scripps.yates.utilities.util.Pair;
+import gnu.trove.set.hash.THashSet;
+import junit.framework.Assert;
+
+public class TextFileIndexTest {
+	private static final String BEGIN = "<entry>";
+	private static final String END = "</entry>";
+
+	@Rule
+	public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private File createFileToIndex(int numEntries) throws IOException {
+		final File file = new File(temporaryFolder.newFolder(), "entries.xml");
+		final FileWriter fw = new FileWriter(file);
+		fw.write("<root>\n");
+		for (int i = 1; i <= numEntries; i++) {
+			fw.write(BEGIN + "\n<name>entry" + i + "</name>\n" + END + "\n");
+		}
+		fw.write("</root>\n");
+		fw.close();
+		return file;
+	}
+
+	private File getIndexFile(File file, String extension) {
+		return new File(file.getParent(), "entries" + extension);
+	}
+
+	@Test
+	public void testingBinaryIndex() throws IOException {
+		final File file = createFileToIndex(1000);
+		final TextFileIndex index = new TextFileIndex(file, BEGIN, END);
+		Assert.assertTrue(index.getItem("500").contains("<name>entry500</name>"));
+		Assert.assertNull(index.getItem("1001"));
+		Assert.assertTrue(getIndexFile(file, ".bidx").exists());
+
+		// a new index over the same file reads the binary index
+		final TextFileIndex index2 = new TextFileIndex(file, BEGIN, END);
+		Assert.assertEquals(1000, index2.getAllItemKeys().size());
+		Assert.assertTrue(index2.getItem("1").contains("<name>entry1</name>"));
+		Assert.assertEquals(2, index2.getItems(Arrays.asList("10", "20", "2000")).size());
+	}
+
+	@Test
+	public void testingMigrationAndAppendedItems() throws IOException {
+		final File file = createFileToIndex(100);
+		final TextFileIndex index = new TextFileIndex(file, BEGIN, END);
+		index.getItem("1");
+		// simulate an index written by a previous version, with only the text file
+		getIndexFile(file, ".bidx").delete();
+		final TextFileIndex index2 = new TextFileIndex(file, BEGIN, END);
+		Assert.assertTrue(index2.getItem("100").contains("<name>entry100</name>"));
+		Assert.assertTrue(getIndexFile(file, ".bidx").exists());
+
+		index2.addItem(BEGIN + "\n<name>new</name>\n" + END, Collections.singleton("new"));
+		Assert.assertTrue(index2.getItem("new").contains("<name>new</name>"));
+		// the appended item is read from the text index by a new index
+		final TextFileIndex index3 = new TextFileIndex(file, BEGIN, END);
+		Assert.assertTrue(index3.getItem("new").contains("<name>new</name>"));
+		Assert.assertEquals(101, index3.getAllItemKeys().size());
+	}
+
+	@Test
+	public void rebuildingBinaryIndexWithAppendedItems() throws IOException {
+		final File file = createFileToIndex(10);
+		final TextFileIndex index = new TextFileIndex(file, BEGIN, END);
+		index.getItem("1");
+		final long binaryIndexLength = getIndexFile(file, ".bidx").length();
+		// more than the entries that can be out of the binary index
+		for (int i = 0; i <= 10000; i++) {
+			index.addItem(BEGIN + "\n<name>new" + i + "</name>\n" + END, Collections.singleton("new" + i));
+		}
+		Assert.assertTrue(getIndexFile(file, ".bidx").length() > binaryIndexLength);
+		Assert.assertTrue(index.getItem("new10000").contains("<name>new10000</name>"));
+		Assert.assertTrue(index.getItem("new5").contains("<name>new5</name>"));
+		Assert.assertEquals(10011, new TextFileIndex(file, BEGIN, END).getAllItemKeys().size());
+	}
+
+	@Test
+	public void rebuildingBinaryIndexProportionally() throws IOException {
+		final File file = createFileToIndex(60000);
+		final TextFileIndex index = new TextFileIndex(file, BEGIN, END);
+		index.getItem("1");
+		final File binaryIndexFile = getIndexFile(file, ".bidx");
+		final long binaryIndexLength = binaryIndexFile.length();
+		// more than MAX_ENTRIES_OUT_OF_BINARY_INDEX but less than a quarter of
+		// the entries in the binary index
+		final List<String> items = new ArrayList<String>();
+		final List<Set<String>> keys = new ArrayList<Set<String>>();
+		for (int i = 0; i <= 10000; i++) {
+			items.add(BEGIN + "\n<name>new" + i + "</name>\n" + END);
+			keys.add(Collections.singleton("new" + i));
+		}
+		index.addItems(items, keys);
+		Assert.assertEquals(binaryIndexLength, binaryIndexFile.length());
+		Assert.assertTrue(index.getItem("new10000").contains("<name>new10000</name>"));
+		Assert.assertEquals(70001, new TextFileIndex(file, BEGIN, END).getAllItemKeys().size());
+	}
+
+	@Test
+	public void detectingRewrittenTextIndex() throws IOException {
+		final File file = createFileToIndex(100);
+		final TextFileIndex index = new TextFileIndex(file, BEGIN, END);
+		Assert.assertTrue(index.getItem("1").contains("<name>entry1</name>"));
+		// the text index is rewritten with the same length by other process that
+		// doesn't update the binary index
+		final File indexFile = getIndexFile(file, ".idx");
+		final String text = new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8);
+		final String rewritten = text.replace("\n1\t", "\nx\t").replaceFirst("^1\t", "x\t");
+		Assert.assertFalse(text.equals(rewritten));
+		Assert.assertEquals(text.length(), rewritten.length());
+		Files.write(indexFile.toPath(), rewritten.getBytes(StandardCharsets.UTF_8));
+
+		final TextFileIndex index2 = new TextFileIndex(file, BEGIN, END);
+		Assert.assertNull(index2.getPositions("1"));
+		Assert.assertTrue(index2.getItem("x").contains("<name>entry1</name>"));
+	}
+
+	private static class NameIndexIO extends TextFileIndexIO {
+
+		public NameIndexIO(File file) throws IOException {
+			super(file, BEGIN, END);
+		}
+
+		@Override
+		protected Set<String> getKeys(String string, int entryNumber) {
+			final Set<String> ret = new THashSet<String>();
+			final int start = string.indexOf("<name>");
+			if (start >= 0) {
+				ret.add(string.substring(start + 6, string.indexOf("</name>")));
+			}
+			ret.add(entryNumber + "_" + string.length());
+			return ret;
+		}
+	}
+
+	@Test
+	public void testingParallelIndexing() throws IOException {
+		final File file = createFileToIndex(0);
+		final Random random = new Random(1234);
+		final FileWriter fw = new FileWriter(file);
+		fw.write("header line\n" + END + "\n");
+		final String[] newLines = { "\n", "\r\n", "\r" };
+		for (int i = 1; i <= 2000; i++) {
+			final String newLine = newLines[random.nextInt(newLines.length)];
+			fw.write("  " + BEGIN + newLine);
+			fw.write("<name>entry" + random.nextInt(4000) + "</name>" + newLine);
+			if (random.nextInt(10) != 0) {
+				fw.write(END + " \t" + newLine);
+			}
+			if (random.nextBoolean()) {
+				fw.write(newLine);
+			}
+		}
+		fw.close();
+
+		final TextFileIndexIO numbers = new TextFileIndexIO(file, BEGIN, END);
+		final Map<String, Pair<Long, Long>> serial = numbers.getIndexMap();
+		for (final int numThreads : new int[] { 2, 3, 8 }) {
+			final Map<String, Pair<Long, Long>> parallel = new TextFileIndexIO(file, BEGIN, END)
+					.getIndexMap(numThreads);
+			Assert.assertEquals(serial, parallel);
+		}
+		final NameIndexIO names = new NameIndexIO(file);
+		final Map<String, Pair<Long, Long>> serialNames = new NameIndexIO(file) {
+			@Override
+			protected Set<String> getKeys(String string) {
+				return getKeys(string, Integer.valueOf(numEntries));
+			}
+		}.getIndexMap();
+		Assert.assertEquals(serialNames, names.getIndexMap(4));
+	}
+}
@@ -0,0 +1,76 @@
+package edu.scripps.yates.masses;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.compomics.util.general.UnknownElementMassException;
+
+import edu.scripps.yates.utilities.masses.CompiledFormula;
+import edu.scripps.yates.utilities.masses.FormulaCalculator;
+import junit.framework.Assert;
+
+public class FormulaCalculatorTest {
+	private static final double C = 12.0;
+	private static final double H = 1.0078250321;
+	private static final double O = 15.9949146221;
+	private static final double N = 14.0030740052;
+	private static final double C13 = 13.0033548378;
+
+	private static FormulaCalculator getCalculator() {
+		final HashMap<String, Double> elements = new HashMap<String, Double>();
+		elements.put("C", C);
+		elements.put("H", H);
+		elements.put("O", O);
+		elements.put("N", N);
+		elements.put("Na", 22.98976966);
+		elements.put("C<13>", C13);
+		return new FormulaCalculator(elements);
+	}
+
+	@Test
+	public void compiledFormulas() throws UnknownElementMassException {
+		final FormulaCalculator calculator = getCalculator();
+		final CompiledFormula glucose = calculator.compile("C6H12O6");
+		Assert.assertEquals(6, glucose.getCount("C"));
+		Assert.assertEquals(12, glucose.getCount("H"));
+		Assert.assertEquals(0, glucose.getCount("N"));
+		Assert.assertEquals(6 * C + 12 * H + 6 * O, glucose.getMass(), 1e-9);
+		// cached
+		Assert.assertSame(glucose, calculator.compile("C6H12O6"));
+		Assert.assertEquals(glucose.getMass(), calculator.calculateMass("C6H12O6"));
+
+		// inner formulas, negative counts and modification tags
+		final CompiledFormula formula = calculator.compile("C2(H2O)3NH-2C<13>");
+		Assert.assertEquals(4, formula.getCount("H"));
+		Assert.assertEquals(3, formula.getCount("O"));
+		Assert.assertEquals(1, formula.getCount("C<13>"));
+		Assert.assertEquals(2 * C + 4 * H + 3 * O + N + C13, formula.getMass(), 1e-9);
+
+		final List<String> formulas = Arrays.asList("H2O", "Na", "(CH2)10");
+		final double[] masses = new double[formulas.size()];
+		calculator.calculateMasses(formulas, masses);
+		Assert.assertEquals(2 * H + O, masses[0], 1e-9);
+		Assert.assertEquals(22.98976966, masses[1], 1e-9);
+		Assert.assertEquals(10 * (C + 2 * H), masses[2], 1e-9);
+	}
+
+	@Test
+	public void wrongFormulas() {
+		final FormulaCalculator calculator = getCalculator();
+		try {
+			calculator.calculateMass("C6Xx2");
+			Assert.fail("Xx is not in the element list");
+		} catch (final UnknownElementMassException e) {
+		}
+		try {
+			calculator.calculateMass("C6(H2O");
+			Assert.fail("bracket not closed");
+		} catch (final IllegalArgumentException e) {
+		} catch (final UnknownElementMassException e) {
+			Assert.fail(e.getMessage());
+		}
+	}
+}
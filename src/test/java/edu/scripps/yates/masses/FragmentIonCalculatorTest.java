@@ -0,0 +1,170 @@
+package edu.scripps.yates.masses;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.masses.AssignMass;
+import edu.scripps.yates.utilities.masses.DiffModification;
+import edu.scripps.yates.utilities.masses.FragmentIonCalculator;
+import edu.scripps.yates.utilities.masses.FragmentIonLadders;
+import edu.scripps.yates.utilities.masses.MassTable;
+import junit.framework.Assert;
+
+public class FragmentIonCalculatorTest {
+	private static final List<String> PEPTIDES = Arrays.asList("PEPTIDEK", "YLK", "ACDEFGHIKLMNPQRSTVWY", "K",
+			"SAMPLER");
+
+	private double[] aaMasses;
+	private double nTerm;
+	private double cTerm;
+	private double bionfragment;
+	private double yionfragment;
+	private double[] diffMod;
+	private boolean[] isDiffMod;
+
+	@Before
+	public void saveLegacyMasses() {
+		aaMasses = AssignMass.getAaMasses();
+		nTerm = AssignMass.getnTerm();
+		cTerm = AssignMass.getcTerm();
+		bionfragment = AssignMass.getBionfragment();
+		yionfragment = AssignMass.getYionfragment();
+		diffMod = DiffModification.getDiffMod().clone();
+		isDiffMod = DiffModification.getIsDiffMod().clone();
+	}
+
+	@After
+	public void restoreLegacyMasses() {
+		AssignMass.setAaMasses(aaMasses);
+		AssignMass.setnTerm(nTerm);
+		AssignMass.setcTerm(cTerm);
+		AssignMass.setBionfragment(bionfragment);
+		AssignMass.setYionfragment(yionfragment);
+		DiffModification.setDiffMod(diffMod);
+		DiffModification.setIsDiffMod(isDiffMod);
+	}
+
+	private static void setLegacyFragments(MassTable table) {
+		AssignMass.setAaMasses(table.getResidueMasses());
+		AssignMass.setnTerm(table.getnTerm());
+		AssignMass.setcTerm(table.getcTerm());
+		AssignMass.setBionfragment(table.getBionfragment());
+		AssignMass.setYionfragment(table.getYionfragment());
+	}
+
+	@Test
+	public void sameIonsAsAssignMass() {
+		final MassTable table = MassTable.MONOISOTOPIC;
+		setLegacyFragments(table);
+		final FragmentIonCalculator calculator = new FragmentIonCalculator(table);
+		final FragmentIonLadders ladders = new FragmentIonLadders();
+		calculator.calculate(PEPTIDES, ladders, FragmentIonCalculator.ALL_IONS);
+		Assert.assertEquals(PEPTIDES.size(), ladders.getNumPeptides());
+		for (int p = 0; p < PEPTIDES.size(); p++) {
+			final String peptide = PEPTIDES.get(p);
+			Assert.assertEquals(peptide.length() - 1, ladders.getNumFragments(p));
+			for (final int ion : FragmentIonCalculator.ALL_IONS) {
+				final double[] expected = FragmentIonCalculator.isForwardIon(ion)
+						? AssignMass.getFragIonArr(peptide, ion)
+						: AssignMass.getFragIonArrRev(peptide, ion);
+				final double[] ions = ladders.getIons(ion, p);
+				Assert.assertEquals(expected.length, ions.length);
+				for (int i = 0; i < ions.length; i++) {
+					Assert.assertEquals(expected[i], ions[i], 1e-9);
+				}
+			}
+		}
+		// b + y of complementary fragments is the mass of the peptide plus 2 protons
+		final double mh = table.getResiduesMass("PEPTIDEK") + table.getOh() + table.getH() + 2 * table.getHplus();
+		Assert.assertEquals(mh, ladders.getIon(FragmentIonCalculator.ION_B, 0, 2)
+				+ ladders.getIon(FragmentIonCalculator.ION_Y, 0, 2), 1e-9);
+	}
+
+	@Test
+	public void residuesWithoutMass() {
+		final MassTable table = MassTable.MONOISOTOPIC;
+		setLegacyFragments(table);
+		final String peptide = "PEPJTIDEK";
+		final int position = peptide.indexOf('J');
+		Assert.assertEquals(0.0, table.getResidueMasses()['J']);
+		final FragmentIonLadders ladders = new FragmentIonLadders();
+		new FragmentIonCalculator(table).calculate(Arrays.asList(peptide), ladders, FragmentIonCalculator.ION_B,
+				FragmentIonCalculator.ION_Y);
+		final double[] b = ladders.getIons(FragmentIonCalculator.ION_B, 0);
+		final double[] y = ladders.getIons(FragmentIonCalculator.ION_Y, 0);
+		// the same as the legacy methods that don't skip them
+		final int[] noMods = new int[peptide.length()];
+		final double[] bMod = AssignMass.getFragIonArrMod(peptide, FragmentIonCalculator.ION_B, noMods);
+		final double[] yMod = AssignMass.getFragIonArrRevMod(peptide, FragmentIonCalculator.ION_Y, noMods);
+		for (int i = 0; i < b.length; i++) {
+			Assert.assertEquals(bMod[i], b[i], 1e-9);
+			Assert.assertEquals(yMod[i], y[i], 1e-9);
+		}
+		// while the other ones skip them
+		final double[] legacyB = AssignMass.getFragIonArr(peptide, FragmentIonCalculator.ION_B);
+		final double[] legacyY = AssignMass.getFragIonArrRev(peptide, FragmentIonCalculator.ION_Y);
+		for (int i = 0; i < b.length; i++) {
+			if (i < position) {
+				Assert.assertEquals(legacyB[i], b[i], 1e-9);
+			} else if (i > position) {
+				Assert.assertEquals(legacyB[i - 1], b[i], 1e-9);
+			}
+			if (i >= position) {
+				Assert.assertEquals(legacyY[i], y[i], 1e-9);
+			} else {
+				Assert.assertEquals(0.0, legacyY[i]);
+			}
+		}
+		Assert.assertEquals(0.0, legacyB[b.length - 1]);
+	}
+
+	private static int[] getModIndexHash(String peptide) {
+		final int[] ret = new int[peptide.length()];
+		if (peptide.indexOf('M') >= 0) {
+			ret[peptide.indexOf('M')] = 1;
+		}
+		return ret;
+	}
+
+	@Test
+	public void modifiedIonsAndReusedBuffers() {
+		final MassTable table = MassTable.MONOISOTOPIC;
+		setLegacyFragments(table);
+		DiffModification.setDiffModMass('M', 15.994915);
+		final FragmentIonCalculator calculator = new FragmentIonCalculator(table);
+		final FragmentIonLadders ladders = new FragmentIonLadders();
+		final List<String> peptides = new ArrayList<String>();
+		final List<double[]> massDifferences = new ArrayList<double[]>();
+		for (int n = 0; n < 2000; n++) {
+			final String peptide = PEPTIDES.get(n % PEPTIDES.size());
+			final int[] modIndexHash = getModIndexHash(peptide);
+			peptides.add(peptide);
+			massDifferences.add(FragmentIonCalculator.getDiffModMasses(peptide, modIndexHash));
+			// a larger batch each time, growing the buffers
+			if (n % 500 == 0 || n == 1999) {
+				calculator.calculate(peptides, massDifferences, ladders, FragmentIonCalculator.ION_B,
+						FragmentIonCalculator.ION_Y);
+				for (int p = 0; p < peptides.size(); p++) {
+					final String seq = peptides.get(p);
+					final int[] mods = getModIndexHash(seq);
+					final double[] b = AssignMass.getFragIonArrMod(seq, FragmentIonCalculator.ION_B, mods);
+					final double[] y = AssignMass.getFragIonArrRevMod(seq, FragmentIonCalculator.ION_Y, mods);
+					for (int i = 0; i < b.length; i++) {
+						Assert.assertEquals(b[i], ladders.getIon(FragmentIonCalculator.ION_B, p, i), 1e-9);
+						Assert.assertEquals(y[i], ladders.getIon(FragmentIonCalculator.ION_Y, p, i), 1e-9);
+					}
+				}
+			}
+		}
+		try {
+			ladders.getIons(FragmentIonCalculator.ION_A);
+			Assert.fail("a ions were not calculated");
+		} catch (final IllegalArgumentException e) {
+		}
+	}
+}
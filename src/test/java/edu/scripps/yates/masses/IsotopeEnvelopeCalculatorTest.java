@@ -0,0 +1,88 @@
+package edu.scripps.yates.masses;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.compomics.util.general.UnknownElementMassException;
+
+import edu.scripps.yates.utilities.masses.AssignMass;
+import edu.scripps.yates.utilities.masses.FormulaCalculator;
+import edu.scripps.yates.utilities.masses.IsotopeEnvelope;
+import edu.scripps.yates.utilities.masses.IsotopeEnvelopeCalculator;
+import edu.scripps.yates.utilities.masses.MassTable;
+import junit.framework.Assert;
+
+public class IsotopeEnvelopeCalculatorTest {
+
+	@Test
+	public void peptideEnvelope() {
+		final IsotopeEnvelopeCalculator calculator = new IsotopeEnvelopeCalculator();
+		final String peptide = "SAMPLERPEPTIDEK";
+		final IsotopeEnvelope envelope = calculator.getPeptideEnvelope(peptide);
+		Assert.assertEquals(MassTable.MONOISOTOPIC.getResiduesMass(peptide) + 2 * 1.00782503207 + 15.99491461956,
+				envelope.getMonoisotopicMass(), 1e-3);
+		Assert.assertEquals(1.0, envelope.getAbundance(envelope.getMostIntensePeak()));
+		// the second peak is mostly 13C
+		Assert.assertEquals(AssignMass.DIFFMASSC12C13, envelope.getMass(1) - envelope.getMass(0), 0.002);
+		// similar to averagine at the same mass
+		final IsotopeEnvelope averagine = calculator.getAveragineEnvelope(envelope.getMonoisotopicMass());
+		final IsotopeEnvelope table = calculator.getAveragineTableEnvelope(envelope.getMonoisotopicMass());
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(envelope.getAbundance(i), averagine.getAbundance(i), 0.1);
+			Assert.assertEquals(envelope.getAbundance(i), table.getAbundance(i), 0.1);
+		}
+		Assert.assertEquals(envelope.getMonoisotopicMass(), averagine.getMonoisotopicMass());
+	}
+
+	@Test
+	public void averagineEnvelopes() {
+		final IsotopeEnvelopeCalculator calculator = new IsotopeEnvelopeCalculator();
+		final double[] masses = { 1000.2, 1000.4, 3000.0, 10000.0 };
+		final IsotopeEnvelope[] envelopes = calculator.getAveragineEnvelopes(masses);
+		// same nominal mass, same peaks
+		Assert.assertTrue(Arrays.equals(envelopes[0].getAbundances(), envelopes[1].getAbundances()));
+		Assert.assertEquals(1000.4, envelopes[1].getMonoisotopicMass());
+		// larger masses have heavier most intense peaks, as in the table of
+		// AssignMass
+		Assert.assertEquals(0, envelopes[0].getMostIntensePeak());
+		Assert.assertEquals(1, envelopes[2].getMostIntensePeak());
+		Assert.assertEquals(AssignMass.mostIntensePeaks[19], envelopes[3].getMostIntensePeak());
+		Assert.assertEquals(AssignMass.mostIntensePeaks[19],
+				calculator.getAveragineTableEnvelope(10000.0).getMostIntensePeak());
+		Assert.assertEquals((1000.2 + 2 * AssignMass.PROTON) / 2, envelopes[0].getMz(0, 2), 1e-9);
+	}
+
+	@Test
+	public void formulaEnvelope() throws UnknownElementMassException {
+		final HashMap<String, Double> elements = new HashMap<String, Double>();
+		elements.put("C", 12.0);
+		elements.put("H", 1.00782503207);
+		elements.put("O", 15.99491461956);
+		elements.put("Cl", 34.96885268);
+		final FormulaCalculator formulaCalculator = new FormulaCalculator(elements);
+		final IsotopeEnvelopeCalculator calculator = new IsotopeEnvelopeCalculator();
+		final IsotopeEnvelope glucose = calculator.getEnvelope(formulaCalculator.compile("C6H12O6"));
+		Assert.assertEquals(formulaCalculator.calculateMass("C6H12O6"), glucose.getMonoisotopicMass(), 1e-6);
+		final double m1 = (6 * 0.0107 / 0.9893 + 12 * 0.000115 / 0.999885 + 6 * 0.00038 / 0.99757);
+		Assert.assertEquals(m1, glucose.getAbundance(1), 1e-6);
+		// chlorine gives a M+2 of a third of M
+		final IsotopeEnvelope chloromethane = calculator.getEnvelope(formulaCalculator.compile("CH3Cl"));
+		Assert.assertEquals(0.2424 / 0.7576, chloromethane.getAbundance(2), 0.01);
+		// cached by composition, and not by the formula
+		final IsotopeEnvelope glucose2 = calculator.getEnvelope(formulaCalculator.compile("(CH2O)6"));
+		Assert.assertSame(glucose, glucose2);
+		final HashMap<String, Double> otherElements = new HashMap<String, Double>(elements);
+		otherElements.remove("Cl");
+		otherElements.put("N", 14.0030740048);
+		final IsotopeEnvelope glucose3 = calculator
+				.getEnvelope(new FormulaCalculator(otherElements).compile("C6H12O6"));
+		Assert.assertSame(glucose, glucose3);
+		try {
+			calculator.getEnvelope(formulaCalculator.compile("H-2"));
+			Assert.fail("negative composition");
+		} catch (final IllegalArgumentException e) {
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package edu.scripps.yates.masses;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.masses.AssignMass;
+import edu.scripps.yates.utilities.masses.MassTable;
+import junit.framework.Assert;
+
+public class MassTableTest {
+	private static final String RESIDUES = "GASPVTCLIXNOBDQKZEMHFRYWU";
+	// the values that AssignMass had before taking them from MassTable
+	private static final double[] MONO_MASSES = { 57.0214636, 71.0371136, 87.0320282, 97.0527636, 99.0684136,
+			101.0476782, 103.0091854, 113.0840636, 113.0840636, 113.0840636, 114.0429272, 237.147785, 114.5349350,
+			115.0269428, 128.0585772, 128.0949626, 128.5505850, 129.0425928, 131.0404854, 137.0589116, 147.0684136,
+			156.1011106, 163.0633282, 186.0793126, 150.953693 };
+	private static final double[] AVG_MASSES = { 57.05192, 71.07880, 87.07820, 97.11668, 99.13256, 101.10508,
+			103.13880, 113.15944, 113.15944, 113.15944, 114.10384, 237.30249, 114.59622, 115.08860, 128.13072,
+			128.17408, 128.62310, 129.11548, 131.19256, 137.14108, 147.17656, 156.18748, 163.17596, 186.21320,
+			150.04249 };
+
+	private static void assertSameMasses(double[] expected, MassTable table) {
+		final double[] masses = table.getResidueMasses();
+		int numResidues = 0;
+		for (int aa = 0; aa < MassTable.SIZE; aa++) {
+			final int index = RESIDUES.indexOf(aa);
+			if (index >= 0) {
+				Assert.assertEquals(expected[index], masses[aa]);
+				Assert.assertEquals(expected[index], table.getMass((char) aa));
+				numResidues++;
+			} else {
+				Assert.assertEquals(0.0, masses[aa]);
+				Assert.assertFalse(table.containsMass((char) aa));
+			}
+		}
+		Assert.assertEquals(RESIDUES.length(), numResidues);
+	}
+
+	@Test
+	public void sameMassesThanAssignMass() {
+		assertSameMasses(MONO_MASSES, MassTable.MONOISOTOPIC);
+		assertSameMasses(AVG_MASSES, MassTable.AVERAGE);
+		Assert.assertEquals(1.0005079, MassTable.MONOISOTOPIC.getBinWidth());
+		Assert.assertEquals(1.0072765, MassTable.MONOISOTOPIC.getHplus());
+		Assert.assertEquals(1.0078250, MassTable.MONOISOTOPIC.getH());
+		Assert.assertEquals(15.9949146f + 1.0078250, MassTable.MONOISOTOPIC.getOh());
+		Assert.assertEquals(1.0011413, MassTable.AVERAGE.getBinWidth());
+		Assert.assertEquals(1.00739, MassTable.AVERAGE.getHplus());
+		Assert.assertEquals(1.00794, MassTable.AVERAGE.getH());
+		Assert.assertEquals(15.9994f + 1.00794, MassTable.AVERAGE.getOh());
+		Assert.assertEquals(0.0, MassTable.MONOISOTOPIC.getnTerm());
+		Assert.assertEquals(0.0, MassTable.MONOISOTOPIC.getcTerm());
+		Assert.assertSame(MassTable.MONOISOTOPIC, MassTable.getDefault(true));
+		Assert.assertSame(MassTable.AVERAGE, MassTable.getDefault(false));
+
+		// the legacy global state is restored afterwards
+		final double[] aaMasses = AssignMass.getAaMasses();
+		final double binWidth = AssignMass.getBinWidth();
+		final double hplus = AssignMass.getHplus();
+		final double h = AssignMass.getH();
+		final double oh = AssignMass.getOh();
+		final boolean useMono = AssignMass.getAssignMass() == null || AssignMass.getAssignMass().isUseMono();
+		AssignMass assignMass = null;
+		try {
+			for (final boolean mono : new boolean[] { true, false }) {
+				assignMass = new AssignMass(mono);
+				final MassTable table = MassTable.getDefault(mono);
+				Assert.assertEquals(table.getBinWidth(), AssignMass.getBinWidth());
+				Assert.assertEquals(table.getHplus(), AssignMass.getHplus());
+				Assert.assertEquals(table.getH(), AssignMass.getH());
+				Assert.assertEquals(table.getOh(), AssignMass.getOh());
+				for (int i = 0; i < RESIDUES.length(); i++) {
+					final char aa = RESIDUES.charAt(i);
+					Assert.assertEquals(table.getMass(aa), AssignMass.getMass(aa));
+				}
+			}
+		} finally {
+			if (assignMass != null) {
+				assignMass.setUseMono(useMono);
+			}
+			AssignMass.setAaMasses(aaMasses);
+			AssignMass.setBinWidth(binWidth);
+			AssignMass.setHplus(hplus);
+			AssignMass.setH(h);
+			AssignMass.setOh(oh);
+		}
+	}
+
+	@Test
+	public void modifyingTables() {
+		final MassTable table = MassTable.MONOISOTOPIC.withFixedModification('C', 57.021464)
+				.withNTermModification(42.010565).withCTermModification(-0.984016);
+		Assert.assertNotSame(MassTable.MONOISOTOPIC, table);
+		Assert.assertTrue(table.isUseMono());
+		Assert.assertEquals(103.0091854 + 57.021464, table.getMass('C'));
+		Assert.assertEquals(MassTable.MONOISOTOPIC.getMass('K'), table.getMass('K'));
+		Assert.assertEquals(42.010565, table.getnTerm());
+		Assert.assertEquals(-0.984016, table.getcTerm());
+		Assert.assertEquals(table.getHplus() + 42.010565, table.getBionfragment());
+		Assert.assertEquals(table.getOh() + table.getH() + table.getHplus() - 0.984016, table.getYionfragment());
+		Assert.assertEquals(MassTable.MONOISOTOPIC.getResiduesMass("PEPTCIDCE") + 57.021464 * 2,
+				table.getResiduesMass("PEPTCIDCE"), 1e-9);
+		// the modifications are added
+		Assert.assertEquals(103.0091854 + 2 * 57.021464, table.withFixedModification('C', 57.021464).getMass('C'),
+				1e-9);
+		// the original tables don't change
+		assertSameMasses(MONO_MASSES, MassTable.MONOISOTOPIC);
+		Assert.assertEquals(0.0, MassTable.MONOISOTOPIC.getnTerm());
+		Assert.assertEquals(0.0, MassTable.MONOISOTOPIC.getcTerm());
+		Assert.assertEquals(103.0091854 + 57.021464, table.getMass('C'));
+		// neither modifying the returned copy
+		table.getResidueMasses()['C'] = 0.0;
+		Assert.assertEquals(103.0091854 + 57.021464, table.getMass('C'));
+		try {
+			MassTable.MONOISOTOPIC.withFixedModification((char) 300, 1.0);
+			Assert.fail("Only the residues in the table can be modified");
+		} catch (final IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage().contains(String.valueOf((char) 300)));
+		}
+		// out of the table there are no masses
+		Assert.assertEquals(0.0, table.getMass((char) MassTable.SIZE));
+	}
+
+	@Test
+	public void usingTablesFromMultipleThreads() throws InterruptedException, ExecutionException {
+		final String peptide = "MCPEPTIDECK";
+		final List<MassTable> tables = new ArrayList<MassTable>();
+		tables.add(MassTable.MONOISOTOPIC);
+		tables.add(MassTable.AVERAGE);
+		tables.add(MassTable.MONOISOTOPIC.withFixedModification('C', 57.021464));
+		tables.add(MassTable.AVERAGE.withFixedModification('M', 15.9994).withNTermModification(42.0367));
+		final double[] expected = new double[tables.size()];
+		for (int i = 0; i < tables.size(); i++) {
+			expected[i] = tables.get(i).getResiduesMass(peptide) + tables.get(i).getBionfragment();
+		}
+		final ExecutorService executor = Executors.newFixedThreadPool(tables.size());
+		try {
+			final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < tables.size(); i++) {
+				final int tableIndex = i;
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						for (int j = 0; j < 10000; j++) {
+							final MassTable table = tables.get(tableIndex);
+							// tables created in other threads while this one is used
+							MassTable.getDefault(j % 2 == 0).withFixedModification('K', j);
+							if (table.getResiduesMass(peptide) + table.getBionfragment() != expected[tableIndex]) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (final Future<Boolean> future : futures) {
+				Assert.assertTrue(future.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertSameMasses(MONO_MASSES, MassTable.MONOISOTOPIC);
+		assertSameMasses(AVG_MASSES, MassTable.AVERAGE);
+	}
+}
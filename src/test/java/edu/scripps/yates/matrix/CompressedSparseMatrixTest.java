@@ -0,0 +1,253 @@
+package edu.scripps.yates.matrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.matrix.sparse.CompressedDoubleMatrix;
+import edu.scripps.yates.utilities.matrix.sparse.CompressedShortMatrix;
+import edu.scripps.yates.utilities.matrix.sparse.CompressedSparseMatrix;
+import edu.scripps.yates.utilities.matrix.sparse.CompressedSparseMatrix.ValueType;
+import edu.scripps.yates.utilities.matrix.sparse.CompressedSparseMatrixBuilder;
+import edu.scripps.yates.utilities.matrix.sparse.SparseMatrix;
+import junit.framework.Assert;
+
+public class CompressedSparseMatrixTest {
+	private static final int NUM_ROWS = 50;
+	private static final int NUM_COLS = 30;
+
+	private static void addValue(SparseMatrix<Short> matrix, CompressedSparseMatrixBuilder builder, String rowName,
+			String colName, short value) throws IOException {
+		matrix.addValue(rowName, colName, value);
+		if (builder != null) {
+			builder.addValue(rowName, colName, value);
+		}
+	}
+
+	/**
+	 *
+	 * @param builder optional, to which the same values are added
+	 * @return
+	 * @throws IOException
+	 */
+	private static SparseMatrix<Short> getSparseMatrix(CompressedSparseMatrixBuilder builder) throws IOException {
+		final SparseMatrix<Short> ret = new SparseMatrix<Short>() {
+			@Override
+			public Short readFromString(String stringRepresentationOfTheData) {
+				return Short.valueOf(stringRepresentationOfTheData);
+			}
+		};
+		final Random random = new Random(31);
+		// all the rows and columns have a name
+		for (int i = 0; i < Math.max(NUM_ROWS, NUM_COLS); i++) {
+			addValue(ret, builder, "cell" + (i % NUM_ROWS), "gene" + (i % NUM_COLS),
+					(short) (1 + random.nextInt(1000)));
+		}
+		// some of the cells more than once
+		for (int i = 0; i < 400; i++) {
+			addValue(ret, builder, "cell" + random.nextInt(NUM_ROWS), "gene" + random.nextInt(NUM_COLS),
+					(short) (1 + random.nextInt(1000)));
+		}
+		return ret;
+	}
+
+	private static void assertSameValues(SparseMatrix<Short> expected, CompressedShortMatrix matrix) {
+		Assert.assertEquals(NUM_ROWS, matrix.getNumRows());
+		Assert.assertEquals(NUM_COLS, matrix.getNumCols());
+		long numValues = 0;
+		for (int row = 0; row < NUM_ROWS; row++) {
+			final String rowName = matrix.getRowName(row);
+			Assert.assertEquals(row, matrix.getRowIndex(rowName));
+			final short[] denseRow = matrix.getDenseRow(row);
+			final int[] colIndexes = matrix.getRowIndexes(row);
+			final short[] rowValues = matrix.getRowValues(row);
+			Assert.assertEquals(colIndexes.length, matrix.getNumValuesInRow(row));
+			int k = 0;
+			for (int col = 0; col < NUM_COLS; col++) {
+				final Short value = expected.getValue(rowName, matrix.getColName(col));
+				final short expectedValue = value == null ? 0 : value;
+				Assert.assertEquals(expectedValue, matrix.getValue(row, col));
+				Assert.assertEquals(expectedValue, denseRow[col]);
+				if (value != null) {
+					Assert.assertEquals(col, colIndexes[k]);
+					Assert.assertEquals(expectedValue, rowValues[k++]);
+					numValues++;
+				}
+			}
+			Assert.assertEquals(colIndexes.length, k);
+		}
+		Assert.assertEquals(numValues, matrix.getNumValues());
+		for (int col = 0; col < NUM_COLS; col++) {
+			final int[] rowIndexes = matrix.getColumnIndexes(col);
+			final short[] colValues = matrix.getColumnValues(col);
+			final short[] denseColumn = matrix.getDenseColumn(col);
+			Assert.assertEquals(rowIndexes.length, matrix.getNumValuesInColumn(col));
+			for (int k = 0; k < rowIndexes.length; k++) {
+				Assert.assertEquals(matrix.getValue(rowIndexes[k], col), colValues[k]);
+				Assert.assertEquals(colValues[k], denseColumn[rowIndexes[k]]);
+				if (k > 0) {
+					Assert.assertTrue(rowIndexes[k] > rowIndexes[k - 1]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void convertingSparseMatrix() throws IOException {
+		final SparseMatrix<Short> sparseMatrix = getSparseMatrix(null);
+		for (final boolean compressedRows : new boolean[] { true, false }) {
+			final CompressedShortMatrix matrix = (CompressedShortMatrix) sparseMatrix
+					.toCompressedMatrix(ValueType.SHORT, compressedRows);
+			Assert.assertEquals(compressedRows, matrix.isCompressedRows());
+			assertSameValues(sparseMatrix, matrix);
+		}
+		final CompressedDoubleMatrix doubleMatrix = (CompressedDoubleMatrix) sparseMatrix
+				.toCompressedMatrix(ValueType.DOUBLE, true);
+		Assert.assertEquals(sparseMatrix.getValue("cell3", "gene3").doubleValue(),
+				doubleMatrix.getValue(doubleMatrix.getRowIndex("cell3"), doubleMatrix.getColIndex("gene3")));
+	}
+
+	@Test
+	public void mappingMatrixFile() throws IOException {
+		final SparseMatrix<Short> sparseMatrix = getSparseMatrix(null);
+		for (final boolean compressedRows : new boolean[] { true, false }) {
+			final File file = File.createTempFile("matrix", ".bin");
+			file.deleteOnExit();
+			sparseMatrix.toCompressedMatrix(ValueType.SHORT, compressedRows).write(file);
+			final CompressedSparseMatrix matrix = CompressedSparseMatrix.open(file);
+			Assert.assertTrue(matrix.isMapped());
+			Assert.assertEquals(ValueType.SHORT, matrix.getValueType());
+			Assert.assertEquals(compressedRows, matrix.isCompressedRows());
+			assertSameValues(sparseMatrix, (CompressedShortMatrix) matrix);
+		}
+	}
+
+	@Test
+	public void buildingMatrixFileFromTriplets() throws IOException {
+		for (final boolean compressedRows : new boolean[] { true, false }) {
+			// small buffer to merge several runs
+			final CompressedSparseMatrixBuilder builder = new CompressedSparseMatrixBuilder(ValueType.SHORT,
+					compressedRows, null, 37);
+			final SparseMatrix<Short> sparseMatrix = getSparseMatrix(builder);
+			final File file = File.createTempFile("matrix", ".bin");
+			file.deleteOnExit();
+			final CompressedSparseMatrix matrix = builder.build(file);
+			Assert.assertTrue(matrix.isMapped());
+			Assert.assertEquals(compressedRows, matrix.isCompressedRows());
+			assertSameValues(sparseMatrix, (CompressedShortMatrix) matrix);
+		}
+		// zeros are not stored
+		final CompressedSparseMatrixBuilder builder = new CompressedSparseMatrixBuilder(ValueType.DOUBLE, true, null,
+				2);
+		builder.addValue("cell1", "gene1", 1.5);
+		builder.addValue("cell1", "gene2", 2.5);
+		builder.addValue("cell2", "gene1", 3.5);
+		builder.addValue("cell1", "gene2", 0);
+		final File file = File.createTempFile("matrix", ".bin");
+		file.deleteOnExit();
+		final CompressedDoubleMatrix matrix = (CompressedDoubleMatrix) builder.build(file);
+		Assert.assertEquals(2, matrix.getNumValues());
+		Assert.assertEquals(2, matrix.getNumCols());
+		Assert.assertEquals(0.0, matrix.getValue(0, 1));
+		Assert.assertEquals(3.5, matrix.getValue(matrix.getRowIndex("cell2"), matrix.getColIndex("gene1")));
+		// neither the ones that are 0 after the cast
+		final CompressedSparseMatrixBuilder shortBuilder = new CompressedSparseMatrixBuilder(ValueType.SHORT, true,
+				null, 2);
+		shortBuilder.addValue("cell1", "gene1", 1.5);
+		shortBuilder.addValue("cell1", "gene2", 0.3);
+		shortBuilder.addValue("cell2", "gene1", -0.7);
+		shortBuilder.addValue("cell2", "gene2", 2);
+		final File shortFile = File.createTempFile("matrix", ".bin");
+		shortFile.deleteOnExit();
+		final CompressedShortMatrix shortMatrix = (CompressedShortMatrix) shortBuilder.build(shortFile);
+		Assert.assertEquals(2, shortMatrix.getNumValues());
+		Assert.assertEquals(1, shortMatrix.getNumValuesInRow(shortMatrix.getRowIndex("cell1")));
+		Assert.assertEquals(1, shortMatrix.getValue(0, 0));
+		Assert.assertEquals(2, shortMatrix.getValue(1, 1));
+		Assert.assertFalse(new File(shortFile.getAbsolutePath() + ".tmp").exists());
+	}
+
+	@Test
+	public void removingFilesIfBuildFails() throws IOException {
+		final File folder = File.createTempFile("matrixRuns", "");
+		folder.delete();
+		folder.mkdir();
+		folder.deleteOnExit();
+		final CompressedSparseMatrixBuilder builder = new CompressedSparseMatrixBuilder(ValueType.SHORT, true, folder,
+				37);
+		getSparseMatrix(builder);
+		// one of the runs cannot be opened after opening the previous ones
+		final File[] runFiles = folder.listFiles();
+		Assert.assertTrue(runFiles.length > 2);
+		Arrays.sort(runFiles);
+		runFiles[runFiles.length - 1].delete();
+		final File file = new File(folder.getParentFile(), folder.getName() + ".bin");
+		try {
+			builder.build(file);
+			Assert.fail("The matrix should not be built");
+		} catch (final IOException e) {
+		}
+		Assert.assertFalse(file.exists());
+		Assert.assertFalse(new File(file.getAbsolutePath() + ".tmp").exists());
+		Assert.assertEquals(0, folder.listFiles().length);
+		folder.delete();
+	}
+
+	@Test
+	public void skippingZerosWhenConverting() throws IOException {
+		final SparseMatrix<Double> sparseMatrix = new SparseMatrix<Double>() {
+			@Override
+			public Double readFromString(String stringRepresentationOfTheData) {
+				return Double.valueOf(stringRepresentationOfTheData);
+			}
+		};
+		sparseMatrix.addValue("cell1", "gene1", 1.5);
+		sparseMatrix.addValue("cell1", "gene2", 0.0);
+		sparseMatrix.addValue("cell2", "gene1", 0.3);
+		sparseMatrix.addValue("cell2", "gene2", -2.0);
+		for (final boolean compressedRows : new boolean[] { true, false }) {
+			// the explicit 0 is not stored, neither 0.3, which is 0 as a short
+			final CompressedShortMatrix matrix = (CompressedShortMatrix) sparseMatrix
+					.toCompressedMatrix(ValueType.SHORT, compressedRows);
+			Assert.assertEquals(2, matrix.getNumValues());
+			Assert.assertEquals(1, matrix.getNumValuesInRow(0));
+			Assert.assertEquals(1, matrix.getNumValuesInRow(1));
+			Assert.assertEquals(1, matrix.getNumValuesInColumn(0));
+			Assert.assertEquals(1, matrix.getNumValuesInColumn(1));
+			Assert.assertEquals(1, matrix.getValue(0, 0));
+			Assert.assertEquals(0, matrix.getValue(1, 0));
+			Assert.assertEquals(-2, matrix.getValue(1, 1));
+			Assert.assertEquals(1, matrix.getRowIndexes(1)[0]);
+		}
+		// 0.3 is stored as a double
+		final CompressedDoubleMatrix doubleMatrix = (CompressedDoubleMatrix) sparseMatrix
+				.toCompressedMatrix(ValueType.DOUBLE, true);
+		Assert.assertEquals(3, doubleMatrix.getNumValues());
+		Assert.assertEquals(0.3, doubleMatrix.getValue(1, 0));
+	}
+
+	@Test
+	public void openingCorruptFile() throws IOException {
+		final File file = File.createTempFile("matrix", ".bin");
+		file.deleteOnExit();
+		getSparseMatrix(null).toCompressedMatrix(ValueType.SHORT, true).write(file);
+		// unknown value type after the magic number and the version
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(8);
+			raf.writeInt(ValueType.values().length);
+		} finally {
+			raf.close();
+		}
+		try {
+			CompressedSparseMatrix.open(file);
+			Assert.fail("The file is not valid");
+		} catch (final IOException e) {
+			Assert.assertTrue(e.getMessage().contains("value type"));
+		}
+	}
+}
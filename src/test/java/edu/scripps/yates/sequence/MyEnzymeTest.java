@@ -0,0 +1,69 @@
+package edu.scripps.yates.sequence;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.sequence.MyEnzyme;
+import junit.framework.Assert;
+
+public class MyEnzymeTest {
+
+	private static void assertPeptides(Collection<String> peptides, String... expected) {
+		Assert.assertEquals(Arrays.asList(expected), peptides);
+	}
+
+	@Test
+	public void cleavingCTerm() {
+		final MyEnzyme trypsin = new MyEnzyme("Trypsin", "KR", "P", "Cterm", 1);
+		// no cleavage between R and P
+		final String protein = "MKAPKRPGRSTK";
+		// first the fully cleaved peptides and then the ones with missed
+		// cleavages
+		assertPeptides(trypsin.cleave(protein, 1, 100, null), "MK", "APK", "RPGR", "STK", "MKAPK", "APKRPGR",
+				"RPGRSTK");
+		assertPeptides(trypsin.cleave(protein, 3, 5, null), "APK", "RPGR", "STK", "MKAPK");
+		// peptides with a stop codon are not reported
+		assertPeptides(trypsin.cleave("MK_AKLLR", 1, 100, null), "MK", "LLR");
+		// a cleavable residue at the end doesn't give an empty peptide
+		assertPeptides(trypsin.cleave("KK", 1, 100, null), "K", "K", "KK");
+
+		final MyEnzyme trypsin2 = new MyEnzyme("Trypsin", "KR", "P", "Cterm", 2);
+		assertPeptides(trypsin2.cleave(protein, 1, 100, null), "MK", "APK", "RPGR", "STK", "MKAPK", "MKAPKRPGR",
+				"APKRPGR", "APKRPGRSTK", "RPGRSTK");
+		final MyEnzyme trypsin0 = new MyEnzyme("Trypsin", "KR", null, "Cterm", 0);
+		assertPeptides(trypsin0.cleave(protein, 1, 100, null), "MK", "APK", "R", "PGR", "STK");
+	}
+
+	@Test
+	public void cleavingNTerm() {
+		final MyEnzyme aspN = new MyEnzyme("AspN", "D", null, "Nterm", 1);
+		// a cleavable residue at the start doesn't give an empty peptide
+		assertPeptides(aspN.cleave("DAKDEFDG", 1, 100, null), "DAK", "DEF", "DG", "DAKDEF", "DEFDG");
+		assertPeptides(aspN.cleave("AKDEF", 1, 100, null), "AK", "DEF", "AKDEF");
+		// the restrictor is the residue after the cleavable one
+		final MyEnzyme restrictedAspN = new MyEnzyme("AspN", "D", "P", "Nterm", 0);
+		assertPeptides(restrictedAspN.cleave("ADPKDE", 1, 100, null), "ADPK", "DE");
+		assertPeptides(restrictedAspN.cleave("AD_KDE", 1, 100, null), "A", "DE");
+	}
+
+	@Test
+	public void changingCleavageRules() {
+		final MyEnzyme trypsin = new MyEnzyme("Trypsin", "KR", "P", "Cterm", 1, true);
+		Assert.assertSame(trypsin.getDigestionEngine(), trypsin.getDigestionEngine());
+		final String protein = "MKAPKRPGRSTK";
+		final Collection<String> peptides = trypsin.cleave(protein, 1, 100, null);
+		Assert.assertSame(peptides, trypsin.cleave(protein, 1, 100, null));
+		// a shorter protein after a longer one, reusing the buffer
+		assertPeptides(trypsin.cleave("AKLR", 1, 100, null), "AK", "LR", "AKLR");
+
+		trypsin.setMiscleavages(0);
+		Assert.assertEquals(0, trypsin.getDigestionEngine().getMaxMissedCleavages());
+		assertPeptides(trypsin.cleave(protein, 1, 100, null), "MK", "APK", "RPGR", "STK");
+		trypsin.setCleavage("R");
+		Assert.assertTrue(trypsin.getDigestionEngine().isCleavable('R'));
+		Assert.assertFalse(trypsin.getDigestionEngine().isCleavable('K'));
+		assertPeptides(trypsin.cleave(protein, 1, 100, null), "MKAPKRPGR", "STK");
+	}
+}
@@ -0,0 +1,67 @@
+package edu.scripps.yates.sequence;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.sequence.PeptidePermutations;
+import edu.scripps.yates.utilities.sequence.PeptideSequenceProperties;
+import edu.scripps.yates.utilities.sequence.ProteinSequenceUtils;
+import gnu.trove.set.hash.THashSet;
+import junit.framework.Assert;
+
+public class PeptidePermutationsTest {
+
+	@Test
+	public void leucineIsoleucinePermutations() {
+		final String peptide = "LIPEPTIDEK";
+		final Set<String> permutations = PeptideSequenceProperties.permutatePeptideLeucineIsoleucine(peptide);
+		Assert.assertEquals(8, permutations.size());
+		final String canonical = ProteinSequenceUtils.getLeucineIsoleucineCanonicalSequence(peptide);
+		Assert.assertEquals("&&PEPT&DEK", canonical);
+		final PeptidePermutations lazy = new PeptidePermutations(peptide, PeptidePermutations.LEUCINE_ISOLEUCINE);
+		Assert.assertEquals(8, lazy.size());
+		boolean first = true;
+		for (final String permutation : lazy) {
+			if (first) {
+				Assert.assertEquals(peptide, permutation);
+				first = false;
+			}
+			Assert.assertTrue(permutations.contains(permutation));
+			Assert.assertTrue(lazy.matches(permutation));
+			Assert.assertEquals(canonical, ProteinSequenceUtils.getLeucineIsoleucineCanonicalSequence(permutation));
+		}
+		Assert.assertFalse(lazy.matches("LIPEPTLDEL"));
+		Assert.assertFalse(lazy.matches("LIPEPTIDE"));
+		Assert.assertEquals(1, PeptideSequenceProperties.permutatePeptideLeucineIsoleucine("PEPTDEK").size());
+	}
+
+	@Test
+	public void boundedPermutations() {
+		// 2^60 variants
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 60; i++) {
+			sb.append(i % 2 == 0 ? 'I' : 'L');
+		}
+		final PeptidePermutations unbounded = new PeptidePermutations(sb.toString(),
+				PeptidePermutations.LEUCINE_ISOLEUCINE);
+		Assert.assertEquals(1l << 60, unbounded.size());
+		final PeptidePermutations bounded = PeptideSequenceProperties.getPermutationsLeucineIsoleucine(sb.toString(),
+				1000);
+		Assert.assertEquals(1000, bounded.size());
+		final Set<String> set = new THashSet<String>();
+		for (final String permutation : bounded) {
+			set.add(permutation);
+		}
+		Assert.assertEquals(1000, set.size());
+
+		// three equivalent aminoacids
+		final PeptidePermutations three = new PeptidePermutations("KAQAK", new char[] { 'K', 'Q', 'E' });
+		final Set<String> all = new THashSet<String>();
+		for (final String permutation : three) {
+			all.add(permutation);
+		}
+		Assert.assertEquals(27, all.size());
+		Assert.assertTrue(all.contains("EAEAE"));
+	}
+}
@@ -0,0 +1,75 @@
+package edu.scripps.yates.sequence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.sequence.PeptidePropertiesCalculator;
+import edu.scripps.yates.utilities.sequence.PeptideSequenceProperties;
+import junit.framework.Assert;
+
+public class PeptidePropertiesCalculatorTest {
+	private static final String AAS = "ACDEFGHIKLMNPQRSTVWY";
+
+	@Test
+	public void samepIAsPeptideSequenceProperties() {
+		final Random random = new Random(1);
+		final List<String> peptides = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = 1 + random.nextInt(40);
+			for (int j = 0; j < length; j++) {
+				sb.append(AAS.charAt(random.nextInt(AAS.length())));
+			}
+			peptides.add(sb.toString());
+		}
+		final PeptidePropertiesCalculator calculator = new PeptidePropertiesCalculator();
+		final float[] pIs = calculator.calculatepI(peptides);
+		for (int i = 0; i < peptides.size(); i++) {
+			Assert.assertEquals(PeptideSequenceProperties.calculatepI(peptides.get(i)), pIs[i]);
+		}
+		final int numCompositions = calculator.getNumCompositions();
+		Assert.assertTrue(numCompositions <= peptides.size());
+		// the second time, all of them are remembered
+		final float[] pIs2 = calculator.calculatepI(peptides);
+		Assert.assertTrue(Arrays.equals(pIs, pIs2));
+		Assert.assertEquals(numCompositions, calculator.getNumCompositions());
+	}
+
+	@Test
+	public void sameGravyAsPeptideSequenceProperties() {
+		final Random random = new Random(2);
+		final List<String> peptides = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = 1 + random.nextInt(40);
+			for (int j = 0; j < length; j++) {
+				sb.append(AAS.charAt(random.nextInt(AAS.length())));
+			}
+			peptides.add(sb.toString());
+		}
+		final double[] gravies = new PeptidePropertiesCalculator().calculateGravy(peptides);
+		for (int i = 0; i < peptides.size(); i++) {
+			Assert.assertEquals(PeptideSequenceProperties.calculateGravy(peptides.get(i)), gravies[i], 1e-9);
+		}
+	}
+
+	@Test
+	public void sameCompositionSameResult() {
+		final PeptidePropertiesCalculator calculator = new PeptidePropertiesCalculator();
+		final List<String> peptides = Arrays.asList("PEPTIDEK", "KEDITPEP", "AAAA", "VVVV");
+		final float[] pIs = new float[peptides.size()];
+		final double[] gravies = new double[peptides.size()];
+		calculator.calculate(peptides, pIs, gravies);
+		Assert.assertEquals(pIs[0], pIs[1]);
+		Assert.assertEquals(pIs[2], pIs[3]);
+		Assert.assertEquals(gravies[0], gravies[1], 1e-9);
+		Assert.assertEquals(1.8, gravies[2], 1e-9);
+		Assert.assertEquals(4.2, gravies[3], 1e-9);
+		// AAAA and VVVV have no ionizable residues
+		Assert.assertEquals(2, calculator.getNumCompositions());
+	}
+}
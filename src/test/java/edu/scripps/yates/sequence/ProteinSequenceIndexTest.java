@@ -0,0 +1,70 @@
+package edu.scripps.yates.sequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.scripps.yates.utilities.sequence.PositionInProtein;
+import edu.scripps.yates.utilities.sequence.ProteinSequenceIndex;
+import edu.scripps.yates.utilities.sequence.ProteinSequenceUtils;
+import junit.framework.Assert;
+
+public class ProteinSequenceIndexTest {
+	// small alphabet to have many repetitions
+	private static final String AAS = "AKLIPE";
+
+	@Test
+	public void samePositionsAsProteinSequenceUtils() {
+		final Random random = new Random(3);
+		final List<String> accessions = new ArrayList<String>();
+		final List<String> sequences = new ArrayList<String>();
+		for (int p = 0; p < 200; p++) {
+			accessions.add("P" + p);
+			final StringBuilder sb = new StringBuilder();
+			final int length = p == 10 ? 0 : random.nextInt(300);
+			for (int i = 0; i < length; i++) {
+				sb.append(AAS.charAt(random.nextInt(AAS.length())));
+			}
+			sequences.add(p % 7 == 0 ? sb.toString().toLowerCase() : sb.toString());
+		}
+		// a repeated protein
+		accessions.add("REPEATED");
+		sequences.add(sequences.get(1));
+		final ProteinSequenceIndex index = new ProteinSequenceIndex(accessions, sequences);
+		Assert.assertEquals(201, index.getNumProteins());
+
+		final List<String> peptides = new ArrayList<String>();
+		for (int i = 0; i < 500; i++) {
+			final StringBuilder sb = new StringBuilder();
+			final int length = 1 + random.nextInt(6);
+			for (int j = 0; j < length; j++) {
+				sb.append(AAS.charAt(random.nextInt(AAS.length())));
+			}
+			peptides.add(sb.toString());
+		}
+		peptides.add(sequences.get(1));
+		final List<List<PositionInProtein>> results = index.getPositions(peptides, 4);
+		final char[] sites = { 'K', 'L' };
+		for (int i = 0; i < peptides.size(); i++) {
+			final String peptide = peptides.get(i);
+			final List<PositionInProtein> expected = new ArrayList<PositionInProtein>();
+			final List<PositionInProtein> expectedSites = new ArrayList<PositionInProtein>();
+			for (int p = 0; p < sequences.size(); p++) {
+				expected.addAll(ProteinSequenceUtils.getPositionsOfPeptideSequenceInProteinSequence(peptide,
+						sequences.get(p), accessions.get(p)));
+				if (i < 50) {
+					expectedSites.addAll(ProteinSequenceUtils.getPositionsInProteinForSites(sites, peptide,
+							sequences.get(p), accessions.get(p)));
+				}
+			}
+			Assert.assertEquals(peptide, expected.toString(), results.get(i).toString());
+			if (i < 50) {
+				Assert.assertEquals(peptide, expectedSites.size(), index.getPositionsForSites(sites, peptide).size());
+				Assert.assertTrue(expectedSites.containsAll(index.getPositionsForSites(sites, peptide)));
+			}
+		}
+		Assert.assertTrue(index.getPositions("W").isEmpty());
+	}
+}